@@ -0,0 +1,308 @@
+package com.leostormer.strife.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiPredicate;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * A map holding entries up to a total weight, evicting the least recently
+ * used first, along with the write stamps that keep a load racing a write
+ * from caching what it read before the write.
+ * <p>
+ * A reader records the key's {@link #stamp(Object) stamp} before querying
+ * the database and caches what it read with
+ * {@link #putIfUnchanged(Object, Object, long)}, which does nothing if the
+ * key was written in the meantime. Every write bumps the stamp of the written
+ * key, or {@link #discardLoads() of every key} if the written key is unknown.
+ * Stamps are striped, so a write occasionally discards the load of an
+ * unrelated key.
+ * <p>
+ * Safe for concurrent use. The {@link Listener} is called with the cache's
+ * lock held.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ */
+public class StampedLruCache<K, V> {
+    private static final int WRITE_STAMP_STRIPES = 256;
+
+    /**
+     * Told about every entry added to or removed from a cache, including
+     * replaced and evicted entries, so that indexes of the cached values can
+     * be kept alongside it.
+     */
+    public interface Listener<K, V> {
+        default void onAdded(K key, V value) {
+        }
+
+        default void onRemoved(K key, V value) {
+        }
+    }
+
+    private final long maxWeight;
+
+    private final ToLongFunction<? super V> weigher;
+
+    private final Listener<? super K, ? super V> listener;
+
+    /**
+     * Cached entries in least recently used order.
+     */
+    private final LinkedHashMap<K, Weighted<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLongArray writeStamps = new AtomicLongArray(WRITE_STAMP_STRIPES);
+
+    private long weight;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private StampedLruCache(long maxWeight, ToLongFunction<? super V> weigher,
+            Listener<? super K, ? super V> listener) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+        this.listener = listener;
+    }
+
+    /**
+     * Creates a cache holding at most the given number of entries.
+     */
+    public static <K, V> StampedLruCache<K, V> ofMaxEntries(int maxEntries) {
+        return ofMaxEntries(maxEntries, new Listener<>() {
+        });
+    }
+
+    /**
+     * Creates a cache holding at most the given number of entries.
+     */
+    public static <K, V> StampedLruCache<K, V> ofMaxEntries(int maxEntries, Listener<? super K, ? super V> listener) {
+        return new StampedLruCache<>(maxEntries, value -> 1, listener);
+    }
+
+    /**
+     * Creates a cache holding entries up to the given total weight.
+     */
+    public static <K, V> StampedLruCache<K, V> ofMaxWeight(long maxWeight, ToLongFunction<? super V> weigher,
+            Listener<? super K, ? super V> listener) {
+        return new StampedLruCache<>(maxWeight, weigher, listener);
+    }
+
+    /**
+     * Runs an eviction, and runs it again once the surrounding transaction
+     * completes. A load racing an uncommitted write sees the old value, and
+     * its stamp check passes once the first eviction has run, so the eviction
+     * is repeated once the write is settled.
+     *
+     * @param eviction the eviction
+     */
+    public static void evictAndRepeatAfterCompletion(Runnable eviction) {
+        eviction.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the current write stamp of a key, to be read before loading
+     * the value passed to {@link #putIfUnchanged(Object, Object, long)}.
+     *
+     * @param key the key
+     * @return the write stamp
+     */
+    public long stamp(K key) {
+        return writeStamps.get(stripe(key));
+    }
+
+    /**
+     * Returns the value cached for a key, counting a hit or a miss.
+     *
+     * @param key the key
+     * @return the value, or null on a miss
+     */
+    public synchronized V get(K key) {
+        Weighted<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.value();
+    }
+
+    /**
+     * Returns the value cached for a key without counting a hit or a miss.
+     *
+     * @param key the key
+     * @return the value, or null if none is cached
+     */
+    public synchronized V getIfPresent(K key) {
+        Weighted<V> entry = entries.get(key);
+        return entry == null ? null : entry.value();
+    }
+
+    /**
+     * Caches a loaded value, unless the key was written since the stamp was
+     * read.
+     *
+     * @param key   the key
+     * @param value the loaded value
+     * @param stamp the stamp read before loading the value
+     */
+    public synchronized void putIfUnchanged(K key, V value, long stamp) {
+        if (stamp(key) != stamp)
+            return;
+
+        remove(key);
+        Weighted<V> entry = new Weighted<>(value, weigher.applyAsLong(value));
+        entries.put(key, entry);
+        weight += entry.weight();
+        listener.onAdded(key, value);
+        trim();
+    }
+
+    /**
+     * Applies a write to the value cached for a key, if any. The change may
+     * modify the value in place or return a new one, and is weighed again.
+     *
+     * @param key    the key
+     * @param change the change, which must not return null
+     */
+    public void update(K key, UnaryOperator<V> change) {
+        writeStamps.incrementAndGet(stripe(key));
+        synchronized (this) {
+            Weighted<V> entry = entries.get(key);
+            if (entry == null)
+                return;
+
+            V changed = change.apply(entry.value());
+            Weighted<V> updated = new Weighted<>(changed, weigher.applyAsLong(changed));
+            entries.put(key, updated);
+            weight += updated.weight() - entry.weight();
+            if (changed != entry.value()) {
+                listener.onRemoved(key, entry.value());
+                listener.onAdded(key, changed);
+            }
+
+            trim();
+        }
+    }
+
+    /**
+     * Forgets a key after it was written.
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        writeStamps.incrementAndGet(stripe(key));
+        synchronized (this) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Forgets every matching entry. Loads in flight are discarded for every
+     * key, as a key that is not cached yet may be about to match.
+     *
+     * @param predicate selects the entries to forget
+     */
+    public void invalidateIf(BiPredicate<? super K, ? super V> predicate) {
+        discardLoads();
+        synchronized (this) {
+            List<K> matching = new ArrayList<>();
+            entries.forEach((key, entry) -> {
+                if (predicate.test(key, entry.value()))
+                    matching.add(key);
+            });
+            matching.forEach(this::remove);
+        }
+    }
+
+    /**
+     * Forgets every entry.
+     */
+    public void invalidateAll() {
+        discardLoads();
+        synchronized (this) {
+            entries.forEach((key, entry) -> listener.onRemoved(key, entry.value()));
+            entries.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Keeps every load in flight from being cached, such as after a write to
+     * a key that could not be identified.
+     */
+    public void discardLoads() {
+        for (int i = 0; i < WRITE_STAMP_STRIPES; i++)
+            writeStamps.incrementAndGet(i);
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the maximum
+     * weight.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    private void remove(K key) {
+        Weighted<V> removed = entries.remove(key);
+        if (removed != null) {
+            weight -= removed.weight();
+            listener.onRemoved(key, removed.value());
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<K, Weighted<V>>> eldest = entries.entrySet().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            Map.Entry<K, Weighted<V>> entry = eldest.next();
+            eldest.remove();
+            weight -= entry.getValue().weight();
+            listener.onRemoved(entry.getKey(), entry.getValue().value());
+            evictions++;
+        }
+    }
+
+    private static int stripe(Object key) {
+        return Math.floorMod(key.hashCode(), WRITE_STAMP_STRIPES);
+    }
+
+    private record Weighted<V>(V value, long weight) {
+    }
+}
@@ -1,5 +1,8 @@
 package com.leostormer.strife.channel;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
@@ -16,7 +19,16 @@ import lombok.NoArgsConstructor;
 @Data
 @NoArgsConstructor(access = AccessLevel.PROTECTED)
 public abstract class Channel {
+    public static final int MAX_PINNED_MESSAGES = 50;
+
     @Id
     @NonNull
     private ObjectId id;
+
+    /**
+     * The ids of the messages pinned in this channel from most to least
+     * recently pinned, at most {@link #MAX_PINNED_MESSAGES}. Kept on the channel
+     * so the pins are loaded with it instead of searched for among its messages.
+     */
+    private List<ObjectId> pinnedMessageIds = new ArrayList<>();
 }
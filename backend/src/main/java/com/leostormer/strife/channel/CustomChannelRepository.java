@@ -1,5 +1,6 @@
 package com.leostormer.strife.channel;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -34,6 +35,33 @@ public interface CustomChannelRepository {
      */
     void deleteAllByServer(ObjectId serverId);
 
+    /**
+     * Removes the overwrites of deleted roles from every channel of a server.
+     * 
+     * @param serverId the id of the server
+     * @param roleIds  the deleted roles' ids
+     */
+    void removeRolePermissions(ObjectId serverId, Collection<ObjectId> roleIds);
+
+    /**
+     * Pins a message in a channel unless it is already pinned or the channel has
+     * {@link Channel#MAX_PINNED_MESSAGES} pins.
+     * 
+     * @param channelId the channel's id
+     * @param messageId the message's id
+     * @return whether the message was pinned
+     */
+    boolean pinMessage(ObjectId channelId, ObjectId messageId);
+
+    /**
+     * Unpins messages from a channel. Messages that are not pinned are ignored.
+     * 
+     * @param channelId  the channel's id
+     * @param messageIds the messages' ids
+     * @return whether any message was unpinned
+     */
+    boolean unpinMessages(ObjectId channelId, Collection<ObjectId> messageIds);
+
     /**
      * Performs an update operation on a <code>ServerChannel</code>.
      * 
@@ -1,6 +1,7 @@
 package com.leostormer.strife.channel;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -88,6 +89,31 @@ public class CustomChannelRepositoryImpl implements CustomChannelRepository {
         mongoTemplate.remove(new Query(Criteria.where("server").is(serverId)), ServerChannel.class);
     }
 
+    @Override
+    public void removeRolePermissions(ObjectId serverId, Collection<ObjectId> roleIds) {
+        if (roleIds.isEmpty())
+            return;
+
+        Update update = new Update();
+        roleIds.forEach(id -> update.unset("rolePermissions." + id.toHexString()));
+        mongoTemplate.updateMulti(new Query(Criteria.where("server").is(serverId)), update, ServerChannel.class);
+    }
+
+    @Override
+    public boolean pinMessage(ObjectId channelId, ObjectId messageId) {
+        Query query = new Query(Criteria.where("_id").is(channelId).and("pinnedMessageIds").ne(messageId)
+                .and("pinnedMessageIds." + (Channel.MAX_PINNED_MESSAGES - 1)).exists(false));
+        Update update = new Update().push("pinnedMessageIds").atPosition(0).value(messageId);
+        return mongoTemplate.updateFirst(query, update, Channel.class).getModifiedCount() > 0;
+    }
+
+    @Override
+    public boolean unpinMessages(ObjectId channelId, Collection<ObjectId> messageIds) {
+        Query query = new Query(Criteria.where("_id").is(channelId).and("pinnedMessageIds").in(messageIds));
+        Update update = new Update().pullAll("pinnedMessageIds", messageIds.toArray());
+        return mongoTemplate.updateFirst(query, update, Channel.class).getModifiedCount() > 0;
+    }
+
     @Override
     public Optional<Conversation> findConversationById(Object conversationId) {
         return Optional.ofNullable(
@@ -0,0 +1,515 @@
+package com.leostormer.strife.cluster;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.simp.SimpMessageSendingOperations;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.member.MemberCache;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageTailCache;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.server.server_channel.ChannelPermissionCache;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserCache;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Lets several nodes serve the same clients by having each of them tail one
+ * change stream over the collections other nodes write to.
+ * <p>
+ * New messages and {@link ClusterBroadcast}s are delivered to the subscribers
+ * connected to this node, and {@link UserDeliveryBatch}es addressed to this
+ * node to the sessions of their users. Writes to members, channels, servers, users and
+ * messages evict what this node cached about them, since the mapping events
+ * that keep the caches current are only published on the node that wrote.
+ * <p>
+ * The position in the stream is saved every
+ * <code>app.cluster.fan-out.checkpoint-interval</code> under
+ * <code>app.cluster.node-id</code>, and a restarted node resumes from it.
+ * Caches are always brought up to date, but events older than
+ * <code>app.cluster.fan-out.max-replay-age</code> are not delivered, as
+ * reconnecting clients load the history they missed anyway. If the position
+ * is no longer in the oplog, every cache is cleared instead.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.fan-out.mode", havingValue = "change-stream")
+public class ChangeStreamFanOut implements DisposableBean, MeterBinder {
+    private static final Logger logger = LoggerFactory.getLogger(ChangeStreamFanOut.class);
+
+    private static final List<String> COLLECTIONS = List.of("messages", "members", "channels", "servers", "users",
+            ClusterBroadcast.COLLECTION, UserDeliveryBatch.COLLECTION);
+
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private static final int MAX_LOOKUPS = 10_000;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final SimpMessageSendingOperations messagingTemplate;
+
+    private final MemberCache memberCache;
+
+    private final ChannelPermissionCache channelPermissionCache;
+
+    private final UserCache userCache;
+
+    private final MessageTailCache messageTailCache;
+
+    private final String nodeId;
+
+    private final long checkpointIntervalMillis;
+
+    private final long maxReplayAgeMillis;
+
+    /**
+     * The server of each recently seen channel, empty for conversations. Only
+     * touched by the stream thread.
+     */
+    private final LinkedHashMap<ObjectId, Optional<ObjectId>> serverIdsByChannel = new LinkedHashMap<>(16, 0.75f,
+            true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Optional<ObjectId>> eldest) {
+            return size() > MAX_LOOKUPS;
+        }
+    };
+
+    /**
+     * Recent senders of new messages. Only touched by the stream thread.
+     */
+    private final LinkedHashMap<ObjectId, User> senders = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, User> eldest) {
+            return size() > MAX_LOOKUPS;
+        }
+    };
+
+    private volatile boolean running;
+
+    private volatile boolean connected;
+
+    private Thread thread;
+
+    private volatile BsonDocument resumeToken;
+
+    private BsonDocument savedToken;
+
+    private long lastCheckpoint;
+
+    private volatile long events;
+
+    private volatile long deliveries;
+
+    private volatile long restarts;
+
+    public ChangeStreamFanOut(MongoTemplate mongoTemplate, SimpMessageSendingOperations messagingTemplate,
+            MemberCache memberCache, ChannelPermissionCache channelPermissionCache, UserCache userCache,
+            MessageTailCache messageTailCache, @Value("${app.cluster.node-id:${HOSTNAME:local}}") String nodeId,
+            @Value("${app.cluster.fan-out.checkpoint-interval:1s}") Duration checkpointInterval,
+            @Value("${app.cluster.fan-out.max-replay-age:10s}") Duration maxReplayAge) {
+        this.mongoTemplate = mongoTemplate;
+        this.messagingTemplate = messagingTemplate;
+        this.memberCache = memberCache;
+        this.channelPermissionCache = channelPermissionCache;
+        this.userCache = userCache;
+        this.messageTailCache = messageTailCache;
+        this.nodeId = nodeId;
+        this.checkpointIntervalMillis = checkpointInterval.toMillis();
+        this.maxReplayAgeMillis = maxReplayAge.toMillis();
+    }
+
+    /**
+     * Starts tailing the stream from this node's saved position.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void start() {
+        if (running)
+            return;
+
+        ChangeStreamPosition position = mongoTemplate.findById(nodeId, ChangeStreamPosition.class);
+        if (position != null && position.getResumeToken() != null)
+            resumeToken = new BsonDocument("_data", new BsonString(position.getResumeToken()));
+        savedToken = resumeToken;
+
+        running = true;
+        thread = new Thread(this::run, "change-stream-fan-out");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        Thread stopping;
+        synchronized (this) {
+            if (!running)
+                return;
+
+            running = false;
+            stopping = thread;
+        }
+
+        // The stream thread checks for shutdown at least once per await
+        stopping.join(5 * RETRY_DELAY_MILLIS);
+        checkpoint();
+    }
+
+    /**
+     * Checks if the stream is open, so that every write from now on will be
+     * applied.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getEventCount() {
+        return events;
+    }
+
+    public long getDeliveryCount() {
+        return deliveries;
+    }
+
+    public long getRestartCount() {
+        return restarts;
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.cluster.fan_out.events", this, ChangeStreamFanOut::getEventCount)
+                .description("Change stream events applied by this node").register(registry);
+        FunctionCounter.builder("strife.cluster.fan_out.deliveries", this, ChangeStreamFanOut::getDeliveryCount)
+                .description("Events delivered to this node's subscribers from the change stream")
+                .register(registry);
+        FunctionCounter.builder("strife.cluster.fan_out.restarts", this, ChangeStreamFanOut::getRestartCount)
+                .description("Times the change stream was reopened after an error").register(registry);
+        Gauge.builder("strife.cluster.fan_out.connected", this, fanOut -> fanOut.isConnected() ? 1 : 0)
+                .description("Whether this node is reading the change stream").register(registry);
+    }
+
+    private void run() {
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = open()) {
+                // Without a position nothing that happened before the stream was opened is known
+                if (resumeToken == null)
+                    clearCaches();
+                connected = true;
+
+                while (running) {
+                    ChangeStreamDocument<Document> event = cursor.tryNext();
+                    if (event != null && event.getOperationType() == OperationType.INVALIDATE) {
+                        resumeToken = null;
+                        break;
+                    }
+
+                    if (event != null)
+                        applySafely(event);
+
+                    BsonDocument token = cursor.getResumeToken();
+                    if (token != null)
+                        resumeToken = token;
+                    if (System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMillis)
+                        checkpoint();
+                }
+
+                connected = false;
+            } catch (MongoServerException e) {
+                connected = false;
+                if (e.getCode() == CHANGE_STREAM_HISTORY_LOST || e.getCode() == CHANGE_STREAM_FATAL_ERROR) {
+                    logger.warn("Change stream cannot be resumed, reopening from now and clearing caches", e);
+                    resumeToken = null;
+                } else {
+                    logger.warn("Change stream failed, reopening in {} ms", RETRY_DELAY_MILLIS, e);
+                }
+                retryLater();
+            } catch (RuntimeException e) {
+                connected = false;
+                logger.warn("Change stream failed, reopening in {} ms", RETRY_DELAY_MILLIS, e);
+                retryLater();
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> open() {
+        // Batches for users connected to other nodes are filtered out by the server
+        Bson filter = Filters.and(Filters.in("ns.coll", COLLECTIONS), Filters.or(
+                Filters.ne("ns.coll", UserDeliveryBatch.COLLECTION), Filters.eq("fullDocument.nodeId", nodeId)));
+        ChangeStreamIterable<Document> stream = mongoTemplate.getDb().watch(List.of(Aggregates.match(filter)))
+                .maxAwaitTime(RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        BsonDocument token = resumeToken;
+        return (token == null ? stream : stream.resumeAfter(token)).cursor();
+    }
+
+    private void retryLater() {
+        restarts++;
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private synchronized void checkpoint() {
+        lastCheckpoint = System.currentTimeMillis();
+        BsonDocument token = resumeToken;
+        if (token == null || token.equals(savedToken) || !token.isString("_data"))
+            return;
+
+        try {
+            mongoTemplate.upsert(new Query(Criteria.where("_id").is(nodeId)),
+                    new Update().set("resumeToken", token.getString("_data").getValue()).set("updatedAt", new Date()),
+                    ChangeStreamPosition.class);
+            savedToken = token;
+        } catch (RuntimeException e) {
+            // Saved with the next checkpoint
+            logger.warn("Could not save change stream position of node {}", nodeId, e);
+        }
+    }
+
+    private void applySafely(ChangeStreamDocument<Document> event) {
+        try {
+            apply(event);
+        } catch (RuntimeException e) {
+            // The event could not be applied precisely, so nothing cached can be trusted
+            logger.warn("Could not apply {} change event, clearing caches", event.getOperationType(), e);
+            clearCaches();
+        }
+
+        events++;
+    }
+
+    private void apply(ChangeStreamDocument<Document> event) {
+        OperationType operation = event.getOperationType();
+        if (event.getNamespace() == null || operation == OperationType.DROP || operation == OperationType.RENAME
+                || operation == OperationType.DROP_DATABASE) {
+            clearCaches();
+            return;
+        }
+
+        ObjectId id = objectId(event.getDocumentKey() == null ? null : event.getDocumentKey().get("_id"));
+        Document document = event.getFullDocument();
+        switch (event.getNamespace().getCollectionName()) {
+            case "messages" -> applyMessage(event, operation, id, document);
+            case "members" -> {
+                if (document != null && document.get("user") instanceof ObjectId userId
+                        && document.get("server") instanceof ObjectId serverId)
+                    memberCache.evict(userId, serverId);
+                else if (id != null)
+                    memberCache.evictMember(id);
+                else
+                    memberCache.clear();
+            }
+            case "channels" -> {
+                if (document != null && document.get("server") instanceof ObjectId serverId)
+                    channelPermissionCache.evict(serverId);
+                else if (id != null)
+                    channelPermissionCache.evictServersOf(List.of(id));
+                else
+                    channelPermissionCache.clear();
+            }
+            case "servers" -> {
+                // Role edits change the permissions of members and the roles known to the matrix
+                if (id != null) {
+                    memberCache.evictServer(id);
+                    channelPermissionCache.evict(id);
+                }
+            }
+            case "users" -> {
+                if (id != null) {
+                    userCache.evict(id);
+                    messageTailCache.onSenderChanged(id);
+                    senders.remove(id);
+                } else {
+                    userCache.clear();
+                    messageTailCache.clear();
+                    senders.clear();
+                }
+            }
+            case ClusterBroadcast.COLLECTION -> {
+                if (operation == OperationType.INSERT && document != null && isLive(event))
+                    deliver(document);
+            }
+            case UserDeliveryBatch.COLLECTION -> {
+                if (operation == OperationType.INSERT && document != null && isLive(event))
+                    deliverToUsers(document);
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void applyMessage(ChangeStreamDocument<Document> event, OperationType operation, ObjectId messageId,
+            Document document) {
+        if (messageId == null) {
+            messageTailCache.clear();
+            return;
+        }
+
+        switch (operation) {
+            case INSERT, REPLACE -> {
+                Message message = mongoTemplate.getConverter().read(Message.class, document);
+                messageTailCache.onSaved(message);
+                if (operation == OperationType.INSERT && isLive(event))
+                    deliver(message);
+            }
+            case UPDATE -> {
+                Map<String, Long> reactionCounts = reactionCounts(event);
+                if (reactionCounts != null)
+                    messageTailCache.onReactionCountsSet(messageId, reactionCounts);
+                else
+                    messageTailCache.onModified(messageId);
+            }
+            case DELETE -> messageTailCache.onRemoved(messageId);
+            default -> messageTailCache.onModified(messageId);
+        }
+    }
+
+    /**
+     * Reads the new counts from an update that only changed reactions.
+     *
+     * @return the counts by emoji, or null if anything else was changed
+     */
+    private static Map<String, Long> reactionCounts(ChangeStreamDocument<Document> event) {
+        if (event.getUpdateDescription() == null || event.getUpdateDescription().getUpdatedFields() == null)
+            return null;
+
+        List<String> removedFields = event.getUpdateDescription().getRemovedFields();
+        if (removedFields != null && !removedFields.isEmpty())
+            return null;
+
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<String, BsonValue> field : event.getUpdateDescription().getUpdatedFields().entrySet()) {
+            if (!field.getKey().startsWith("reactions.") || !field.getValue().isNumber())
+                return null;
+
+            counts.put(field.getKey().substring("reactions.".length()), field.getValue().asNumber().longValue());
+        }
+
+        return counts;
+    }
+
+    @SuppressWarnings("null")
+    private void deliver(Message message) {
+        ObjectId channelId = message.getChannelId();
+        Optional<ObjectId> serverId = channelId == null ? Optional.empty()
+                : serverIdsByChannel.computeIfAbsent(channelId, this::findServerOfChannel);
+        if (serverId.isEmpty())
+            return;
+
+        message.setSender(senders.computeIfAbsent(message.getSenderId(), this::findSender));
+        messagingTemplate.convertAndSend(TopicBroadcaster.channelTopic(serverId.get(), channelId),
+                new MessageView(message));
+        deliveries++;
+    }
+
+    @SuppressWarnings("null")
+    private void deliver(Document broadcast) {
+        if (!(broadcast.get("destination") instanceof String destination)
+                || !(broadcast.get("payload") instanceof Binary payload))
+            return;
+
+        messagingTemplate.send(destination,
+                EncodedPayload.of(payload.getData(), broadcast.getString("contentType")).toMessage());
+        deliveries++;
+    }
+
+    @SuppressWarnings("null")
+    private void deliverToUsers(Document batch) {
+        if (!(batch.get("deliveries") instanceof List<?> userDeliveries))
+            return;
+
+        for (Object element : userDeliveries) {
+            if (element instanceof Document delivery && delivery.get("users") instanceof List<?> users
+                    && delivery.get("destination") instanceof String destination
+                    && delivery.get("payload") instanceof Binary payload) {
+                EncodedPayload encoded = EncodedPayload.of(payload.getData(), delivery.getString("contentType"));
+                for (Object user : users) {
+                    if (user instanceof String name) {
+                        messagingTemplate.send(TopicBroadcaster.userDestination(name, destination),
+                                encoded.toMessage());
+                        deliveries++;
+                    }
+                }
+            }
+        }
+    }
+
+    private Optional<ObjectId> findServerOfChannel(ObjectId channelId) {
+        Document channel = mongoTemplate.getCollection("channels").find(new Document("_id", channelId))
+                .projection(new Document("server", 1)).first();
+        return channel != null && channel.get("server") instanceof ObjectId serverId ? Optional.of(serverId)
+                : Optional.empty();
+    }
+
+    private User findSender(ObjectId senderId) {
+        Query query = new Query(Criteria.where("_id").is(senderId));
+        query.fields().include("username", "profilePic", "createdDate");
+        User sender = mongoTemplate.findOne(query, User.class);
+        if (sender == null) {
+            sender = new User();
+            sender.setId(senderId);
+        }
+
+        return sender;
+    }
+
+    private boolean isLive(ChangeStreamDocument<Document> event) {
+        BsonTimestamp clusterTime = event.getClusterTime();
+        return clusterTime == null
+                || clusterTime.getTime() * 1000L >= System.currentTimeMillis() - maxReplayAgeMillis;
+    }
+
+    private void clearCaches() {
+        memberCache.clear();
+        channelPermissionCache.clear();
+        userCache.clear();
+        messageTailCache.clear();
+        senders.clear();
+    }
+
+    private static ObjectId objectId(BsonValue value) {
+        return value != null && value.isObjectId() ? value.asObjectId().getValue() : null;
+    }
+}
@@ -0,0 +1,33 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How far a node has read the change stream, so that after a restart it
+ * resumes where it stopped instead of missing what happened in between.
+ */
+@Document(collection = "cluster_stream_positions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChangeStreamPosition {
+    /**
+     * The node's <code>app.cluster.node-id</code>.
+     */
+    @Id
+    private String nodeId;
+
+    /**
+     * The <code>_data</code> of the resume token of the last event read.
+     */
+    private String resumeToken;
+
+    private Date updatedAt;
+}
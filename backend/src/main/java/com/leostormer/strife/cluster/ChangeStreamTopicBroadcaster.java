@@ -0,0 +1,190 @@
+package com.leostormer.strife.cluster;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.cluster.UserDeliveryBatch.Delivery;
+import com.leostormer.strife.message.MessageView;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Relays events to every node through {@link ClusterBroadcast} documents,
+ * which {@link ChangeStreamFanOut} picks up and delivers to its node's
+ * subscribers, including those of this node.
+ * <p>
+ * New messages are not relayed, since every node already reads their insert
+ * from the change stream, unless they are stored in buckets.
+ * <p>
+ * Events for users are converted once however many users they are for, and
+ * delivered right away to the users' sessions on this node.
+ * For other nodes they are collected for <code>app.cluster.user-routing.flush-interval</code>,
+ * then the nodes holding the users' sessions are looked up in the
+ * {@link ClusterUserRegistry} with one query and each node is sent one
+ * {@link UserDeliveryBatch} that only it reads.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.fan-out.mode", havingValue = "change-stream")
+public class ChangeStreamTopicBroadcaster implements TopicBroadcaster, DisposableBean, MeterBinder {
+    private final MongoTemplate mongoTemplate;
+
+    private final SimpMessagingTemplate messagingTemplate;
+
+    private final SimpUserRegistry simpUserRegistry;
+
+    private final ClusterUserRegistry clusterUserRegistry;
+
+    private final boolean relayMessages;
+
+    private final Queue<Delivery> pendingDeliveries = new ConcurrentLinkedQueue<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-user-routing");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long routedDeliveries;
+
+    private volatile long batches;
+
+    public ChangeStreamTopicBroadcaster(MongoTemplate mongoTemplate, SimpMessagingTemplate messagingTemplate,
+            SimpUserRegistry simpUserRegistry, ClusterUserRegistry clusterUserRegistry,
+            @Value("${app.messages.storage:document}") String storage,
+            @Value("${app.cluster.user-routing.flush-interval:5ms}") Duration flushInterval) {
+        this.mongoTemplate = mongoTemplate;
+        this.messagingTemplate = messagingTemplate;
+        this.simpUserRegistry = simpUserRegistry;
+        this.clusterUserRegistry = clusterUserRegistry;
+        this.relayMessages = "bucketed".equals(storage);
+        long intervalMillis = Math.max(1, flushInterval.toMillis());
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void messageSent(ObjectId serverId, ObjectId channelId, MessageView message) {
+        if (relayMessages)
+            broadcast(TopicBroadcaster.channelTopic(serverId, channelId), message);
+    }
+
+    @Override
+    public void broadcast(String destination, Object payload) {
+        EncodedPayload encoded = encode(payload);
+        mongoTemplate.insert(new ClusterBroadcast(null, destination, encoded.getContentType(), encoded.getData(),
+                new Date()));
+    }
+
+    @Override
+    public void sendToUser(String user, String destination, Object payload) {
+        sendToUsers(List.of(user), destination, payload);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void sendToUsers(Collection<String> users, String destination, Object payload) {
+        EncodedPayload encoded = encode(payload);
+        for (String user : users) {
+            if (simpUserRegistry.getUser(user) != null)
+                messagingTemplate.send(TopicBroadcaster.userDestination(user, destination), encoded.toMessage());
+        }
+
+        pendingDeliveries.add(new Delivery(List.copyOf(users), destination, encoded.getContentType(),
+                encoded.getData()));
+    }
+
+    @Override
+    public EncodedPayload encode(Object payload) {
+        return EncodedPayload.encode(messagingTemplate.getMessageConverter(), payload);
+    }
+
+    /**
+     * Routes every pending user event to the other nodes holding sessions of
+     * its users.
+     */
+    public synchronized void flush() {
+        List<Delivery> drained = new ArrayList<>();
+        for (Delivery delivery; (delivery = pendingDeliveries.poll()) != null;)
+            drained.add(delivery);
+        if (drained.isEmpty())
+            return;
+
+        Set<String> users = new HashSet<>();
+        drained.forEach(delivery -> users.addAll(delivery.users()));
+        Map<String, Set<String>> usersByNode = clusterUserRegistry.findRemoteNodes(users);
+
+        Date now = new Date();
+        List<UserDeliveryBatch> nodeBatches = new ArrayList<>();
+        usersByNode.forEach((nodeId, nodeUsers) -> {
+            List<Delivery> deliveries = new ArrayList<>();
+            for (Delivery delivery : drained) {
+                List<String> recipients = delivery.users().stream().filter(nodeUsers::contains).toList();
+                if (!recipients.isEmpty()) {
+                    deliveries.add(new Delivery(recipients, delivery.destination(), delivery.contentType(),
+                            delivery.payload()));
+                    routedDeliveries += recipients.size();
+                }
+            }
+            nodeBatches.add(new UserDeliveryBatch(null, nodeId, deliveries, now));
+        });
+
+        if (!nodeBatches.isEmpty()) {
+            mongoTemplate.insertAll(nodeBatches);
+            batches += nodeBatches.size();
+        }
+    }
+
+    public long getRoutedDeliveryCount() {
+        return routedDeliveries;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.cluster.user_routing.deliveries", this,
+                ChangeStreamTopicBroadcaster::getRoutedDeliveryCount)
+                .description("User events routed to other nodes").register(registry);
+        FunctionCounter.builder("strife.cluster.user_routing.batches", this, ChangeStreamTopicBroadcaster::getBatchCount)
+                .description("Batches of user events written for other nodes").register(registry);
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // The events are dropped, users resync when they reconnect
+        }
+    }
+}
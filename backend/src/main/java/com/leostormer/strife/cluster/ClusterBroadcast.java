@@ -0,0 +1,38 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An event for the subscribers of a topic on every node, relayed through
+ * the change stream each node tails. The payload is converted once by the
+ * sending node. Documents are only needed until every node has read their
+ * insert, so they expire shortly after.
+ */
+@Document(collection = ClusterBroadcast.COLLECTION)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterBroadcast {
+    public static final String COLLECTION = "cluster_broadcasts";
+
+    @Id
+    private ObjectId id;
+
+    private String destination;
+
+    private String contentType;
+
+    private byte[] payload;
+
+    @Indexed(expireAfter = "10m")
+    private Date createdAt;
+}
@@ -0,0 +1,205 @@
+package com.leostormer.strife.cluster;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Getter;
+
+/**
+ * Records which nodes hold the WebSocket sessions of each user, so events for
+ * a user are only routed to the nodes that can deliver them.
+ * <p>
+ * Sessions are stored as {@link UserSession}s when they connect and removed
+ * when they disconnect. Every <code>app.cluster.sessions.heartbeat-interval</code>
+ * the node refreshes all of its sessions with one write, and sessions of a
+ * node that stopped refreshing expire after four missed heartbeats. Sessions
+ * left behind by an earlier run under the same node id are removed when the
+ * node starts.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cluster.fan-out.mode", havingValue = "change-stream")
+public class ClusterUserRegistry implements DisposableBean, MeterBinder {
+    /**
+     * How many heartbeats a node may miss before its sessions expire.
+     */
+    static final int EXPIRY_HEARTBEATS = 4;
+
+    /**
+     * The name of the expiry index, as previously created from a mapping
+     * annotation.
+     */
+    private static final String EXPIRY_INDEX = "heartbeatAt";
+
+    private final MongoTemplate mongoTemplate;
+
+    @Getter
+    private final String nodeId;
+
+    /**
+     * The user of each session connected to this node, by session id.
+     */
+    private final Map<String, String> localSessions = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-session-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterUserRegistry(MongoTemplate mongoTemplate,
+            @Value("${app.cluster.node-id:${HOSTNAME:local}}") String nodeId,
+            @Value("${app.cluster.sessions.heartbeat-interval:30s}") Duration heartbeatInterval) {
+        this.mongoTemplate = mongoTemplate;
+        this.nodeId = nodeId;
+        long intervalMillis = Math.max(1, heartbeatInterval.toMillis());
+        ensureExpiryIndex(Duration.ofSeconds(Math.max(1,
+                TimeUnit.MILLISECONDS.toSeconds(intervalMillis * EXPIRY_HEARTBEATS + 999))));
+        mongoTemplate.remove(new Query(Criteria.where("nodeId").is(nodeId)), UserSession.class);
+        heartbeat.scheduleWithFixedDelay(this::refreshQuietly, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @EventListener
+    public void onSessionConnected(SessionConnectedEvent event) {
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        Principal user = event.getUser();
+        if (sessionId == null || user == null)
+            return;
+
+        localSessions.put(sessionId, user.getName());
+        mongoTemplate.save(new UserSession(documentId(sessionId), user.getName(), nodeId, new Date()));
+    }
+
+    @EventListener
+    public void onSessionDisconnect(SessionDisconnectEvent event) {
+        if (localSessions.remove(event.getSessionId()) != null)
+            mongoTemplate.remove(new Query(Criteria.where("_id").is(documentId(event.getSessionId()))),
+                    UserSession.class);
+    }
+
+    /**
+     * Finds the other nodes holding sessions of the given users with one
+     * query.
+     *
+     * @param users the principal names
+     * @return the users of each node, leaving out this node and users without
+     *         sessions elsewhere
+     */
+    public Map<String, Set<String>> findRemoteNodes(Collection<String> users) {
+        Query query = new Query(Criteria.where("user").in(users).and("nodeId").ne(nodeId));
+        query.fields().include("user", "nodeId");
+
+        Map<String, Set<String>> usersByNode = new HashMap<>();
+        for (UserSession session : mongoTemplate.find(query, UserSession.class))
+            usersByNode.computeIfAbsent(session.getNodeId(), node -> new HashSet<>()).add(session.getUser());
+
+        return usersByNode;
+    }
+
+    /**
+     * Refreshes the heartbeat of every session of this node, storing them
+     * again if they expired in the meantime, such as after a long pause.
+     * Sessions are matched by id, so records this node no longer holds are
+     * left to expire rather than being kept alive.
+     */
+    public void refresh() {
+        if (localSessions.isEmpty())
+            return;
+
+        Date now = new Date();
+        List<String> ids = localSessions.keySet().stream().map(this::documentId).toList();
+        long refreshed = mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(ids)),
+                new Update().set("heartbeatAt", now), UserSession.class).getMatchedCount();
+        if (refreshed >= localSessions.size())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserSession.class);
+        localSessions.forEach((sessionId, user) -> bulkOps.upsert(
+                new Query(Criteria.where("_id").is(documentId(sessionId))),
+                new Update().set("user", user).set("nodeId", nodeId).set("heartbeatAt", now)));
+        bulkOps.execute();
+    }
+
+    public int getLocalSessionCount() {
+        return localSessions.size();
+    }
+
+    @Override
+    public void destroy() {
+        heartbeat.shutdownNow();
+        try {
+            mongoTemplate.remove(new Query(Criteria.where("nodeId").is(nodeId)), UserSession.class);
+        } catch (RuntimeException e) {
+            // The sessions expire on their own
+        }
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        Gauge.builder("strife.cluster.sessions", this, ClusterUserRegistry::getLocalSessionCount)
+                .description("WebSocket sessions of users connected to this node").register(registry);
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // Retried with the next heartbeat
+        }
+    }
+
+    /**
+     * Creates the index expiring sessions that missed too many heartbeats, or
+     * changes its expiry if the heartbeat interval changed.
+     */
+    private void ensureExpiryIndex(Duration expireAfter) {
+        IndexOperations indexOps = mongoTemplate.indexOps(UserSession.class);
+        Optional<IndexInfo> existing = indexOps.getIndexInfo().stream()
+                .filter(index -> EXPIRY_INDEX.equals(index.getName())).findFirst();
+        if (existing.isEmpty()) {
+            indexOps.createIndex(new Index().on("heartbeatAt", Sort.Direction.ASC).named(EXPIRY_INDEX)
+                    .expire(expireAfter));
+        } else if (!existing.get().getExpireAfter().equals(Optional.of(expireAfter))) {
+            indexOps.alterIndex(EXPIRY_INDEX, IndexOptions.expireAfter(expireAfter));
+        }
+    }
+
+    private String documentId(String sessionId) {
+        return nodeId + ":" + sessionId;
+    }
+}
@@ -0,0 +1,84 @@
+package com.leostormer.strife.cluster;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeType;
+
+/**
+ * An event converted to bytes once, so it can be sent to any number of
+ * destinations without running the message converter again.
+ * <p>
+ * Every message built from it has its own headers but shares the same byte
+ * array, which the broker in turn shares between all subscribers. The array
+ * must therefore never be modified.
+ */
+public final class EncodedPayload {
+    private final byte[] data;
+
+    private final MimeType contentType;
+
+    private EncodedPayload(byte[] data, MimeType contentType) {
+        this.data = data;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Wraps bytes that were already converted, such as those relayed by
+     * another node.
+     *
+     * @param data        the converted payload
+     * @param contentType its content type, or <code>null</code> if unknown
+     * @return the payload
+     */
+    public static EncodedPayload of(byte[] data, String contentType) {
+        return new EncodedPayload(data, contentType == null ? null : MimeType.valueOf(contentType));
+    }
+
+    /**
+     * Converts an event the same way <code>convertAndSend</code> would. An
+     * event that is already encoded is returned as is.
+     *
+     * @param converter the converter of the messaging template
+     * @param payload   the event
+     * @return the encoded event
+     */
+    public static EncodedPayload encode(MessageConverter converter, Object payload) {
+        if (payload instanceof EncodedPayload encoded)
+            return encoded;
+
+        Message<?> converted = converter.toMessage(payload, null);
+        if (converted == null || !(converted.getPayload() instanceof byte[] bytes))
+            throw new MessageConversionException("Cannot convert " + payload.getClass().getName() + " to bytes");
+
+        Object contentType = converted.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+        return of(bytes, contentType == null ? null : contentType.toString());
+    }
+
+    /**
+     * Returns the encoded bytes. They are shared and must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public String getContentType() {
+        return contentType == null ? null : contentType.toString();
+    }
+
+    /**
+     * Builds a message to send to one destination. The messaging template sets
+     * the destination on its headers and sends it without converting it again.
+     */
+    public Message<byte[]> toMessage() {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        if (contentType != null)
+            headers.setContentType(contentType);
+        headers.setLeaveMutable(true);
+        return MessageBuilder.createMessage(data, headers.getMessageHeaders());
+    }
+}
@@ -0,0 +1,53 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Collection;
+
+import org.bson.types.ObjectId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.message.MessageView;
+
+import lombok.AllArgsConstructor;
+
+/**
+ * Sends events straight to this node's broker, which only reaches the
+ * clients connected to this node. The default for single node deployments.
+ */
+@Component
+@AllArgsConstructor
+@ConditionalOnProperty(name = "app.cluster.fan-out.mode", havingValue = "local", matchIfMissing = true)
+public class LocalTopicBroadcaster implements TopicBroadcaster {
+    private final SimpMessagingTemplate messagingTemplate;
+
+    @Override
+    public void messageSent(ObjectId serverId, ObjectId channelId, MessageView message) {
+        broadcast(TopicBroadcaster.channelTopic(serverId, channelId), message);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void broadcast(String destination, Object payload) {
+        messagingTemplate.send(destination, encode(payload).toMessage());
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void sendToUser(String user, String destination, Object payload) {
+        messagingTemplate.send(TopicBroadcaster.userDestination(user, destination), encode(payload).toMessage());
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void sendToUsers(Collection<String> users, String destination, Object payload) {
+        EncodedPayload encoded = encode(payload);
+        for (String user : users)
+            messagingTemplate.send(TopicBroadcaster.userDestination(user, destination), encoded.toMessage());
+    }
+
+    @Override
+    public EncodedPayload encode(Object payload) {
+        return EncodedPayload.encode(messagingTemplate.getMessageConverter(), payload);
+    }
+}
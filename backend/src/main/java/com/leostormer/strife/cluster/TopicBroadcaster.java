@@ -0,0 +1,75 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Collection;
+
+import org.bson.types.ObjectId;
+
+import com.leostormer.strife.message.MessageView;
+
+/**
+ * Delivers events to the subscribers of a topic, wherever in the cluster they
+ * are connected. Selected with <code>app.cluster.fan-out.mode</code>.
+ * <p>
+ * Payloads may be given as an {@link EncodedPayload} from {@link #encode} to
+ * send the same event to many destinations while converting it only once.
+ */
+public interface TopicBroadcaster {
+    /**
+     * Announces a newly sent message on its channel's topic.
+     *
+     * @param serverId  the server's id
+     * @param channelId the channel's id
+     * @param message   the message as seen by subscribers
+     */
+    void messageSent(ObjectId serverId, ObjectId channelId, MessageView message);
+
+    /**
+     * Sends an event to the subscribers of a destination.
+     *
+     * @param destination the topic
+     * @param payload     the event, converted like any other STOMP payload
+     */
+    void broadcast(String destination, Object payload);
+
+    /**
+     * Sends an event to every session of a user, on whichever nodes they are
+     * connected.
+     *
+     * @param user        the user's principal name
+     * @param destination the user destination, such as
+     *                    <code>/queue/server-updates</code>
+     * @param payload     the event, converted like any other STOMP payload
+     */
+    void sendToUser(String user, String destination, Object payload);
+
+    /**
+     * Sends the same event to every session of each of the users. The event is
+     * converted once for all of them.
+     *
+     * @param users       the users' principal names
+     * @param destination the user destination
+     * @param payload     the event, converted like any other STOMP payload
+     */
+    void sendToUsers(Collection<String> users, String destination, Object payload);
+
+    /**
+     * Converts an event once, to be passed to any number of sends.
+     *
+     * @param payload the event
+     * @return the encoded event
+     */
+    EncodedPayload encode(Object payload);
+
+    static String channelTopic(ObjectId serverId, ObjectId channelId) {
+        return "/topic/server/" + serverId + "/channel/" + channelId;
+    }
+
+    /**
+     * Returns the destination {@link org.springframework.messaging.simp.SimpMessagingTemplate#convertAndSendToUser}
+     * sends to, which the node's user destination handler resolves to the
+     * user's sessions.
+     */
+    static String userDestination(String user, String destination) {
+        return "/user/" + user.replace("/", "%2F") + destination;
+    }
+}
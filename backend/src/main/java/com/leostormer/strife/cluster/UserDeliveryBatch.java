@@ -0,0 +1,42 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Events for users connected to one node, collected over a short interval on
+ * another node. Only the addressed node reads the batch from the change
+ * stream and delivers it to the users' sessions.
+ */
+@Document(collection = UserDeliveryBatch.COLLECTION)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserDeliveryBatch {
+    public static final String COLLECTION = "cluster_user_deliveries";
+
+    /**
+     * An event for some users, stored once however many of them there are.
+     */
+    public record Delivery(List<String> users, String destination, String contentType, byte[] payload) {
+    }
+
+    @Id
+    private ObjectId id;
+
+    private String nodeId;
+
+    private List<Delivery> deliveries;
+
+    @Indexed(expireAfter = "10m")
+    private Date createdAt;
+}
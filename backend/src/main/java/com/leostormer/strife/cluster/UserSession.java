@@ -0,0 +1,40 @@
+package com.leostormer.strife.cluster;
+
+import java.util.Date;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A WebSocket session of a user and the node holding it. Nodes refresh the
+ * heartbeat of their sessions periodically, so the sessions of a node that
+ * stopped without cleaning up expire on their own. The expiry index on
+ * {@link #heartbeatAt} is created by {@link ClusterUserRegistry}, as its
+ * expiry follows the configured heartbeat interval.
+ */
+@Document(collection = "cluster_user_sessions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UserSession {
+    /**
+     * The node's id and the session's id joined by a colon.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The principal name the user's destinations are resolved by.
+     */
+    @Indexed
+    private String user;
+
+    private String nodeId;
+
+    private Date heartbeatAt;
+}
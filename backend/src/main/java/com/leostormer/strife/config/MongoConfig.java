@@ -0,0 +1,17 @@
+package com.leostormer.strife.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageContentCodec;
+
+@Configuration
+public class MongoConfig {
+    @Bean
+    public MongoCustomConversions mongoCustomConversions(MessageContentCodec messageContentCodec) {
+        return MongoCustomConversions.create(adapter -> adapter.configurePropertyConversions(
+                registrar -> registrar.registerConverter(Message.class, "content", messageContentCodec)));
+    }
+}
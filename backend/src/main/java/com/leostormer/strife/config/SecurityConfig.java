@@ -8,6 +8,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.MongoDatabaseFactory;
 import org.springframework.data.mongodb.MongoTransactionManager;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.http.HttpStatus;
 import org.springframework.lang.NonNull;
 import org.springframework.security.config.Customizer;
@@ -106,8 +107,11 @@ public class SecurityConfig {
     }
 
     @Bean
-    public MongoTemplate mongoTemplate(@NonNull MongoDatabaseFactory mongoDatabaseFactory) {
-        return new MongoTemplate(mongoDatabaseFactory);
+    public MongoTemplate mongoTemplate(@NonNull MongoDatabaseFactory mongoDatabaseFactory,
+            MongoConverter mongoConverter) {
+        // Uses the converter configured by Spring Boot, so that custom conversions
+        // and automatic index creation apply
+        return new MongoTemplate(mongoDatabaseFactory, mongoConverter);
     }
 
     @Bean
@@ -8,13 +8,18 @@ import org.springframework.lang.NonNull;
 import org.springframework.messaging.converter.DefaultContentTypeResolver;
 import org.springframework.messaging.converter.MappingJackson2MessageConverter;
 import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.leostormer.strife.websocket.OutboundScheduler;
+import com.leostormer.strife.websocket.PayloadEncodingNegotiator;
 
 @Configuration
 @EnableWebSocketMessageBroker
@@ -23,8 +28,15 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
     @NonNull
     private final String[] ALLOWED_ORIGINS;
 
-    public WebSocketConfig(@Value("${app.websocket.allowed-origins}") @NonNull String[] allowedOrigins) {
+    private final OutboundScheduler outboundScheduler;
+
+    private final PayloadEncodingNegotiator payloadEncodingNegotiator;
+
+    public WebSocketConfig(@Value("${app.websocket.allowed-origins}") @NonNull String[] allowedOrigins,
+            OutboundScheduler outboundScheduler, PayloadEncodingNegotiator payloadEncodingNegotiator) {
         this.ALLOWED_ORIGINS = allowedOrigins;
+        this.outboundScheduler = outboundScheduler;
+        this.payloadEncodingNegotiator = payloadEncodingNegotiator;
     }
 
     @Override
@@ -41,6 +53,21 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .withSockJS();
     }
 
+    @Override
+    public void configureWebSocketTransport(@NonNull WebSocketTransportRegistration registry) {
+        registry.addDecoratorFactory(outboundScheduler);
+    }
+
+    @Override
+    public void configureClientInboundChannel(@NonNull ChannelRegistration registration) {
+        registration.interceptors(payloadEncodingNegotiator.getInboundInterceptor());
+    }
+
+    @Override
+    public void configureClientOutboundChannel(@NonNull ChannelRegistration registration) {
+        registration.interceptors(payloadEncodingNegotiator.getOutboundInterceptor());
+    }
+
     @Override
     public boolean configureMessageConverters(@NonNull List<MessageConverter> messageConverters) {
         DefaultContentTypeResolver resolver = new DefaultContentTypeResolver();
@@ -49,6 +76,13 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         converter.setObjectMapper(new ObjectMapper());
         converter.setContentTypeResolver(resolver);
         messageConverters.add(converter);
+
+        // Only used for messages that explicitly ask for CBOR, JSON stays the default
+        MappingJackson2MessageConverter cborConverter = new MappingJackson2MessageConverter(
+                PayloadEncodingNegotiator.APPLICATION_CBOR);
+        cborConverter.setObjectMapper(new CBORMapper());
+        cborConverter.setStrictContentTypeMatch(true);
+        messageConverters.add(cborConverter);
         return false;
     }
 }
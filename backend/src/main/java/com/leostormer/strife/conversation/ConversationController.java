@@ -3,8 +3,14 @@ package com.leostormer.strife.conversation;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.message.MessageExport;
+import com.leostormer.strife.message.MessagePageView;
+import com.leostormer.strife.message.MessageQuery;
 import com.leostormer.strife.message.MessageSearchDirection;
 import com.leostormer.strife.message.MessageSearchOptions;
 import com.leostormer.strife.message.MessageView;
@@ -17,7 +23,10 @@ import java.util.List;
 
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -35,6 +44,9 @@ public class ConversationController {
     @Autowired
     ConversationService conversationService;
 
+    @Autowired
+    ObjectMapper objectMapper;
+
     // Get all conversations currently joined.
     @GetMapping("")
     public ResponseEntity<List<ConversationView>> getConversations(Principal principal) {
@@ -83,31 +95,77 @@ public class ConversationController {
     }
 
     @GetMapping("/{conversationId}")
-    public ResponseEntity<List<MessageView>> getMessages(Principal principal, @PathVariable ObjectId conversationId,
-            @PathVariable Date timestamp, @PathVariable MessageSearchDirection searchDirection) {
+    public ResponseEntity<MessagePageView> getMessages(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date timestamp,
+            @RequestParam(defaultValue = "ASCENDING") MessageSearchDirection searchDirection,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) ObjectId anchorId) {
+        User user = userService.getUser(principal);
+        MessageSearchOptions searchOptions = MessageSearchOptions.builder().searchDirection(searchDirection)
+                .cursor(cursor).anchorId(anchorId != null ? anchorId.toHexString() : null).build();
+        if (timestamp != null)
+            searchOptions.setTimestamp(timestamp);
+
+        try {
+            return ResponseEntity.ok()
+                    .body(new MessagePageView(conversationService.getMessages(user, conversationId, searchOptions)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Search the content of messages in a conversation.
+    @GetMapping("/{conversationId}/search")
+    public ResponseEntity<List<MessageView>> searchMessages(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam String query, @RequestParam(required = false) ObjectId senderId,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date after,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date before,
+            @RequestParam(defaultValue = "50") int limit) {
+        User user = userService.getUser(principal);
+        MessageQuery messageQuery = MessageQuery.builder().text(query).senderId(senderId).after(after).before(before)
+                .limit(limit).build();
+        try {
+            return ResponseEntity.ok().body(conversationService.searchMessages(user, conversationId, messageQuery)
+                    .stream().map(MessageView::new).toList());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Export the entire history of a conversation as newline delimited JSON.
+    @GetMapping(value = "/{conversationId}/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportMessages(Principal principal,
+            @PathVariable ObjectId conversationId) {
         User user = userService.getUser(principal);
-        MessageSearchOptions searchOptions;
-        searchOptions = new MessageSearchOptions(100, timestamp, searchDirection);
         try {
-            List<MessageView> messages = conversationService.getMessages(user, conversationId, searchOptions).stream()
-                    .map(dm -> new MessageView(dm)).toList();
-            return ResponseEntity.ok().body(messages);
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(
+                    MessageExport.toNdjson(conversationService.streamMessages(user, conversationId), objectMapper));
         } catch (UnauthorizedActionException e) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         } catch (Exception e) {
             return ResponseEntity.internalServerError().build();
         }
     }
 
     @GetMapping("/{conversationId}/latest")
-    public ResponseEntity<List<MessageView>> getLatestMessages(Principal principal,
+    public ResponseEntity<MessagePageView> getLatestMessages(Principal principal,
             @PathVariable ObjectId conversationId) {
         User user = userService.getUser(principal);
         try {
-            List<MessageView> messages = conversationService
-                    .getMessages(user, conversationId, MessageSearchOptions.latest()).stream()
-                    .map(dm -> new MessageView(dm)).toList();
-            return ResponseEntity.ok().body(messages);
+            return ResponseEntity.ok().body(new MessagePageView(
+                    conversationService.getMessages(user, conversationId, MessageSearchOptions.latest())));
         } catch (UnauthorizedActionException e) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         } catch (Exception e) {
@@ -116,14 +174,12 @@ public class ConversationController {
     }
 
     @GetMapping("/{conversationId}/earliest")
-    public ResponseEntity<List<MessageView>> getEarliestMessages(Principal principal,
+    public ResponseEntity<MessagePageView> getEarliestMessages(Principal principal,
             @PathVariable ObjectId conversationId) {
         User user = userService.getUser(principal);
         try {
-            List<MessageView> messages = conversationService
-                    .getMessages(user, conversationId, MessageSearchOptions.earliest()).stream()
-                    .map(dm -> new MessageView(dm)).toList();
-            return ResponseEntity.ok().body(messages);
+            return ResponseEntity.ok().body(new MessagePageView(
+                    conversationService.getMessages(user, conversationId, MessageSearchOptions.earliest())));
         } catch (UnauthorizedActionException e) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         } catch (Exception e) {
@@ -145,6 +201,111 @@ public class ConversationController {
         }
     }
 
+    // Mark a message and everything before it in a conversation as read.
+    @PostMapping("/{conversationId}/ack")
+    public ResponseEntity<String> acknowledgeMessage(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            conversationService.acknowledgeMessage(user, conversationId, messageId);
+            return ResponseEntity.ok().body("Message acknowledged");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // React to a message in a conversation.
+    @PutMapping("/{conversationId}/reactions")
+    public ResponseEntity<String> addReaction(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam ObjectId messageId, @RequestParam String emoji) {
+        User user = userService.getUser(principal);
+        try {
+            conversationService.addReaction(user, conversationId, messageId, emoji);
+            return ResponseEntity.ok().body("Reaction added");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Remove a reaction from a message in a conversation.
+    @DeleteMapping("/{conversationId}/reactions")
+    public ResponseEntity<String> removeReaction(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam ObjectId messageId, @RequestParam String emoji) {
+        User user = userService.getUser(principal);
+        try {
+            conversationService.removeReaction(user, conversationId, messageId, emoji);
+            return ResponseEntity.ok().body("Reaction removed");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Get the pinned messages of a conversation, most recently pinned first.
+    @GetMapping("/{conversationId}/pins")
+    public ResponseEntity<List<MessageView>> getPinnedMessages(Principal principal, @PathVariable ObjectId conversationId) {
+        User user = userService.getUser(principal);
+        try {
+            return ResponseEntity.ok().body(conversationService.getPinnedMessages(user, conversationId).stream()
+                    .map(MessageView::new).toList());
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Pin a message in a conversation.
+    @PutMapping("/{conversationId}/pins")
+    public ResponseEntity<String> pinMessage(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            conversationService.pinMessage(user, conversationId, messageId);
+            return ResponseEntity.ok().body("Message pinned");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    // Unpin a message from a conversation.
+    @DeleteMapping("/{conversationId}/pins")
+    public ResponseEntity<String> unpinMessage(Principal principal, @PathVariable ObjectId conversationId,
+            @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            conversationService.unpinMessage(user, conversationId, messageId);
+            return ResponseEntity.ok().body("Message unpinned");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     // Edit a message in a conversation.
     @PutMapping("/{conversationid}")
     public ResponseEntity<MessageView> editMessage(Principal principal, @PathVariable ObjectId conversationId,
@@ -9,12 +9,18 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.leostormer.strife.channel.Channel;
 import com.leostormer.strife.channel.ChannelRepository;
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.mention.MentionService;
 import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessagePage;
+import com.leostormer.strife.message.MessageQuery;
 import com.leostormer.strife.message.MessageRepository;
 import com.leostormer.strife.message.MessageSearchOptions;
+import com.leostormer.strife.reaction.ReactionService;
+import com.leostormer.strife.readstate.ReadStateService;
 import com.leostormer.strife.user.User;
 
 import lombok.AllArgsConstructor;
@@ -28,6 +34,15 @@ public class ConversationService {
     @Autowired
     private final MessageRepository messageRepository;
 
+    @Autowired
+    private final ReadStateService readStateService;
+
+    @Autowired
+    private final ReactionService reactionService;
+
+    @Autowired
+    private final MentionService mentionService;
+
     private static final String CONVERSATION_NOT_FOUND = "Conversation not found";
 
     private static final String MESSAGE_NOT_FOUND = "Message not found";
@@ -103,16 +118,51 @@ public class ConversationService {
         }
     }
 
-    public List<Message> getMessages(User user, ObjectId conversationId, MessageSearchOptions searchOptions) {
+    public MessagePage getMessages(User user, ObjectId conversationId, MessageSearchOptions searchOptions) {
+        Conversation conversation = conversationRepository.findConversationById(conversationId)
+                .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
+
+        if (!conversation.isValidUser(user))
+            throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
+
+        return MessagePage.of(messageRepository.getMessages(conversationId, searchOptions));
+    }
+
+    /**
+     * Searches message content in a conversation.
+     *
+     * @param user           the user searching
+     * @param conversationId the conversation's id
+     * @param query          the search
+     * @return the matching messages from newest to oldest
+     */
+    public List<Message> searchMessages(User user, ObjectId conversationId, MessageQuery query) {
+        if (query.getText() == null || query.getText().isBlank())
+            throw new IllegalArgumentException("Search text must not be empty");
+
         Conversation conversation = conversationRepository.findConversationById(conversationId)
                 .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
 
         if (!conversation.isValidUser(user))
             throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
 
-        List<Message> dms = messageRepository.getMessages(conversationId, searchOptions);
-        dms.sort((dm1, dm2) -> dm1.getTimestamp().compareTo(dm2.getTimestamp()));
-        return dms;
+        return messageRepository.searchMessages(List.of(conversationId), query);
+    }
+
+    /**
+     * Streams the entire history of a conversation from oldest to newest for export.
+     *
+     * @return a stream of message batches that must be closed
+     * @see MessageRepository#streamMessages(ObjectId)
+     */
+    public Stream<List<Message>> streamMessages(User user, ObjectId conversationId) {
+        Conversation conversation = conversationRepository.findConversationById(conversationId)
+                .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
+
+        if (!conversation.isValidUser(user))
+            throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
+
+        return messageRepository.streamMessages(conversationId);
     }
 
     public Message sendMessage(User sender, ObjectId conversationId, String messageContent) {
@@ -122,7 +172,21 @@ public class ConversationService {
         if (conversation.isLocked() || !conversation.isPresent(sender))
             throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
 
-        return messageRepository.insertMessage(sender, conversation, messageContent);
+        Message message = messageRepository.insertMessage(sender, conversation, messageContent);
+        readStateService.onMessageSent(message);
+        mentionService.onConversationMessageSent(message, conversation);
+        return message;
+    }
+
+    /**
+     * Marks a message and everything before it in a conversation as read.
+     *
+     * @param user           the user who read the message
+     * @param conversationId the conversation's id
+     * @param messageId      the newest message read
+     */
+    public void acknowledgeMessage(User user, ObjectId conversationId, ObjectId messageId) {
+        readStateService.acknowledge(user.getId(), getMessageInConversation(user, conversationId, messageId));
     }
 
     @SuppressWarnings("null")
@@ -133,7 +197,7 @@ public class ConversationService {
         if (conversation.isLocked())
             throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
 
-        Message message = messageRepository.findById(messageId)
+        Message message = messageRepository.findMessageById(messageId)
                 .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
 
         if (!message.getSender().getId().equals(sender.getId()))
@@ -150,12 +214,113 @@ public class ConversationService {
         if (conversation.isLocked())
             throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
 
-        Message message = messageRepository.findById(messageId)
+        Message message = messageRepository.findMessageById(messageId)
                 .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
 
         if (!message.getSender().getId().equals(sender.getId()))
             throw new UnauthorizedActionException("User is not authorized to delete this message");
 
-        messageRepository.delete(message);
+        messageRepository.deleteMessage(messageId);
+        conversationRepository.unpinMessages(conversationId, List.of(messageId));
+        reactionService.onMessagesDeleted(List.of(messageId));
+        mentionService.onMessagesDeleted(List.of(messageId));
+    }
+
+    /**
+     * Returns the messages pinned in a conversation from most to least recently
+     * pinned.
+     */
+    public List<Message> getPinnedMessages(User user, ObjectId conversationId) {
+        Conversation conversation = conversationRepository.findConversationById(conversationId)
+                .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
+
+        if (!conversation.isValidUser(user))
+            throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
+
+        return messageRepository.findMessagesInChannel(conversationId, conversation.getPinnedMessageIds());
+    }
+
+    /**
+     * Pins a message in a conversation.
+     *
+     * @return false if the message was already pinned
+     * @throws IllegalArgumentException if the conversation already has the
+     *                                  maximum number of pins
+     */
+    public boolean pinMessage(User user, ObjectId conversationId, ObjectId messageId) {
+        Conversation conversation = getUnlockedConversation(user, conversationId);
+        getMessageInConversation(conversation, messageId);
+
+        if (conversationRepository.pinMessage(conversationId, messageId))
+            return true;
+
+        if (conversation.getPinnedMessageIds().contains(messageId))
+            return false;
+
+        throw new IllegalArgumentException(
+                "Conversation cannot have more than " + Channel.MAX_PINNED_MESSAGES + " pins");
+    }
+
+    /**
+     * Unpins a message from a conversation.
+     *
+     * @return false if the message was not pinned
+     */
+    public boolean unpinMessage(User user, ObjectId conversationId, ObjectId messageId) {
+        getUnlockedConversation(user, conversationId);
+        return conversationRepository.unpinMessages(conversationId, List.of(messageId));
+    }
+
+    private Conversation getUnlockedConversation(User user, ObjectId conversationId) {
+        Conversation conversation = conversationRepository.findConversationById(conversationId)
+                .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
+
+        if (conversation.isLocked() || !conversation.isValidUser(user))
+            throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
+
+        return conversation;
+    }
+
+    /**
+     * Reacts to a message in a conversation with an emoji. Reacting again with
+     * the same emoji has no effect.
+     *
+     * @return false if the user had already reacted with this emoji
+     */
+    public boolean addReaction(User user, ObjectId conversationId, ObjectId messageId, String emoji) {
+        Message message = getMessageInConversation(user, conversationId, messageId);
+        return reactionService.addReaction(user.getId(), message, emoji, null);
+    }
+
+    /**
+     * Removes the user's reaction with an emoji from a message in a conversation.
+     *
+     * @return false if the user had not reacted with this emoji
+     */
+    public boolean removeReaction(User user, ObjectId conversationId, ObjectId messageId, String emoji) {
+        Message message = getMessageInConversation(user, conversationId, messageId);
+        return reactionService.removeReaction(user.getId(), message, emoji, null);
+    }
+
+    @SuppressWarnings("null")
+    private Message getMessageInConversation(User user, ObjectId conversationId, ObjectId messageId) {
+        Conversation conversation = conversationRepository.findConversationById(conversationId)
+                .orElseThrow(() -> new ResourceNotFoundException(CONVERSATION_NOT_FOUND));
+
+        if (!conversation.isValidUser(user))
+            throw new UnauthorizedActionException(DEFAULT_UNAUTHORIZED_MESSAGE);
+
+        return getMessageInConversation(conversation, messageId);
+    }
+
+    /**
+     * Loads a message of a conversation the caller has already loaded and
+     * checked access to.
+     */
+    @SuppressWarnings("null")
+    private Message getMessageInConversation(Conversation conversation, ObjectId messageId) {
+        return messageRepository.findMessageById(messageId)
+                .filter(message -> conversation.getId().equals(message.getChannelId()))
+                .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
     }
 }
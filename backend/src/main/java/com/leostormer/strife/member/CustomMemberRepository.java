@@ -1,5 +1,6 @@
 package com.leostormer.strife.member;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -10,10 +11,14 @@ import com.leostormer.strife.server.Server;
 public interface CustomMemberRepository {
     public Optional<Member> findByUserIdAndServerId(ObjectId userId, ObjectId serverId);
     public List<Server> findServersByUserId(ObjectId userId);
+    public List<Member> findAllByUserId(ObjectId userId);
+    public List<Member> findAllByServerIdAndUserIds(ObjectId serverId, Collection<ObjectId> userIds);
+    public List<Member> findMemberBatch(ObjectId serverId, Collection<ObjectId> roleIds, ObjectId afterId, int limit);
     public boolean existsByUserIdAndServerId(ObjectId userId, ObjectId serverId);
     public boolean isMember(ObjectId userId, ObjectId serverId);
     public void removeMember(ObjectId userId, ObjectId serverId);
     public void banMember(ObjectId userId, ObjectId serverId, String banReason);
     public void changeNickname(ObjectId userId, ObjectId serverId, String newNickname);
     public void updateMemberRoles(ObjectId userId, ObjectId serverId, int rolePriority, long permissions, List<ObjectId> roleIds);
+    public int assignRoles(ObjectId serverId, List<RoleAssignment> assignments);
 }
@@ -1,10 +1,13 @@
 package com.leostormer.strife.member;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
@@ -19,6 +22,12 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    /**
+     * Absent in repository-only contexts, where there is nothing to evict.
+     */
+    @Autowired(required = false)
+    private MemberCache memberCache;
+
     @Override
     public Optional<Member> findByUserIdAndServerId(ObjectId userId, ObjectId serverId) {
         Query query = new Query(Criteria.where("server").is(serverId).and("user").is(userId));
@@ -43,6 +52,42 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
         return mongoTemplate.aggregate(aggregation, Member.class, Server.class).getMappedResults();
     }
 
+    @Override
+    public List<Member> findAllByUserId(ObjectId userId) {
+        Query query = new Query(Criteria.where("user").is(userId).and("isBanned").is(false));
+        return mongoTemplate.find(query, Member.class);
+    }
+
+    @Override
+    public List<Member> findAllByServerIdAndUserIds(ObjectId serverId, Collection<ObjectId> userIds) {
+        Query query = new Query(Criteria.where("server").is(serverId).and("user").in(userIds).and("isBanned").is(false));
+        return mongoTemplate.find(query, Member.class);
+    }
+
+    /**
+     * Finds a page of the unbanned members of a server in <code>_id</code>
+     * order, so large servers can be walked in batches without skipping.
+     * 
+     * @param serverId the server's id
+     * @param roleIds  only members with one of these roles are found, or every
+     *                 member if null
+     * @param afterId  the id of the last member of the previous batch, or null
+     * @param limit    the batch size
+     * @return the batch
+     */
+    @Override
+    public List<Member> findMemberBatch(ObjectId serverId, Collection<ObjectId> roleIds, ObjectId afterId,
+            int limit) {
+        Criteria criteria = Criteria.where("server").is(serverId).and("isBanned").is(false);
+        if (roleIds != null)
+            criteria = criteria.and("roleIds").in(roleIds);
+        if (afterId != null)
+            criteria = criteria.and("_id").gt(afterId);
+
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.ASC, "_id")).limit(limit);
+        return mongoTemplate.find(query, Member.class);
+    }
+
     @Override
     public boolean isMember(ObjectId userId, ObjectId serverId) {
         Query query = new Query(Criteria.where("server").is(serverId).and("user").is(userId).and("isBanned").is(false));
@@ -53,6 +98,7 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
     public void removeMember(ObjectId userId, ObjectId serverId) {
         Query query = new Query(Criteria.where("server").is(serverId).and("user").is(userId));
         mongoTemplate.remove(query, Member.class);
+        evict(userId, serverId);
     }
 
     @Override
@@ -62,6 +108,7 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
                 .set("isBanned", true)
                 .set("banReason", banReason);
         mongoTemplate.upsert(query, update, Member.class);
+        evict(userId, serverId);
     }
 
     @Override
@@ -70,6 +117,7 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
         Update update = new Update()
                 .set("nickname", newNickname);
         mongoTemplate.updateFirst(query, update, Member.class);
+        evict(userId, serverId);
     }
 
     @Override
@@ -81,5 +129,29 @@ public class CustomMemberRepositoryImpl implements CustomMemberRepository {
                 .set("permissions", permissions)
                 .set("roleIds", roleIds);
         mongoTemplate.updateFirst(query, update, Member.class);
+        evict(userId, serverId);
+    }
+
+    @Override
+    public int assignRoles(ObjectId serverId, List<RoleAssignment> assignments) {
+        if (assignments.isEmpty())
+            return 0;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Member.class);
+        assignments.forEach(assignment -> bulkOps.updateOne(
+                new Query(Criteria.where("_id").is(assignment.memberId()).and("roleIds")
+                        .is(assignment.previousRoleIds())),
+                new Update()
+                        .set("rolePriority", assignment.rolePriority())
+                        .set("permissions", assignment.permissions())
+                        .set("roleIds", assignment.roleIds())));
+        int modified = bulkOps.execute().getModifiedCount();
+        assignments.forEach(assignment -> evict(assignment.userId(), serverId));
+        return modified;
+    }
+
+    private void evict(ObjectId userId, ObjectId serverId) {
+        if (memberCache != null)
+            memberCache.evict(userId, serverId);
     }
 }
@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DocumentReference;
@@ -26,6 +27,7 @@ import lombok.NoArgsConstructor;
 @CompoundIndex(name = "server_user_idx", def = "{'server': 1, 'user': 1}", unique = true)
 @CompoundIndex(name = "server_user_isBanned_idx", def = "{'server': 1, 'user': 1, 'isBanned': 1}", unique = true)
 @CompoundIndex(name = "user_isBanned_idx", def = "{'user': 1, 'isBanned': 1}")
+@CompoundIndex(name = "server_roleIds_idx", def = "{'server': 1, 'roleIds': 1, '_id': 1}")
 public class Member {
     /**
      * Builds a <code>Member</code> from a <code>User</code>
@@ -145,4 +147,28 @@ public class Member {
      * The accumulated permissions of all contained roles.
      */
     private long permissions = 0L;
+
+    /**
+     * Returns the id of the user without resolving a lazily loaded reference.
+     *
+     * @return the user's id
+     */
+    public ObjectId getUserId() {
+        if (user instanceof LazyLoadingProxy proxy && proxy.getSource() instanceof ObjectId userId)
+            return userId;
+
+        return user == null ? null : user.getId();
+    }
+
+    /**
+     * Returns the id of the server without resolving a lazily loaded reference.
+     *
+     * @return the server's id
+     */
+    public ObjectId getServerId() {
+        if (server instanceof LazyLoadingProxy proxy && proxy.getSource() instanceof ObjectId serverId)
+            return serverId;
+
+        return server == null ? null : server.getId();
+    }
 }
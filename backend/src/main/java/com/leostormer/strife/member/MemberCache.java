@@ -0,0 +1,233 @@
+package com.leostormer.strife.member;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.MongoMappingEvent;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.cache.StampedLruCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Getter;
+
+/**
+ * Keeps recently resolved memberships in memory, keyed by user and server, so
+ * that the membership and permission check at the start of most server
+ * operations does not need a database round trip.
+ * <p>
+ * Both memberships and their absence are cached, up to
+ * <code>app.members.cache.max-entries</code> entries evicted least recently
+ * used first. Saves and deletes of members are picked up from the mapping
+ * events of the members collection; updates made with queries (bans,
+ * nicknames, roles) must evict the member explicitly. Evictions made within a
+ * transaction are repeated once it completes.
+ */
+@Component
+public class MemberCache implements ApplicationListener<MongoMappingEvent<?>>, MeterBinder {
+    private static final String COLLECTION = "members";
+
+    /**
+     * Identifies a membership.
+     */
+    record Key(ObjectId userId, ObjectId serverId) {
+    }
+
+    @Getter
+    private final boolean enabled;
+
+    /**
+     * Cached memberships. An empty optional records that the user is not a
+     * member.
+     */
+    private final StampedLruCache<Key, Optional<Member>> members;
+
+    private final Map<ObjectId, Key> keysByMemberId = new ConcurrentHashMap<>();
+
+    public MemberCache(@Value("${app.members.cache.enabled:true}") boolean enabled,
+            @Value("${app.members.cache.max-entries:10000}") int maxEntries) {
+        this.enabled = enabled && maxEntries > 0;
+        this.members = StampedLruCache.ofMaxEntries(maxEntries, new StampedLruCache.Listener<>() {
+            @Override
+            public void onAdded(Key key, Optional<Member> member) {
+                member.ifPresent(added -> keysByMemberId.put(added.getId(), key));
+            }
+
+            @Override
+            public void onRemoved(Key key, Optional<Member> member) {
+                member.ifPresent(removed -> keysByMemberId.remove(removed.getId()));
+            }
+        });
+    }
+
+    /**
+     * Returns the membership of a user in a server, loading it on a miss.
+     *
+     * @param userId   the user's id
+     * @param serverId the server's id
+     * @param loader   loads the membership from the database
+     * @return a copy of the membership that may be modified freely
+     */
+    public Optional<Member> get(ObjectId userId, ObjectId serverId, Supplier<Optional<Member>> loader) {
+        if (!enabled)
+            return loader.get();
+
+        Key key = new Key(userId, serverId);
+        Optional<Member> cached = members.get(key);
+        if (cached != null)
+            return cached.map(MemberCache::copy);
+
+        long stamp = members.stamp(key);
+        Optional<Member> loaded = loader.get();
+        members.putIfUnchanged(key, loaded.map(MemberCache::copy), stamp);
+        return loaded;
+    }
+
+    /**
+     * Forgets a membership after it was written. Within a transaction the
+     * membership is forgotten again once the transaction completes.
+     *
+     * @param userId   the user's id
+     * @param serverId the server's id
+     */
+    public void evict(ObjectId userId, ObjectId serverId) {
+        Key key = new Key(userId, serverId);
+        StampedLruCache.evictAndRepeatAfterCompletion(() -> members.invalidate(key));
+    }
+
+    /**
+     * Forgets every membership of a server, such as after its roles changed.
+     * Within a transaction the memberships are forgotten again once the
+     * transaction completes.
+     *
+     * @param serverId the server's id
+     */
+    public void evictServer(ObjectId serverId) {
+        StampedLruCache.evictAndRepeatAfterCompletion(
+                () -> members.invalidateIf((key, member) -> key.serverId().equals(serverId)));
+    }
+
+    /**
+     * Forgets every membership.
+     */
+    public void clear() {
+        members.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return members.getHitCount();
+    }
+
+    public long getMissCount() {
+        return members.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return members.getEvictionCount();
+    }
+
+    public int getSize() {
+        return members.size();
+    }
+
+    /**
+     * Returns the share of lookups served from memory since startup.
+     *
+     * @return the hit ratio, or 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long requests = hits + getMissCount();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Translates saves and deletes of members into evictions. Deletes by
+     * user and server or by id are applied precisely, anything else drops the
+     * whole cache.
+     */
+    @Override
+    public void onApplicationEvent(@NonNull MongoMappingEvent<?> event) {
+        if (!COLLECTION.equals(event.getCollectionName()))
+            return;
+
+        if (event instanceof AfterSaveEvent<?> saveEvent) {
+            Document document = saveEvent.getDocument();
+            if (document != null && document.get("user") instanceof ObjectId userId
+                    && document.get("server") instanceof ObjectId serverId) {
+                evict(userId, serverId);
+            } else {
+                clear();
+            }
+        } else if (event instanceof AfterDeleteEvent<?> deleteEvent) {
+            Document query = deleteEvent.getSource();
+            if (query.get("user") instanceof ObjectId userId && query.get("server") instanceof ObjectId serverId) {
+                evict(userId, serverId);
+            } else if (query.size() == 1 && query.get("_id") instanceof ObjectId memberId) {
+                evictMember(memberId);
+            } else if (query.size() == 1 && query.get("_id") instanceof Document in
+                    && in.get("$in") instanceof List<?> memberIds) {
+                memberIds.stream().filter(ObjectId.class::isInstance).map(ObjectId.class::cast)
+                        .forEach(this::evictMember);
+            } else {
+                clear();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.members.cache.requests", this, MemberCache::getHitCount)
+                .tag("result", "hit").description("Membership lookups served from memory").register(registry);
+        FunctionCounter.builder("strife.members.cache.requests", this, MemberCache::getMissCount)
+                .tag("result", "miss").description("Membership lookups that had to query the database")
+                .register(registry);
+        FunctionCounter.builder("strife.members.cache.evictions", this, MemberCache::getEvictionCount)
+                .description("Memberships evicted to stay within the entry limit").register(registry);
+        Gauge.builder("strife.members.cache.hit_ratio", this, MemberCache::getHitRatio)
+                .description("Share of membership lookups served from memory").register(registry);
+        Gauge.builder("strife.members.cache.size", this, MemberCache::getSize)
+                .description("Number of cached memberships").register(registry);
+    }
+
+    /**
+     * Forgets a membership by the member's id, such as after it was written by
+     * another node. Within a transaction the membership is forgotten again
+     * once the transaction completes.
+     *
+     * @param memberId the member's id
+     */
+    public void evictMember(ObjectId memberId) {
+        StampedLruCache.evictAndRepeatAfterCompletion(() -> {
+            Key key = keysByMemberId.get(memberId);
+
+            // An uncached member may still be being loaded, so every load in flight is discarded
+            if (key != null) {
+                members.invalidate(key);
+            } else {
+                members.discardLoads();
+            }
+        });
+    }
+
+    private static Member copy(Member member) {
+        return new Member(member.getId(), member.getUser(), member.getServer(), member.getNickname(),
+                member.getBanReason(), member.getRolePriority(),
+                member.getRoleIds() == null ? null : new ArrayList<>(member.getRoleIds()),
+                member.isBanned(), member.isOwner(), member.getPermissions());
+    }
+}
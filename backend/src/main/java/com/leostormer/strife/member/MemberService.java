@@ -19,23 +19,45 @@ public class MemberService {
     @Autowired
     MemberRepository memberRepository;
 
+    @Autowired
+    MemberCache memberCache;
+
     @SuppressWarnings("null")
     public void save(Member... members) {
         memberRepository.saveAll(List.of(members));
     }
     
     public boolean isMember(ObjectId userId, ObjectId serverId) {
-        return memberRepository.isMember(userId, serverId);
+        return getMember(userId, serverId).filter(member -> !member.isBanned()).isPresent();
     }
 
+    /**
+     * Returns the membership of a user in a server, including bans. Served
+     * from the {@link MemberCache} when possible.
+     */
     public Optional<Member> getMember(ObjectId userId, ObjectId serverId) {
-        return memberRepository.findByUserIdAndServerId(userId, serverId);
+        return memberCache.get(userId, serverId, () -> memberRepository.findByUserIdAndServerId(userId, serverId));
+    }
+
+    /**
+     * Forgets the cached memberships of a server after a change that affects
+     * all of its members, such as to its roles.
+     */
+    public void evictServer(ObjectId serverId) {
+        memberCache.evictServer(serverId);
     }
 
     public List<Server> getServersByUserId(ObjectId userId) {
         return memberRepository.findServersByUserId(userId);
     }
 
+    /**
+     * Returns every server membership of a user, excluding bans.
+     */
+    public List<Member> getMembershipsByUserId(ObjectId userId) {
+        return memberRepository.findAllByUserId(userId);
+    }
+
     public void joinServer(User user, Server server) {
         Optional<Member> existingMember = memberRepository.findByUserIdAndServerId(user.getId(), server.getId());
         if (existingMember.isPresent()) {
@@ -0,0 +1,21 @@
+package com.leostormer.strife.member;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Recomputed roles for a member. Only applied if the member still has the
+ * roles it was computed from, so a concurrent change to the member's roles is
+ * never overwritten.
+ *
+ * @param memberId        the member's id
+ * @param userId          the member's user id
+ * @param previousRoleIds the member's roles as read
+ * @param roleIds         the roles that still exist, by descending priority
+ * @param rolePriority    the priority of the highest role
+ * @param permissions     the accumulated permissions of the roles
+ */
+public record RoleAssignment(ObjectId memberId, ObjectId userId, List<ObjectId> previousRoleIds,
+        List<ObjectId> roleIds, int rolePriority, long permissions) {
+}
@@ -0,0 +1,26 @@
+package com.leostormer.strife.mention;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+public interface CustomMentionRepository {
+    /**
+     * Inserts mentions with a single unordered bulk write. Mentions already in
+     * a user's inbox are skipped, so a batch can safely be retried.
+     *
+     * @param mentions the mentions to insert
+     */
+    void insertAll(List<Mention> mentions);
+
+    /**
+     * Returns a page of a user's mentions from newest to oldest message.
+     *
+     * @param userId          the user's id
+     * @param beforeMessageId only mentions in older messages are returned, or
+     *                        all if null
+     * @param limit           the page size
+     * @return the mentions
+     */
+    List<Mention> findRecent(ObjectId userId, ObjectId beforeMessageId, int limit);
+}
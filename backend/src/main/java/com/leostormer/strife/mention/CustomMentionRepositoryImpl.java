@@ -0,0 +1,44 @@
+package com.leostormer.strife.mention;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class CustomMentionRepositoryImpl implements CustomMentionRepository {
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void insertAll(List<Mention> mentions) {
+        if (mentions.isEmpty())
+            return;
+
+        try {
+            mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Mention.class).insert(mentions).execute();
+        } catch (BulkOperationException e) {
+            if (e.getErrors().stream().anyMatch(error -> error.getCode() != DUPLICATE_KEY))
+                throw e;
+        }
+    }
+
+    @Override
+    public List<Mention> findRecent(ObjectId userId, ObjectId beforeMessageId, int limit) {
+        Criteria criteria = Criteria.where("user").is(userId);
+        if (beforeMessageId != null)
+            criteria = criteria.and("message").lt(beforeMessageId);
+
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.DESC, "message")).limit(limit);
+        return mongoTemplate.find(query, Mention.class);
+    }
+}
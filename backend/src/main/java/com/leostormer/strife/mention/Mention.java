@@ -0,0 +1,44 @@
+package com.leostormer.strife.mention;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An entry in a user's mention inbox. Only ids are stored so an
+ * <code>@everyone</code> in a large server writes small documents; the message
+ * itself is loaded when the user opens it.
+ */
+@Document(collection = "mentions")
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@CompoundIndex(name = "user_message_idx", def = "{'user': 1, 'message': -1}", unique = true)
+public class Mention {
+    @Id
+    private ObjectId id;
+
+    private ObjectId user;
+
+    @Indexed
+    private ObjectId message;
+
+    private ObjectId channel;
+
+    /**
+     * The server the channel is in. Is null for conversations.
+     */
+    private ObjectId server;
+
+    private ObjectId sender;
+
+    public Mention(ObjectId user, ObjectId message, ObjectId channel, ObjectId server, ObjectId sender) {
+        this(null, user, message, channel, server, sender);
+    }
+}
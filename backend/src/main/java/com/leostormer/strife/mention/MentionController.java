@@ -0,0 +1,41 @@
+package com.leostormer.strife.mention;
+
+import java.security.Principal;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserService;
+
+import lombok.AllArgsConstructor;
+
+@RestController
+@RequestMapping("/api/mentions")
+@AllArgsConstructor
+public class MentionController {
+    @Autowired
+    private final UserService userService;
+
+    @Autowired
+    private final MentionService mentionService;
+
+    // Get the user's most recent mentions. Pass the last message id of a page as before to get the next one.
+    @GetMapping("")
+    public ResponseEntity<List<MentionView>> getRecentMentions(Principal principal,
+            @RequestParam(required = false) ObjectId before, @RequestParam(defaultValue = "25") int limit) {
+        User user = userService.getUser(principal);
+        try {
+            return ResponseEntity.ok(mentionService.getRecentMentions(user.getId(), before, limit).stream()
+                    .map(MentionView::new).toList());
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
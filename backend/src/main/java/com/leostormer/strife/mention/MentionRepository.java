@@ -0,0 +1,12 @@
+package com.leostormer.strife.mention;
+
+import java.util.Collection;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface MentionRepository extends MongoRepository<Mention, ObjectId>, CustomMentionRepository {
+    long deleteAllByMessageIn(Collection<ObjectId> messages);
+}
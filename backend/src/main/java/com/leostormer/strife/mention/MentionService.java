@@ -0,0 +1,160 @@
+package com.leostormer.strife.mention;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.leostormer.strife.conversation.Conversation;
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.member.MemberRepository;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageMentions;
+
+/**
+ * Delivers the mentions in sent messages to the mentioned users' inboxes.
+ * <p>
+ * Mentions are resolved off the send path on a single background thread.
+ * Role and <code>@everyone</code> mentions are expanded by walking the
+ * server's members <code>app.mentions.batch-size</code> at a time, writing one
+ * bulk insert per batch, so mentioning everyone in a large server never holds
+ * more than one batch in memory.
+ */
+@Service
+public class MentionService implements DisposableBean {
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private final MentionRepository mentionRepository;
+
+    private final MemberRepository memberRepository;
+
+    private final int batchSize;
+
+    private final ExecutorService fanOut = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mention-fan-out");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public MentionService(MentionRepository mentionRepository, MemberRepository memberRepository,
+            @Value("${app.mentions.batch-size:1000}") int batchSize) {
+        this.mentionRepository = mentionRepository;
+        this.memberRepository = memberRepository;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Delivers the mentions in a message sent in a server channel. Role and
+     * <code>@everyone</code> mentions are ignored unless the sender may use
+     * them, and only members who can view the channel are mentioned.
+     *
+     * @param message         the sent message
+     * @param serverId        the server's id
+     * @param canMentionRoles whether the sender has the
+     *                        {@link com.leostormer.strife.server.PermissionType#MENTIONS}
+     *                        permission in the channel
+     * @param canView         whether a member can view the channel
+     * @return a future completed once every mention has been delivered
+     */
+    public CompletableFuture<Void> onServerMessageSent(Message message, ObjectId serverId, boolean canMentionRoles,
+            Predicate<Member> canView) {
+        String content = message.getContent();
+        Set<ObjectId> userIds = MessageMentions.parse(content);
+        Set<ObjectId> roleIds = canMentionRoles ? MessageMentions.parseRoles(content) : Set.of();
+        boolean everyone = canMentionRoles && MessageMentions.mentionsEveryone(content);
+        if (userIds.isEmpty() && roleIds.isEmpty() && !everyone)
+            return CompletableFuture.completedFuture(null);
+
+        ObjectId senderId = message.getSenderId();
+        Predicate<Member> recipient = member -> !member.getUserId().equals(senderId) && canView.test(member);
+        return CompletableFuture.runAsync(() -> {
+            if (!userIds.isEmpty())
+                deliver(message, serverId, memberRepository.findAllByServerIdAndUserIds(serverId, userIds).stream()
+                        .filter(recipient).map(Member::getUserId).toList());
+
+            if (!everyone && roleIds.isEmpty())
+                return;
+
+            // Directly mentioned users were handled above whether or not they could view the channel
+            Predicate<Member> expanded = recipient.and(member -> !userIds.contains(member.getUserId()));
+            ObjectId afterId = null;
+            List<Member> batch;
+            do {
+                batch = memberRepository.findMemberBatch(serverId, everyone ? null : roleIds, afterId, batchSize);
+                if (batch.isEmpty())
+                    break;
+
+                deliver(message, serverId,
+                        batch.stream().filter(expanded).map(Member::getUserId).toList());
+                afterId = batch.get(batch.size() - 1).getId();
+            } while (batch.size() == batchSize);
+        }, fanOut);
+    }
+
+    /**
+     * Delivers the mentions in a message sent in a conversation to the
+     * mentioned users still present in it.
+     *
+     * @param message      the sent message
+     * @param conversation the conversation
+     * @return a future completed once every mention has been delivered
+     */
+    public CompletableFuture<Void> onConversationMessageSent(Message message, Conversation conversation) {
+        List<ObjectId> userIds = MessageMentions.parse(message.getContent()).stream()
+                .filter(userId -> !userId.equals(message.getSenderId()))
+                .filter(userId -> Boolean.TRUE.equals(conversation.getUserPresenceMap().get(userId))).toList();
+        if (userIds.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        return CompletableFuture.runAsync(() -> deliver(message, null, userIds), fanOut);
+    }
+
+    /**
+     * Returns a page of a user's mentions from newest to oldest message.
+     *
+     * @param userId          the user's id
+     * @param beforeMessageId the message id to page back from, or null for the
+     *                        newest mentions
+     * @param limit           the page size, at most {@link #MAX_PAGE_SIZE}
+     * @return the mentions
+     */
+    public List<Mention> getRecentMentions(ObjectId userId, ObjectId beforeMessageId, int limit) {
+        return mentionRepository.findRecent(userId, beforeMessageId, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+    }
+
+    /**
+     * Removes deleted messages from every inbox.
+     *
+     * @param messageIds the deleted messages' ids
+     * @return the number of mentions deleted
+     */
+    public long onMessagesDeleted(Collection<ObjectId> messageIds) {
+        return mentionRepository.deleteAllByMessageIn(messageIds);
+    }
+
+    /**
+     * Waits for every mention of messages sent so far to be delivered.
+     */
+    void awaitDelivery() {
+        CompletableFuture.runAsync(() -> {
+        }, fanOut).join();
+    }
+
+    @Override
+    public void destroy() {
+        fanOut.shutdown();
+    }
+
+    private void deliver(Message message, ObjectId serverId, List<ObjectId> userIds) {
+        mentionRepository.insertAll(userIds.stream().map(userId -> new Mention(userId, message.getId(),
+                message.getChannelId(), serverId, message.getSenderId())).toList());
+    }
+}
@@ -0,0 +1,25 @@
+package com.leostormer.strife.mention;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class MentionView {
+    private String messageId;
+
+    private String channelId;
+
+    /**
+     * The id of the server the channel is in. Is null for conversations.
+     */
+    private String serverId;
+
+    private String senderId;
+
+    public MentionView(Mention mention) {
+        this(mention.getMessage().toHexString(), mention.getChannel().toHexString(),
+                mention.getServer() == null ? null : mention.getServer().toHexString(),
+                mention.getSender().toHexString());
+    }
+}
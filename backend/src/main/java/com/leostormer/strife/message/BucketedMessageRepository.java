@@ -0,0 +1,475 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.channel.Channel;
+import com.leostormer.strife.message.MessageBucket.Entry;
+import com.leostormer.strife.user.User;
+
+import lombok.Data;
+
+/**
+ * Stores messages in {@link MessageBucket}s of up to
+ * {@link MessageBucket#CAPACITY} consecutive messages per channel instead of
+ * one document per message. A page of history then reads a handful of bucket
+ * documents through the small per-channel bucket indexes.
+ * <p>
+ * Enabled with <code>app.messages.storage=bucketed</code>, in which case
+ * {@link CustomMessageRepositoryImpl} delegates to it. The in-memory tail
+ * cache and insert batching only apply to the default document storage.
+ */
+@Component
+@ConditionalOnProperty(name = "app.messages.storage", havingValue = "bucketed")
+public class BucketedMessageRepository implements CustomMessageRepository {
+    private static final int MAX_OPEN_BUCKET_ATTEMPTS = 3;
+
+    private static final Comparator<Entry> ORDER = Comparator.comparing(Entry::getTimestamp)
+            .thenComparing(Entry::getId);
+
+    private final MongoTemplate mongoTemplate;
+
+    private final MessageSequencer sequencer;
+
+    private final MessageWindow messageWindow;
+
+    private final int exportBatchSize;
+
+    private final int purgeBatchSize;
+
+    public BucketedMessageRepository(MongoTemplate mongoTemplate, MessageSequencer sequencer,
+            MessageWindow messageWindow,
+            @Value("${app.messages.export.batch-size:500}") int exportBatchSize,
+            @Value("${app.messages.purge.batch-size:1000}") int purgeBatchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.sequencer = sequencer;
+        this.messageWindow = messageWindow;
+        this.exportBatchSize = exportBatchSize;
+        this.purgeBatchSize = Math.max(1, purgeBatchSize);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Message insertMessage(User sender, Channel channel, String content) {
+        Entry entry = new Entry(new ObjectId(), content, new Date(), sender.getId());
+        entry.setSequence(sequencer.reserve(channel.getId(), 1));
+        Query openBucket = new Query(
+                Criteria.where("channel").is(channel.getId()).and("appended").lt(MessageBucket.CAPACITY));
+        Update update = new Update().push("messages", entry).inc("appended", 1)
+                .min("firstTimestamp", entry.getTimestamp()).max("lastTimestamp", entry.getTimestamp());
+
+        for (int attempt = 1;; attempt++) {
+            try {
+                mongoTemplate.upsert(openBucket, update, MessageBucket.class);
+                break;
+            } catch (DuplicateKeyException e) {
+                // Another insert opened the channel's next bucket first, append to that one
+                if (attempt == MAX_OPEN_BUCKET_ATTEMPTS)
+                    throw e;
+            }
+        }
+
+        return new Message(entry.getId(), content, entry.getTimestamp(), sender, channel, null, entry.getSequence());
+    }
+
+    @Override
+    public CompletableFuture<Message> insertMessageAsync(User sender, Channel channel, String content) {
+        return CompletableFuture.completedFuture(insertMessage(sender, channel, content));
+    }
+
+    /**
+     * Walks the channel's buckets from the requested position outwards until
+     * the next bucket cannot contain anything that would make the page. Buckets
+     * may overlap by a few milliseconds when concurrent inserts cross a bucket
+     * boundary, so the walk compares against the page's worst entry rather than
+     * stopping at the first full page.
+     */
+    @Override
+    @SuppressWarnings("null")
+    public List<Message> getMessages(ObjectId channelId, MessageSearchOptions searchOptions) {
+        if (searchOptions.getSearchDirection() == MessageSearchDirection.AROUND)
+            return messageWindow.around(this, channelId, searchOptions);
+
+        boolean descending = searchOptions.getSearchDirection().equals(MessageSearchDirection.DESCENDING);
+        MessageCursor cursor = searchOptions.getCursor() != null ? MessageCursor.decode(searchOptions.getCursor())
+                : null;
+        Date bound = cursor != null ? cursor.getTimestamp() : searchOptions.getTimestamp();
+        Predicate<Entry> inRange = inRange(cursor, bound, descending);
+        Comparator<Entry> order = descending ? ORDER.reversed() : ORDER;
+        int limit = searchOptions.getLimit();
+
+        Criteria criteria = Criteria.where("channel").is(channelId);
+        Query query = descending
+                ? new Query(criteria.and("firstTimestamp").lte(bound)).with(Sort.by(Sort.Direction.DESC, "lastTimestamp"))
+                : new Query(criteria.and("lastTimestamp").gte(bound)).with(Sort.by(Sort.Direction.ASC, "firstTimestamp"));
+        query.cursorBatchSize(4);
+
+        List<Entry> page = new ArrayList<>();
+        try (Stream<MessageBucket> buckets = mongoTemplate.stream(query, MessageBucket.class)) {
+            for (Iterator<MessageBucket> iterator = buckets.iterator(); iterator.hasNext();) {
+                MessageBucket bucket = iterator.next();
+                if (page.size() >= limit) {
+                    Date worst = page.get(limit - 1).getTimestamp();
+                    if (descending ? bucket.getLastTimestamp().before(worst) : bucket.getFirstTimestamp().after(worst))
+                        break;
+                }
+
+                bucket.getMessages().stream().filter(inRange).forEach(page::add);
+                page.sort(order);
+                if (page.size() > limit)
+                    page.subList(limit, page.size()).clear();
+            }
+        }
+
+        return toMessages(channelId, page);
+    }
+
+    private static Predicate<Entry> inRange(MessageCursor cursor, Date timestamp, boolean descending) {
+        if (cursor != null) {
+            Entry position = new Entry(cursor.getId(), null, cursor.getTimestamp(), null);
+            return descending ? entry -> ORDER.compare(entry, position) < 0 : entry -> ORDER.compare(entry, position) > 0;
+        }
+
+        return descending ? entry -> entry.getTimestamp().before(timestamp) : entry -> entry.getTimestamp().after(timestamp);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public List<Message> searchMessages(Collection<ObjectId> channelIds, MessageQuery messageQuery) {
+        if (channelIds.isEmpty())
+            return new ArrayList<>();
+
+        // The text index only tells which buckets mention the words, so every
+        // unwound message is matched against them again.
+        String words = Arrays.stream(messageQuery.getText().split("\\s+"))
+                .filter(word -> !word.isBlank() && !word.startsWith("-")).map(word -> word.replace("\"", ""))
+                .map(Pattern::quote).collect(Collectors.joining("|"));
+        Criteria messageCriteria = Criteria.where("messages.content").regex(words, "i");
+        if (messageQuery.getSenderId() != null)
+            messageCriteria = messageCriteria.and("messages.sender").is(messageQuery.getSenderId());
+
+        if (messageQuery.getAfter() != null && messageQuery.getBefore() != null) {
+            messageCriteria = messageCriteria.and("messages.timestamp").gte(messageQuery.getAfter())
+                    .lt(messageQuery.getBefore());
+        } else if (messageQuery.getAfter() != null) {
+            messageCriteria = messageCriteria.and("messages.timestamp").gte(messageQuery.getAfter());
+        } else if (messageQuery.getBefore() != null) {
+            messageCriteria = messageCriteria.and("messages.timestamp").lt(messageQuery.getBefore());
+        }
+
+        int limit = Math.max(1, Math.min(messageQuery.getLimit(), MessageQuery.MAX_LIMIT));
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(TextCriteria.forDefaultLanguage().matching(messageQuery.getText())),
+                Aggregation.match(Criteria.where("channel").in(channelIds)),
+                Aggregation.unwind("messages"),
+                Aggregation.match(messageCriteria),
+                Aggregation.sort(Sort.by(Sort.Direction.DESC, "messages.timestamp", "messages._id")),
+                Aggregation.limit(limit),
+                Aggregation.project("channel").and("messages").as("message"));
+
+        List<UnwoundEntry> results = mongoTemplate.aggregate(aggregation, MessageBucket.class, UnwoundEntry.class)
+                .getMappedResults();
+        Map<ObjectId, User> senders = loadSenders(results.stream().map(UnwoundEntry::getMessage).toList());
+        Map<ObjectId, Channel> channels = mongoTemplate
+                .find(new Query(Criteria.where("_id").in(results.stream().map(UnwoundEntry::getChannel)
+                        .collect(Collectors.toSet()))), Channel.class)
+                .stream().collect(Collectors.toMap(Channel::getId, Function.identity()));
+
+        return results.stream().map(result -> toMessage(result.getMessage(), senders, channels.get(result.getChannel())))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Stream<List<Message>> streamMessages(ObjectId channelId) {
+        Channel channel = mongoTemplate.findById(channelId, Channel.class);
+        Query query = new Query(Criteria.where("channel").is(channelId))
+                .with(Sort.by(Sort.Direction.ASC, "firstTimestamp")).cursorBatchSize(4);
+        Stream<MessageBucket> buckets = mongoTemplate.stream(query, MessageBucket.class);
+        Iterator<Entry> entries = buckets
+                .flatMap(bucket -> bucket.getMessages().stream().sorted(ORDER)).iterator();
+        Iterator<List<Message>> batches = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public List<Message> next() {
+                List<Entry> batch = new ArrayList<>(exportBatchSize);
+                while (batch.size() < exportBatchSize && entries.hasNext())
+                    batch.add(entries.next());
+
+                Map<ObjectId, User> senders = loadSenders(batch);
+                return batch.stream().map(entry -> toMessage(entry, senders, channel))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false)
+                .onClose(buckets::close);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Optional<Message> findMessageById(ObjectId messageId) {
+        MessageBucket bucket = mongoTemplate.findOne(messageQuery(messageId), MessageBucket.class);
+        return toMessage(bucket);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public List<Message> findMessagesInChannel(ObjectId channelId, Collection<ObjectId> messageIds) {
+        if (messageIds.isEmpty())
+            return new ArrayList<>();
+
+        // A positional projection only keeps the first match, so the buckets are unwound
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("channel").is(channelId).and("messages._id").in(messageIds)),
+                Aggregation.unwind("messages"),
+                Aggregation.match(Criteria.where("messages._id").in(messageIds)),
+                Aggregation.project("channel").and("messages").as("message"));
+
+        List<Entry> entries = mongoTemplate.aggregate(aggregation, MessageBucket.class, UnwoundEntry.class)
+                .getMappedResults().stream().map(UnwoundEntry::getMessage).toList();
+        return toMessages(channelId, entries);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Message updateMessage(ObjectId messageId, String messageContent) {
+        MessageBucket bucket = mongoTemplate.findAndModify(messageQuery(messageId),
+                new Update().set("messages.$.content", messageContent),
+                FindAndModifyOptions.options().returnNew(true), MessageBucket.class);
+        return toMessage(bucket).orElse(null);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void deleteMessage(ObjectId messageId) {
+        Query query = new Query(Criteria.where("messages._id").is(messageId));
+        query.fields().include("appended").slice("messages", 1);
+        MessageBucket bucket = mongoTemplate.findAndModify(query,
+                new Update().pull("messages", new Document("_id", messageId)),
+                FindAndModifyOptions.options().returnNew(true), MessageBucket.class);
+
+        // Closed buckets never receive messages again, so drop them once empty
+        if (bucket != null && bucket.getMessages().isEmpty() && bucket.getAppended() >= MessageBucket.CAPACITY)
+            mongoTemplate.remove(new Query(Criteria.where("_id").is(bucket.getId()).and("messages").size(0)),
+                    MessageBucket.class);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void deleteAllByChannel(ObjectId... channelIds) {
+        mongoTemplate.remove(new Query(Criteria.where("channel").in((Object[]) channelIds)), MessageBucket.class);
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public int deleteMessageBatch(ObjectId channelId, int batchSize, Consumer<List<ObjectId>> beforeDelete) {
+        // Buckets emptied by deletes hold nothing to count, so drop them up front
+        mongoTemplate.remove(new Query(Criteria.where("channel").is(channelId).and("messages.0").exists(false)),
+                MessageBucket.class);
+
+        Query query = new Query(Criteria.where("channel").is(channelId))
+                .limit(Math.max(1, batchSize / MessageBucket.CAPACITY));
+        query.fields().include("messages._id");
+        List<MessageBucket> buckets = mongoTemplate.find(query, MessageBucket.class);
+        if (buckets.isEmpty())
+            return 0;
+
+        List<ObjectId> messageIds = buckets.stream().flatMap(bucket -> bucket.getMessages().stream())
+                .map(Entry::getId).toList();
+        if (!messageIds.isEmpty())
+            beforeDelete.accept(messageIds);
+
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(buckets.stream().map(MessageBucket::getId).toList())),
+                MessageBucket.class);
+        return messageIds.size();
+    }
+
+    @Override
+    public void incrementReactionCounts(List<ReactionCountUpdate> updates) {
+        if (updates.isEmpty())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MessageBucket.class);
+        for (ReactionCountUpdate update : updates) {
+            Update increments = new Update();
+            update.deltas().forEach((emoji, delta) -> increments.inc("messages.$.reactions." + emoji, delta));
+            bulkOps.updateOne(new Query(Criteria.where("messages._id").is(update.messageId())), increments);
+        }
+        bulkOps.execute();
+    }
+
+    /**
+     * Finds each batch by unwinding the candidate buckets, then pulls the
+     * batch's messages out of every bucket holding some of them with a single
+     * bulk write. Closed buckets left empty are dropped afterwards.
+     */
+    @Override
+    @SuppressWarnings("null")
+    public long purgeMessages(ObjectId channelId, MessagePurge purge, Consumer<List<ObjectId>> onBatch) {
+        if (purge.isEmpty())
+            throw new IllegalArgumentException("A purge must select messages by id, sender or time");
+
+        long deleted = 0;
+        for (List<ObjectId> chunk : purge.messageIdChunks(purgeBatchSize)) {
+            Criteria bucketCriteria = Criteria.where("channel").is(channelId);
+            Criteria messageCriteria = new Criteria();
+            if (chunk != null) {
+                bucketCriteria = bucketCriteria.and("messages._id").in(chunk);
+                messageCriteria = messageCriteria.and("messages._id").in(chunk);
+            }
+            if (purge.getSenderId() != null) {
+                bucketCriteria = bucketCriteria.and("messages.sender").is(purge.getSenderId());
+                messageCriteria = messageCriteria.and("messages.sender").is(purge.getSenderId());
+            }
+            if (purge.getAfter() != null)
+                bucketCriteria = bucketCriteria.and("lastTimestamp").gte(purge.getAfter());
+            if (purge.getBefore() != null)
+                bucketCriteria = bucketCriteria.and("firstTimestamp").lt(purge.getBefore());
+            if (purge.getAfter() != null && purge.getBefore() != null) {
+                messageCriteria = messageCriteria.and("messages.timestamp").gte(purge.getAfter())
+                        .lt(purge.getBefore());
+            } else if (purge.getAfter() != null) {
+                messageCriteria = messageCriteria.and("messages.timestamp").gte(purge.getAfter());
+            } else if (purge.getBefore() != null) {
+                messageCriteria = messageCriteria.and("messages.timestamp").lt(purge.getBefore());
+            }
+
+            Aggregation aggregation = Aggregation.newAggregation(
+                    Aggregation.match(bucketCriteria),
+                    Aggregation.unwind("messages"),
+                    Aggregation.match(messageCriteria),
+                    Aggregation.limit(purgeBatchSize),
+                    Aggregation.project("_id").and("messages._id").as("messageId"));
+
+            while (true) {
+                Map<ObjectId, List<ObjectId>> messageIdsByBucket = mongoTemplate
+                        .aggregate(aggregation, MessageBucket.class, Document.class).getMappedResults().stream()
+                        .collect(Collectors.groupingBy(document -> document.getObjectId("_id"),
+                                Collectors.mapping(document -> document.getObjectId("messageId"),
+                                        Collectors.toList())));
+                if (messageIdsByBucket.isEmpty())
+                    break;
+
+                BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, MessageBucket.class);
+                messageIdsByBucket.forEach((bucketId, messageIds) -> bulkOps.updateOne(
+                        new Query(Criteria.where("_id").is(bucketId)),
+                        new Update().pull("messages", new Document("_id", new Document("$in", messageIds)))));
+                bulkOps.execute();
+                mongoTemplate.remove(new Query(Criteria.where("_id").in(messageIdsByBucket.keySet()).and("messages")
+                        .size(0).and("appended").gte(MessageBucket.CAPACITY)), MessageBucket.class);
+
+                List<ObjectId> messageIds = messageIdsByBucket.values().stream().flatMap(List::stream).toList();
+                deleted += messageIds.size();
+                onBatch.accept(messageIds);
+                if (chunk != null)
+                    break;
+            }
+        }
+
+        return deleted;
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public boolean existsByChannel(ObjectId channelId) {
+        return mongoTemplate.exists(
+                new Query(Criteria.where("channel").is(channelId).and("messages.0").exists(true)),
+                MessageBucket.class);
+    }
+
+    /**
+     * Finds the bucket holding a message, projecting only that message.
+     */
+    private static Query messageQuery(ObjectId messageId) {
+        Query query = new Query(Criteria.where("messages._id").is(messageId));
+        query.fields().include("channel").elemMatch("messages", Criteria.where("_id").is(messageId));
+        return query;
+    }
+
+    @SuppressWarnings("null")
+    private Optional<Message> toMessage(MessageBucket bucket) {
+        if (bucket == null || bucket.getMessages().isEmpty())
+            return Optional.empty();
+
+        Entry entry = bucket.getMessages().get(0);
+        Channel channel = mongoTemplate.findById(bucket.getChannel(), Channel.class);
+        return Optional.of(toMessage(entry, loadSenders(List.of(entry)), channel));
+    }
+
+    @SuppressWarnings("null")
+    private List<Message> toMessages(ObjectId channelId, List<Entry> entries) {
+        if (entries.isEmpty())
+            return new ArrayList<>();
+
+        Channel channel = mongoTemplate.findById(channelId, Channel.class);
+        Map<ObjectId, User> senders = loadSenders(entries);
+        return entries.stream().map(entry -> toMessage(entry, senders, channel))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    @SuppressWarnings("null")
+    private Map<ObjectId, User> loadSenders(List<Entry> entries) {
+        Set<ObjectId> senderIds = entries.stream().map(Entry::getSender).collect(Collectors.toSet());
+        if (senderIds.isEmpty())
+            return Map.of();
+
+        return mongoTemplate.find(new Query(Criteria.where("_id").in(senderIds)), User.class).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
+    }
+
+    private static Message toMessage(Entry entry, Map<ObjectId, User> senders, Channel channel) {
+        User sender = senders.get(entry.getSender());
+        if (sender == null) {
+            sender = new User();
+            sender.setId(entry.getSender());
+        }
+
+        return new Message(entry.getId(), entry.getContent(), entry.getTimestamp(), sender, channel,
+                entry.getReactions(), entry.getSequence());
+    }
+
+    @Data
+    static class UnwoundEntry {
+        private ObjectId channel;
+        private Entry message;
+    }
+}
@@ -1,6 +1,11 @@
 package com.leostormer.strife.message;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
 
@@ -11,6 +16,9 @@ import com.leostormer.strife.user.User;
 public interface CustomMessageRepository {
     /**
      * Returns all messages associated with a given <code>Channel</code> using the given search options.
+     * The senders of the returned messages are already loaded, so building views of them does not
+     * query the database again. With {@link MessageSearchDirection#AROUND}, returns the anchor message and
+     * the messages on either side of it from oldest to newest, or nothing if the anchor is not in the channel.
      * @param channelId the channel's id
      * @param searchOptions a MessageSearchOptions Object
      * @return 
@@ -18,6 +26,24 @@ public interface CustomMessageRepository {
      */
     List<Message> getMessages(ObjectId channelId, MessageSearchOptions searchOptions);
 
+    /**
+     * Searches the content of messages sent in any of the given channels using the text index.
+     * @param channelIds the channels to search, already filtered down to those the user may read
+     * @param query the search
+     * @return the matching messages from newest to oldest, with their senders loaded
+     * @see MessageQuery
+     */
+    List<Message> searchMessages(Collection<ObjectId> channelIds, MessageQuery query);
+
+    /**
+     * Streams every message of a channel from oldest to newest, in batches of
+     * <code>app.messages.export.batch-size</code> messages with their senders loaded. Only one
+     * batch is held in memory at a time. The stream holds an open database cursor and must be closed.
+     * @param channelId the channel's id
+     * @return a stream of message batches
+     */
+    Stream<List<Message>> streamMessages(ObjectId channelId);
+
     /**
      * Creates a message with the given content associated with the given channel.
      * @param user the {@link User} sending the message
@@ -27,6 +53,31 @@ public interface CustomMessageRepository {
      */
     Message insertMessage(User user, Channel channel, String content);
 
+    /**
+     * Queues a message with the given content to be inserted together with other messages sent
+     * around the same time. {@link #insertMessage(User, Channel, String)} waits on this.
+     * @param user the {@link User} sending the message
+     * @param channel the {@link Channel}
+     * @param content the content of the message
+     * @return a future completed with the saved message once it has been written
+     */
+    CompletableFuture<Message> insertMessageAsync(User user, Channel channel, String content);
+
+    /**
+     * Finds a message by its id, regardless of how messages are stored.
+     * @param messageId the message's id
+     * @return the message if found
+     */
+    Optional<Message> findMessageById(ObjectId messageId);
+
+    /**
+     * Finds the messages of a channel with the given ids with a single query.
+     * @param channelId the channel's id
+     * @param messageIds the messages' ids
+     * @return the messages found, in the order of the given ids
+     */
+    List<Message> findMessagesInChannel(ObjectId channelId, Collection<ObjectId> messageIds);
+
     /**
      * Edits the content of the message with the given id if found.
      * @param messageId the message's id
@@ -35,12 +86,48 @@ public interface CustomMessageRepository {
      */
     Message updateMessage(ObjectId messageId, String messageContent);
 
+    /**
+     * Deletes the message with the given id if found, regardless of how messages are stored.
+     * @param messageId the message's id
+     */
+    void deleteMessage(ObjectId messageId);
+
     /**
      * Deletes all messages associated with any of the given channels.
      * @param channelIds an array of channel ids
      */
     void deleteAllByChannel(ObjectId... channelIds);
 
+    /**
+     * Deletes a bounded number of the messages associated with the given
+     * channel, so large channels can be purged a little at a time.
+     * @param channelId the channel's id
+     * @param batchSize the maximum number of messages to delete
+     * @param beforeDelete given the ids of the messages about to be deleted, so what refers to them can be
+     * deleted first and is not left behind if the purge is interrupted
+     * @return the number of messages deleted, or zero once none are left
+     */
+    int deleteMessageBatch(ObjectId channelId, int batchSize, Consumer<List<ObjectId>> beforeDelete);
+
+    /**
+     * Applies changes to the reaction counts of messages with a single bulk write. Updates for
+     * messages that no longer exist are ignored.
+     * @param updates the changes, at most one per message
+     */
+    void incrementReactionCounts(List<ReactionCountUpdate> updates);
+
+    /**
+     * Deletes the messages of a channel selected by a purge, in batches of at most
+     * <code>app.messages.purge.batch-size</code> messages so a purge of any size never holds
+     * more than one batch of ids in memory.
+     * @param channelId the channel's id
+     * @param purge the messages to delete
+     * @param onBatch called with the ids of the messages deleted by each batch
+     * @return the total number of messages deleted
+     * @throws IllegalArgumentException if the purge has no filters
+     */
+    long purgeMessages(ObjectId channelId, MessagePurge purge, Consumer<List<ObjectId>> onBatch);
+
     /**
      * Checks if any message exists that is associated with the given channel.
      * @param channelId the channel's id
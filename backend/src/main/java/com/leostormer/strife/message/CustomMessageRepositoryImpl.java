@@ -1,15 +1,38 @@
 package com.leostormer.strife.message;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
 import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Repository;
 
 import com.leostormer.strife.channel.Channel;
@@ -20,51 +43,396 @@ public class CustomMessageRepositoryImpl implements CustomMessageRepository {
     @Autowired
     public MongoTemplate mongoTemplate;
 
+    @Autowired(required = false)
+    public MessageTailCache tailCache;
+
+    @Autowired(required = false)
+    public MessageBatchInserter batchInserter;
+
+    @Autowired(required = false)
+    public MessageSequencer sequencer;
+
+    /**
+     * Loads the halves of a window one after the other unless a pool is
+     * configured.
+     */
+    @Autowired(required = false)
+    MessageWindow messageWindow = new MessageWindow(0);
+
+    /**
+     * Present when <code>app.messages.storage=bucketed</code>, in which case
+     * every operation is delegated to it.
+     */
+    @Autowired(required = false)
+    public BucketedMessageRepository bucketedRepository;
+
+    @Value("${app.messages.export.batch-size:500}")
+    private int exportBatchSize;
+
+    @Value("${app.messages.purge.batch-size:1000}")
+    private int purgeBatchSize;
+
     @Override
     public Message insertMessage(User sender, Channel channel, String content) {
+        if (bucketedRepository != null)
+            return bucketedRepository.insertMessage(sender, channel, content);
+
+        try {
+            return insertMessageAsync(sender, channel, content).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Message> insertMessageAsync(User sender, Channel channel, String content) {
+        if (bucketedRepository != null)
+            return bucketedRepository.insertMessageAsync(sender, channel, content);
+
         Message message = new Message();
         message.setSender(sender);
         message.setChannel(channel);
         message.setContent(content);
 
-        return mongoTemplate.insert(message);
+        if (batchInserter != null)
+            return batchInserter.submit(message);
+
+        if (sequencer != null)
+            message.setSequence(sequencer.reserve(channel.getId(), 1));
+
+        return CompletableFuture.completedFuture(mongoTemplate.insert(message));
     }
 
     @Override
     @SuppressWarnings("null")
     public List<Message> getMessages(ObjectId channelId, MessageSearchOptions searchOptions) {
-        Criteria criteria = Criteria.where("channel").is(channelId)
-                .and("timestamp");
-        Sort sort = Sort.by("timestamp");
-        Query query = new Query();
-        if (searchOptions.getSearchDirection().equals(MessageSearchDirection.DESCENDING)) {
-            query.addCriteria(criteria.lt(searchOptions.getTimestamp())).with(sort.descending());
-        } else if (searchOptions.getSearchDirection().equals(MessageSearchDirection.ASCENDING)) {
-            query.addCriteria(criteria.gt(searchOptions.getTimestamp())).with(sort.ascending());
+        if (bucketedRepository != null)
+            return bucketedRepository.getMessages(channelId, searchOptions);
+
+        if (searchOptions.getSearchDirection() == MessageSearchDirection.AROUND)
+            return messageWindow.around(this, channelId, searchOptions);
+
+        boolean descending = searchOptions.getSearchDirection().equals(MessageSearchDirection.DESCENDING);
+        if (descending && searchOptions.getCursor() == null && tailCache != null && tailCache.isEnabled()) {
+            Optional<List<Message>> tail = getLatestFromTail(channelId, searchOptions);
+            if (tail.isPresent())
+                return resolveSenders(tail.get());
+        }
+
+        Criteria criteria = Criteria.where("channel").is(channelId);
+        if (searchOptions.getCursor() != null) {
+            criteria = criteria.andOperator(seekCriteria(MessageCursor.decode(searchOptions.getCursor()), descending));
+        } else if (descending) {
+            criteria = criteria.and("timestamp").lt(searchOptions.getTimestamp());
+        } else {
+            criteria = criteria.and("timestamp").gt(searchOptions.getTimestamp());
         }
-        query.limit(searchOptions.getLimit());
 
-        return mongoTemplate.find(query, Message.class);
+        // Sorting on (timestamp, _id) lets the channel_timestamp_id_idx serve the
+        // whole query as a single index seek in either direction.
+        Sort sort = Sort.by(descending ? Sort.Direction.DESC : Sort.Direction.ASC, "timestamp", "_id");
+        Query query = new Query(criteria).with(sort).limit(searchOptions.getLimit());
+
+        return resolveSenders(mongoTemplate.find(query, Message.class));
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public List<Message> searchMessages(Collection<ObjectId> channelIds, MessageQuery messageQuery) {
+        if (bucketedRepository != null)
+            return bucketedRepository.searchMessages(channelIds, messageQuery);
+
+        if (channelIds.isEmpty())
+            return new ArrayList<>();
+
+        Criteria criteria = Criteria.where("channel").in(channelIds);
+        if (messageQuery.getSenderId() != null)
+            criteria = criteria.and("sender").is(messageQuery.getSenderId());
+
+        if (messageQuery.getAfter() != null && messageQuery.getBefore() != null) {
+            criteria = criteria.and("timestamp").gte(messageQuery.getAfter()).lt(messageQuery.getBefore());
+        } else if (messageQuery.getAfter() != null) {
+            criteria = criteria.and("timestamp").gte(messageQuery.getAfter());
+        } else if (messageQuery.getBefore() != null) {
+            criteria = criteria.and("timestamp").lt(messageQuery.getBefore());
+        }
+
+        // The text index narrows the candidates down to messages containing the
+        // words before any of the other filters are applied, so no search has to
+        // scan the collection.
+        int limit = Math.max(1, Math.min(messageQuery.getLimit(), MessageQuery.MAX_LIMIT));
+        Query query = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(messageQuery.getText()))
+                .addCriteria(criteria).with(Sort.by(Sort.Direction.DESC, "timestamp", "_id")).limit(limit);
+
+        return resolveSenders(mongoTemplate.find(query, Message.class));
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Stream<List<Message>> streamMessages(ObjectId channelId) {
+        if (bucketedRepository != null)
+            return bucketedRepository.streamMessages(channelId);
+
+        Query query = new Query(Criteria.where("channel").is(channelId))
+                .with(Sort.by(Sort.Direction.ASC, "timestamp", "_id")).cursorBatchSize(exportBatchSize);
+        Stream<Message> messages = mongoTemplate.stream(query, Message.class);
+        Iterator<Message> cursor = messages.iterator();
+        Iterator<List<Message>> batches = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasNext();
+            }
+
+            @Override
+            public List<Message> next() {
+                List<Message> batch = new ArrayList<>(exportBatchSize);
+                while (batch.size() < exportBatchSize && cursor.hasNext())
+                    batch.add(cursor.next());
+
+                return resolveSenders(batch);
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false)
+                .onClose(messages::close);
+    }
+
+    /**
+     * Serves a read of a channel's newest messages from the tail cache, loading
+     * the tail from the database on a miss if the read is recent enough.
+     */
+    @SuppressWarnings("null")
+    private Optional<List<Message>> getLatestFromTail(ObjectId channelId, MessageSearchOptions searchOptions) {
+        Date timestamp = searchOptions.getTimestamp();
+        int limit = searchOptions.getLimit();
+        Optional<List<Message>> cached = tailCache.getLatest(channelId, timestamp, limit);
+        if (cached.isPresent())
+            return cached;
+
+        if (!tailCache.isTailRead(timestamp))
+            return Optional.empty();
+
+        long stamp = tailCache.writeStamp(channelId);
+        int fetchSize = Math.max(tailCache.getMessagesPerChannel(), limit);
+        Query query = new Query(Criteria.where("channel").is(channelId))
+                .with(Sort.by(Sort.Direction.DESC, "timestamp", "_id")).limit(fetchSize);
+        List<Message> tail = resolveSenders(mongoTemplate.find(query, Message.class));
+        boolean complete = tail.size() < fetchSize;
+        tailCache.populate(channelId, tail, complete, stamp);
+
+        List<Message> messages = tail.stream().filter(message -> message.getTimestamp().before(timestamp))
+                .limit(limit).collect(Collectors.toCollection(ArrayList::new));
+        return messages.size() == limit || complete ? Optional.of(messages) : Optional.empty();
+    }
+
+    /**
+     * Loads the distinct senders of the given messages with a single query and
+     * sets them on the messages. Resolving each lazy sender reference on its
+     * own would cost one round trip per message when building views of a page.
+     * Senders already loaded, such as those served from the tail cache, are
+     * kept, and only the fields shown with a message are read.
+     *
+     * @return the given messages
+     */
+    @SuppressWarnings("null")
+    private List<Message> resolveSenders(List<Message> messages) {
+        Set<ObjectId> senderIds = messages.stream().filter(message -> !isSenderLoaded(message))
+                .map(Message::getSenderId).collect(Collectors.toSet());
+        if (senderIds.isEmpty())
+            return messages;
+
+        Query query = new Query(Criteria.where("_id").in(senderIds));
+        query.fields().include("username", "profilePic", "createdDate");
+        Map<ObjectId, User> senders = mongoTemplate.find(query, User.class).stream()
+                .collect(Collectors.toMap(User::getId, Function.identity()));
+        messages.forEach(message -> message.setSender(senders.getOrDefault(message.getSenderId(), message.getSender())));
+        return messages;
+    }
+
+    private static boolean isSenderLoaded(Message message) {
+        User sender = message.getSender();
+        return sender == null || !(sender instanceof LazyLoadingProxy) && sender.getUsername() != null;
+    }
+
+    /**
+     * Matches messages strictly before (or after) the cursor in
+     * <code>(timestamp, _id)</code> order, so messages sharing a timestamp are
+     * neither skipped nor repeated across pages.
+     */
+    @NonNull
+    private static Criteria seekCriteria(MessageCursor cursor, boolean descending) {
+        Date timestamp = cursor.getTimestamp();
+        ObjectId id = cursor.getId();
+        if (descending) {
+            return new Criteria().orOperator(Criteria.where("timestamp").lt(timestamp),
+                    Criteria.where("timestamp").is(timestamp).and("_id").lt(id));
+        }
+
+        return new Criteria().orOperator(Criteria.where("timestamp").gt(timestamp),
+                Criteria.where("timestamp").is(timestamp).and("_id").gt(id));
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Optional<Message> findMessageById(ObjectId messageId) {
+        if (bucketedRepository != null)
+            return bucketedRepository.findMessageById(messageId);
+
+        return Optional.ofNullable(mongoTemplate.findById(messageId, Message.class));
+    }
+
+    @Override
+    public List<Message> findMessagesInChannel(ObjectId channelId, Collection<ObjectId> messageIds) {
+        if (messageIds.isEmpty())
+            return new ArrayList<>();
+
+        List<Message> messages;
+        if (bucketedRepository != null) {
+            messages = bucketedRepository.findMessagesInChannel(channelId, messageIds);
+        } else {
+            Query query = new Query(Criteria.where("_id").in(messageIds).and("channel").is(channelId));
+            messages = resolveSenders(mongoTemplate.find(query, Message.class));
+        }
+
+        List<ObjectId> order = List.copyOf(messageIds);
+        messages.sort(Comparator.comparingInt(message -> order.indexOf(message.getId())));
+        return messages;
     }
 
     @Override
     public Message updateMessage(ObjectId messageId, String messageContent) {
+        if (bucketedRepository != null)
+            return bucketedRepository.updateMessage(messageId, messageContent);
+
         Query query = new Query().addCriteria(Criteria.where("_id").is(messageId));
         Update update = new Update().set("content", messageContent);
 
-        return mongoTemplate.update(Message.class).matching(query).apply(update)
+        Message message = mongoTemplate.update(Message.class).matching(query).apply(update)
                 .withOptions(FindAndModifyOptions.options().returnNew(true)).findAndModifyValue();
+        // Find-and-modify does not publish mapping events, so the tail cache has to be told
+        if (message != null && tailCache != null)
+            tailCache.onSaved(message);
+
+        return message;
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public void deleteMessage(ObjectId messageId) {
+        if (bucketedRepository != null) {
+            bucketedRepository.deleteMessage(messageId);
+            return;
+        }
+
+        mongoTemplate.remove(new Query(Criteria.where("_id").is(messageId)), Message.class);
     }
 
     @Override
     @SuppressWarnings("null")
     public void deleteAllByChannel(ObjectId... channelIds) {
+        if (bucketedRepository != null) {
+            bucketedRepository.deleteAllByChannel(channelIds);
+            return;
+        }
+
         mongoTemplate.remove(
                 new Query(Criteria.where("channel").in((Object[]) channelIds)), Message.class);
     }
 
+    @Override
+    @SuppressWarnings("null")
+    public int deleteMessageBatch(ObjectId channelId, int batchSize, Consumer<List<ObjectId>> beforeDelete) {
+        if (bucketedRepository != null)
+            return bucketedRepository.deleteMessageBatch(channelId, batchSize, beforeDelete);
+
+        Query query = new Query(Criteria.where("channel").is(channelId)).limit(batchSize);
+        query.fields().include("_id");
+        List<ObjectId> messageIds = mongoTemplate.find(query, Message.class).stream().map(Message::getId).toList();
+        if (messageIds.isEmpty())
+            return 0;
+
+        beforeDelete.accept(messageIds);
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(messageIds)), Message.class);
+        return messageIds.size();
+    }
+
+    @Override
+    public void incrementReactionCounts(List<ReactionCountUpdate> updates) {
+        if (bucketedRepository != null) {
+            bucketedRepository.incrementReactionCounts(updates);
+            return;
+        }
+
+        if (updates.isEmpty())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Message.class);
+        for (ReactionCountUpdate update : updates) {
+            Update increments = new Update();
+            update.deltas().forEach((emoji, delta) -> increments.inc("reactions." + emoji, delta));
+            bulkOps.updateOne(new Query(Criteria.where("_id").is(update.messageId())), increments);
+        }
+        bulkOps.execute();
+
+        if (tailCache != null)
+            updates.forEach(update -> tailCache.onReactionsChanged(update.channelId(), update.messageId(),
+                    update.deltas()));
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public long purgeMessages(ObjectId channelId, MessagePurge purge, Consumer<List<ObjectId>> onBatch) {
+        if (bucketedRepository != null)
+            return bucketedRepository.purgeMessages(channelId, purge, onBatch);
+
+        if (purge.isEmpty())
+            throw new IllegalArgumentException("A purge must select messages by id, sender or time");
+
+        int batchSize = Math.max(1, purgeBatchSize);
+        long deleted = 0;
+        for (List<ObjectId> chunk : purge.messageIdChunks(batchSize)) {
+            Criteria criteria = Criteria.where("channel").is(channelId);
+            if (chunk != null)
+                criteria = criteria.and("_id").in(chunk);
+            if (purge.getSenderId() != null)
+                criteria = criteria.and("sender").is(purge.getSenderId());
+            if (purge.getAfter() != null && purge.getBefore() != null) {
+                criteria = criteria.and("timestamp").gte(purge.getAfter()).lt(purge.getBefore());
+            } else if (purge.getAfter() != null) {
+                criteria = criteria.and("timestamp").gte(purge.getAfter());
+            } else if (purge.getBefore() != null) {
+                criteria = criteria.and("timestamp").lt(purge.getBefore());
+            }
+
+            // Ids are looked up first so each batch can report exactly what it removed.
+            // A chunk of given ids takes one batch, a filter is repeated until it matches nothing.
+            while (true) {
+                Query query = new Query(criteria).limit(batchSize);
+                query.fields().include("_id");
+                List<ObjectId> messageIds = mongoTemplate.find(query, Message.class).stream().map(Message::getId)
+                        .toList();
+                if (messageIds.isEmpty())
+                    break;
+
+                mongoTemplate.remove(new Query(Criteria.where("_id").in(messageIds)), Message.class);
+                deleted += messageIds.size();
+                onBatch.accept(messageIds);
+                if (chunk != null)
+                    break;
+            }
+        }
+
+        return deleted;
+    }
+
     @Override
     public boolean existsByChannel(ObjectId channelId) {
+        if (bucketedRepository != null)
+            return bucketedRepository.existsByChannel(channelId);
+
         return mongoTemplate.exists(
                 new Query(Criteria.where("channel").is(channelId)), Message.class);
     }
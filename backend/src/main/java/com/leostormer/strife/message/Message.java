@@ -2,11 +2,16 @@ package com.leostormer.strife.message;
 
 import java.util.Comparator;
 import java.util.Date;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.bson.types.ObjectId;
 import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DocumentReference;
 import org.springframework.lang.NonNull;
@@ -23,6 +28,7 @@ import lombok.NoArgsConstructor;
 @TypeAlias("Message")
 @NoArgsConstructor()
 @AllArgsConstructor()
+@CompoundIndex(name = "channel_timestamp_id_idx", def = "{'channel': 1, 'timestamp': -1, '_id': -1}")
 public class Message {
     @Id
     @NonNull
@@ -31,6 +37,7 @@ public class Message {
     /**
      * The body of the message.
      */
+    @TextIndexed
     private String content;
 
     /**
@@ -51,6 +58,49 @@ public class Message {
     @DocumentReference(collection = "channels", lazy = true)
     private Channel channel;
 
-    public static Comparator<Message> sortByTimestampAscending = (m1, m2) -> m1.getTimestamp()
-            .compareTo(m2.getTimestamp());
+    /**
+     * How many users reacted to this message with each emoji. Counts are
+     * applied in batches by {@link com.leostormer.strife.reaction.ReactionService}
+     * and may drop to zero. Is null if nobody ever reacted.
+     */
+    private Map<String, Long> reactions;
+
+    /**
+     * The number of messages sent in the channel up to and including this
+     * one, assigned by {@link MessageSequencer}. Is zero for messages stored
+     * before messages were numbered.
+     */
+    private long sequence;
+
+    public Message(ObjectId id, String content, Date timestamp, User sender, Channel channel) {
+        this(id, content, timestamp, sender, channel, null, 0);
+    }
+
+    /**
+     * Returns the id of the sender without resolving a lazily loaded reference.
+     *
+     * @return the sender's id
+     */
+    public ObjectId getSenderId() {
+        return referencedId(sender, User::getId);
+    }
+
+    /**
+     * Returns the id of the channel without resolving a lazily loaded reference.
+     *
+     * @return the channel's id
+     */
+    public ObjectId getChannelId() {
+        return referencedId(channel, Channel::getId);
+    }
+
+    private static <T> ObjectId referencedId(T reference, Function<T, ObjectId> getId) {
+        if (reference instanceof LazyLoadingProxy proxy && proxy.getSource() instanceof ObjectId id)
+            return id;
+
+        return reference == null ? null : getId.apply(reference);
+    }
+
+    public static Comparator<Message> sortByTimestampAscending = Comparator.comparing(Message::getTimestamp)
+            .thenComparing(Message::getId);
 }
@@ -0,0 +1,187 @@
+package com.leostormer.strife.message;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects messages inserted concurrently and writes them with a single
+ * <code>insertMany</code> instead of one round trip each.
+ * <p>
+ * A batch is flushed once it holds <code>app.messages.ingestion.max-batch-size</code>
+ * messages or <code>app.messages.ingestion.max-delay</code> after its first
+ * message was queued, whichever comes first. Messages queued while a batch is
+ * being written are picked up by the next one. The messages of a batch are
+ * numbered with a single counter increment per channel, written together.
+ */
+@Component
+public class MessageBatchInserter implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatchInserter.class);
+
+    private static final PendingInsert SHUTDOWN = new PendingInsert(null, null);
+
+    private final MongoTemplate mongoTemplate;
+
+    private final MessageSequencer sequencer;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayNanos;
+
+    private final BlockingQueue<PendingInsert> queue = new LinkedBlockingQueue<>();
+
+    private final Thread flusher;
+
+    /**
+     * Held while a message is queued, and exclusively while shutting down, so
+     * no message is queued after the flusher has taken its last batch.
+     */
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+
+    private boolean running = true;
+
+    public MessageBatchInserter(MongoTemplate mongoTemplate, MessageSequencer sequencer,
+            @Value("${app.messages.ingestion.max-batch-size:100}") int maxBatchSize,
+            @Value("${app.messages.ingestion.max-delay:2ms}") Duration maxDelay) {
+        this.mongoTemplate = mongoTemplate;
+        this.sequencer = sequencer;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.flusher = new Thread(this::run, "message-batch-inserter");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a message to be inserted with the next batch.
+     * <p>
+     * The id and timestamp are assigned here rather than by the database so
+     * that the message keeps its place in the channel's order no matter which
+     * batch it ends up in.
+     *
+     * @param message the message to insert
+     * @return a future completed with the saved message once its batch is written
+     */
+    public CompletableFuture<Message> submit(Message message) {
+        message.setId(new ObjectId());
+        message.setTimestamp(new Date());
+        PendingInsert pending = new PendingInsert(message, new CompletableFuture<>());
+        shutdownLock.readLock().lock();
+        try {
+            if (running) {
+                queue.add(pending);
+                return pending.future();
+            }
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+
+        flush(List.of(pending));
+        return pending.future();
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        shutdownLock.writeLock().lock();
+        try {
+            running = false;
+            queue.add(SHUTDOWN);
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+
+        flusher.join();
+
+        List<PendingInsert> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        remaining.remove(SHUTDOWN);
+        if (!remaining.isEmpty())
+            flush(remaining);
+    }
+
+    private void run() {
+        boolean shutdown = false;
+        while (!shutdown) {
+            List<PendingInsert> batch = new ArrayList<>(maxBatchSize);
+            try {
+                PendingInsert next = queue.take();
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (next != null && next != SHUTDOWN) {
+                    batch.add(next);
+                    if (batch.size() == maxBatchSize)
+                        break;
+
+                    next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+
+                shutdown = next == SHUTDOWN;
+            } catch (InterruptedException e) {
+                shutdown = true;
+            }
+
+            if (!batch.isEmpty())
+                flush(batch);
+        }
+    }
+
+    private void flush(List<PendingInsert> batch) {
+        try {
+            sequencer.assign(batch.stream().map(PendingInsert::message).toList());
+        } catch (RuntimeException e) {
+            batch.forEach(pending -> pending.future().completeExceptionally(e));
+            return;
+        }
+
+        try {
+            mongoTemplate.insertAll(batch.stream().map(PendingInsert::message).toList());
+            batch.forEach(pending -> pending.future().complete(pending.message()));
+        } catch (RuntimeException e) {
+            insertIndividually(batch);
+        }
+    }
+
+    /**
+     * Inserts each message on its own so that one bad message only fails its
+     * own caller. Messages the failed batch did manage to write are reported
+     * as duplicates and count as inserted. The numbers of messages that still
+     * fail are recorded as skipped.
+     */
+    private void insertIndividually(List<PendingInsert> batch) {
+        List<Message> failed = new ArrayList<>();
+        for (PendingInsert pending : batch) {
+            try {
+                pending.future().complete(mongoTemplate.insert(pending.message()));
+            } catch (DuplicateKeyException e) {
+                pending.future().complete(pending.message());
+            } catch (RuntimeException e) {
+                failed.add(pending.message());
+                pending.future().completeExceptionally(e);
+            }
+        }
+
+        try {
+            sequencer.skip(failed);
+        } catch (RuntimeException e) {
+            logger.warn("Could not record {} skipped message numbers", failed.size(), e);
+        }
+    }
+
+    private record PendingInsert(Message message, CompletableFuture<Message> future) {
+    }
+}
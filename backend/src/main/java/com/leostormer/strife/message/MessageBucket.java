@@ -0,0 +1,95 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.TextIndexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A run of consecutive messages of one channel stored in a single document,
+ * used by {@link BucketedMessageRepository}.
+ * <p>
+ * Messages are appended to the channel's open bucket until
+ * {@link #CAPACITY} messages have been appended to it, after which the next
+ * message opens a new bucket. Deleting a message does not reopen its bucket,
+ * so buckets never grow back into time ranges covered by newer buckets.
+ */
+@Document(collection = "message_buckets")
+@Data
+@TypeAlias("MessageBucket")
+@NoArgsConstructor
+@CompoundIndexes({
+        @CompoundIndex(name = "channel_last_timestamp_idx", def = "{'channel': 1, 'lastTimestamp': -1}"),
+        @CompoundIndex(name = "channel_first_timestamp_idx", def = "{'channel': 1, 'firstTimestamp': 1}"),
+        @CompoundIndex(name = "message_id_idx", def = "{'messages._id': 1}"),
+        // At most one open bucket per channel, so concurrent inserts cannot open
+        // two buckets at once
+        @CompoundIndex(name = "channel_open_bucket_idx", def = "{'channel': 1}", unique = true,
+                partialFilter = "{'appended': {'$lt': " + MessageBucket.CAPACITY + "}}")
+})
+public class MessageBucket {
+    public static final int CAPACITY = 200;
+
+    @Id
+    private ObjectId id;
+
+    private ObjectId channel;
+
+    /**
+     * The timestamp of the oldest message ever appended to this bucket. Stays a
+     * lower bound after deletes.
+     */
+    private Date firstTimestamp;
+
+    /**
+     * The timestamp of the newest message ever appended to this bucket. Stays
+     * an upper bound after deletes.
+     */
+    private Date lastTimestamp;
+
+    /**
+     * How many messages have been appended to this bucket, including deleted
+     * ones. The bucket is closed once this reaches {@link #CAPACITY}.
+     */
+    private int appended;
+
+    private List<Entry> messages = new ArrayList<>();
+
+    /**
+     * A message stored inside a bucket. The channel is implied by the bucket.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        @Id
+        private ObjectId id;
+
+        @TextIndexed
+        private String content;
+
+        private Date timestamp;
+
+        private ObjectId sender;
+
+        private Map<String, Long> reactions;
+
+        private long sequence;
+
+        public Entry(ObjectId id, String content, Date timestamp, ObjectId sender) {
+            this(id, content, timestamp, sender, null, 0);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.leostormer.strife.message;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.bson.types.Binary;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.convert.MongoConversionContext;
+import org.springframework.data.mongodb.core.convert.MongoValueConverter;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Getter;
+
+/**
+ * Compresses the content of large messages before it is written to the
+ * messages collection and decompresses it again when read, so the rest of
+ * the application only ever sees plain strings. Disabled unless
+ * <code>app.messages.compression.enabled</code> is set.
+ * <p>
+ * Content shorter than <code>app.messages.compression.min-size</code> bytes,
+ * or content that does not shrink, is stored as a plain string. Larger
+ * content is stored as binary data holding a format byte, the length of the
+ * UTF-8 encoded content and the deflated content. Both representations are
+ * always readable, so the threshold can be changed or compression disabled
+ * at any time.
+ * <p>
+ * The text index only covers string values, so compressed messages are not
+ * matched by full-text search. Enabling compression trades search over large
+ * messages for storage.
+ */
+@Component
+public class MessageContentCodec implements MongoValueConverter<String, Object>, MeterBinder {
+    /**
+     * The binary subtype of compressed content, from the user defined range.
+     */
+    static final byte BINARY_SUBTYPE = (byte) 0x80;
+
+    static final byte FORMAT_DEFLATE = 1;
+
+    private static final int HEADER_BYTES = 5;
+
+    @Getter
+    private final boolean enabled;
+
+    private final long minBytes;
+
+    private final LongAdder compressedMessages = new LongAdder();
+
+    private final LongAdder uncompressedBytes = new LongAdder();
+
+    private final LongAdder compressedBytes = new LongAdder();
+
+    private final LongAdder encodes = new LongAdder();
+
+    private final LongAdder encodeNanos = new LongAdder();
+
+    private final LongAdder decodes = new LongAdder();
+
+    private final LongAdder decodeNanos = new LongAdder();
+
+    public MessageContentCodec(@Value("${app.messages.compression.enabled:false}") boolean enabled,
+            @Value("${app.messages.compression.min-size:1KB}") DataSize minSize) {
+        this.enabled = enabled;
+        this.minBytes = minSize.toBytes();
+    }
+
+    @Override
+    public Object write(String content, @NonNull MongoConversionContext context) {
+        return encode(content);
+    }
+
+    @Override
+    public String read(Object value, @NonNull MongoConversionContext context) {
+        return decode(value);
+    }
+
+    /**
+     * Encodes message content the way it is stored.
+     *
+     * @param content the message content
+     * @return the content itself, or a {@link Binary} if it was compressed
+     */
+    public Object encode(String content) {
+        // A UTF-8 encoded character takes at most three bytes per char
+        if (!enabled || content == null || content.length() * 3L < minBytes)
+            return content;
+
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < minBytes)
+            return content;
+
+        long start = System.nanoTime();
+        byte[] deflated = deflate(bytes);
+        encodeNanos.add(System.nanoTime() - start);
+        encodes.increment();
+        if (deflated.length + HEADER_BYTES >= bytes.length)
+            return content;
+
+        ByteBuffer stored = ByteBuffer.allocate(HEADER_BYTES + deflated.length).put(FORMAT_DEFLATE)
+                .putInt(bytes.length).put(deflated);
+        compressedMessages.increment();
+        uncompressedBytes.add(bytes.length);
+        compressedBytes.add(stored.capacity());
+        return new Binary(BINARY_SUBTYPE, stored.array());
+    }
+
+    /**
+     * Decodes stored message content.
+     *
+     * @param value a plain string or compressed {@link Binary} content
+     * @return the message content
+     */
+    public String decode(Object value) {
+        if (!(value instanceof Binary binary))
+            return value == null ? null : value.toString();
+
+        ByteBuffer stored = ByteBuffer.wrap(binary.getData());
+        if (binary.getType() != BINARY_SUBTYPE || stored.get() != FORMAT_DEFLATE)
+            throw new IllegalStateException("Unknown message content encoding");
+
+        long start = System.nanoTime();
+        byte[] bytes = inflate(stored.array(), HEADER_BYTES, stored.getInt());
+        decodeNanos.add(System.nanoTime() - start);
+        decodes.increment();
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the ratio of the original size to the stored size over all
+     * content compressed since startup.
+     *
+     * @return the compression ratio, or 1 if nothing was compressed yet
+     */
+    public double getCompressionRatio() {
+        long stored = compressedBytes.sum();
+        return stored == 0 ? 1 : (double) uncompressedBytes.sum() / stored;
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.messages.compression.messages", compressedMessages, LongAdder::sum)
+                .description("Messages stored with compressed content").register(registry);
+        FunctionCounter.builder("strife.messages.compression.bytes", uncompressedBytes, LongAdder::sum)
+                .tag("state", "uncompressed").baseUnit("bytes")
+                .description("Size of compressed content before compression").register(registry);
+        FunctionCounter.builder("strife.messages.compression.bytes", compressedBytes, LongAdder::sum)
+                .tag("state", "compressed").baseUnit("bytes")
+                .description("Size of compressed content as stored").register(registry);
+        Gauge.builder("strife.messages.compression.ratio", this, MessageContentCodec::getCompressionRatio)
+                .description("Original to stored size of compressed content").register(registry);
+        FunctionTimer.builder("strife.messages.compression.encode", this, codec -> codec.encodes.sum(),
+                codec -> codec.encodeNanos.sum(), TimeUnit.NANOSECONDS)
+                .description("Time spent compressing message content").register(registry);
+        FunctionTimer.builder("strife.messages.compression.decode", this, codec -> codec.decodes.sum(),
+                codec -> codec.decodeNanos.sum(), TimeUnit.NANOSECONDS)
+                .description("Time spent decompressing message content").register(registry);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished())
+                output.write(buffer, 0, deflater.deflate(buffer));
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] stored, int offset, int length) {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored, offset, stored.length - offset);
+            byte[] bytes = new byte[length];
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+
+                inflated += count;
+            }
+
+            if (inflated != length)
+                throw new IllegalStateException("Compressed message content is truncated");
+
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Compressed message content is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
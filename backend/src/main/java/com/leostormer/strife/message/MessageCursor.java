@@ -0,0 +1,68 @@
+package com.leostormer.strife.message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A position in a channel's history. Messages are totally ordered by
+ * <code>(timestamp, id)</code> so a cursor identifies an exact seek point even
+ * when several messages share the same millisecond timestamp.
+ */
+@Getter
+@AllArgsConstructor
+public class MessageCursor {
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Date timestamp;
+
+    private final ObjectId id;
+
+    public static MessageCursor from(Message message) {
+        return new MessageCursor(message.getTimestamp(), message.getId());
+    }
+
+    /**
+     * Encodes this cursor into an opaque string that can be handed to clients.
+     *
+     * @return the encoded cursor
+     */
+    public String encode() {
+        String raw = timestamp.getTime() + ":" + id.toHexString();
+        return ENCODER.encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a cursor previously produced by {@link #encode()}.
+     *
+     * @param cursor the encoded cursor
+     * @return the decoded cursor
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static MessageCursor decode(String cursor) {
+        String raw;
+        try {
+            raw = new String(DECODER.decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed message cursor", e);
+        }
+
+        int separator = raw.indexOf(':');
+        if (separator < 0 || !ObjectId.isValid(raw.substring(separator + 1)))
+            throw new IllegalArgumentException("Malformed message cursor");
+
+        try {
+            long millis = Long.parseLong(raw.substring(0, separator));
+            return new MessageCursor(new Date(millis), new ObjectId(raw.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed message cursor", e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.leostormer.strife.message;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Writes message history as newline delimited JSON, one {@link MessageView}
+ * per line.
+ */
+public class MessageExport {
+    private MessageExport() {
+    }
+
+    /**
+     * Creates a response body that writes the given batches as they are read
+     * from the database, flushing after every batch. The batches are closed
+     * once written, even if the client disconnects halfway.
+     *
+     * @param batches      the messages to write, from oldest to newest
+     * @param objectMapper the mapper used for the rest of the API
+     * @return the response body
+     */
+    public static StreamingResponseBody toNdjson(Stream<List<Message>> batches, ObjectMapper objectMapper) {
+        ObjectWriter writer = objectMapper.writerFor(MessageView.class);
+        return outputStream -> {
+            try (batches) {
+                for (Iterator<List<Message>> iterator = batches.iterator(); iterator.hasNext();) {
+                    for (Message message : iterator.next()) {
+                        outputStream.write(writer.writeValueAsBytes(new MessageView(message)));
+                        outputStream.write('\n');
+                    }
+
+                    outputStream.flush();
+                }
+            }
+        };
+    }
+}
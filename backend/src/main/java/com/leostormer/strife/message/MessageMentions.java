@@ -0,0 +1,89 @@
+package com.leostormer.strife.message;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Finds the users and roles mentioned in message content. A user mention is
+ * written as <code>&lt;@userId&gt;</code> and a role mention as
+ * <code>&lt;@&amp;roleId&gt;</code>, with ids in hexadecimal.
+ * <code>@everyone</code> mentions every member who can see the channel.
+ */
+public class MessageMentions {
+    public static final String EVERYONE = "@everyone";
+
+    private static final Pattern MENTION = Pattern.compile("<@([0-9a-fA-F]{24})>");
+
+    private static final Pattern ROLE_MENTION = Pattern.compile("<@&([0-9a-fA-F]{24})>");
+
+    private MessageMentions() {
+    }
+
+    /**
+     * Returns the ids of all users mentioned in the given content, in order of
+     * their first mention.
+     *
+     * @param content the message content
+     * @return the mentioned users' ids
+     */
+    public static Set<ObjectId> parse(String content) {
+        return find(MENTION, content);
+    }
+
+    /**
+     * Returns the ids of all roles mentioned in the given content, in order of
+     * their first mention.
+     *
+     * @param content the message content
+     * @return the mentioned roles' ids
+     */
+    public static Set<ObjectId> parseRoles(String content) {
+        return find(ROLE_MENTION, content);
+    }
+
+    /**
+     * Returns whether the given content mentions everyone.
+     *
+     * @param content the message content
+     * @return whether <code>@everyone</code> is mentioned
+     */
+    public static boolean mentionsEveryone(String content) {
+        return content != null && content.contains(EVERYONE);
+    }
+
+    /**
+     * Formats a mention of the given user.
+     *
+     * @param userId the user's id
+     * @return the mention
+     */
+    public static String of(ObjectId userId) {
+        return "<@" + userId.toHexString() + ">";
+    }
+
+    /**
+     * Formats a mention of the given role.
+     *
+     * @param roleId the role's id
+     * @return the mention
+     */
+    public static String ofRole(ObjectId roleId) {
+        return "<@&" + roleId.toHexString() + ">";
+    }
+
+    private static Set<ObjectId> find(Pattern pattern, String content) {
+        Set<ObjectId> ids = new LinkedHashSet<>();
+        if (content == null || content.indexOf("<@") < 0)
+            return ids;
+
+        Matcher matcher = pattern.matcher(content);
+        while (matcher.find())
+            ids.add(new ObjectId(matcher.group(1)));
+
+        return ids;
+    }
+}
@@ -0,0 +1,47 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * A page of channel history sorted from oldest to newest, along with the
+ * cursors needed to continue scrolling in either direction.
+ */
+@Getter
+@AllArgsConstructor
+public class MessagePage {
+    private final List<Message> messages;
+
+    /**
+     * Cursor positioned at the oldest message of this page. Pass it with
+     * {@link MessageSearchDirection#DESCENDING} to load older messages. Is null
+     * if the page is empty.
+     */
+    private final String prevCursor;
+
+    /**
+     * Cursor positioned at the newest message of this page. Pass it with
+     * {@link MessageSearchDirection#ASCENDING} to load newer messages. Is null
+     * if the page is empty.
+     */
+    private final String nextCursor;
+
+    /**
+     * Builds a page from the given messages, sorting them from oldest to newest.
+     *
+     * @param messages the messages in the page
+     * @return the page
+     */
+    public static MessagePage of(List<Message> messages) {
+        messages = new ArrayList<>(messages);
+        messages.sort(Message.sortByTimestampAscending);
+        if (messages.isEmpty())
+            return new MessagePage(messages, null, null);
+
+        return new MessagePage(messages, MessageCursor.from(messages.get(0)).encode(),
+                MessageCursor.from(messages.get(messages.size() - 1)).encode());
+    }
+}
@@ -0,0 +1,18 @@
+package com.leostormer.strife.message;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class MessagePageView {
+    private List<MessageView> messages;
+    private String prevCursor;
+    private String nextCursor;
+
+    public MessagePageView(MessagePage page) {
+        this(page.getMessages().stream().map(MessageView::new).toList(), page.getPrevCursor(), page.getNextCursor());
+    }
+}
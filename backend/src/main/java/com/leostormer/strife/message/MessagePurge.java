@@ -0,0 +1,64 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * Selects the messages of a channel to delete in bulk. Every present filter
+ * must match, and at least one must be present.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class MessagePurge {
+    /**
+     * Only delete these messages, if present.
+     */
+    private List<ObjectId> messageIds;
+
+    /**
+     * Only delete messages sent by this user, if present.
+     */
+    private ObjectId senderId;
+
+    /**
+     * Only delete messages sent at or after this date, if present.
+     */
+    private Date after;
+
+    /**
+     * Only delete messages sent before this date, if present.
+     */
+    private Date before;
+
+    public boolean isEmpty() {
+        return (messageIds == null || messageIds.isEmpty()) && senderId == null && after == null && before == null;
+    }
+
+    /**
+     * Splits the message ids into chunks of at most the given size, or returns
+     * a single null chunk if no ids are given.
+     */
+    List<List<ObjectId>> messageIdChunks(int chunkSize) {
+        if (messageIds == null || messageIds.isEmpty())
+            return Collections.singletonList(null);
+
+        List<List<ObjectId>> chunks = new ArrayList<>();
+        for (int i = 0; i < messageIds.size(); i += chunkSize)
+            chunks.add(messageIds.subList(i, Math.min(messageIds.size(), i + chunkSize)));
+
+        return chunks;
+    }
+}
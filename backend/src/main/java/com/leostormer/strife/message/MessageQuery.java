@@ -0,0 +1,56 @@
+package com.leostormer.strife.message;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A full-text search over message content. Results are sorted from newest to
+ * oldest.
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class MessageQuery {
+    public static final int MAX_LIMIT = 100;
+
+    /**
+     * The words to search for. Matches messages containing any of them, using
+     * stemming. Quoted phrases must match exactly and words prefixed with
+     * <code>-</code> exclude messages containing them. When
+     * <code>app.messages.compression.enabled</code> is set, messages stored
+     * compressed by {@link MessageContentCodec} are not matched.
+     */
+    private String text;
+
+    /**
+     * Only match messages sent by this user, if present.
+     */
+    private ObjectId senderId;
+
+    /**
+     * Only match messages sent in this channel, if present.
+     */
+    private ObjectId channelId;
+
+    /**
+     * Only match messages sent at or after this date, if present.
+     */
+    private Date after;
+
+    /**
+     * Only match messages sent before this date, if present.
+     */
+    private Date before;
+
+    @Builder.Default
+    private int limit = 50;
+}
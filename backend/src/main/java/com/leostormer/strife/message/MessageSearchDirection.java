@@ -3,4 +3,9 @@ package com.leostormer.strife.message;
 public enum MessageSearchDirection {
     ASCENDING,
     DESCENDING,
+    /**
+     * Loads the message given by {@link MessageSearchOptions#getAnchorId()}
+     * along with up to <code>limit</code> messages on each side of it.
+     */
+    AROUND,
 }
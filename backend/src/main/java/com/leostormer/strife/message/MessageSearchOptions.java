@@ -2,6 +2,8 @@ package com.leostormer.strife.message;
 
 import java.util.Date;
 
+import org.bson.types.ObjectId;
+
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -23,6 +25,18 @@ public class MessageSearchOptions {
     @Builder.Default
     private MessageSearchDirection searchDirection = MessageSearchDirection.ASCENDING;
 
+    /**
+     * An opaque {@link MessageCursor} to seek from. Takes precedence over the
+     * timestamp when present.
+     */
+    private String cursor;
+
+    /**
+     * The id of the message to load the surroundings of. Only used with
+     * {@link MessageSearchDirection#AROUND}.
+     */
+    private String anchorId;
+
     public static MessageSearchOptions latest() {
         return MessageSearchOptions.builder().searchDirection(MessageSearchDirection.DESCENDING)
                 .timestamp(new Date()).build();
@@ -31,4 +45,9 @@ public class MessageSearchOptions {
     public static MessageSearchOptions earliest() {
         return MessageSearchOptions.builder().build();
     }
+
+    public static MessageSearchOptions around(ObjectId anchorId, int limit) {
+        return MessageSearchOptions.builder().searchDirection(MessageSearchDirection.AROUND)
+                .anchorId(anchorId.toHexString()).limit(limit).build();
+    }
 }
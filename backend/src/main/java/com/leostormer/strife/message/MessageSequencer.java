@@ -0,0 +1,179 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationOperation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.readstate.ChannelCounter;
+import com.leostormer.strife.readstate.ChannelCounter.SkippedRange;
+
+/**
+ * Numbers the messages of each channel in the order they are sent, using the
+ * channel's {@link ChannelCounter}. A message's {@link Message#getSequence()
+ * sequence} is the number of messages sent in its channel up to and including
+ * it, so the number sent after it is the counter minus its sequence.
+ * <p>
+ * Numbers are reserved with one counter increment per channel for a whole
+ * batch of messages. A batch spanning several channels increments all their
+ * counters with one bulk write, each increment recording a reservation token
+ * with the last number it reserved, and reads the tokens back with one query.
+ * Numbers reserved for messages that then fail to be inserted are recorded as
+ * {@link #skip(List) skipped} so that they do not count as unread.
+ */
+@Component
+public class MessageSequencer {
+    /**
+     * How many reservations each counter remembers. Every node reads its
+     * reservation back right after making it, so only more concurrent
+     * reservations of one channel than this could overtake it.
+     */
+    static final int MAX_RESERVATIONS = 32;
+
+    /**
+     * How many skipped ranges each counter remembers.
+     */
+    static final int MAX_SKIPPED = 50;
+
+    private final MongoTemplate mongoTemplate;
+
+    public MessageSequencer(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Assigns the next sequence numbers of their channels to messages about to
+     * be inserted.
+     *
+     * @param messages the messages, which may belong to different channels
+     */
+    public void assign(List<Message> messages) {
+        Map<ObjectId, List<Message>> byChannel = messages.stream().sorted(Message.sortByTimestampAscending)
+                .collect(Collectors.groupingBy(Message::getChannelId, LinkedHashMap::new, Collectors.toList()));
+        Map<ObjectId, Long> lastReserved;
+        if (byChannel.size() == 1) {
+            Map.Entry<ObjectId, List<Message>> only = byChannel.entrySet().iterator().next();
+            lastReserved = Map.of(only.getKey(), reserve(only.getKey(), only.getValue().size()));
+        } else {
+            Map<ObjectId, Integer> counts = new HashMap<>();
+            byChannel.forEach((channelId, channelMessages) -> counts.put(channelId, channelMessages.size()));
+            lastReserved = reserveAll(counts);
+        }
+
+        byChannel.forEach((channelId, channelMessages) -> {
+            long sequence = lastReserved.get(channelId) - channelMessages.size();
+            for (Message message : channelMessages)
+                message.setSequence(++sequence);
+        });
+    }
+
+    /**
+     * Reserves the next sequence numbers of a channel.
+     *
+     * @param channelId the channel's id
+     * @param count     how many numbers to reserve
+     * @return the last reserved number
+     */
+    @SuppressWarnings("null")
+    public long reserve(ObjectId channelId, int count) {
+        Query query = new Query(Criteria.where("_id").is(channelId));
+        query.fields().include("messages");
+        return mongoTemplate.findAndModify(query, new Update().inc("messages", count),
+                FindAndModifyOptions.options().upsert(true).returnNew(true), ChannelCounter.class).getMessages();
+    }
+
+    /**
+     * Records the sequence numbers of messages that were numbered but never
+     * stored, so that they are left out of unread counts.
+     *
+     * @param messages the messages that failed to be inserted
+     */
+    public void skip(List<Message> messages) {
+        Map<ObjectId, List<SkippedRange>> rangesByChannel = new LinkedHashMap<>();
+        messages.stream().sorted((a, b) -> Long.compare(a.getSequence(), b.getSequence())).forEach(message -> {
+            List<SkippedRange> ranges = rangesByChannel.computeIfAbsent(message.getChannelId(),
+                    channelId -> new ArrayList<>());
+            SkippedRange previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            if (previous != null && previous.last() + 1 == message.getSequence())
+                ranges.set(ranges.size() - 1, new SkippedRange(previous.first(), message.getSequence()));
+            else
+                ranges.add(new SkippedRange(message.getSequence(), message.getSequence()));
+        });
+        skipRanges(rangesByChannel);
+    }
+
+    private void skipRanges(Map<ObjectId, List<SkippedRange>> rangesByChannel) {
+        if (rangesByChannel.isEmpty())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChannelCounter.class);
+        rangesByChannel.forEach((channelId, ranges) -> bulkOps.updateOne(
+                new Query(Criteria.where("_id").is(channelId)),
+                new Update().push("skipped").slice(-MAX_SKIPPED).each(ranges.toArray())));
+        bulkOps.execute();
+    }
+
+    /**
+     * Reserves the next sequence numbers of several channels with one bulk
+     * write and one read. Numbers of channels whose reservation cannot be read
+     * back are recorded as skipped before failing.
+     *
+     * @param counts how many numbers to reserve, by channel id
+     * @return the last reserved number, by channel id
+     */
+    private Map<ObjectId, Long> reserveAll(Map<ObjectId, Integer> counts) {
+        ObjectId token = new ObjectId();
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ChannelCounter.class);
+        counts.forEach((channelId, count) -> bulkOps.upsert(new Query(Criteria.where("_id").is(channelId)),
+                reservation(token, count)));
+        bulkOps.execute();
+
+        Query query = new Query(Criteria.where("_id").in(counts.keySet()));
+        query.fields().elemMatch("reservations", Criteria.where("token").is(token));
+        Map<ObjectId, Long> lastReserved = new HashMap<>();
+        for (ChannelCounter counter : mongoTemplate.find(query, ChannelCounter.class))
+            if (counter.getReservations() != null && !counter.getReservations().isEmpty())
+                lastReserved.put(counter.getId(), counter.getReservations().get(0).last());
+
+        if (lastReserved.size() < counts.size()) {
+            Map<ObjectId, List<SkippedRange>> reserved = new HashMap<>();
+            lastReserved.forEach((channelId, last) -> reserved.put(channelId,
+                    List.of(new SkippedRange(last - counts.get(channelId) + 1, last))));
+            skipRanges(reserved);
+            throw new IllegalStateException("Sequence numbers reserved by " + token + " were overtaken");
+        }
+
+        return lastReserved;
+    }
+
+    /**
+     * A pipeline update that increments the counter and then remembers the
+     * incremented value under the given token, dropping the oldest
+     * reservations.
+     */
+    private static AggregationUpdate reservation(ObjectId token, int count) {
+        AggregationOperation increment = context -> new Document("$set", new Document("messages",
+                new Document("$add", List.of(new Document("$ifNull", List.of("$messages", 0L)), (long) count))));
+        AggregationOperation remember = context -> new Document("$set", new Document("reservations",
+                new Document("$concatArrays", List.of(
+                        new Document("$slice",
+                                List.of(new Document("$ifNull", List.of("$reservations", List.of())),
+                                        -(MAX_RESERVATIONS - 1))),
+                        List.of(new Document("token", token).append("last", "$messages"))))));
+        return AggregationUpdate.from(List.of(increment, remember));
+    }
+}
@@ -0,0 +1,615 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import com.leostormer.strife.cache.StampedLruCache;
+import com.leostormer.strife.channel.Channel;
+import com.leostormer.strife.user.User;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Keeps the newest messages of recently read channels in memory so that the
+ * "open a channel and show the latest page" read does not have to touch the
+ * messages collection.
+ * <p>
+ * Every cached channel holds a contiguous suffix of its history, at most
+ * <code>app.messages.tail-cache.messages-per-channel</code> messages long.
+ * Channels are evicted least recently used first once the estimated size of
+ * all cached messages exceeds <code>app.messages.tail-cache.max-bytes</code>.
+ * <p>
+ * Only snapshots of the message fields are kept, never the referenced channel
+ * document. Senders are kept as snapshots of the fields shown with a message,
+ * so serving a tail does not query users; a tail is dropped when the details
+ * of one of its senders change. Writes made through {@link org.springframework.data.mongodb.core.MongoTemplate}
+ * are picked up from the mapping events it publishes; writes that do not
+ * publish events (such as find-and-modify) must notify the cache explicitly.
+ */
+@Component
+public class MessageTailCache extends AbstractMongoEventListener<Message> implements MeterBinder {
+    /**
+     * Rough per-message overhead of a snapshot: object headers, the ids, the
+     * date and the map entries pointing at it.
+     */
+    private static final long MESSAGE_OVERHEAD_BYTES = 160;
+
+    /**
+     * Rough overhead of a sender snapshot: the user object, its id and date
+     * and the map entry pointing at it.
+     */
+    private static final long SENDER_OVERHEAD_BYTES = 200;
+
+    /**
+     * How far in the past the timestamp of a read may be for it to still count
+     * as a read of the channel's tail and populate the cache on a miss.
+     */
+    private static final long TAIL_READ_WINDOW_MILLIS = 60_000;
+
+    private static final Comparator<CachedMessage> ORDER = Comparator.comparing(CachedMessage::getTimestamp)
+            .thenComparing(CachedMessage::getId);
+
+    @Getter
+    private final boolean enabled;
+
+    @Getter
+    private final int messagesPerChannel;
+
+    /**
+     * Cached tails weighed by their estimated size. Tails are only read and
+     * changed while holding this cache's lock.
+     */
+    private final StampedLruCache<ObjectId, Tail> tails;
+
+    private final Map<ObjectId, ObjectId> channelIdsByMessageId = new HashMap<>();
+
+    private long hits;
+
+    private long misses;
+
+    public MessageTailCache(@Value("${app.messages.tail-cache.enabled:true}") boolean enabled,
+            @Value("${app.messages.tail-cache.messages-per-channel:100}") int messagesPerChannel,
+            @Value("${app.messages.tail-cache.max-bytes:64MB}") DataSize maxBytes) {
+        this.enabled = enabled && messagesPerChannel > 0;
+        this.messagesPerChannel = messagesPerChannel;
+        this.tails = StampedLruCache.ofMaxWeight(maxBytes.toBytes(), tail -> tail.bytes,
+                new StampedLruCache.Listener<>() {
+                    @Override
+                    public void onAdded(ObjectId channelId, Tail tail) {
+                        tail.messages.forEach(message -> channelIdsByMessageId.put(message.getId(), channelId));
+                    }
+
+                    @Override
+                    public void onRemoved(ObjectId channelId, Tail tail) {
+                        tail.messages.forEach(message -> channelIdsByMessageId.remove(message.getId()));
+                    }
+                });
+    }
+
+    /**
+     * Checks if a read with the given timestamp is a read of the newest
+     * messages of a channel.
+     *
+     * @param timestamp the timestamp messages are searched before
+     * @return if a miss for this read should populate the cache
+     */
+    public boolean isTailRead(Date timestamp) {
+        return enabled && timestamp.getTime() >= System.currentTimeMillis() - TAIL_READ_WINDOW_MILLIS;
+    }
+
+    /**
+     * Returns the current write stamp of a channel. Must be read before
+     * querying the messages that are later passed to
+     * {@link #populate(ObjectId, List, boolean, long)}.
+     *
+     * @param channelId the channel's id
+     * @return the write stamp
+     */
+    public long writeStamp(ObjectId channelId) {
+        return tails.stamp(channelId);
+    }
+
+    /**
+     * Returns the newest messages of a channel sent before the given timestamp,
+     * sorted from newest to oldest, if the cached tail covers them. Senders of
+     * the returned messages are copies of the cached snapshots, or only have
+     * their id set if the sender was not known when the message was cached.
+     *
+     * @param channelId the channel's id
+     * @param timestamp the timestamp messages are searched before
+     * @param limit     the maximum number of messages to return
+     * @return the messages, or an empty optional on a miss
+     */
+    public synchronized Optional<List<Message>> getLatest(ObjectId channelId, Date timestamp, int limit) {
+        if (!enabled)
+            return Optional.empty();
+
+        Tail tail = tails.getIfPresent(channelId);
+        int end = tail == null ? 0 : tail.countBefore(timestamp);
+        if (tail == null || (end < limit && !tail.complete)) {
+            misses++;
+            return Optional.empty();
+        }
+
+        hits++;
+        List<Message> messages = new ArrayList<>(Math.min(end, limit));
+        for (int i = end - 1; i >= 0 && messages.size() < limit; i--)
+            messages.add(tail.messages.get(i).toMessage(tail.channel, tail.senders));
+
+        return Optional.of(messages);
+    }
+
+    /**
+     * Caches the tail of a channel read from the database.
+     *
+     * @param channelId  the channel's id
+     * @param newestFirst the newest messages of the channel, sorted from newest
+     *                    to oldest, with their senders loaded
+     * @param complete   if the messages are the channel's entire history
+     * @param stamp      the write stamp read before querying the messages
+     */
+    public synchronized void populate(ObjectId channelId, List<Message> newestFirst, boolean complete, long stamp) {
+        if (!enabled || writeStamp(channelId) != stamp)
+            return;
+
+        Channel channel = newestFirst.isEmpty() ? null : newestFirst.get(0).getChannel();
+        Tail tail = new Tail(channel, complete && newestFirst.size() <= messagesPerChannel);
+        for (int i = Math.min(newestFirst.size(), messagesPerChannel) - 1; i >= 0; i--) {
+            CachedMessage message = CachedMessage.of(newestFirst.get(i));
+            tail.messages.add(message);
+            tail.bytes += message.getBytes();
+            tail.addSender(newestFirst.get(i).getSender());
+        }
+
+        tails.putIfUnchanged(channelId, tail, stamp);
+    }
+
+    /**
+     * Applies a new or modified message to the tail of its channel if cached.
+     *
+     * @param message the saved message
+     */
+    public void onSaved(Message message) {
+        ObjectId channelId = message.getChannelId();
+        if (!enabled || channelId == null)
+            return;
+
+        synchronized (this) {
+            tails.update(channelId, tail -> {
+                add(channelId, tail, message);
+                return tail;
+            });
+        }
+    }
+
+    /**
+     * Applies changes to the reaction counts of a message in the tail of its
+     * channel if cached.
+     *
+     * @param channelId the channel's id
+     * @param messageId the message's id
+     * @param deltas    the change of each emoji's count
+     */
+    public void onReactionsChanged(ObjectId channelId, ObjectId messageId, Map<String, Long> deltas) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            tails.update(channelId, tail -> {
+                tail.replace(messageId, message -> message.withReactionDeltas(deltas));
+                return tail;
+            });
+        }
+    }
+
+    /**
+     * Sets reaction counts of a message in the tail of its channel if cached,
+     * such as after another node applied reactions to it.
+     *
+     * @param messageId the message's id
+     * @param counts    the new count of each changed emoji
+     */
+    public void onReactionCountsSet(ObjectId messageId, Map<String, Long> counts) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            ObjectId channelId = channelIdsByMessageId.get(messageId);
+            if (channelId == null) {
+                tails.discardLoads();
+                return;
+            }
+
+            tails.update(channelId, tail -> {
+                tail.replace(messageId, message -> message.withReactionCounts(counts));
+                return tail;
+            });
+        }
+    }
+
+    /**
+     * Drops the tail of a message's channel after the message changed in a
+     * way that cannot be applied to the cached copy.
+     *
+     * @param messageId the message's id
+     */
+    public void onModified(ObjectId messageId) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            ObjectId channelId = channelIdsByMessageId.get(messageId);
+            if (channelId == null) {
+                tails.discardLoads();
+                return;
+            }
+
+            tails.invalidate(channelId);
+        }
+    }
+
+    /**
+     * Removes a message from the tail of its channel if cached.
+     *
+     * @param messageId the message's id
+     */
+    public void onRemoved(ObjectId messageId) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            ObjectId channelId = channelIdsByMessageId.get(messageId);
+            if (channelId == null) {
+                // The channel is unknown, so any populate running concurrently may be
+                // about to cache the removed message.
+                tails.discardLoads();
+                return;
+            }
+
+            tails.update(channelId, tail -> {
+                removeMessage(tail, messageId);
+                return tail;
+            });
+        }
+    }
+
+    /**
+     * Drops the cached tails holding a snapshot of a user whose details
+     * changed.
+     *
+     * @param userId the user's id
+     */
+    public void onSenderChanged(ObjectId userId) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            tails.invalidateIf((channelId, tail) -> tail.senders.containsKey(userId));
+        }
+    }
+
+    /**
+     * Drops the cached tails of the given channels.
+     *
+     * @param channelIds the channels' ids
+     */
+    public void invalidate(Collection<ObjectId> channelIds) {
+        if (!enabled)
+            return;
+
+        synchronized (this) {
+            channelIds.forEach(tails::invalidate);
+        }
+    }
+
+    /**
+     * Drops every cached tail.
+     */
+    public synchronized void clear() {
+        tails.invalidateAll();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public long getEvictionCount() {
+        return tails.getEvictionCount();
+    }
+
+    public int getChannelCount() {
+        return tails.size();
+    }
+
+    public long getSizeInBytes() {
+        return tails.getWeight();
+    }
+
+    @Override
+    public void onAfterSave(@NonNull AfterSaveEvent<Message> event) {
+        onSaved(event.getSource());
+    }
+
+    /**
+     * Translates the query of a delete into cache removals. Deletes by id and
+     * by channel are applied precisely, anything else drops the whole cache.
+     */
+    @Override
+    public void onAfterDelete(@NonNull AfterDeleteEvent<Message> event) {
+        Document query = event.getSource();
+        Object id = query.containsKey("_id") ? query.get("_id") : query.get("id");
+        if (query.size() == 1 && id != null) {
+            List<ObjectId> messageIds = objectIds(id);
+            if (messageIds != null) {
+                messageIds.forEach(this::onRemoved);
+                return;
+            }
+        }
+
+        if (query.size() == 1 && query.containsKey("channel")) {
+            List<ObjectId> channelIds = objectIds(query.get("channel"));
+            if (channelIds != null) {
+                invalidate(channelIds);
+                return;
+            }
+        }
+
+        clear();
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.messages.tail_cache.requests", this, MessageTailCache::getHitCount)
+                .tag("result", "hit").description("Channel tail reads served from memory").register(registry);
+        FunctionCounter.builder("strife.messages.tail_cache.requests", this, MessageTailCache::getMissCount)
+                .tag("result", "miss").description("Channel tail reads that had to query the database")
+                .register(registry);
+        FunctionCounter.builder("strife.messages.tail_cache.evictions", this, MessageTailCache::getEvictionCount)
+                .description("Channel tails evicted to stay within the memory budget").register(registry);
+        Gauge.builder("strife.messages.tail_cache.channels", this, MessageTailCache::getChannelCount)
+                .description("Number of channels with a cached tail").register(registry);
+        Gauge.builder("strife.messages.tail_cache.size", this, MessageTailCache::getSizeInBytes)
+                .baseUnit("bytes").description("Estimated size of all cached messages").register(registry);
+    }
+
+    /**
+     * Reads an id or an <code>$in</code> list of ids from a query value.
+     */
+    private static List<ObjectId> objectIds(Object value) {
+        if (value instanceof ObjectId id)
+            return List.of(id);
+
+        if (value instanceof Document document && document.size() == 1 && document.get("$in") instanceof Collection<?> ids) {
+            List<ObjectId> result = new ArrayList<>(ids.size());
+            for (Object element : ids) {
+                if (!(element instanceof ObjectId id))
+                    return null;
+
+                result.add(id);
+            }
+
+            return result;
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds a new or modified message to the cached tail of its channel.
+     */
+    private void add(ObjectId channelId, Tail tail, Message message) {
+        removeMessage(tail, message.getId());
+        CachedMessage cached = CachedMessage.of(message);
+        int index = tail.insertionIndex(cached);
+        // A message older than the cached suffix does not belong in it unless the
+        // whole history is cached.
+        if (index == 0 && !tail.complete && !tail.messages.isEmpty())
+            return;
+
+        if (tail.channel == null)
+            tail.channel = message.getChannel();
+
+        tail.messages.add(index, cached);
+        tail.bytes += cached.getBytes();
+        tail.addSender(message.getSender());
+        channelIdsByMessageId.put(cached.getId(), channelId);
+        while (tail.messages.size() > messagesPerChannel) {
+            removeMessage(tail, tail.messages.get(0).getId());
+            tail.complete = false;
+        }
+    }
+
+    private void removeMessage(Tail tail, ObjectId messageId) {
+        for (Iterator<CachedMessage> iterator = tail.messages.iterator(); iterator.hasNext();) {
+            CachedMessage message = iterator.next();
+            if (message.getId().equals(messageId)) {
+                iterator.remove();
+                tail.bytes -= message.getBytes();
+                channelIdsByMessageId.remove(messageId);
+                tail.removeSenderIfUnused(message.getSenderId());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the fields of a user that are shown with its messages.
+     */
+    private static User snapshot(User user) {
+        User snapshot = new User();
+        snapshot.setId(user.getId());
+        snapshot.setUsername(user.getUsername());
+        snapshot.setProfilePic(user.getProfilePic());
+        snapshot.setCreatedDate(user.getCreatedDate());
+        return snapshot;
+    }
+
+    private static long senderBytes(User sender) {
+        String profilePic = sender.getProfilePic();
+        return SENDER_OVERHEAD_BYTES + 2L * sender.getUsername().length()
+                + (profilePic == null ? 0 : 2L * profilePic.length());
+    }
+
+    private static class Tail {
+        /**
+         * The channel the messages were sent in. Only its id is ever read.
+         */
+        private Channel channel;
+
+        /**
+         * The cached messages sorted from oldest to newest.
+         */
+        private final List<CachedMessage> messages = new ArrayList<>();
+
+        /**
+         * Snapshots of the senders of the cached messages by id.
+         */
+        private final Map<ObjectId, User> senders = new HashMap<>();
+
+        /**
+         * Whether {@link #messages} is the channel's entire history rather than
+         * just its newest part.
+         */
+        private boolean complete;
+
+        private long bytes;
+
+        Tail(Channel channel, boolean complete) {
+            this.channel = channel;
+            this.complete = complete;
+        }
+
+        /**
+         * Keeps a snapshot of a message's sender unless it is only a reference.
+         */
+        void addSender(User sender) {
+            if (sender == null || sender instanceof LazyLoadingProxy || sender.getUsername() == null)
+                return;
+
+            User snapshot = snapshot(sender);
+            User previous = senders.put(sender.getId(), snapshot);
+            if (previous != null)
+                bytes -= senderBytes(previous);
+            bytes += senderBytes(snapshot);
+        }
+
+        void removeSenderIfUnused(ObjectId senderId) {
+            if (!senders.containsKey(senderId))
+                return;
+
+            for (CachedMessage message : messages)
+                if (senderId.equals(message.getSenderId()))
+                    return;
+
+            bytes -= senderBytes(senders.remove(senderId));
+        }
+
+        int countBefore(Date timestamp) {
+            int count = messages.size();
+            while (count > 0 && !messages.get(count - 1).getTimestamp().before(timestamp))
+                count--;
+
+            return count;
+        }
+
+        void replace(ObjectId messageId, UnaryOperator<CachedMessage> change) {
+            for (ListIterator<CachedMessage> iterator = messages.listIterator(); iterator.hasNext();) {
+                CachedMessage message = iterator.next();
+                if (message.getId().equals(messageId)) {
+                    iterator.set(change.apply(message));
+                    return;
+                }
+            }
+        }
+
+        int insertionIndex(CachedMessage message) {
+            int index = messages.size();
+            while (index > 0 && ORDER.compare(messages.get(index - 1), message) > 0)
+                index--;
+
+            return index;
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class CachedMessage {
+        private final ObjectId id;
+        private final String content;
+        private final Date timestamp;
+        private final ObjectId senderId;
+        private final Map<String, Long> reactions;
+        private final long sequence;
+        private final long bytes;
+
+        static CachedMessage of(Message message) {
+            String content = message.getContent();
+            long bytes = MESSAGE_OVERHEAD_BYTES + (content == null ? 0 : 2L * content.length());
+            Map<String, Long> reactions = message.getReactions() == null ? null : Map.copyOf(message.getReactions());
+            return new CachedMessage(message.getId(), content, message.getTimestamp(), message.getSenderId(),
+                    reactions, message.getSequence(), bytes);
+        }
+
+        /**
+         * Returns a copy with the given changes applied to its reaction counts.
+         * Reactions are small next to the content, so they are not counted
+         * towards the size estimate.
+         */
+        CachedMessage withReactionDeltas(Map<String, Long> deltas) {
+            Map<String, Long> updated = reactions == null ? new HashMap<>() : new HashMap<>(reactions);
+            deltas.forEach((emoji, delta) -> updated.merge(emoji, delta, Long::sum));
+            return new CachedMessage(id, content, timestamp, senderId, Map.copyOf(updated), sequence, bytes);
+        }
+
+        /**
+         * Returns a copy with the given emojis' counts replaced.
+         */
+        CachedMessage withReactionCounts(Map<String, Long> counts) {
+            Map<String, Long> updated = reactions == null ? new HashMap<>() : new HashMap<>(reactions);
+            updated.putAll(counts);
+            return new CachedMessage(id, content, timestamp, senderId, Map.copyOf(updated), sequence, bytes);
+        }
+
+        Message toMessage(Channel channel, Map<ObjectId, User> senders) {
+            User snapshot = senders.get(senderId);
+            User sender;
+            if (snapshot != null) {
+                sender = snapshot(snapshot);
+            } else {
+                sender = new User();
+                sender.setId(senderId);
+            }
+            return new Message(id, content, timestamp, sender, channel,
+                    reactions == null ? null : new HashMap<>(reactions), sequence);
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.leostormer.strife.message;
 
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.leostormer.strife.user.UserView;
 
@@ -16,8 +18,26 @@ public class MessageView {
     private UserView sender;
     private String channelId;
 
+    /**
+     * The number of reactions with each emoji. Emojis nobody reacts with
+     * anymore are left out.
+     */
+    private Map<String, Long> reactions;
+
     public MessageView(Message message) {
         this(message.getId().toString(), message.getContent(), message.getTimestamp(),
-                new UserView(message.getSender()), message.getChannel().getId().toHexString());
+                new UserView(message.getSender()), message.getChannelId().toHexString(),
+                reactionCounts(message.getReactions()));
+    }
+
+    private static Map<String, Long> reactionCounts(Map<String, Long> reactions) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if (reactions != null)
+            reactions.forEach((emoji, count) -> {
+                if (count > 0)
+                    counts.put(emoji, count);
+            });
+
+        return counts;
     }
 }
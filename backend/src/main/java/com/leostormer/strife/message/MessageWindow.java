@@ -0,0 +1,104 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Loads the messages around an anchor message for
+ * {@link MessageSearchDirection#AROUND}, as used when jumping to a linked or
+ * replied-to message.
+ * <p>
+ * Once the anchor is found, the older and newer halves are independent seeks
+ * from its cursor, so they run in parallel and the whole window costs about
+ * as much as a single page. At most <code>app.messages.window.threads</code>
+ * newer halves are loaded in the background at once. Beyond that, the caller
+ * loads both halves itself, one after the other, rather than queueing, as it
+ * always does when the setting is zero.
+ */
+@Component
+class MessageWindow implements DisposableBean {
+    private final ThreadPoolExecutor executor;
+
+    MessageWindow(@Value("${app.messages.window.threads:8}") int threads) {
+        this.executor = threads <= 0 ? null
+                : new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "message-window");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Returns the anchor message with up to <code>limit</code> messages on
+     * each side of it, from oldest to newest.
+     *
+     * @param repository    the repository to load each half from
+     * @param channelId     the channel's id
+     * @param searchOptions options holding the anchor's id and the limit
+     * @return the window, or an empty list if the anchor is not in the channel
+     * @throws IllegalArgumentException if the anchor's id is missing or malformed
+     */
+    List<Message> around(CustomMessageRepository repository, ObjectId channelId,
+            MessageSearchOptions searchOptions) {
+        String anchorId = searchOptions.getAnchorId();
+        if (anchorId == null || !ObjectId.isValid(anchorId))
+            throw new IllegalArgumentException("Missing or malformed anchor message id");
+
+        Optional<Message> anchor = repository.findMessageById(new ObjectId(anchorId))
+                .filter(message -> channelId.equals(message.getChannelId()));
+        if (anchor.isEmpty())
+            return new ArrayList<>();
+
+        String cursor = MessageCursor.from(anchor.get()).encode();
+        Supplier<List<Message>> loadNewer = () -> repository.getMessages(channelId,
+                half(MessageSearchDirection.ASCENDING, cursor, searchOptions));
+        CompletableFuture<List<Message>> newer = executor == null ? CompletableFuture.completedFuture(loadNewer.get())
+                : CompletableFuture.supplyAsync(loadNewer, executor);
+        List<Message> older = repository.getMessages(channelId,
+                half(MessageSearchDirection.DESCENDING, cursor, searchOptions));
+
+        List<Message> window = new ArrayList<>(older);
+        window.add(anchor.get());
+        try {
+            window.addAll(newer.join());
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+
+            throw e;
+        }
+
+        // The halves come with their senders loaded, so the anchor's sender is
+        // usually among them and need not be loaded on its own
+        window.stream().filter(message -> message != anchor.get())
+                .filter(message -> message.getSenderId().equals(anchor.get().getSenderId())).findAny()
+                .ifPresent(message -> anchor.get().setSender(message.getSender()));
+
+        window.sort(Message.sortByTimestampAscending);
+        return window;
+    }
+
+    private static MessageSearchOptions half(MessageSearchDirection direction, String cursor,
+            MessageSearchOptions searchOptions) {
+        return MessageSearchOptions.builder().searchDirection(direction).cursor(cursor)
+                .limit(searchOptions.getLimit()).build();
+    }
+}
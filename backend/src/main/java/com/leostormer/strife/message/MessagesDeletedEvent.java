@@ -0,0 +1,26 @@
+package com.leostormer.strife.message;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Broadcast to a channel's topic when messages are deleted from it, so
+ * clients can drop them without one event per message.
+ */
+@Getter
+@AllArgsConstructor
+public class MessagesDeletedEvent {
+    public static final String TYPE = "MESSAGES_DELETED";
+
+    private final String type;
+    private final String channelId;
+    private final List<String> messageIds;
+
+    public MessagesDeletedEvent(ObjectId channelId, List<ObjectId> messageIds) {
+        this(TYPE, channelId.toHexString(), messageIds.stream().map(ObjectId::toHexString).toList());
+    }
+}
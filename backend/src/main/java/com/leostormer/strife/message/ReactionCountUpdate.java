@@ -0,0 +1,15 @@
+package com.leostormer.strife.message;
+
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A change to the reaction counts of one message.
+ *
+ * @param channelId the id of the channel the message was sent in
+ * @param messageId the message's id
+ * @param deltas    the change of each emoji's count
+ */
+public record ReactionCountUpdate(ObjectId channelId, ObjectId messageId, Map<String, Long> deltas) {
+}
@@ -0,0 +1,41 @@
+package com.leostormer.strife.reaction;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Records that a user reacted to a message with an emoji. The unique index
+ * makes reacting idempotent: only the first of several identical reactions is
+ * counted on the message.
+ */
+@Document(collection = "reactions")
+@Data
+@NoArgsConstructor
+@CompoundIndex(name = "message_user_emoji_idx", def = "{'message': 1, 'user': 1, 'emoji': 1}", unique = true)
+public class Reaction {
+    @Id
+    private ObjectId id;
+
+    private ObjectId message;
+
+    private ObjectId user;
+
+    private String emoji;
+
+    @CreatedDate
+    private Date timestamp;
+
+    public Reaction(ObjectId message, ObjectId user, String emoji) {
+        this.message = message;
+        this.user = user;
+        this.emoji = emoji;
+    }
+}
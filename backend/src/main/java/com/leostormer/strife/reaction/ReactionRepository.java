@@ -0,0 +1,14 @@
+package com.leostormer.strife.reaction;
+
+import java.util.Collection;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ReactionRepository extends MongoRepository<Reaction, ObjectId> {
+    long deleteByMessageAndUserAndEmoji(ObjectId message, ObjectId user, String emoji);
+
+    long deleteAllByMessageIn(Collection<ObjectId> messages);
+}
@@ -0,0 +1,220 @@
+package com.leostormer.strife.reaction;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Service;
+
+import com.leostormer.strife.cluster.TopicBroadcaster;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.message.ReactionCountUpdate;
+
+/**
+ * Adds and removes reactions to messages.
+ * <p>
+ * Each reaction is recorded on its own so reacting twice has no effect, but
+ * the counts stored on messages are only updated every
+ * <code>app.messages.reactions.flush-interval</code>. Reactions to the same
+ * message within an interval are summed in memory and applied with one
+ * <code>$inc</code>, so a message receiving thousands of reactions a second
+ * costs a few writes a second, and subscribers get one event per channel per
+ * interval holding only the changes.
+ */
+@Service
+public class ReactionService implements DisposableBean {
+    public static final int MAX_EMOJI_LENGTH = 32;
+
+    public static final int MAX_EMOJIS_PER_MESSAGE = 20;
+
+    private final ReactionRepository reactionRepository;
+
+    private final MessageRepository messageRepository;
+
+    private final TopicBroadcaster topicBroadcaster;
+
+    private final Map<ObjectId, PendingReactions> pending = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "reaction-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ReactionService(ReactionRepository reactionRepository, MessageRepository messageRepository,
+            TopicBroadcaster topicBroadcaster,
+            @Value("${app.messages.reactions.flush-interval:250ms}") Duration flushInterval) {
+        this.reactionRepository = reactionRepository;
+        this.messageRepository = messageRepository;
+        this.topicBroadcaster = topicBroadcaster;
+        long intervalMillis = Math.max(1, flushInterval.toMillis());
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reacts to a message on behalf of a user.
+     *
+     * @param userId  the user's id
+     * @param message the message reacted to
+     * @param emoji   the emoji reacted with
+     * @param topic   the destination to announce the new count on, or null
+     * @return false if the user had already reacted with this emoji
+     * @throws IllegalArgumentException if the emoji is invalid or the message
+     *                                  already has too many different reactions
+     */
+    public boolean addReaction(ObjectId userId, Message message, String emoji, String topic) {
+        validateEmoji(emoji);
+        Map<String, Long> reactions = message.getReactions();
+        if (reactions != null && reactions.getOrDefault(emoji, 0L) <= 0
+                && reactions.values().stream().filter(count -> count > 0).count() >= MAX_EMOJIS_PER_MESSAGE)
+            throw new IllegalArgumentException("Message has too many different reactions");
+
+        try {
+            reactionRepository.insert(new Reaction(message.getId(), userId, emoji));
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+
+        record(message, emoji, 1, topic);
+        return true;
+    }
+
+    /**
+     * Removes a user's reaction to a message.
+     *
+     * @param userId  the user's id
+     * @param message the message reacted to
+     * @param emoji   the emoji reacted with
+     * @param topic   the destination to announce the new count on, or null
+     * @return false if the user had not reacted with this emoji
+     */
+    public boolean removeReaction(ObjectId userId, Message message, String emoji, String topic) {
+        if (reactionRepository.deleteByMessageAndUserAndEmoji(message.getId(), userId, emoji) == 0)
+            return false;
+
+        record(message, emoji, -1, topic);
+        return true;
+    }
+
+    /**
+     * Forgets the reactions to deleted messages.
+     *
+     * @param messageIds the deleted messages' ids
+     * @return the number of reactions deleted
+     */
+    public long onMessagesDeleted(Collection<ObjectId> messageIds) {
+        messageIds.forEach(pending::remove);
+        return reactionRepository.deleteAllByMessageIn(messageIds);
+    }
+
+    /**
+     * Applies all pending count changes and announces them. Changes that fail
+     * to be written are kept for the next flush.
+     */
+    public synchronized void flush() {
+        Map<ObjectId, PendingReactions> drained = new HashMap<>();
+        for (ObjectId messageId : pending.keySet()) {
+            PendingReactions reactions = pending.remove(messageId);
+            if (reactions != null)
+                drained.put(messageId, reactions);
+        }
+
+        List<ReactionCountUpdate> updates = new ArrayList<>();
+        drained.forEach((messageId, reactions) -> {
+            reactions.deltas.values().removeIf(delta -> delta == 0);
+            if (!reactions.deltas.isEmpty())
+                updates.add(new ReactionCountUpdate(reactions.channelId, messageId, reactions.deltas));
+        });
+        if (updates.isEmpty())
+            return;
+
+        try {
+            messageRepository.incrementReactionCounts(updates);
+        } catch (RuntimeException e) {
+            drained.forEach((messageId, reactions) -> reactions.deltas.forEach((emoji, delta) -> pending.compute(
+                    messageId, (id, current) -> merge(current, reactions.channelId, reactions.topic, emoji, delta))));
+            throw e;
+        }
+
+        // A channel's messages all share its topic, so one event per channel covers them
+        Map<ObjectId, String> topics = new HashMap<>();
+        Map<ObjectId, Map<String, Map<String, Long>>> deltasByChannel = new LinkedHashMap<>();
+        drained.forEach((messageId, reactions) -> {
+            if (reactions.topic == null || reactions.deltas.isEmpty())
+                return;
+
+            topics.put(reactions.channelId, reactions.topic);
+            deltasByChannel.computeIfAbsent(reactions.channelId, channelId -> new LinkedHashMap<>())
+                    .put(messageId.toHexString(), reactions.deltas);
+        });
+        deltasByChannel.forEach((channelId, deltas) -> topicBroadcaster.broadcast(topics.get(channelId),
+                new ReactionsUpdatedEvent(channelId.toHexString(), deltas)));
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Retried on the next flush
+        }
+    }
+
+    private void record(Message message, String emoji, long delta, String topic) {
+        pending.compute(message.getId(),
+                (messageId, current) -> merge(current, message.getChannelId(), topic, emoji, delta));
+    }
+
+    private static PendingReactions merge(PendingReactions current, ObjectId channelId, String topic, String emoji,
+            long delta) {
+        PendingReactions reactions = current != null ? current : new PendingReactions(channelId, topic);
+        reactions.deltas.merge(emoji, delta, Long::sum);
+        return reactions;
+    }
+
+    /**
+     * Emojis are stored as field names, so they must not contain dots or start
+     * with a dollar sign.
+     */
+    private static void validateEmoji(String emoji) {
+        if (emoji == null || emoji.isBlank() || emoji.length() > MAX_EMOJI_LENGTH || emoji.contains(".")
+                || emoji.startsWith("$"))
+            throw new IllegalArgumentException("Invalid emoji");
+    }
+
+    /**
+     * The count changes of one message since the last flush. Only modified
+     * within {@link ConcurrentHashMap#compute}, or after being removed from
+     * the pending map.
+     */
+    private static class PendingReactions {
+        private final ObjectId channelId;
+
+        private final String topic;
+
+        private final Map<String, Long> deltas = new HashMap<>();
+
+        PendingReactions(ObjectId channelId, String topic) {
+            this.channelId = channelId;
+            this.topic = topic;
+        }
+    }
+}
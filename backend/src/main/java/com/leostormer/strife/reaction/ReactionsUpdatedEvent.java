@@ -0,0 +1,29 @@
+package com.leostormer.strife.reaction;
+
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Broadcast to a channel's topic with the reaction count changes of its
+ * messages since the previous event. Clients add the deltas to the counts
+ * they already have.
+ */
+@Getter
+@AllArgsConstructor
+public class ReactionsUpdatedEvent {
+    public static final String TYPE = "REACTIONS_UPDATED";
+
+    private final String type;
+    private final String channelId;
+
+    /**
+     * The change of each emoji's count by message id.
+     */
+    private final Map<String, Map<String, Long>> deltas;
+
+    public ReactionsUpdatedEvent(String channelId, Map<String, Map<String, Long>> deltas) {
+        this(TYPE, channelId, deltas);
+    }
+}
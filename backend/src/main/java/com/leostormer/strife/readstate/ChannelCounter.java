@@ -0,0 +1,72 @@
+package com.leostormer.strife.readstate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The number of messages ever sent in a channel or conversation, incremented
+ * by {@link com.leostormer.strife.message.MessageSequencer} as messages are
+ * numbered. Only ever increases, so deleted messages may still count towards
+ * unread counts.
+ */
+@Document(collection = "channel_counters")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChannelCounter {
+    /**
+     * The id of the counted channel.
+     */
+    @Id
+    private ObjectId id;
+
+    private long messages;
+
+    /**
+     * Numbers that were reserved for messages that then failed to be stored,
+     * oldest first. Only the most recent ones are kept.
+     */
+    private List<SkippedRange> skipped = new ArrayList<>();
+
+    /**
+     * The most recent batch reservations, so that the sequencer can read back
+     * which numbers an increment gave it. Not loaded for counting.
+     */
+    private List<Reservation> reservations = new ArrayList<>();
+
+    /**
+     * Counts the messages numbered after the given sequence number, leaving
+     * out the numbers that were skipped.
+     *
+     * @param sequence the sequence number of the last message read
+     * @return the number of messages after it
+     */
+    public long countAfter(long sequence) {
+        long count = messages - sequence;
+        if (skipped != null)
+            for (SkippedRange range : skipped)
+                count -= Math.max(0, range.last() - Math.max(range.first() - 1, sequence));
+        return Math.max(0, count);
+    }
+
+    /**
+     * The inclusive range of numbers reserved for messages that were never
+     * stored.
+     */
+    public record SkippedRange(long first, long last) {
+    }
+
+    /**
+     * The last number reserved by one batch reservation.
+     */
+    public record Reservation(ObjectId token, long last) {
+    }
+}
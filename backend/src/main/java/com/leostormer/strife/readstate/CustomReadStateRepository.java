@@ -0,0 +1,60 @@
+package com.leostormer.strife.readstate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+public interface CustomReadStateRepository {
+    /**
+     * Identifies the read state of a user in a channel.
+     */
+    record Key(ObjectId userId, ObjectId channelId) {
+    }
+
+    /**
+     * A read acknowledgement to store.
+     */
+    record Acknowledgement(ObjectId messageId, long readCount) {
+    }
+
+    /**
+     * Adds to the mention counters of users with a single bulk write.
+     *
+     * @param increments the number of new mentions by user and channel
+     */
+    void incrementMentionCounts(Map<Key, Long> increments);
+
+    /**
+     * Stores read acknowledgements with a single bulk write. Acknowledging
+     * marks every mention received so far as read.
+     *
+     * @param acknowledgements the acknowledgements by user and channel
+     */
+    void saveAcknowledgements(Map<Key, Acknowledgement> acknowledgements);
+
+    /**
+     * Returns the message counters of the given channels.
+     *
+     * @param channelIds the channels' ids
+     * @return the counters by channel id. Channels without messages are missing
+     */
+    Map<ObjectId, ChannelCounter> getMessageCounters(Collection<ObjectId> channelIds);
+
+    /**
+     * Deletes the message counter of a deleted channel.
+     *
+     * @param channelId the channel's id
+     */
+    void deleteMessageCount(ObjectId channelId);
+
+    /**
+     * Returns the read states of a user in the given channels.
+     *
+     * @param userId     the user's id
+     * @param channelIds the channels' ids
+     * @return the read states that exist
+     */
+    List<ReadState> findAllByUserAndChannels(ObjectId userId, Collection<ObjectId> channelIds);
+}
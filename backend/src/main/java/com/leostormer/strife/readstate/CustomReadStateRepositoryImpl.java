@@ -0,0 +1,82 @@
+package com.leostormer.strife.readstate;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class CustomReadStateRepositoryImpl implements CustomReadStateRepository {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void incrementMentionCounts(Map<Key, Long> increments) {
+        if (increments.isEmpty())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ReadState.class);
+        increments.forEach((key, count) -> bulkOps.upsert(keyQuery(key), new Update().inc("mentions", count)));
+        bulkOps.execute();
+    }
+
+    @Override
+    public void saveAcknowledgements(Map<Key, Acknowledgement> acknowledgements) {
+        if (acknowledgements.isEmpty())
+            return;
+
+        BulkOperations bulkOps = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ReadState.class);
+        acknowledgements.forEach((key, acknowledgement) -> {
+            // A pipeline update, so the mentions received so far can be copied in the same write
+            AggregationUpdate update = AggregationUpdate.update()
+                    .set("lastReadMessageId").toValue(acknowledgement.messageId())
+                    .set("readCount").toValue(acknowledgement.readCount())
+                    .set("mentions").toValue(ConditionalOperators.ifNull("mentions").then(0L))
+                    .set("mentionsRead").toValue(ConditionalOperators.ifNull("mentions").then(0L));
+            bulkOps.upsert(keyQuery(key), update);
+        });
+        bulkOps.execute();
+    }
+
+    @Override
+    @SuppressWarnings("null")
+    public Map<ObjectId, ChannelCounter> getMessageCounters(Collection<ObjectId> channelIds) {
+        Map<ObjectId, ChannelCounter> counters = new HashMap<>();
+        if (channelIds.isEmpty())
+            return counters;
+
+        Query query = new Query(Criteria.where("_id").in(channelIds));
+        query.fields().exclude("reservations");
+        mongoTemplate.find(query, ChannelCounter.class).forEach(counter -> counters.put(counter.getId(), counter));
+        return counters;
+    }
+
+    @Override
+    public void deleteMessageCount(ObjectId channelId) {
+        mongoTemplate.remove(new Query(Criteria.where("_id").is(channelId)), ChannelCounter.class);
+    }
+
+    @Override
+    public List<ReadState> findAllByUserAndChannels(ObjectId userId, Collection<ObjectId> channelIds) {
+        if (channelIds.isEmpty())
+            return List.of();
+
+        return mongoTemplate.find(new Query(Criteria.where("user").is(userId).and("channel").in(channelIds)),
+                ReadState.class);
+    }
+
+    private static Query keyQuery(Key key) {
+        return new Query(Criteria.where("user").is(key.userId()).and("channel").is(key.channelId()));
+    }
+}
@@ -0,0 +1,52 @@
+package com.leostormer.strife.readstate;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * How far a user has read a channel or conversation.
+ * <p>
+ * Unread counts are derived by subtraction: the channel's
+ * {@link ChannelCounter} minus {@link #readCount}, and {@link #mentions}
+ * minus {@link #mentionsRead}. Neither requires counting messages.
+ */
+@Document(collection = "read_states")
+@Data
+@NoArgsConstructor
+@CompoundIndex(name = "user_channel_idx", def = "{'user': 1, 'channel': 1}", unique = true)
+public class ReadState {
+    @Id
+    private ObjectId id;
+
+    private ObjectId user;
+
+    @Indexed
+    private ObjectId channel;
+
+    /**
+     * The newest message the user has acknowledged reading.
+     */
+    private ObjectId lastReadMessageId;
+
+    /**
+     * The sequence number of {@link #lastReadMessageId}, which was the
+     * channel's message counter when it was sent.
+     */
+    private long readCount;
+
+    /**
+     * How many messages have mentioned the user in this channel.
+     */
+    private long mentions;
+
+    /**
+     * The value of {@link #mentions} when the user last acknowledged reading.
+     */
+    private long mentionsRead;
+}
@@ -0,0 +1,57 @@
+package com.leostormer.strife.readstate;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.leostormer.strife.conversation.ConversationService;
+import com.leostormer.strife.server.ServerService;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserService;
+
+import lombok.AllArgsConstructor;
+
+@RestController
+@RequestMapping("/api/unread")
+@AllArgsConstructor
+public class ReadStateController {
+    @Autowired
+    private final UserService userService;
+
+    @Autowired
+    private final ServerService serverService;
+
+    @Autowired
+    private final ConversationService conversationService;
+
+    @Autowired
+    private final ReadStateService readStateService;
+
+    // Get the unread counts of every visible server channel and joined conversation.
+    @GetMapping("")
+    public ResponseEntity<List<UnreadCountView>> getUnreadCounts(Principal principal) {
+        User user = userService.getUser(principal);
+        try {
+            Map<ObjectId, String> serverIds = new HashMap<>();
+            serverService.getVisibleChannels(user)
+                    .forEach(channel -> serverIds.put(channel.getId(), channel.getServerId().toHexString()));
+            List<ObjectId> channelIds = new ArrayList<>(serverIds.keySet());
+            conversationService.getConversations(user).forEach(conversation -> channelIds.add(conversation.getId()));
+
+            return ResponseEntity.ok(readStateService.getUnreadCounts(user.getId(), channelIds).stream()
+                    .map(unreadCount -> new UnreadCountView(unreadCount, serverIds.get(unreadCount.getChannelId())))
+                    .toList());
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.leostormer.strife.readstate;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ReadStateRepository extends MongoRepository<ReadState, ObjectId>, CustomReadStateRepository {
+}
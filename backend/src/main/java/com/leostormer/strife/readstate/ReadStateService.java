@@ -0,0 +1,190 @@
+package com.leostormer.strife.readstate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageMentions;
+import com.leostormer.strife.readstate.CustomReadStateRepository.Acknowledgement;
+import com.leostormer.strife.readstate.CustomReadStateRepository.Key;
+
+/**
+ * Tracks how far each user has read each channel and conversation.
+ * <p>
+ * Channel counters are kept by the message inserts, which number each
+ * channel's messages with one counter update per insert batch. Mentions and
+ * acknowledgements only update in-memory tallies, written every
+ * <code>app.read-state.flush-interval</code> with one bulk write per kind, so
+ * a client acknowledging every message it scrolls past only has its latest
+ * acknowledgement stored. The read count of an acknowledgement is the
+ * acknowledged message's sequence number, so storing it counts nothing.
+ */
+@Service
+public class ReadStateService implements DisposableBean {
+    private static final Comparator<Message> MESSAGE_ORDER = Comparator.comparing(Message::getTimestamp)
+            .thenComparing(Message::getId);
+
+    private final ReadStateRepository readStateRepository;
+
+    private final Map<Key, Long> pendingMentions = new ConcurrentHashMap<>();
+
+    private final Map<Key, Message> pendingAcknowledgements = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "read-state-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ReadStateService(ReadStateRepository readStateRepository,
+            @Value("${app.read-state.flush-interval:1s}") Duration flushInterval) {
+        this.readStateRepository = readStateRepository;
+        long intervalMillis = Math.max(1, flushInterval.toMillis());
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts a newly sent message towards the mention counts of every user it
+     * mentions other than its sender. The message already counts towards its
+     * channel's unread counts once it is inserted.
+     *
+     * @param message the sent message
+     */
+    public void onMessageSent(Message message) {
+        ObjectId channelId = message.getChannelId();
+        for (ObjectId userId : MessageMentions.parse(message.getContent())) {
+            if (!userId.equals(message.getSenderId()))
+                pendingMentions.merge(new Key(userId, channelId), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * Marks a message and everything before it in its channel as read by a
+     * user, along with all of the user's mentions in the channel. Only the
+     * newest of several acknowledgements made within one flush interval is
+     * stored.
+     *
+     * @param userId  the user's id
+     * @param message the newest message read
+     */
+    public void acknowledge(ObjectId userId, Message message) {
+        pendingAcknowledgements.merge(new Key(userId, message.getChannelId()), message,
+                (previous, next) -> MESSAGE_ORDER.compare(next, previous) >= 0 ? next : previous);
+    }
+
+    /**
+     * Forgets the pending mentions and acknowledgements in a deleted channel,
+     * so a later flush does not store them again, and deletes its message
+     * counter. Its stored read states are left for the caller to purge.
+     *
+     * @param channelId the deleted channel's id
+     */
+    public void onChannelDeleted(ObjectId channelId) {
+        pendingMentions.keySet().removeIf(key -> key.channelId().equals(channelId));
+        pendingAcknowledgements.keySet().removeIf(key -> key.channelId().equals(channelId));
+        readStateRepository.deleteMessageCount(channelId);
+    }
+
+    /**
+     * Returns a user's unread message and mention counts in the given channels.
+     * The user's mentions and acknowledgements that are yet to be flushed are
+     * applied to what is stored, so the user sees their own acknowledgements.
+     *
+     * @param userId     the user's id
+     * @param channelIds the channels' ids
+     * @return the unread counts in the order of the given channels
+     */
+    public List<UnreadCount> getUnreadCounts(ObjectId userId, Collection<ObjectId> channelIds) {
+        Map<ObjectId, ChannelCounter> counters = readStateRepository.getMessageCounters(channelIds);
+        Map<ObjectId, ReadState> readStates = new HashMap<>();
+        readStateRepository.findAllByUserAndChannels(userId, channelIds)
+                .forEach(readState -> readStates.put(readState.getChannel(), readState));
+
+        List<UnreadCount> unreadCounts = new ArrayList<>(channelIds.size());
+        for (ObjectId channelId : channelIds) {
+            Key key = new Key(userId, channelId);
+            ChannelCounter counter = counters.getOrDefault(channelId, new ChannelCounter());
+            Message acknowledged = pendingAcknowledgements.get(key);
+            if (acknowledged != null) {
+                // Flushing the acknowledgement marks every mention so far as read
+                unreadCounts.add(new UnreadCount(channelId, acknowledged.getId(),
+                        counter.countAfter(acknowledged.getSequence()), 0));
+                continue;
+            }
+
+            long pendingMentionCount = pendingMentions.getOrDefault(key, 0L);
+            ReadState readState = readStates.get(channelId);
+            if (readState == null) {
+                unreadCounts.add(new UnreadCount(channelId, null, counter.countAfter(0), pendingMentionCount));
+                continue;
+            }
+
+            unreadCounts.add(new UnreadCount(channelId, readState.getLastReadMessageId(),
+                    counter.countAfter(readState.getReadCount()),
+                    Math.max(0, readState.getMentions() + pendingMentionCount - readState.getMentionsRead())));
+        }
+
+        return unreadCounts;
+    }
+
+    /**
+     * Writes all pending mention increments and acknowledgements. Increments
+     * that fail to be written are kept for the next flush; acknowledgements
+     * are dropped as the client will acknowledge again.
+     */
+    public synchronized void flush() {
+        Map<Key, Long> mentions = drain(pendingMentions);
+        try {
+            readStateRepository.incrementMentionCounts(mentions);
+        } catch (RuntimeException e) {
+            mentions.forEach((key, count) -> pendingMentions.merge(key, count, Long::sum));
+            throw e;
+        }
+
+        // Messages stored before they were numbered have a sequence of zero and
+        // precede every numbered message, so every numbered message is unread
+        Map<Key, Acknowledgement> acknowledgements = new HashMap<>();
+        drain(pendingAcknowledgements).forEach((key, message) -> acknowledgements.put(key,
+                new Acknowledgement(message.getId(), message.getSequence())));
+        readStateRepository.saveAcknowledgements(acknowledgements);
+    }
+
+    @Override
+    public void destroy() {
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // Increments are retried on the next flush
+        }
+    }
+
+    private static <K, V> Map<K, V> drain(Map<K, V> pending) {
+        Map<K, V> drained = new HashMap<>();
+        for (K key : pending.keySet()) {
+            V value = pending.remove(key);
+            if (value != null)
+                drained.put(key, value);
+        }
+
+        return drained;
+    }
+}
@@ -0,0 +1,25 @@
+package com.leostormer.strife.readstate;
+
+import org.bson.types.ObjectId;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The unread state of one channel or conversation for a user.
+ */
+@Getter
+@AllArgsConstructor
+public class UnreadCount {
+    private final ObjectId channelId;
+
+    /**
+     * The newest message the user has acknowledged reading. Is null if the
+     * user never acknowledged any.
+     */
+    private final ObjectId lastReadMessageId;
+
+    private final long unreadMessages;
+
+    private final long unreadMentions;
+}
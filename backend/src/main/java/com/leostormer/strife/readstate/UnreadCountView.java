@@ -0,0 +1,27 @@
+package com.leostormer.strife.readstate;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class UnreadCountView {
+    private String channelId;
+
+    /**
+     * The id of the server the channel is in. Is null for conversations.
+     */
+    private String serverId;
+
+    private String lastReadMessageId;
+
+    private long unreadMessages;
+
+    private long unreadMentions;
+
+    public UnreadCountView(UnreadCount unreadCount, String serverId) {
+        this(unreadCount.getChannelId().toHexString(), serverId,
+                unreadCount.getLastReadMessageId() == null ? null : unreadCount.getLastReadMessageId().toHexString(),
+                unreadCount.getUnreadMessages(), unreadCount.getUnreadMentions());
+    }
+}
@@ -1,13 +1,24 @@
 package com.leostormer.strife.server;
 
 import java.util.Map;
+import java.util.Optional;
 
 import org.bson.types.ObjectId;
 
 import com.leostormer.strife.server.role.Role;
+import com.leostormer.strife.server.server_channel.ServerChannels;
 import com.mongodb.lang.Nullable;
 
 public interface CustomServerRepository {
     public Server updateRoles(ObjectId serverId, Map<ObjectId, Role> roles);
     public Server updateServerDetails(ObjectId serverId, @Nullable String name, @Nullable String description);
+
+    /**
+     * Returns all channels of a server and the ids of its roles, checking
+     * that the server exists in the same round trip.
+     *
+     * @param serverId the server's id
+     * @return the channels and roles, or empty if the server does not exist
+     */
+    public Optional<ServerChannels> findChannelsAndRolesOfServer(ObjectId serverId);
 }
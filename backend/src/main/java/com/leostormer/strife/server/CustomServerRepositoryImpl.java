@@ -1,11 +1,17 @@
 package com.leostormer.strife.server;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
@@ -13,6 +19,8 @@ import org.springframework.stereotype.Repository;
 
 import com.leostormer.strife.member.MemberRepository;
 import com.leostormer.strife.server.role.Role;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+import com.leostormer.strife.server.server_channel.ServerChannels;
 
 @Repository
 public class CustomServerRepositoryImpl implements CustomServerRepository {
@@ -45,4 +53,24 @@ public class CustomServerRepositoryImpl implements CustomServerRepository {
         return mongoTemplate.update(Server.class).matching(query).apply(update)
                 .withOptions(FindAndModifyOptions.options().returnNew(true)).findAndModifyValue();
     }
+
+    @Override
+    public Optional<ServerChannels> findChannelsAndRolesOfServer(ObjectId serverId) {
+        Aggregation aggregation = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("_id").is(serverId)),
+                Aggregation.lookup("channels", "_id", "server", "channels"),
+                Aggregation.project("channels", "roles"));
+        Document result = mongoTemplate.aggregate(aggregation, Server.class, Document.class)
+                .getUniqueMappedResult();
+        if (result == null)
+            return Optional.empty();
+
+        List<ServerChannel> channels = result.getList("channels", Document.class).stream()
+                .map(channel -> mongoTemplate.getConverter().read(ServerChannel.class, channel)).toList();
+        // Role ids are stored as the keys of the roles document
+        Document roles = result.get("roles", Document.class);
+        Set<ObjectId> roleIds = roles == null ? Set.of()
+                : roles.keySet().stream().map(ObjectId::new).collect(Collectors.toSet());
+        return Optional.of(new ServerChannels(channels, roleIds));
+    }
 }
@@ -0,0 +1,49 @@
+package com.leostormer.strife.server;
+
+import static com.leostormer.strife.server.ServerExceptionMessage.*;
+
+import org.bson.types.ObjectId;
+
+import com.leostormer.strife.exceptions.ResourceNotFoundException;
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.server.server_channel.ChannelPermissionMatrix;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+
+/**
+ * What an operation in a server needs to know about the user performing it:
+ * their membership and the server's roles and channels with their permission
+ * overwrites. Loaded once at the start of the operation, from memory when the
+ * server and member were used recently.
+ *
+ * @param serverId the server's id
+ * @param member   the user's membership, never banned
+ * @param channels the server's channels and roles
+ * @see com.leostormer.strife.server.server_channel.ChannelManager#getServerContext
+ */
+public record ServerContext(ObjectId serverId, Member member, ChannelPermissionMatrix channels) {
+    /**
+     * Returns a channel of the server.
+     *
+     * @throws ResourceNotFoundException if the channel is not in the server
+     */
+    public ServerChannel getChannel(ObjectId channelId) {
+        return channels.getChannel(channelId).orElseThrow(() -> new ResourceNotFoundException(CHANNEL_NOT_FOUND));
+    }
+
+    /**
+     * Returns the member's effective permissions in a channel.
+     */
+    public long getPermissions(ObjectId channelId) {
+        return channels.getPermissions(channelId, member);
+    }
+
+    /**
+     * Returns whether the member has all the given permissions in a channel.
+     *
+     * @throws ResourceNotFoundException if the channel is not in the server
+     */
+    public boolean hasAllPermissions(ObjectId channelId, PermissionType... permissionTypes) {
+        getChannel(channelId);
+        return Permissions.hasAllPermissions(getPermissions(channelId), permissionTypes);
+    }
+}
@@ -1,25 +1,37 @@
 package com.leostormer.strife.server;
 
 import java.security.Principal;
+import java.util.Date;
 import java.util.List;
 
 import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.leostormer.strife.cluster.TopicBroadcaster;
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
 import com.leostormer.strife.member.MemberRoleUpdateOperation;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageExport;
+import com.leostormer.strife.message.MessagePageView;
+import com.leostormer.strife.message.MessagePurge;
+import com.leostormer.strife.message.MessagesDeletedEvent;
+import com.leostormer.strife.message.MessageQuery;
 import com.leostormer.strife.message.MessageSearchOptions;
 import com.leostormer.strife.message.MessageView;
 import com.leostormer.strife.server.invite.InviteView;
+import com.leostormer.strife.server.recompute.RoleRecomputeJobView;
 import com.leostormer.strife.server.role.RoleUpdateOperation;
 import com.leostormer.strife.server.server_channel.ChannelUpdateOperation;
 import com.leostormer.strife.server.server_channel.ChannelView;
@@ -45,17 +57,18 @@ public class ServerController {
     private final UserService userService;
 
     @Autowired
-    private final SimpMessagingTemplate messagingTemplate;
+    private final TopicBroadcaster topicBroadcaster;
+
+    @Autowired
+    private final ObjectMapper objectMapper;
 
-    @SuppressWarnings("null")
     private void notifyServerAdded(Principal principal, ServerView serverView) {
-        messagingTemplate.convertAndSendToUser(principal.getName(), "/queue/server-updates",
+        topicBroadcaster.sendToUser(principal.getName(), "/queue/server-updates",
                 ServerUpdateMessage.serverAdded(serverView));
     }
 
-    @SuppressWarnings("null")
     private void notifyServerRemoved(Principal principal, ObjectId serverId) {
-        messagingTemplate.convertAndSendToUser(principal.getName(), "/queue/server-updates",
+        topicBroadcaster.sendToUser(principal.getName(), "/queue/server-updates",
                 ServerUpdateMessage.serverRemoved(serverId.toHexString()));
     }
 
@@ -220,6 +233,23 @@ public class ServerController {
         }
     }
 
+    @GetMapping("/{serverId}/roles/recompute")
+    public ResponseEntity<RoleRecomputeJobView> getRoleRecomputeJob(Principal principal,
+            @PathVariable ObjectId serverId) {
+        User user = userService.getUser(principal);
+        try {
+            return serverService.getRoleRecomputeJob(user, serverId)
+                    .map(job -> ResponseEntity.ok().body(new RoleRecomputeJobView(job)))
+                    .orElseGet(() -> ResponseEntity.noContent().build());
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     @PostMapping("/{serverId}/join")
     public ResponseEntity<String> joinServer(Principal principal, @PathVariable ObjectId serverId) {
         User user = userService.getUser(principal);
@@ -355,13 +385,55 @@ public class ServerController {
     }
 
     @PostMapping("/{serverId}/get-messages")
-    public ResponseEntity<List<MessageView>> getMessages(Principal principal, @PathVariable ObjectId serverId,
+    public ResponseEntity<MessagePageView> getMessages(Principal principal, @PathVariable ObjectId serverId,
             @RequestParam ObjectId channelId, @RequestBody(required = false) MessageSearchOptions searchOptions) {
         User user = userService.getUser(principal);
         searchOptions = searchOptions != null ? searchOptions : MessageSearchOptions.earliest();
         try {
-            return ResponseEntity.ok().body(serverService.getMessages(user, serverId, channelId, searchOptions).stream()
+            return ResponseEntity.ok()
+                    .body(new MessagePageView(serverService.getMessages(user, serverId, channelId, searchOptions)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/{serverId}/messages/search")
+    public ResponseEntity<List<MessageView>> searchMessages(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam String query, @RequestParam(required = false) ObjectId channelId,
+            @RequestParam(required = false) ObjectId senderId,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date after,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date before,
+            @RequestParam(defaultValue = "50") int limit) {
+        User user = userService.getUser(principal);
+        MessageQuery messageQuery = MessageQuery.builder().text(query).channelId(channelId).senderId(senderId)
+                .after(after).before(before).limit(limit).build();
+        try {
+            return ResponseEntity.ok().body(serverService.searchMessages(user, serverId, messageQuery).stream()
                     .map(MessageView::new).toList());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping(value = "/{serverId}/messages/export", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> exportMessages(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId) {
+        User user = userService.getUser(principal);
+        try {
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(
+                    MessageExport.toNdjson(serverService.streamMessages(user, serverId, channelId), objectMapper));
         } catch (UnauthorizedActionException e) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
         } catch (ResourceNotFoundException e) {
@@ -376,9 +448,11 @@ public class ServerController {
             @RequestParam ObjectId channelId, @RequestBody String content) {
         User user = userService.getUser(principal);
         try {
+            // Returns once the batch holding the message has been written, so the
+            // broadcast never announces a message that could still fail to save
             Message message = serverService.sendMessage(user, serverId, channelId, content);
             MessageView messageView = new MessageView(message);
-            messagingTemplate.convertAndSend("/topic/server/" + serverId + "/channel/" + channelId, messageView);
+            topicBroadcaster.messageSent(serverId, channelId, messageView);
             return ResponseEntity.ok().body(messageView);
         } catch (UnauthorizedActionException e) {
             return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
@@ -389,6 +463,22 @@ public class ServerController {
         }
     }
 
+    @PostMapping("/{serverId}/messages/ack")
+    public ResponseEntity<String> acknowledgeMessage(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            serverService.acknowledgeMessage(user, serverId, channelId, messageId);
+            return ResponseEntity.ok().body("Message acknowledged");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     @PutMapping("/{serverId}/messages")
     public ResponseEntity<MessageView> editMessage(Principal principal, @PathVariable ObjectId serverId,
             @RequestParam ObjectId messageId, @RequestBody String content) {
@@ -405,6 +495,118 @@ public class ServerController {
         }
     }
 
+    @PutMapping("/{serverId}/messages/reactions")
+    public ResponseEntity<String> addReaction(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam ObjectId messageId, @RequestParam String emoji) {
+        User user = userService.getUser(principal);
+        try {
+            serverService.addReaction(user, serverId, channelId, messageId, emoji);
+            return ResponseEntity.ok().body("Reaction added");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/{serverId}/messages/reactions")
+    public ResponseEntity<String> removeReaction(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam ObjectId messageId, @RequestParam String emoji) {
+        User user = userService.getUser(principal);
+        try {
+            serverService.removeReaction(user, serverId, channelId, messageId, emoji);
+            return ResponseEntity.ok().body("Reaction removed");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @GetMapping("/{serverId}/messages/pins")
+    public ResponseEntity<List<MessageView>> getPinnedMessages(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId) {
+        User user = userService.getUser(principal);
+        try {
+            return ResponseEntity.ok().body(serverService.getPinnedMessages(user, serverId, channelId).stream()
+                    .map(MessageView::new).toList());
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @PutMapping("/{serverId}/messages/pins")
+    public ResponseEntity<String> pinMessage(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            serverService.pinMessage(user, serverId, channelId, messageId);
+            return ResponseEntity.ok().body("Message pinned");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @DeleteMapping("/{serverId}/messages/pins")
+    public ResponseEntity<String> unpinMessage(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam ObjectId messageId) {
+        User user = userService.getUser(principal);
+        try {
+            serverService.unpinMessage(user, serverId, channelId, messageId);
+            return ResponseEntity.ok().body("Message unpinned");
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    @PostMapping("/{serverId}/messages/purge")
+    public ResponseEntity<Long> purgeMessages(Principal principal, @PathVariable ObjectId serverId,
+            @RequestParam ObjectId channelId, @RequestParam(required = false) ObjectId senderId,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date after,
+            @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) Date before,
+            @RequestBody(required = false) List<String> messageIds) {
+        User user = userService.getUser(principal);
+        try {
+            List<ObjectId> ids = messageIds == null ? null : messageIds.stream().map(ObjectId::new).toList();
+            MessagePurge purge = MessagePurge.builder().messageIds(ids).senderId(senderId).after(after).before(before)
+                    .build();
+            // One event per batch rather than per message keeps a purge of a raid from
+            // flooding every subscriber with thousands of frames
+            String destination = TopicBroadcaster.channelTopic(serverId, channelId);
+            long deleted = serverService.purgeMessages(user, serverId, channelId, purge, batch -> topicBroadcaster
+                    .broadcast(destination, new MessagesDeletedEvent(channelId, batch)));
+            return ResponseEntity.ok().body(deleted);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        } catch (UnauthorizedActionException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        } catch (ResourceNotFoundException e) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        } catch (Exception e) {
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
     @DeleteMapping("/{serverId}/messages")
     public ResponseEntity<String> deleteMessage(Principal principal, @PathVariable ObjectId serverId,
             @RequestParam ObjectId channelId, @RequestParam ObjectId messageId) {
@@ -7,26 +7,40 @@ import org.springframework.transaction.annotation.Transactional;
 
 import static com.leostormer.strife.server.ServerExceptionMessage.*;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 
+import com.leostormer.strife.channel.Channel;
 import com.leostormer.strife.channel.ChannelRepository;
+import com.leostormer.strife.cluster.TopicBroadcaster;
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
 import com.leostormer.strife.member.Member;
 import com.leostormer.strife.member.MemberRoleUpdateOperation;
 import com.leostormer.strife.member.MemberService;
+import com.leostormer.strife.mention.MentionService;
 import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessagePage;
+import com.leostormer.strife.message.MessagePurge;
+import com.leostormer.strife.message.MessageQuery;
 import com.leostormer.strife.message.MessageRepository;
 import com.leostormer.strife.message.MessageSearchOptions;
+import com.leostormer.strife.reaction.ReactionService;
+import com.leostormer.strife.readstate.ReadStateService;
+import com.leostormer.strife.server.deletion.DeletionJob;
+import com.leostormer.strife.server.deletion.DeletionJobService;
 import com.leostormer.strife.server.invite.InviteManager;
 import com.leostormer.strife.server.invite.InviteRepository;
 import com.leostormer.strife.server.role.Role;
 import com.leostormer.strife.server.role.RoleManager;
+import com.leostormer.strife.server.recompute.RoleRecomputeJobService;
 import com.leostormer.strife.server.server_channel.ChannelManager;
+import com.leostormer.strife.server.server_channel.ChannelPermissionCache;
 import com.leostormer.strife.server.server_channel.ServerChannel;
 import com.leostormer.strife.user.User;
 import com.mongodb.lang.Nullable;
@@ -51,6 +65,24 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
     @Autowired
     private final MemberService memberService;
 
+    @Autowired
+    private final DeletionJobService deletionJobService;
+
+    @Autowired
+    private final ReadStateService readStateService;
+
+    @Autowired
+    private final ReactionService reactionService;
+
+    @Autowired
+    private final MentionService mentionService;
+
+    @Autowired
+    private final ChannelPermissionCache channelPermissionCache;
+
+    @Autowired
+    private final RoleRecomputeJobService roleRecomputeJobService;
+
     @Override
     public long getPermissions(ServerChannel channel, Member member) {
         return (channel.isPublic() || member.isOwner()) ? member.getPermissions() : channel.getPermissions(member);
@@ -75,9 +107,7 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
 
     @SuppressWarnings("null")
     public void kickMember(User commandUser, ObjectId userToKickId, ObjectId serverId) {
-        if (!serverRepository.existsById(serverId)) {
-            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
-        }
+        requireServer(serverId);
 
         Member commandMember = memberService.getMember(commandUser.getId(), serverId)
                 .orElseThrow(() -> new UnauthorizedActionException(USER_NOT_MEMBER));
@@ -97,9 +127,7 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
 
     @SuppressWarnings("null")
     public void banMember(User commandUser, ObjectId userToBanId, ObjectId serverId, String banReason) {
-        if (!serverRepository.existsById(serverId)) {
-            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
-        }
+        requireServer(serverId);
 
         Member commandMember = memberService.getMember(commandUser.getId(), serverId)
                 .orElseThrow(() -> new UnauthorizedActionException(USER_NOT_MEMBER));
@@ -119,9 +147,7 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
 
     @SuppressWarnings("null")
     public void unbanMember(User commandUser, ObjectId bannedUserId, ObjectId serverId) {
-        if (!serverRepository.existsById(serverId)) {
-            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
-        }
+        requireServer(serverId);
 
         Member commandMember = memberService.getMember(commandUser.getId(), serverId)
                 .orElseThrow(() -> new UnauthorizedActionException(USER_NOT_MEMBER));
@@ -137,9 +163,7 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
 
     @SuppressWarnings("null")
     public void changeNickname(User commandUser, ObjectId userToChangeId, ObjectId serverId, String newName) {
-        if (!serverRepository.existsById(serverId)) {
-            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
-        }
+        requireServer(serverId);
 
         Member commandUsingMember = memberService.getMember(commandUser.getId(), serverId)
                 .orElseThrow(() -> new UnauthorizedActionException(USER_NOT_MEMBER));
@@ -308,61 +332,131 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
             throw new UnauthorizedActionException("User is not authorized to delete this server");
         }
 
-        ObjectId[] channelIds = channelRepository.findAllByServerId(serverId).stream().map(c -> c.getId())
-                .toArray(ObjectId[]::new);
-        removeChannel(owner, serverId, channelIds);
+        // Only the server and its channels are removed here. Their messages, members
+        // and invites can be arbitrarily many, so they are purged in the background
+        List<ObjectId> channelIds = channelRepository.findAllByServerId(serverId).stream().map(c -> c.getId())
+                .toList();
+        channelRepository.deleteAllByServer(serverId);
         serverRepository.deleteById(serverId);
+        deletionJobService.schedule(new DeletionJob(DeletionJob.Target.SERVER, serverId, channelIds));
     }
 
-    public List<Message> getMessages(User user, ObjectId serverId, ObjectId channelId,
-            MessageSearchOptions searchOptions) {
-        Member member = memberService.getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        if (member.isBanned())
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-
-        ServerChannel channel = getChannelInServer(serverId, channelId);
-
-        if (!Permissions.hasPermission(getPermissions(channel, member), PermissionType.VIEW_CHANNELS))
+    private ServerChannel getReadableChannel(User user, ObjectId serverId, ObjectId channelId,
+            PermissionType... permissionTypes) {
+        ServerContext context = getServerContext(user, serverId);
+        if (!context.hasAllPermissions(channelId, permissionTypes))
             throw new UnauthorizedActionException("User is not authorized to view messages in this channel");
 
-        List<Message> messages = messageRepository.getMessages(channelId, searchOptions);
-        messages.sort(Message.sortByTimestampAscending);
-        return messages;
+        return context.getChannel(channelId);
+    }
+
+    public MessagePage getMessages(User user, ObjectId serverId, ObjectId channelId,
+            MessageSearchOptions searchOptions) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS);
+        return MessagePage.of(messageRepository.getMessages(channelId, searchOptions));
     }
 
+    /**
+     * Searches message content in a server. Only channels the user may both
+     * view and read the history of are searched.
+     *
+     * @param user     the user searching
+     * @param serverId the server's id
+     * @param query    the search, optionally limited to one channel
+     * @return the matching messages from newest to oldest
+     */
     @SuppressWarnings("null")
-    public Message sendMessage(User user, ObjectId serverId, ObjectId channelId, String content) {
-        if (!serverRepository.existsById(serverId)) {
-            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
+    public List<Message> searchMessages(User user, ObjectId serverId, MessageQuery query) {
+        if (query.getText() == null || query.getText().isBlank())
+            throw new IllegalArgumentException("Search text must not be empty");
+
+        if (query.getChannelId() != null) {
+            getReadableChannel(user, serverId, query.getChannelId(), PermissionType.VIEW_CHANNELS,
+                    PermissionType.READ_MESSAGE_HISTORY);
+            return messageRepository.searchMessages(List.of(query.getChannelId()), query);
         }
 
-        Member member = memberService.getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        if (member.isBanned()) {
-            throw new UnauthorizedActionException(USER_IS_BANNED);
+        ServerContext context = getServerContext(user, serverId);
+        List<ServerChannel> channels = context.channels().getChannels();
+        long[] permissions = context.channels().getPermissions(context.member());
+        List<ObjectId> channelIds = new ArrayList<>();
+        for (int i = 0; i < permissions.length; i++) {
+            if (Permissions.hasAllPermissions(permissions[i], PermissionType.VIEW_CHANNELS,
+                    PermissionType.READ_MESSAGE_HISTORY))
+                channelIds.add(channels.get(i).getId());
         }
+        return messageRepository.searchMessages(channelIds, query);
+    }
 
-        ServerChannel channel = getChannelInServer(serverId, channelId);
-        if (!Permissions.hasPermission(getPermissions(channel, member), PermissionType.SEND_MESSAGES)) {
+    /**
+     * Streams the entire history of a channel from oldest to newest for export.
+     * Requires permission to both view the channel and read its history.
+     *
+     * @return a stream of message batches that must be closed
+     * @see MessageRepository#streamMessages(ObjectId)
+     */
+    public Stream<List<Message>> streamMessages(User user, ObjectId serverId, ObjectId channelId) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS,
+                PermissionType.READ_MESSAGE_HISTORY);
+        return messageRepository.streamMessages(channelId);
+    }
+
+    @SuppressWarnings("null")
+    public Message sendMessage(User user, ObjectId serverId, ObjectId channelId, String content) {
+        ServerContext context = getServerContext(user, serverId);
+        ServerChannel channel = context.getChannel(channelId);
+        long permissions = context.getPermissions(channelId);
+        if (!Permissions.hasPermission(permissions, PermissionType.SEND_MESSAGES)) {
             throw new UnauthorizedActionException("User is not authorized to send messages in this channel");
         }
 
-        return messageRepository.insertMessage(user, channel, content);
+        Message message = messageRepository.insertMessage(user, channel, content);
+        readStateService.onMessageSent(message);
+        mentionService.onServerMessageSent(message, serverId,
+                Permissions.hasPermission(permissions, PermissionType.MENTIONS), mentioned -> Permissions
+                        .hasPermission(context.channels().getPermissions(channelId, mentioned),
+                                PermissionType.VIEW_CHANNELS));
+        return message;
     }
 
-    @SuppressWarnings("null")
-    public Message editMessage(User user, ObjectId serverId, ObjectId messageId, String newContent) {
-        Member member = memberService.getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
+    /**
+     * Marks a message and everything before it in its channel as read.
+     *
+     * @param user      the user who read the message
+     * @param serverId  the server's id
+     * @param channelId the channel's id
+     * @param messageId the newest message read
+     */
+    public void acknowledgeMessage(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS);
+
+        readStateService.acknowledge(user.getId(), getMessageInChannel(channelId, messageId));
+    }
 
-        if (member.isBanned()) {
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-        }
+    /**
+     * Returns every channel the user may view across all servers they are a
+     * member of and not banned from. Servers used recently are served from
+     * memory. Memberships of deleted servers that are still being purged are
+     * skipped.
+     *
+     * @param user the user
+     * @return the visible channels
+     */
+    public List<ServerChannel> getVisibleChannels(User user) {
+        return memberService.getMembershipsByUserId(user.getId()).stream()
+                .filter(member -> !member.isBanned()
+                        && Permissions.hasPermission(member.getPermissions(), PermissionType.VIEW_CHANNELS))
+                .flatMap(member -> findPermissionMatrix(member.getServerId())
+                        .map(channels -> channels.getVisibleChannels(member).stream())
+                        .orElseGet(Stream::empty))
+                .toList();
+    }
 
-        Message message = messageRepository.findById(messageId)
+    @SuppressWarnings("null")
+    public Message editMessage(User user, ObjectId serverId, ObjectId messageId, String newContent) {
+        ServerContext context = getServerContext(user, serverId);
+        Message message = messageRepository.findMessageById(messageId)
+                .filter(found -> context.channels().getChannel(found.getChannelId()).isPresent())
                 .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
 
         if (!message.getSender().getId().equals(user.getId())) {
@@ -373,22 +467,131 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
     }
     @SuppressWarnings("null")
     public void deleteMessage(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId) {
-        Member member = memberService.getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
+        ServerContext context = getServerContext(user, serverId);
+        context.getChannel(channelId);
+        Message message = getMessageInChannel(channelId, messageId);
 
-        if (member.isBanned()) {
-            throw new UnauthorizedActionException(USER_IS_BANNED);
+        if (!(message.getSender().getId().equals(user.getId())
+                || Permissions.hasPermission(context.getPermissions(channelId), PermissionType.MANAGE_MESSAGES))) {
+            throw new UnauthorizedActionException("User is not authorized to delete this message");
         }
 
-        Message message = messageRepository.findById(messageId)
-                .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
+        messageRepository.deleteMessage(messageId);
+        if (channelRepository.unpinMessages(channelId, List.of(messageId)))
+            channelPermissionCache.onMessagesUnpinned(serverId, channelId, List.of(messageId));
+        reactionService.onMessagesDeleted(List.of(messageId));
+        mentionService.onMessagesDeleted(List.of(messageId));
+    }
 
-        if (!(message.getSender().getId().equals(user.getId())
-                || Permissions.hasPermission(member.getPermissions(), PermissionType.MANAGE_MESSAGES))) {
-            throw new UnauthorizedActionException("User is not authorized to delete this message");
+    /**
+     * Returns the messages pinned in a channel from most to least recently
+     * pinned.
+     */
+    public List<Message> getPinnedMessages(User user, ObjectId serverId, ObjectId channelId) {
+        ServerChannel channel = getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS);
+        return messageRepository.findMessagesInChannel(channelId, channel.getPinnedMessageIds());
+    }
+
+    /**
+     * Pins a message in its channel. Requires permission to pin messages in the
+     * channel.
+     *
+     * @return false if the message was already pinned
+     * @throws IllegalArgumentException if the channel already has the maximum
+     *                                  number of pins
+     */
+    public boolean pinMessage(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId) {
+        ServerChannel channel = getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS,
+                PermissionType.PIN_MESSAGES);
+        getMessageInChannel(channelId, messageId);
+
+        if (channelRepository.pinMessage(channelId, messageId)) {
+            channelPermissionCache.onMessagePinned(serverId, channelId, messageId);
+            return true;
         }
 
-        messageRepository.deleteById(messageId);
+        if (channel.getPinnedMessageIds().contains(messageId))
+            return false;
+
+        throw new IllegalArgumentException("Channel cannot have more than " + Channel.MAX_PINNED_MESSAGES + " pins");
+    }
+
+    /**
+     * Unpins a message from its channel. Requires permission to pin messages in
+     * the channel.
+     *
+     * @return false if the message was not pinned
+     */
+    public boolean unpinMessage(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS, PermissionType.PIN_MESSAGES);
+        if (!channelRepository.unpinMessages(channelId, List.of(messageId)))
+            return false;
+
+        channelPermissionCache.onMessagesUnpinned(serverId, channelId, List.of(messageId));
+        return true;
+    }
+
+    /**
+     * Reacts to a message with an emoji. Reacting again with the same emoji has
+     * no effect.
+     *
+     * @return false if the user had already reacted with this emoji
+     */
+    public boolean addReaction(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId, String emoji) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS, PermissionType.ADD_REACTIONS);
+        Message message = getMessageInChannel(channelId, messageId);
+        return reactionService.addReaction(user.getId(), message, emoji,
+                TopicBroadcaster.channelTopic(serverId, channelId));
+    }
+
+    /**
+     * Removes the user's reaction with an emoji from a message.
+     *
+     * @return false if the user had not reacted with this emoji
+     */
+    public boolean removeReaction(User user, ObjectId serverId, ObjectId channelId, ObjectId messageId,
+            String emoji) {
+        getReadableChannel(user, serverId, channelId, PermissionType.VIEW_CHANNELS);
+        Message message = getMessageInChannel(channelId, messageId);
+        return reactionService.removeReaction(user.getId(), message, emoji,
+                TopicBroadcaster.channelTopic(serverId, channelId));
+    }
+
+    @SuppressWarnings("null")
+    private Message getMessageInChannel(ObjectId channelId, ObjectId messageId) {
+        return messageRepository.findMessageById(messageId)
+                .filter(message -> channelId.equals(message.getChannelId()))
+                .orElseThrow(() -> new ResourceNotFoundException(MESSAGE_NOT_FOUND));
+    }
+
+    /**
+     * Deletes the messages of a channel selected by a purge, such as everything
+     * a raider sent in the last hour. Requires permission to manage messages in
+     * the channel.
+     *
+     * @param user      the moderator purging
+     * @param serverId  the server's id
+     * @param channelId the channel's id
+     * @param purge     the messages to delete
+     * @param onBatch   called with the ids of the messages deleted by each batch
+     * @return the number of messages deleted
+     */
+    public long purgeMessages(User user, ObjectId serverId, ObjectId channelId, MessagePurge purge,
+            Consumer<List<ObjectId>> onBatch) {
+        if (purge.isEmpty())
+            throw new IllegalArgumentException("A purge must select messages by id, sender or time");
+
+        ServerContext context = getServerContext(user, serverId);
+        if (!context.hasAllPermissions(channelId, PermissionType.VIEW_CHANNELS, PermissionType.MANAGE_MESSAGES))
+            throw new UnauthorizedActionException("User is not authorized to purge messages in this channel");
+
+        return messageRepository.purgeMessages(channelId, purge, batch -> {
+            if (channelRepository.unpinMessages(channelId, batch))
+                channelPermissionCache.onMessagesUnpinned(serverId, channelId, batch);
+            reactionService.onMessagesDeleted(batch);
+            mentionService.onMessagesDeleted(batch);
+            onBatch.accept(batch);
+        });
     }
 
     @Override
@@ -396,6 +599,16 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
         return serverRepository;
     }
 
+    @Override
+    public RoleRecomputeJobService getRoleRecomputeJobService() {
+        return roleRecomputeJobService;
+    }
+
+    @Override
+    public ChannelPermissionCache getChannelPermissionCache() {
+        return channelPermissionCache;
+    }
+
     @Override
     public ChannelRepository getChannelRepository() {
         return channelRepository;
@@ -415,4 +628,9 @@ public class ServerService implements RoleManager, ChannelManager, InviteManager
     public MemberService getMemberService() {
         return memberService;
     }
+
+    @Override
+    public DeletionJobService getDeletionJobService() {
+        return deletionJobService;
+    }
 }
@@ -0,0 +1,70 @@
+package com.leostormer.strife.server.deletion;
+
+import java.time.Instant;
+
+import org.bson.types.ObjectId;
+
+public interface CustomDeletionJobRepository {
+    /**
+     * Deletes a bounded number of the documents of the given type that
+     * reference the given server, such as its members or invites.
+     *
+     * @param entityClass the type of document to delete
+     * @param serverId    the id of the referenced server
+     * @param batchSize   the maximum number of documents to delete
+     * @return the number of documents deleted, or zero once none are left
+     */
+    int deleteServerDocumentBatch(Class<?> entityClass, ObjectId serverId, int batchSize);
+
+    /**
+     * Deletes a bounded number of the documents of the given type that
+     * reference the given channel, such as its read states.
+     *
+     * @param entityClass the type of document to delete
+     * @param channelId   the id of the referenced channel
+     * @param batchSize   the maximum number of documents to delete
+     * @return the number of documents deleted, or zero once none are left
+     */
+    int deleteChannelDocumentBatch(Class<?> entityClass, ObjectId channelId, int batchSize);
+
+    /**
+     * Claims an unfinished job for a node, unless another node holds an
+     * unexpired lease on it.
+     *
+     * @param jobId          the job's id
+     * @param owner          the claiming node's id
+     * @param leaseExpiresAt when the claim lapses unless it is extended
+     * @return the claimed job, or null if it is completed or held by another
+     *         node
+     */
+    DeletionJob claim(ObjectId jobId, String owner, Instant leaseExpiresAt);
+
+    /**
+     * Adds to one of the progress counters of a job and extends its lease,
+     * provided the node still holds it.
+     *
+     * @param jobId          the job's id
+     * @param owner          the node's id
+     * @param counter        the name of the counter, such as <code>messagesDeleted</code>
+     * @param count          the amount to add
+     * @param leaseExpiresAt when the extended claim lapses
+     * @return false if another node has taken the job over, in which case
+     *         nothing is recorded
+     */
+    boolean recordProgress(ObjectId jobId, String owner, String counter, long count, Instant leaseExpiresAt);
+
+    /**
+     * Marks a channel of a job as having no messages left.
+     *
+     * @param jobId     the job's id
+     * @param channelId the purged channel's id
+     */
+    void markChannelPurged(ObjectId jobId, ObjectId channelId);
+
+    /**
+     * Marks a job as completed.
+     *
+     * @param jobId the job's id
+     */
+    void markCompleted(ObjectId jobId);
+}
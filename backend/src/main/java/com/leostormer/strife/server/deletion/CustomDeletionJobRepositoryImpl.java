@@ -0,0 +1,71 @@
+package com.leostormer.strife.server.deletion;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class CustomDeletionJobRepositoryImpl implements CustomDeletionJobRepository {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public int deleteServerDocumentBatch(Class<?> entityClass, ObjectId serverId, int batchSize) {
+        return deleteDocumentBatch(entityClass, "server", serverId, batchSize);
+    }
+
+    @Override
+    public int deleteChannelDocumentBatch(Class<?> entityClass, ObjectId channelId, int batchSize) {
+        return deleteDocumentBatch(entityClass, "channel", channelId, batchSize);
+    }
+
+    @SuppressWarnings("null")
+    private int deleteDocumentBatch(Class<?> entityClass, String field, ObjectId referencedId, int batchSize) {
+        Query query = new Query(Criteria.where(field).is(referencedId)).limit(batchSize);
+        query.fields().include("_id");
+        List<Object> ids = mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(entityClass))
+                .stream().map(document -> document.get("_id")).toList();
+        if (ids.isEmpty())
+            return 0;
+
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(ids)), entityClass);
+        return ids.size();
+    }
+
+    @Override
+    public DeletionJob claim(ObjectId jobId, String owner, Instant leaseExpiresAt) {
+        Query query = new Query(Criteria.where("_id").is(jobId).and("completed").is(false).orOperator(
+                Criteria.where("owner").is(owner), Criteria.where("leaseExpiresAt").is(null),
+                Criteria.where("leaseExpiresAt").lt(Instant.now())));
+        return mongoTemplate.findAndModify(query, new Update().set("owner", owner).set("leaseExpiresAt", leaseExpiresAt),
+                FindAndModifyOptions.options().returnNew(true), DeletionJob.class);
+    }
+
+    @Override
+    public boolean recordProgress(ObjectId jobId, String owner, String counter, long count, Instant leaseExpiresAt) {
+        return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(jobId).and("owner").is(owner)),
+                new Update().inc(counter, count).set("leaseExpiresAt", leaseExpiresAt), DeletionJob.class)
+                .getMatchedCount() > 0;
+    }
+
+    @Override
+    public void markChannelPurged(ObjectId jobId, ObjectId channelId) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(jobId)), new Update().pull("channelIds", channelId),
+                DeletionJob.class);
+    }
+
+    @Override
+    public void markCompleted(ObjectId jobId) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(jobId)),
+                new Update().set("completed", true).set("completedAt", Instant.now()), DeletionJob.class);
+    }
+}
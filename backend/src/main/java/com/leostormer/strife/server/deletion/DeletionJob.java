@@ -0,0 +1,98 @@
+package com.leostormer.strife.server.deletion;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The remaining work of deleting a server or some of its channels. The
+ * server and channel documents are removed as soon as the job is created, so
+ * they are no longer visible, and everything they owned is then purged in
+ * the background a batch at a time.
+ * <p>
+ * Jobs are persisted and updated after every batch, so an interrupted job
+ * resumes where it left off once the application restarts. A node claims a
+ * job before running it and extends its lease after every batch, so only one
+ * node runs a job at a time, and another takes it over once the lease of a
+ * node that stopped expires.
+ */
+@Document(collection = "deletion_jobs")
+@Data
+@NoArgsConstructor
+public class DeletionJob {
+    public enum Target {
+        /**
+         * The whole server. Purges the messages of its channels with their
+         * reactions and mentions, the channels' read states and counters,
+         * its members and its invites.
+         */
+        SERVER,
+        /**
+         * Some channels of a server. Purges only their messages with their
+         * reactions and mentions, and their read states and counters.
+         */
+        CHANNELS
+    }
+
+    @Id
+    private ObjectId id;
+
+    private Target target;
+
+    private ObjectId serverId;
+
+    /**
+     * The channels whose messages have yet to be purged. Channels are removed
+     * from this list once they have no messages or read states left.
+     */
+    private List<ObjectId> channelIds = new ArrayList<>();
+
+    @Indexed
+    private boolean completed = false;
+
+    private long messagesDeleted = 0;
+
+    private long reactionsDeleted = 0;
+
+    private long mentionsDeleted = 0;
+
+    private long readStatesDeleted = 0;
+
+    private long membersDeleted = 0;
+
+    private long invitesDeleted = 0;
+
+    private long channelsDeleted = 0;
+
+    /**
+     * The <code>app.cluster.node-id</code> of the node that last claimed the
+     * job.
+     */
+    private String owner;
+
+    /**
+     * When the owner's claim lapses unless it is extended, or null if the job
+     * was never claimed.
+     */
+    private Instant leaseExpiresAt;
+
+    private Instant createdAt;
+
+    private Instant completedAt;
+
+    public DeletionJob(Target target, ObjectId serverId, List<ObjectId> channelIds) {
+        this.target = target;
+        this.serverId = serverId;
+        this.channelIds = new ArrayList<>(channelIds);
+        this.channelsDeleted = channelIds.size();
+        this.createdAt = Instant.now();
+    }
+}
@@ -0,0 +1,12 @@
+package com.leostormer.strife.server.deletion;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface DeletionJobRepository extends MongoRepository<DeletionJob, ObjectId>, CustomDeletionJobRepository {
+    List<DeletionJob> findAllByCompletedFalse();
+}
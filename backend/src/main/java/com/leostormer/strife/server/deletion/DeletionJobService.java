@@ -0,0 +1,245 @@
+package com.leostormer.strife.server.deletion;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.mention.MentionService;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.reaction.ReactionService;
+import com.leostormer.strife.readstate.ReadState;
+import com.leostormer.strife.readstate.ReadStateService;
+import com.leostormer.strife.server.invite.Invite;
+
+/**
+ * Runs {@link DeletionJob}s one at a time on a background thread.
+ * <p>
+ * Every batch deletes at most <code>app.deletion.batch-size</code> documents
+ * and is followed by a pause of <code>app.deletion.batch-delay</code>, so a
+ * large purge spreads its load instead of competing with live traffic.
+ * Each batch is an idempotent delete, so a job may safely be run again after
+ * being interrupted at any point. The reactions to and mentions in each
+ * batch of messages are deleted just before the messages, so an interrupted
+ * purge never leaves them behind. Once a channel has no messages left, its
+ * message counter and read states are deleted. A job that fails is retried
+ * after <code>app.deletion.retry-delay</code>, doubling with every further
+ * failure.
+ * <p>
+ * Every node resumes the unfinished jobs when it starts, but a job only runs
+ * on the node holding its lease of <code>app.deletion.lease</code>, which is
+ * extended after every batch. The other nodes check back once the lease
+ * expires, and take the job over if its owner stopped.
+ */
+@Service
+public class DeletionJobService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(DeletionJobService.class);
+
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(10);
+
+    private final DeletionJobRepository deletionJobRepository;
+
+    private final MessageRepository messageRepository;
+
+    private final ReactionService reactionService;
+
+    private final MentionService mentionService;
+
+    private final ReadStateService readStateService;
+
+    private final int batchSize;
+
+    private final Duration batchDelay;
+
+    private final String nodeId;
+
+    private final Duration lease;
+
+    private final Duration retryDelay;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "deletion-jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DeletionJobService(DeletionJobRepository deletionJobRepository, MessageRepository messageRepository,
+            ReactionService reactionService, MentionService mentionService, ReadStateService readStateService,
+            @Value("${app.deletion.batch-size:500}") int batchSize,
+            @Value("${app.deletion.batch-delay:50ms}") Duration batchDelay,
+            @Value("${app.deletion.lease:1m}") Duration lease,
+            @Value("${app.deletion.retry-delay:5s}") Duration retryDelay,
+            @Value("${app.cluster.node-id:${HOSTNAME:local}}") String nodeId) {
+        this.deletionJobRepository = deletionJobRepository;
+        this.messageRepository = messageRepository;
+        this.reactionService = reactionService;
+        this.mentionService = mentionService;
+        this.readStateService = readStateService;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchDelay = batchDelay;
+        this.lease = lease;
+        this.retryDelay = retryDelay;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Saves a job and queues it to run. If called within a transaction, the job
+     * only runs once the transaction commits, and never if it rolls back.
+     *
+     * @param job the job to schedule
+     * @return the saved job
+     */
+    @SuppressWarnings("null")
+    public DeletionJob schedule(DeletionJob job) {
+        DeletionJob savedJob = deletionJobRepository.save(job);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    submit(savedJob.getId());
+                }
+            });
+        } else {
+            submit(savedJob.getId());
+        }
+
+        return savedJob;
+    }
+
+    /**
+     * Queues every job left unfinished by a previous run of the application.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePendingJobs() {
+        deletionJobRepository.findAllByCompletedFalse().forEach(job -> submit(job.getId()));
+    }
+
+    @Override
+    public void destroy() {
+        // Interrupts the running job between batches. It resumes on the next start.
+        executor.shutdownNow();
+    }
+
+    private void submit(ObjectId jobId) {
+        submit(jobId, 0, Duration.ZERO);
+    }
+
+    private void submit(ObjectId jobId, int failures, Duration delay) {
+        try {
+            executor.schedule(() -> run(jobId, failures), delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the job is picked up again on the next start
+        }
+    }
+
+    private void run(ObjectId jobId, int failures) {
+        DeletionJob job;
+        try {
+            job = deletionJobRepository.claim(jobId, nodeId, Instant.now().plus(lease));
+            if (job == null) {
+                checkBackAfterLease(jobId);
+                return;
+            }
+        } catch (RuntimeException e) {
+            retry(jobId, failures, e);
+            return;
+        }
+
+        try {
+            for (ObjectId channelId : List.copyOf(job.getChannelIds())) {
+                purge(jobId, "messagesDeleted", () -> messageRepository.deleteMessageBatch(channelId, batchSize,
+                        messageIds -> {
+                            recordProgress(jobId, "reactionsDeleted", reactionService.onMessagesDeleted(messageIds));
+                            recordProgress(jobId, "mentionsDeleted", mentionService.onMessagesDeleted(messageIds));
+                        }));
+                readStateService.onChannelDeleted(channelId);
+                purge(jobId, "readStatesDeleted", () -> deletionJobRepository.deleteChannelDocumentBatch(
+                        ReadState.class, channelId, batchSize));
+                deletionJobRepository.markChannelPurged(jobId, channelId);
+            }
+
+            if (job.getTarget() == DeletionJob.Target.SERVER) {
+                purge(jobId, "invitesDeleted", () -> deletionJobRepository.deleteServerDocumentBatch(Invite.class,
+                        job.getServerId(), batchSize));
+                purge(jobId, "membersDeleted", () -> deletionJobRepository.deleteServerDocumentBatch(Member.class,
+                        job.getServerId(), batchSize));
+            }
+
+            deletionJobRepository.markCompleted(jobId);
+        } catch (LeaseLostException e) {
+            checkBackAfterLease(jobId);
+        } catch (RuntimeException e) {
+            retry(jobId, failures, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a job again once the lease of the node holding it expires, in case
+     * that node stopped before finishing it.
+     */
+    @SuppressWarnings("null")
+    private void checkBackAfterLease(ObjectId jobId) {
+        DeletionJob job = deletionJobRepository.findById(jobId).orElse(null);
+        if (job == null || job.isCompleted())
+            return;
+
+        Duration untilExpiry = job.getLeaseExpiresAt() == null ? Duration.ZERO
+                : Duration.between(Instant.now(), job.getLeaseExpiresAt());
+        submit(jobId, 0, (untilExpiry.isNegative() ? Duration.ZERO : untilExpiry).plus(retryDelay));
+    }
+
+    private void retry(ObjectId jobId, int failures, RuntimeException e) {
+        Duration delay = retryDelay.multipliedBy(1L << Math.min(failures, 20));
+        if (delay.compareTo(MAX_RETRY_DELAY) > 0)
+            delay = MAX_RETRY_DELAY;
+
+        logger.warn("Deletion job {} failed, retrying in {}", jobId, delay, e);
+        submit(jobId, failures + 1, delay);
+    }
+
+    /**
+     * Deletes batches until none are left, recording progress and extending
+     * the lease after each one.
+     *
+     * @throws LeaseLostException if another node took the job over
+     */
+    private void purge(ObjectId jobId, String counter, IntSupplier deleteBatch) throws InterruptedException {
+        int deleted;
+        while ((deleted = deleteBatch.getAsInt()) > 0) {
+            recordProgress(jobId, counter, deleted);
+            Thread.sleep(batchDelay.toMillis());
+        }
+    }
+
+    /**
+     * Adds to a counter of the job and extends the lease.
+     *
+     * @throws LeaseLostException if another node took the job over
+     */
+    private void recordProgress(ObjectId jobId, String counter, long count) {
+        if (count > 0 && !deletionJobRepository.recordProgress(jobId, nodeId, counter, count,
+                Instant.now().plus(lease)))
+            throw new LeaseLostException();
+    }
+
+    private static class LeaseLostException extends RuntimeException {
+    }
+}
@@ -2,7 +2,9 @@ package com.leostormer.strife.server.invite;
 
 import java.time.Instant;
 
+import org.bson.types.ObjectId;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DocumentReference;
 import org.springframework.lang.NonNull;
@@ -60,6 +62,18 @@ public class Invite {
         return maxUses > 0;
     }
 
+    /**
+     * Returns the id of the server without resolving a lazily loaded reference.
+     *
+     * @return the server's id
+     */
+    public ObjectId getServerId() {
+        if (server instanceof LazyLoadingProxy proxy && proxy.getSource() instanceof ObjectId id)
+            return id;
+
+        return server == null ? null : server.getId();
+    }
+
     public boolean isExpired() {
         return expiresAt.isBefore(Instant.now());
     }
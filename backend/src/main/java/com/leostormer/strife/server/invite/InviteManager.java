@@ -31,6 +31,10 @@ public interface InviteManager extends IUsesServerRepository, IUsesMemberService
         Invite invite = inviteRepository.findById(inviteId)
                 .orElseThrow(() -> new ResourceNotFoundException("Invite not found"));
 
+        // Invites of a deleted server linger until its deletion job purges them
+        if (!getServerRepository().existsById(invite.getServerId()))
+            throw new ResourceNotFoundException(SERVER_NOT_FOUND);
+
         Server server = invite.getServer();
         Optional<Member> member = memberService.getMember(user.getId(), server.getId());
         if (member.isPresent()) { // User is either already a member, or they are banned
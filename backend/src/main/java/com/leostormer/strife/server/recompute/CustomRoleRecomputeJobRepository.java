@@ -0,0 +1,42 @@
+package com.leostormer.strife.server.recompute;
+
+import java.time.Instant;
+
+import org.bson.types.ObjectId;
+
+public interface CustomRoleRecomputeJobRepository {
+    /**
+     * Claims an unfinished job for a node, unless another node holds an
+     * unexpired lease on it.
+     *
+     * @param jobId          the job's id
+     * @param owner          the claiming node's id
+     * @param leaseExpiresAt when the claim lapses unless it is extended
+     * @return the claimed job, or null if it is completed or held by another
+     *         node
+     */
+    RoleRecomputeJob claim(ObjectId jobId, String owner, Instant leaseExpiresAt);
+
+    /**
+     * Records that a batch of members was visited and extends the job's lease,
+     * provided the node still holds it.
+     *
+     * @param jobId          the job's id
+     * @param owner          the node's id
+     * @param lastMemberId   the id of the last member in the batch
+     * @param visited        the number of members in the batch
+     * @param updated        the number of members whose roles were rewritten
+     * @param leaseExpiresAt when the extended claim lapses
+     * @return false if another node has taken the job over, in which case
+     *         nothing is recorded
+     */
+    boolean recordProgress(ObjectId jobId, String owner, ObjectId lastMemberId, long visited, long updated,
+            Instant leaseExpiresAt);
+
+    /**
+     * Marks a job as completed.
+     *
+     * @param jobId the job's id
+     */
+    void markCompleted(ObjectId jobId);
+}
@@ -0,0 +1,42 @@
+package com.leostormer.strife.server.recompute;
+
+import java.time.Instant;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public class CustomRoleRecomputeJobRepositoryImpl implements CustomRoleRecomputeJobRepository {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public RoleRecomputeJob claim(ObjectId jobId, String owner, Instant leaseExpiresAt) {
+        Query query = new Query(Criteria.where("_id").is(jobId).and("completed").is(false).orOperator(
+                Criteria.where("owner").is(owner), Criteria.where("leaseExpiresAt").is(null),
+                Criteria.where("leaseExpiresAt").lt(Instant.now())));
+        return mongoTemplate.findAndModify(query, new Update().set("owner", owner).set("leaseExpiresAt", leaseExpiresAt),
+                FindAndModifyOptions.options().returnNew(true), RoleRecomputeJob.class);
+    }
+
+    @Override
+    public boolean recordProgress(ObjectId jobId, String owner, ObjectId lastMemberId, long visited, long updated,
+            Instant leaseExpiresAt) {
+        Update update = new Update().set("lastMemberId", lastMemberId).inc("membersVisited", visited)
+                .inc("membersUpdated", updated).set("leaseExpiresAt", leaseExpiresAt);
+        return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(jobId).and("owner").is(owner)), update,
+                RoleRecomputeJob.class).getMatchedCount() > 0;
+    }
+
+    @Override
+    public void markCompleted(ObjectId jobId) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(jobId)),
+                new Update().set("completed", true).set("completedAt", Instant.now()), RoleRecomputeJob.class);
+    }
+}
@@ -0,0 +1,75 @@
+package com.leostormer.strife.server.recompute;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The remaining work of bringing the denormalized permissions and role
+ * priority of a server's members up to date after its roles were edited.
+ * <p>
+ * Only members holding one of the edited roles are visited, in id order. The
+ * last visited member is saved after every batch, so an interrupted job
+ * resumes after it once the application restarts. A node claims a job before
+ * running it and extends its lease after every batch, so only one node runs a
+ * job at a time, and another takes it over once the lease of a node that
+ * stopped expires.
+ */
+@Document(collection = "role_recompute_jobs")
+@Data
+@NoArgsConstructor
+public class RoleRecomputeJob {
+    @Id
+    private ObjectId id;
+
+    @Indexed
+    private ObjectId serverId;
+
+    /**
+     * The roles whose permissions or priority changed, or that were deleted.
+     */
+    private List<ObjectId> roleIds = new ArrayList<>();
+
+    /**
+     * The id of the last member visited, or null before the first batch.
+     */
+    private ObjectId lastMemberId;
+
+    @Indexed
+    private boolean completed = false;
+
+    private long membersVisited = 0;
+
+    private long membersUpdated = 0;
+
+    /**
+     * The <code>app.cluster.node-id</code> of the node that last claimed the
+     * job.
+     */
+    private String owner;
+
+    /**
+     * When the owner's claim lapses unless it is extended, or null if the job
+     * was never claimed.
+     */
+    private Instant leaseExpiresAt;
+
+    private Instant createdAt;
+
+    private Instant completedAt;
+
+    public RoleRecomputeJob(ObjectId serverId, Collection<ObjectId> roleIds) {
+        this.serverId = serverId;
+        this.roleIds = new ArrayList<>(roleIds);
+        this.createdAt = Instant.now();
+    }
+}
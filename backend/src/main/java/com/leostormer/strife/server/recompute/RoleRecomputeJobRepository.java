@@ -0,0 +1,16 @@
+package com.leostormer.strife.server.recompute;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface RoleRecomputeJobRepository
+        extends MongoRepository<RoleRecomputeJob, ObjectId>, CustomRoleRecomputeJobRepository {
+    List<RoleRecomputeJob> findAllByCompletedFalse();
+
+    Optional<RoleRecomputeJob> findFirstByServerIdOrderByCreatedAtDesc(ObjectId serverId);
+}
@@ -0,0 +1,241 @@
+package com.leostormer.strife.server.recompute;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.member.MemberRepository;
+import com.leostormer.strife.member.RoleAssignment;
+import com.leostormer.strife.server.Permissions;
+import com.leostormer.strife.server.Server;
+import com.leostormer.strife.server.ServerRepository;
+import com.leostormer.strife.server.role.Role;
+
+/**
+ * Runs {@link RoleRecomputeJob}s one at a time on a background thread.
+ * <p>
+ * Every batch reads at most <code>app.roles.recompute.batch-size</code>
+ * members holding an edited role, rewrites the ones whose roles changed with
+ * one unordered bulk write, and is followed by a pause of
+ * <code>app.roles.recompute.batch-delay</code>, so recomputing a large server
+ * does not compete with live traffic. Permissions are computed from the
+ * server's roles as they are when the job runs, so a job may safely be run
+ * again after being interrupted, and jobs queued by later edits only repeat
+ * work that is still needed. A job that fails is retried after
+ * <code>app.roles.recompute.retry-delay</code>, doubling with every further
+ * failure.
+ * <p>
+ * Every node resumes the unfinished jobs when it starts, but a job only runs
+ * on the node holding its lease of <code>app.roles.recompute.lease</code>,
+ * which is extended after every batch. The other nodes check back once the
+ * lease expires, and take the job over if its owner stopped.
+ */
+@Service
+public class RoleRecomputeJobService implements DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(RoleRecomputeJobService.class);
+
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(10);
+
+    private final RoleRecomputeJobRepository roleRecomputeJobRepository;
+
+    private final ServerRepository serverRepository;
+
+    private final MemberRepository memberRepository;
+
+    private final int batchSize;
+
+    private final Duration batchDelay;
+
+    private final String nodeId;
+
+    private final Duration lease;
+
+    private final Duration retryDelay;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "role-recompute-jobs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RoleRecomputeJobService(RoleRecomputeJobRepository roleRecomputeJobRepository,
+            ServerRepository serverRepository, MemberRepository memberRepository,
+            @Value("${app.roles.recompute.batch-size:1000}") int batchSize,
+            @Value("${app.roles.recompute.batch-delay:20ms}") Duration batchDelay,
+            @Value("${app.roles.recompute.lease:1m}") Duration lease,
+            @Value("${app.roles.recompute.retry-delay:5s}") Duration retryDelay,
+            @Value("${app.cluster.node-id:${HOSTNAME:local}}") String nodeId) {
+        this.roleRecomputeJobRepository = roleRecomputeJobRepository;
+        this.serverRepository = serverRepository;
+        this.memberRepository = memberRepository;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchDelay = batchDelay;
+        this.lease = lease;
+        this.retryDelay = retryDelay;
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Saves a job and queues it to run.
+     *
+     * @param job the job to schedule
+     * @return the saved job
+     */
+    @SuppressWarnings("null")
+    public RoleRecomputeJob schedule(RoleRecomputeJob job) {
+        RoleRecomputeJob savedJob = roleRecomputeJobRepository.save(job);
+        submit(savedJob.getId());
+        return savedJob;
+    }
+
+    /**
+     * Returns the most recently scheduled job of a server, to report its
+     * progress.
+     *
+     * @param serverId the server's id
+     * @return the job, or empty if the server's roles were never edited
+     */
+    public Optional<RoleRecomputeJob> getLatestJob(ObjectId serverId) {
+        return roleRecomputeJobRepository.findFirstByServerIdOrderByCreatedAtDesc(serverId);
+    }
+
+    /**
+     * Queues every job left unfinished by a previous run of the application.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePendingJobs() {
+        roleRecomputeJobRepository.findAllByCompletedFalse().forEach(job -> submit(job.getId()));
+    }
+
+    @Override
+    public void destroy() {
+        // Interrupts the running job between batches. It resumes on the next start.
+        executor.shutdownNow();
+    }
+
+    private void submit(ObjectId jobId) {
+        submit(jobId, 0, Duration.ZERO);
+    }
+
+    private void submit(ObjectId jobId, int failures, Duration delay) {
+        try {
+            executor.schedule(() -> run(jobId, failures), delay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the job is picked up again on the next start
+        }
+    }
+
+    @SuppressWarnings("null")
+    private void run(ObjectId jobId, int failures) {
+        RoleRecomputeJob job;
+        try {
+            job = roleRecomputeJobRepository.claim(jobId, nodeId, Instant.now().plus(lease));
+            if (job == null) {
+                checkBackAfterLease(jobId);
+                return;
+            }
+        } catch (RuntimeException e) {
+            retry(jobId, failures, e);
+            return;
+        }
+
+        try {
+            // A deleted server's members are purged by its deletion job
+            Server server = serverRepository.findById(job.getServerId()).orElse(null);
+            Map<ObjectId, Role> roles = server == null ? Map.of() : server.getRoles();
+            ObjectId afterId = job.getLastMemberId();
+            List<Member> batch = server == null ? List.of()
+                    : memberRepository.findMemberBatch(job.getServerId(), job.getRoleIds(), afterId, batchSize);
+            while (!batch.isEmpty()) {
+                List<RoleAssignment> assignments = new ArrayList<>();
+                for (Member member : batch) {
+                    RoleAssignment assignment = recompute(member, roles);
+                    if (assignment != null)
+                        assignments.add(assignment);
+                }
+
+                int updated = memberRepository.assignRoles(job.getServerId(), assignments);
+                afterId = batch.get(batch.size() - 1).getId();
+                if (!roleRecomputeJobRepository.recordProgress(jobId, nodeId, afterId, batch.size(), updated,
+                        Instant.now().plus(lease))) {
+                    checkBackAfterLease(jobId);
+                    return;
+                }
+
+                if (batch.size() < batchSize)
+                    break;
+
+                Thread.sleep(batchDelay.toMillis());
+                batch = memberRepository.findMemberBatch(job.getServerId(), job.getRoleIds(), afterId, batchSize);
+            }
+
+            roleRecomputeJobRepository.markCompleted(jobId);
+        } catch (RuntimeException e) {
+            retry(jobId, failures, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a job again once the lease of the node holding it expires, in case
+     * that node stopped before finishing it.
+     */
+    @SuppressWarnings("null")
+    private void checkBackAfterLease(ObjectId jobId) {
+        RoleRecomputeJob job = roleRecomputeJobRepository.findById(jobId).orElse(null);
+        if (job == null || job.isCompleted())
+            return;
+
+        Duration untilExpiry = job.getLeaseExpiresAt() == null ? Duration.ZERO
+                : Duration.between(Instant.now(), job.getLeaseExpiresAt());
+        submit(jobId, 0, (untilExpiry.isNegative() ? Duration.ZERO : untilExpiry).plus(retryDelay));
+    }
+
+    private void retry(ObjectId jobId, int failures, RuntimeException e) {
+        Duration delay = retryDelay.multipliedBy(1L << Math.min(failures, 20));
+        if (delay.compareTo(MAX_RETRY_DELAY) > 0)
+            delay = MAX_RETRY_DELAY;
+
+        logger.warn("Role recompute job {} failed, retrying in {}", jobId, delay, e);
+        submit(jobId, failures + 1, delay);
+    }
+
+    /**
+     * Computes a member's roles from the server's current roles, dropping
+     * deleted ones.
+     *
+     * @return the new roles, or null if they are unchanged
+     */
+    private static RoleAssignment recompute(Member member, Map<ObjectId, Role> roles) {
+        List<ObjectId> roleIds = member.getRoleIds().stream().filter(roles::containsKey)
+                .sorted(Comparator.comparing(roles::get)).toList();
+        long permissions = Permissions.getPermissions(roleIds.stream().map(roles::get).toList());
+        int rolePriority = roleIds.isEmpty() ? 0 : roles.get(roleIds.get(0)).getPriority();
+
+        if (roleIds.equals(member.getRoleIds()) && permissions == member.getPermissions()
+                && rolePriority == member.getRolePriority())
+            return null;
+
+        return new RoleAssignment(member.getId(), member.getUserId(), member.getRoleIds(), roleIds, rolePriority,
+                permissions);
+    }
+}
@@ -0,0 +1,32 @@
+package com.leostormer.strife.server.recompute;
+
+import java.time.Instant;
+
+import lombok.Data;
+
+@Data
+public class RoleRecomputeJobView {
+    private String id;
+
+    private String serverId;
+
+    private boolean completed;
+
+    private long membersVisited;
+
+    private long membersUpdated;
+
+    private Instant createdAt;
+
+    private Instant completedAt;
+
+    public RoleRecomputeJobView(RoleRecomputeJob job) {
+        this.id = job.getId().toHexString();
+        this.serverId = job.getServerId().toHexString();
+        this.completed = job.isCompleted();
+        this.membersVisited = job.getMembersVisited();
+        this.membersUpdated = job.getMembersUpdated();
+        this.createdAt = job.getCreatedAt();
+        this.completedAt = job.getCompletedAt();
+    }
+}
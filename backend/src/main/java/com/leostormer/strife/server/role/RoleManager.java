@@ -2,6 +2,7 @@ package com.leostormer.strife.server.role;
 
 import org.bson.types.ObjectId;
 
+import com.leostormer.strife.channel.ChannelRepository;
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
 import com.leostormer.strife.member.Member;
@@ -11,6 +12,9 @@ import com.leostormer.strife.server.PermissionType;
 import com.leostormer.strife.server.Permissions;
 import com.leostormer.strife.server.Server;
 import com.leostormer.strife.server.ServerRepository;
+import com.leostormer.strife.server.recompute.RoleRecomputeJob;
+import com.leostormer.strife.server.recompute.RoleRecomputeJobService;
+import com.leostormer.strife.server.server_channel.ChannelPermissionCache;
 import com.leostormer.strife.user.User;
 
 import static com.leostormer.strife.server.ServerExceptionMessage.*;
@@ -20,6 +24,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -27,6 +32,10 @@ import java.util.stream.Stream;
 public interface RoleManager extends IUsesServerRepository, IUsesMemberService {
     static final Comparator<Role> ascendingOrder = (r1, r2) -> Integer.compare(r1.getPriority(), r2.getPriority());
 
+    public ChannelRepository getChannelRepository();
+    public ChannelPermissionCache getChannelPermissionCache();
+    public RoleRecomputeJobService getRoleRecomputeJobService();
+
     private RoleUpdateOperation sanitizeOperation(Map<ObjectId, Role> serverRoles, RoleUpdateOperation operation) {
         List<Role> rolesToAdd = operation.getRolesToAdd();
         rolesToAdd = rolesToAdd == null ? List.of() : rolesToAdd;
@@ -95,6 +104,9 @@ public interface RoleManager extends IUsesServerRepository, IUsesMemberService {
 
         int highestRolePriority = member.getRolePriority();
         Map<ObjectId, Role> serverRoles = server.getRoles();
+        // Roles are renumbered in place below, so their current values are kept to find the changed ones
+        Map<ObjectId, Role> previousRoles = serverRoles.values().stream().collect(Collectors.toMap(Role::getId,
+                r -> new Role(r.getId(), r.getName(), r.getPriority(), r.getPermissions())));
         RoleUpdateOperation santizedOperation = sanitizeOperation(serverRoles, operation);
         List<Role> rolesToAdd = santizedOperation.getRolesToAdd();
         List<ObjectId> rolesToRemove = santizedOperation.getRolesToRemove();
@@ -129,6 +141,38 @@ public interface RoleManager extends IUsesServerRepository, IUsesMemberService {
         }
 
         serverRepository.updateRoles(serverId, updatedRoles);
+        getChannelRepository().removeRolePermissions(serverId, rolesToRemove);
+        getChannelPermissionCache().onRolesUpdated(serverId, updatedRoles.keySet());
+        getMemberService().evictServer(serverId);
+
+        // Members keep denormalized copies of their roles' permissions and priority
+        List<ObjectId> changedRoleIds = previousRoles.values().stream().filter(previous -> {
+            Role updated = updatedRoles.get(previous.getId());
+            return updated == null || updated.getPriority() != previous.getPriority()
+                    || updated.getPermissions() != previous.getPermissions();
+        }).map(Role::getId).toList();
+        if (!changedRoleIds.isEmpty())
+            getRoleRecomputeJobService().schedule(new RoleRecomputeJob(serverId, changedRoleIds));
     }
 
+    /**
+     * Returns the progress of bringing members up to date after the latest
+     * edit of a server's roles.
+     *
+     * @param user     the user asking, who must be able to manage roles
+     * @param serverId the server's id
+     * @return the latest job, or empty if the roles were never edited
+     */
+    default Optional<RoleRecomputeJob> getRoleRecomputeJob(User user, ObjectId serverId) {
+        Member member = getMemberService().getMember(user.getId(), serverId)
+                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
+
+        if (member.isBanned())
+            throw new UnauthorizedActionException(USER_IS_BANNED);
+
+        if (!Permissions.hasPermission(member.getPermissions(), PermissionType.MANAGE_ROLES))
+            throw new UnauthorizedActionException("User is not authorized to manage roles in this server");
+
+        return getRoleRecomputeJobService().getLatestJob(serverId);
+    }
 }
@@ -2,6 +2,7 @@ package com.leostormer.strife.server.server_channel;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
@@ -18,8 +19,9 @@ import com.leostormer.strife.server.IUsesServerRepository;
 import com.leostormer.strife.server.PermissionType;
 import com.leostormer.strife.server.Permissions;
 import com.leostormer.strife.server.Server;
-import com.leostormer.strife.server.ServerRepository;
-import com.leostormer.strife.server.role.Role;
+import com.leostormer.strife.server.ServerContext;
+import com.leostormer.strife.server.deletion.DeletionJob;
+import com.leostormer.strife.server.deletion.DeletionJobService;
 import com.leostormer.strife.user.User;
 
 import static com.leostormer.strife.server.ServerExceptionMessage.*;
@@ -27,6 +29,8 @@ import static com.leostormer.strife.server.ServerExceptionMessage.*;
 public interface ChannelManager extends IUsesServerRepository, IUsesMemberService {
     public ChannelRepository getChannelRepository();
     public MessageRepository getMessageRepository();
+    public DeletionJobService getDeletionJobService();
+    public ChannelPermissionCache getChannelPermissionCache();
 
     public long getPermissions(ServerChannel channel, Member member);
 
@@ -44,117 +48,133 @@ public interface ChannelManager extends IUsesServerRepository, IUsesMemberServic
         ServerChannel channel = getChannelRepository().findServerChannelById(channelId)
                 .orElseThrow(() -> new ResourceNotFoundException(CHANNEL_NOT_FOUND));
 
-        if (!channel.getServer().getId().equals(serverId))
+        if (!serverId.equals(channel.getServerId()))
             throw new ResourceNotFoundException(CHANNEL_NOT_FOUND);
 
         return channel;
     }
 
-    default List<ServerChannel> getChannels(User user, ObjectId serverId) {
+    /**
+     * Returns the compiled permission overwrites of a server's channels.
+     *
+     * @param serverId the server's id
+     * @return the matrix, empty if the server has no channels
+     * @throws ResourceNotFoundException if the server does not exist
+     */
+    default ChannelPermissionMatrix getPermissionMatrix(ObjectId serverId) {
+        return findPermissionMatrix(serverId).orElseThrow(() -> new ResourceNotFoundException(SERVER_NOT_FOUND));
+    }
+
+    /**
+     * Returns the compiled permission overwrites of a server's channels, if
+     * the server exists.
+     *
+     * @param serverId the server's id
+     * @return the matrix, or empty if the server does not exist
+     */
+    default Optional<ChannelPermissionMatrix> findPermissionMatrix(ObjectId serverId) {
+        return getChannelPermissionCache().get(serverId, () -> getServerRepository().findChannelsAndRolesOfServer(serverId));
+    }
+
+    /**
+     * Checks that a server exists, from memory when it was used recently.
+     *
+     * @param serverId the server's id
+     * @throws ResourceNotFoundException if the server does not exist
+     */
+    default void requireServer(ObjectId serverId) {
+        getPermissionMatrix(serverId);
+    }
+
+    /**
+     * Loads what an operation in a server needs to know about the user
+     * performing it. Served from memory when the server and member were used
+     * recently, otherwise one read for the member and one for the server and
+     * its channels.
+     *
+     * @param user     the user performing the operation
+     * @param serverId the server's id
+     * @return the context
+     * @throws ResourceNotFoundException   if the server does not exist or the
+     *                                     user is not a member
+     * @throws UnauthorizedActionException if the user is banned
+     */
+    default ServerContext getServerContext(User user, ObjectId serverId) {
+        ChannelPermissionMatrix channels = getPermissionMatrix(serverId);
         Member member = getMemberService().getMember(user.getId(), serverId)
                 .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
 
-        ChannelRepository channelRepository = getChannelRepository();
-
         if (member.isBanned())
             throw new UnauthorizedActionException(USER_IS_BANNED);
 
-        if (!Permissions.hasPermission(member.getPermissions(), PermissionType.VIEW_CHANNELS))
+        return new ServerContext(serverId, member, channels);
+    }
+
+    default List<ServerChannel> getChannels(User user, ObjectId serverId) {
+        ServerContext context = getServerContext(user, serverId);
+        if (!Permissions.hasPermission(context.member().getPermissions(), PermissionType.VIEW_CHANNELS))
             throw new UnauthorizedActionException("User is not authorized to view channels");
 
-        return channelRepository.getVisibleServerChannels(serverId, member);
+        return context.channels().getVisibleChannels(context.member());
     }
 
     default ServerChannel getDefaultChannel(User user, ObjectId serverId) {
-        Member member = getMemberService().getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        ChannelRepository channelRepository = getChannelRepository();
-
-        if (member.isBanned())
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-
-        if (!Permissions.hasPermission(member.getPermissions(), PermissionType.VIEW_CHANNELS))
+        ServerContext context = getServerContext(user, serverId);
+        if (!Permissions.hasPermission(context.member().getPermissions(), PermissionType.VIEW_CHANNELS))
             throw new UnauthorizedActionException("User is not authorized to view channels");
 
-        return channelRepository.getFirstVisibleServerChannel(serverId, member);
+        return context.channels().getFirstVisibleChannel(context.member());
     }
 
     @SuppressWarnings("null")
     default ServerChannel addChannel(User user, ObjectId serverId, String channelName, String channelCategory,
             String channelDescription, boolean isPublic) {
-        ServerRepository serverRepository = getServerRepository();
-        Server server = serverRepository.findById(serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(SERVER_NOT_FOUND));
-
-        Member member = getMemberService().getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        if (member.isBanned())
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-
-        if (!Permissions.hasPermission(member.getPermissions(), PermissionType.MANAGE_CHANNELS)) {
+        ServerContext context = getServerContext(user, serverId);
+        if (!Permissions.hasPermission(context.member().getPermissions(), PermissionType.MANAGE_CHANNELS))
             throw new UnauthorizedActionException("User is not authorized to create channels in this server");
-        }
 
+        // The context has checked that the server exists and the channel only stores its id
+        Server server = new Server();
+        server.setId(serverId);
         return createChannel(server, channelName, channelCategory, channelDescription, isPublic);
     }
 
     @SuppressWarnings("null")
     default void updateChannelSettings(User commandUser, ObjectId serverId, ObjectId channelId,
             ChannelUpdateOperation operation) {
-        ServerRepository serverRepository = getServerRepository();
-        Server server = serverRepository.findById(serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(SERVER_NOT_FOUND));
-
-        MemberService memberService = getMemberService();
-        Member member = memberService.getMember(commandUser.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        ChannelRepository channelRepository = getChannelRepository();
-        if (member.isBanned())
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-
-        ServerChannel channel = getChannelInServer(serverId, channelId);
-
-        if (!Permissions.hasAllPermissions(getPermissions(channel, member), PermissionType.VIEW_CHANNELS,
-                PermissionType.MANAGE_CHANNELS)) {
+        ServerContext context = getServerContext(commandUser, serverId);
+        if (!context.hasAllPermissions(channelId, PermissionType.VIEW_CHANNELS, PermissionType.MANAGE_CHANNELS))
             throw new UnauthorizedActionException("User is not authorized to update this channel");
-        }
-
-        Map<ObjectId, Role> serverRoles = server.getRoles();
 
         Map<ObjectId, Long> rolePermissions = operation.getRolePermissions();
-        if (rolePermissions != null && rolePermissions.keySet().stream().anyMatch(id -> !serverRoles.containsKey(id)))
+        if (rolePermissions != null
+                && rolePermissions.keySet().stream().anyMatch(id -> !context.channels().hasRole(id)))
             throw new ResourceNotFoundException(ROLE_NOT_FOUND);
 
+        MemberService memberService = getMemberService();
         Map<ObjectId, Long> userPermissions = operation.getUserPermissions();
         if (userPermissions != null
                 && userPermissions.keySet().stream().anyMatch(userId -> !memberService.isMember(userId, serverId)))
             throw new ResourceNotFoundException(USER_NOT_MEMBER);
 
+        ChannelRepository channelRepository = getChannelRepository();
         channelRepository.updateServerChannelSettings(channelId, operation);
+        channelRepository.findServerChannelById(channelId)
+                .ifPresent(updated -> getChannelPermissionCache().onChannelUpdated(serverId, updated));
     }
 
     @Transactional
     @SuppressWarnings("null")
     default void removeChannel(User user, ObjectId serverId, ObjectId... channelIds) {
-        Member member = getMemberService().getMember(user.getId(), serverId)
-                .orElseThrow(() -> new ResourceNotFoundException(USER_NOT_MEMBER));
-
-        if (member.isBanned()) {
-            throw new UnauthorizedActionException(USER_IS_BANNED);
-        }
-
+        ServerContext context = getServerContext(user, serverId);
         Stream.of(channelIds).forEach(id -> {
-            ServerChannel channel = getChannelInServer(serverId, id);
-            if (!Permissions.hasAllPermissions(getPermissions(channel, member), PermissionType.VIEW_CHANNELS,
-                    PermissionType.MANAGE_CHANNELS)) {
+            if (!context.hasAllPermissions(id, PermissionType.VIEW_CHANNELS, PermissionType.MANAGE_CHANNELS))
                 throw new UnauthorizedActionException("User is not authorized to remove this channel");
-            }
         });
 
-        getMessageRepository().deleteAllByChannel(channelIds);
-        getChannelRepository().deleteAllById(Stream.of(channelIds).toList());;
+        // Messages are purged in the background, the channels disappear right away
+        List<ObjectId> channelIdList = Stream.of(channelIds).toList();
+        getChannelRepository().deleteAllById(channelIdList);
+        getDeletionJobService().schedule(new DeletionJob(DeletionJob.Target.CHANNELS, serverId, channelIdList));
     }
 }
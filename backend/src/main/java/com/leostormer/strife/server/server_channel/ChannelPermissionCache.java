@@ -0,0 +1,222 @@
+package com.leostormer.strife.server.server_channel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.MongoMappingEvent;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.cache.StampedLruCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Getter;
+
+/**
+ * Keeps the {@link ChannelPermissionMatrix} of recently used servers in
+ * memory, at most <code>app.channels.permission-cache.max-servers</code>
+ * evicted least recently used first.
+ * <p>
+ * Channel settings, pins and role changes are applied to a cached matrix
+ * incrementally. Channels saved or deleted through the mapping layer drop
+ * their server's matrix so it is compiled again on next use. A cached matrix
+ * also records that its server exists, so deleting the server drops it.
+ */
+@Component
+public class ChannelPermissionCache implements ApplicationListener<MongoMappingEvent<?>>, MeterBinder {
+    private static final String COLLECTION = "channels";
+
+    private static final String SERVER_COLLECTION = "servers";
+
+    @Getter
+    private final boolean enabled;
+
+    private final StampedLruCache<ObjectId, ChannelPermissionMatrix> matrices;
+
+    public ChannelPermissionCache(@Value("${app.channels.permission-cache.enabled:true}") boolean enabled,
+            @Value("${app.channels.permission-cache.max-servers:1000}") int maxServers) {
+        this.enabled = enabled && maxServers > 0;
+        this.matrices = StampedLruCache.ofMaxEntries(maxServers);
+    }
+
+    /**
+     * Returns the matrix of a server, compiling it on a miss. A cached matrix
+     * also stands for the server's existence, so servers that do not exist
+     * are never cached.
+     *
+     * @param serverId the server's id
+     * @param loader   loads all channels and roles of the server, or empty if
+     *                 the server does not exist
+     * @return the matrix, or empty if the server does not exist
+     */
+    public Optional<ChannelPermissionMatrix> get(ObjectId serverId, Supplier<Optional<ServerChannels>> loader) {
+        if (!enabled)
+            return loader.get().map(ChannelPermissionCache::compile);
+
+        ChannelPermissionMatrix cached = matrices.get(serverId);
+        if (cached != null)
+            return Optional.of(cached);
+
+        long stamp = matrices.stamp(serverId);
+        Optional<ChannelPermissionMatrix> matrix = loader.get().map(ChannelPermissionCache::compile);
+        matrix.ifPresent(compiled -> matrices.putIfUnchanged(serverId, compiled, stamp));
+        return matrix;
+    }
+
+    /**
+     * Applies a channel's new settings to its server's matrix.
+     *
+     * @param serverId the server's id
+     * @param channel  the channel as stored after the change
+     */
+    public void onChannelUpdated(ObjectId serverId, ServerChannel channel) {
+        matrices.update(serverId, matrix -> matrix.withChannel(channel));
+    }
+
+    /**
+     * Adds a message pinned in a channel to its server's matrix.
+     *
+     * @param serverId  the server's id
+     * @param channelId the channel's id
+     * @param messageId the pinned message's id
+     */
+    public void onMessagePinned(ObjectId serverId, ObjectId channelId, ObjectId messageId) {
+        matrices.update(serverId, matrix -> matrix.getChannel(channelId).map(channel -> {
+            List<ObjectId> pinnedMessageIds = new ArrayList<>(channel.getPinnedMessageIds());
+            pinnedMessageIds.remove(messageId);
+            pinnedMessageIds.add(0, messageId);
+            return matrix.withPinnedMessageIds(channelId, pinnedMessageIds);
+        }).orElse(matrix));
+    }
+
+    /**
+     * Removes messages unpinned from a channel from its server's matrix.
+     *
+     * @param serverId   the server's id
+     * @param channelId  the channel's id
+     * @param messageIds the unpinned messages' ids
+     */
+    public void onMessagesUnpinned(ObjectId serverId, ObjectId channelId, Collection<ObjectId> messageIds) {
+        matrices.update(serverId, matrix -> matrix.getChannel(channelId)
+                .map(channel -> matrix.withPinnedMessageIds(channelId, channel.getPinnedMessageIds().stream()
+                        .filter(id -> !messageIds.contains(id)).toList()))
+                .orElse(matrix));
+    }
+
+    /**
+     * Applies a server's new set of roles to its matrix.
+     *
+     * @param serverId the server's id
+     * @param roleIds  the ids of the server's roles after the change
+     */
+    public void onRolesUpdated(ObjectId serverId, Collection<ObjectId> roleIds) {
+        matrices.update(serverId, matrix -> matrix.withRoles(roleIds));
+    }
+
+    /**
+     * Drops the matrix of a server, such as after the server was deleted.
+     *
+     * @param serverId the server's id
+     */
+    public void evict(ObjectId serverId) {
+        matrices.invalidate(serverId);
+    }
+
+    /**
+     * Drops every matrix.
+     */
+    public void clear() {
+        matrices.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return matrices.getHitCount();
+    }
+
+    public long getMissCount() {
+        return matrices.getMissCount();
+    }
+
+    public int getServerCount() {
+        return matrices.size();
+    }
+
+    private static ChannelPermissionMatrix compile(ServerChannels server) {
+        return ChannelPermissionMatrix.compile(server.channels(), server.roleIds());
+    }
+
+    /**
+     * Drops the matrix of a deleted server, or of the server a channel was
+     * saved to. Deletes of channels by server or by channel id drop the
+     * affected servers, anything else drops every matrix.
+     */
+    @Override
+    public void onApplicationEvent(@NonNull MongoMappingEvent<?> event) {
+        if (SERVER_COLLECTION.equals(event.getCollectionName()) && event instanceof AfterDeleteEvent<?> deleteEvent) {
+            if (deleteEvent.getSource().get("_id") instanceof ObjectId serverId)
+                evict(serverId);
+            else
+                clear();
+        }
+
+        if (!COLLECTION.equals(event.getCollectionName()))
+            return;
+
+        if (event instanceof AfterSaveEvent<?> saveEvent) {
+            Document document = saveEvent.getDocument();
+            if (document != null && document.get("server") instanceof ObjectId serverId)
+                evict(serverId);
+            else if (document == null || document.containsKey("server"))
+                clear();
+        } else if (event instanceof AfterDeleteEvent<?> deleteEvent) {
+            Document query = deleteEvent.getSource();
+            if (query.size() == 1 && query.get("server") instanceof ObjectId serverId) {
+                evict(serverId);
+            } else if (query.size() == 1 && query.get("_id") instanceof ObjectId channelId) {
+                evictServersOf(List.of(channelId));
+            } else if (query.size() == 1 && query.get("_id") instanceof Document in
+                    && in.get("$in") instanceof List<?> channelIds) {
+                evictServersOf(channelIds);
+            } else {
+                clear();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.channels.permission_cache.requests", this,
+                ChannelPermissionCache::getHitCount).tag("result", "hit")
+                .description("Channel permission lookups served by a compiled matrix").register(registry);
+        FunctionCounter.builder("strife.channels.permission_cache.requests", this,
+                ChannelPermissionCache::getMissCount).tag("result", "miss")
+                .description("Channel permission lookups that had to load the server's channels")
+                .register(registry);
+        Gauge.builder("strife.channels.permission_cache.servers", this, ChannelPermissionCache::getServerCount)
+                .description("Number of servers with a compiled permission matrix").register(registry);
+    }
+
+    /**
+     * Drops the matrices of the servers the given channels belong to, such as
+     * after they were written by another node.
+     *
+     * @param channelIds the channels' ids
+     */
+    public void evictServersOf(Collection<?> channelIds) {
+        // A server whose matrix is being compiled may still see the channel, so every load in flight is discarded
+        matrices.invalidateIf((serverId, matrix) -> channelIds.stream()
+                .anyMatch(channelId -> channelId instanceof ObjectId id && matrix.getChannel(id).isPresent()));
+    }
+}
@@ -0,0 +1,316 @@
+package com.leostormer.strife.server.server_channel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.server.PermissionType;
+import com.leostormer.strife.server.Permissions;
+
+/**
+ * The permission overwrites of every channel of a server compiled into
+ * arrays indexed by channel, so a member's effective permissions in all
+ * channels at once cost one pass per role the member has.
+ * <p>
+ * Matrices are immutable; changes produce a new matrix that shares the
+ * columns it did not touch. The channels are kept for listing and their
+ * pinned messages. The ids of the server's roles are kept so overwrites can be
+ * checked against them.
+ */
+public class ChannelPermissionMatrix {
+    private static final Comparator<ServerChannel> CHANNEL_ORDER = Comparator.comparing(ServerChannel::getId);
+
+    private final ServerChannel[] channels;
+
+    private final Map<ObjectId, Integer> channelIndex;
+
+    private final boolean[] isPublic;
+
+    private final Set<ObjectId> roleIds;
+
+    /**
+     * The overwrite of each role in each channel, by role id.
+     */
+    private final Map<ObjectId, long[]> rolePermissions;
+
+    /**
+     * The overwrite of each user in each channel, by user id.
+     */
+    private final Map<ObjectId, long[]> userPermissions;
+
+    private ChannelPermissionMatrix(ServerChannel[] channels, boolean[] isPublic, Set<ObjectId> roleIds,
+            Map<ObjectId, long[]> rolePermissions, Map<ObjectId, long[]> userPermissions) {
+        this.channels = channels;
+        this.isPublic = isPublic;
+        this.roleIds = roleIds;
+        this.rolePermissions = rolePermissions;
+        this.userPermissions = userPermissions;
+        this.channelIndex = new HashMap<>(channels.length * 2);
+        for (int i = 0; i < channels.length; i++)
+            channelIndex.put(channels[i].getId(), i);
+    }
+
+    /**
+     * Compiles the channels of a server, ordered by creation.
+     *
+     * @param serverChannels all channels of the server
+     * @param roleIds        the ids of the server's roles
+     * @return the matrix
+     */
+    public static ChannelPermissionMatrix compile(Collection<ServerChannel> serverChannels,
+            Collection<ObjectId> roleIds) {
+        ServerChannel[] channels = serverChannels.stream().sorted(CHANNEL_ORDER).toArray(ServerChannel[]::new);
+        boolean[] isPublic = new boolean[channels.length];
+        Map<ObjectId, long[]> rolePermissions = new HashMap<>();
+        Map<ObjectId, long[]> userPermissions = new HashMap<>();
+        for (int i = 0; i < channels.length; i++) {
+            isPublic[i] = channels[i].isPublic();
+            writeColumn(rolePermissions, channels[i].getRolePermissions(), i, channels.length);
+            writeColumn(userPermissions, channels[i].getUserPermissions(), i, channels.length);
+        }
+
+        return new ChannelPermissionMatrix(channels, isPublic, Set.copyOf(roleIds), rolePermissions,
+                userPermissions);
+    }
+
+    /**
+     * Returns a matrix with a channel added or replaced by its new settings.
+     * Only the rows the channel's old and new overwrites touch are copied.
+     *
+     * @param channel the channel as stored
+     * @return the new matrix
+     */
+    public ChannelPermissionMatrix withChannel(ServerChannel channel) {
+        Integer existing = channelIndex.get(channel.getId());
+        if (existing == null && channels.length > 0
+                && CHANNEL_ORDER.compare(channel, channels[channels.length - 1]) < 0) {
+            List<ServerChannel> all = new ArrayList<>(Arrays.asList(channels));
+            all.add(channel);
+            return compile(all, roleIds);
+        }
+
+        int index = existing != null ? existing : channels.length;
+        int size = existing != null ? channels.length : channels.length + 1;
+        ServerChannel[] newChannels = Arrays.copyOf(channels, size);
+        newChannels[index] = channel;
+        boolean[] newIsPublic = Arrays.copyOf(isPublic, size);
+        newIsPublic[index] = channel.isPublic();
+
+        return new ChannelPermissionMatrix(newChannels, newIsPublic, roleIds,
+                replaceColumn(rolePermissions, channel.getRolePermissions(), index, size),
+                replaceColumn(userPermissions, channel.getUserPermissions(), index, size));
+    }
+
+    /**
+     * Returns a matrix with a channel's pinned messages replaced. The
+     * permissions are shared with this matrix.
+     *
+     * @param channelId        the channel's id
+     * @param pinnedMessageIds the ids of the channel's pinned messages after
+     *                         the change, most recently pinned first
+     * @return the new matrix
+     */
+    public ChannelPermissionMatrix withPinnedMessageIds(ObjectId channelId, List<ObjectId> pinnedMessageIds) {
+        Integer index = channelIndex.get(channelId);
+        if (index == null)
+            return this;
+
+        ServerChannel channel = channels[index];
+        ServerChannel pinned = new ServerChannel(channel.getServer(), channel.getName(), channel.getCategory(),
+                channel.getDescription(), channel.isPublic(), channel.getRolePermissions(),
+                channel.getUserPermissions());
+        pinned.setId(channelId);
+        pinned.setPinnedMessageIds(new ArrayList<>(pinnedMessageIds));
+        ServerChannel[] newChannels = channels.clone();
+        newChannels[index] = pinned;
+        return new ChannelPermissionMatrix(newChannels, isPublic, roleIds, rolePermissions, userPermissions);
+    }
+
+    /**
+     * Returns a matrix without the given channels.
+     *
+     * @param channelIds the removed channels' ids
+     * @return the new matrix
+     */
+    public ChannelPermissionMatrix withoutChannels(Collection<ObjectId> channelIds) {
+        if (channelIds.stream().noneMatch(channelIndex::containsKey))
+            return this;
+
+        return compile(Arrays.stream(channels).filter(channel -> !channelIds.contains(channel.getId())).toList(),
+                roleIds);
+    }
+
+    /**
+     * Returns a matrix for the server's new set of roles, in which roles that
+     * were deleted grant nothing.
+     *
+     * @param roleIds the ids of the server's roles after the change
+     * @return the new matrix
+     */
+    public ChannelPermissionMatrix withRoles(Collection<ObjectId> roleIds) {
+        Set<ObjectId> newRoleIds = Set.copyOf(roleIds);
+        Map<ObjectId, long[]> newRolePermissions = new HashMap<>(rolePermissions);
+        newRolePermissions.keySet().retainAll(newRoleIds);
+        return new ChannelPermissionMatrix(channels, isPublic, newRoleIds, newRolePermissions, userPermissions);
+    }
+
+    /**
+     * Returns whether the server has a role.
+     *
+     * @param roleId the role's id
+     * @return whether the role exists
+     */
+    public boolean hasRole(ObjectId roleId) {
+        return roleIds.contains(roleId);
+    }
+
+    /**
+     * Returns a channel of the server.
+     *
+     * @param channelId the channel's id
+     * @return the channel if it is in the server
+     */
+    public Optional<ServerChannel> getChannel(ObjectId channelId) {
+        Integer index = channelIndex.get(channelId);
+        return index == null ? Optional.empty() : Optional.of(channels[index]);
+    }
+
+    /**
+     * Returns a member's effective permissions in a channel, the same as
+     * {@link ChannelManager#getPermissions(ServerChannel, Member)}.
+     *
+     * @param channelId the channel's id
+     * @param member    the member
+     * @return the permissions, or none if the channel is not in the server
+     */
+    public long getPermissions(ObjectId channelId, Member member) {
+        Integer index = channelIndex.get(channelId);
+        if (index == null)
+            return Permissions.NONE;
+
+        if (isPublic[index] || member.isOwner())
+            return member.getPermissions();
+
+        long permissions = Permissions.NONE;
+        for (ObjectId roleId : member.getRoleIds()) {
+            long[] row = rolePermissions.get(roleId);
+            if (row != null)
+                permissions |= row[index];
+        }
+
+        long[] userRow = userPermissions.get(member.getUserId());
+        return userRow == null ? permissions : permissions | userRow[index];
+    }
+
+    /**
+     * Returns a member's effective permissions in every channel.
+     *
+     * @param member the member
+     * @return the permissions, indexed like {@link #getChannels()}
+     */
+    public long[] getPermissions(Member member) {
+        long[] permissions = new long[channels.length];
+        if (!member.isOwner()) {
+            for (ObjectId roleId : member.getRoleIds())
+                or(permissions, rolePermissions.get(roleId));
+            or(permissions, userPermissions.get(member.getUserId()));
+        }
+
+        for (int i = 0; i < permissions.length; i++) {
+            if (isPublic[i] || member.isOwner())
+                permissions[i] = member.getPermissions();
+        }
+
+        return permissions;
+    }
+
+    /**
+     * Returns the channels a member can see: public channels, and private
+     * channels where the member's overwrites allow viewing. Owners see all.
+     *
+     * @param member the member
+     * @return the visible channels in creation order
+     */
+    public List<ServerChannel> getVisibleChannels(Member member) {
+        long[] permissions = getPermissions(member);
+        List<ServerChannel> visible = new ArrayList<>();
+        for (int i = 0; i < channels.length; i++) {
+            if (isVisible(i, permissions[i], member))
+                visible.add(channels[i]);
+        }
+
+        return visible;
+    }
+
+    /**
+     * Returns the oldest channel a member can see.
+     *
+     * @param member the member
+     * @return the channel, or null if the member cannot see any
+     */
+    public ServerChannel getFirstVisibleChannel(Member member) {
+        long[] permissions = getPermissions(member);
+        for (int i = 0; i < channels.length; i++) {
+            if (isVisible(i, permissions[i], member))
+                return channels[i];
+        }
+
+        return null;
+    }
+
+    public List<ServerChannel> getChannels() {
+        return List.of(channels);
+    }
+
+    private boolean isVisible(int index, long permissions, Member member) {
+        return member.isOwner() || isPublic[index]
+                || Permissions.hasPermission(permissions, PermissionType.VIEW_CHANNELS);
+    }
+
+    private static void or(long[] permissions, long[] row) {
+        if (row == null)
+            return;
+
+        for (int i = 0; i < permissions.length; i++)
+            permissions[i] |= row[i];
+    }
+
+    private static void writeColumn(Map<ObjectId, long[]> rows, Map<ObjectId, Long> overwrites, int index,
+            int size) {
+        if (overwrites == null)
+            return;
+
+        overwrites.forEach((id, permissions) -> rows.computeIfAbsent(id, key -> new long[size])[index] = permissions);
+    }
+
+    /**
+     * Copies the rows to the new size, clearing the column at the index and
+     * writing the given overwrites into it. Rows not touched by the column are
+     * shared when the size is unchanged.
+     */
+    private static Map<ObjectId, long[]> replaceColumn(Map<ObjectId, long[]> rows, Map<ObjectId, Long> overwrites,
+            int index, int size) {
+        Map<ObjectId, long[]> newRows = new HashMap<>(rows.size() * 2);
+        rows.forEach((id, row) -> {
+            boolean touched = row.length != size || row[index] != 0
+                    || (overwrites != null && overwrites.containsKey(id));
+            if (touched) {
+                row = Arrays.copyOf(row, size);
+                row[index] = 0;
+            }
+
+            newRows.put(id, row);
+        });
+        writeColumn(newRows, overwrites, index, size);
+        return newRows;
+    }
+}
@@ -32,7 +32,7 @@ public class ChannelView {
 
     public ChannelView(ServerChannel channel) {
         this.id = channel.getId().toHexString();
-        this.serverId = channel.getServer().getId().toHexString();
+        this.serverId = channel.getServerId().toHexString();
         this.name = channel.getName();
         this.category = channel.getCategory();
         this.description = channel.getDescription();
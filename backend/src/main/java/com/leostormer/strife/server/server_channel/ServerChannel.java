@@ -3,6 +3,7 @@ package com.leostormer.strife.server.server_channel;
 import java.util.Map;
 
 import org.bson.types.ObjectId;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
 import org.springframework.data.mongodb.core.mapping.DocumentReference;
 
 import com.leostormer.strife.channel.Channel;
@@ -64,7 +65,7 @@ public class ServerChannel extends Channel {
             permissions |= rolePermissions.getOrDefault(roleId, Permissions.NONE);
         }
 
-        return permissions | userPermissions.getOrDefault(member.getUser().getId(), Permissions.NONE);
+        return permissions | userPermissions.getOrDefault(member.getUserId(), Permissions.NONE);
     }
 
     public void setPermissions(Role role, long permissions) {
@@ -74,4 +75,16 @@ public class ServerChannel extends Channel {
     public void setPermissions(User user, long permissions) {
         userPermissions.put(user.getId(), permissions);
     }
+
+    /**
+     * Returns the id of the server without resolving a lazily loaded reference.
+     *
+     * @return the server's id
+     */
+    public ObjectId getServerId() {
+        if (server instanceof LazyLoadingProxy proxy && proxy.getSource() instanceof ObjectId serverId)
+            return serverId;
+
+        return server == null ? null : server.getId();
+    }
 }
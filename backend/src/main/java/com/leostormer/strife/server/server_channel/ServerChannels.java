@@ -0,0 +1,17 @@
+package com.leostormer.strife.server.server_channel;
+
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Everything a {@link ChannelPermissionMatrix} is compiled from, read in one
+ * round trip.
+ *
+ * @param channels all channels of the server
+ * @param roleIds  the ids of the server's roles
+ * @see com.leostormer.strife.server.CustomServerRepository#findChannelsAndRolesOfServer
+ */
+public record ServerChannels(List<ServerChannel> channels, Set<ObjectId> roleIds) {
+}
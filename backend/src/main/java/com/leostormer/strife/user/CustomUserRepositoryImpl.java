@@ -16,11 +16,32 @@ import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Repository;
 
+import com.leostormer.strife.message.MessageTailCache;
+
 @Repository
 public class CustomUserRepositoryImpl implements CustomUserRepository {
     @Autowired
     private MongoTemplate mongoTemplate;
 
+    /**
+     * Absent in repository-only contexts, where there is nothing to evict.
+     */
+    @Autowired(required = false)
+    private UserCache userCache;
+
+    /**
+     * Holds snapshots of message senders, which go stale when a user's
+     * details change.
+     */
+    @Autowired(required = false)
+    private MessageTailCache messageTailCache;
+
+    private void evict(ObjectId... userIds) {
+        if (userCache != null)
+            for (ObjectId userId : userIds)
+                userCache.evict(userId);
+    }
+
     @NonNull
     private Update getUpdateObject(UserUpdate userUpdate) {
         Update update = new Update();
@@ -54,8 +75,12 @@ public class CustomUserRepositoryImpl implements CustomUserRepository {
 
     @Override
     public User updateUserDetails(ObjectId userId, UserUpdate userUpdate) {
-        return mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(userId)), getUpdateObject(userUpdate),
-                FindAndModifyOptions.options().returnNew(true), User.class);
+        User user = mongoTemplate.findAndModify(new Query(Criteria.where("_id").is(userId)),
+                getUpdateObject(userUpdate), FindAndModifyOptions.options().returnNew(true), User.class);
+        evict(userId);
+        if (messageTailCache != null)
+            messageTailCache.onSenderChanged(userId);
+        return user;
     }
 
     @Override
@@ -110,6 +135,7 @@ public class CustomUserRepositoryImpl implements CustomUserRepository {
                 new Update().addToSet("friends", otherUserId), User.class);
         mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(otherUserId)),
                 new Update().addToSet("friends", userId), User.class);
+        evict(userId, otherUserId);
     }
 
     @Override
@@ -118,6 +144,7 @@ public class CustomUserRepositoryImpl implements CustomUserRepository {
                 new Update().pull("friends", otherUserId), User.class);
         mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(otherUserId)),
                 new Update().pull("friends", userId), User.class);
+        evict(userId, otherUserId);
     }
 
     @Override
@@ -126,11 +153,13 @@ public class CustomUserRepositoryImpl implements CustomUserRepository {
                 new Update().pull("friends", userToBlockId).addToSet("blockedUsers", userToBlockId), User.class);
         mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(userToBlockId)),
                 new Update().pull("friends", userId), User.class);
+        evict(userId, userToBlockId);
     }
 
     @Override
     public void unblockUser(ObjectId userId, ObjectId userToUnblockId) {
         mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(userId)),
                 new Update().pull("blockedUsers", userToUnblockId), User.class);
+        evict(userId);
     }
 }
@@ -0,0 +1,179 @@
+package com.leostormer.strife.user;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.MongoMappingEvent;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+
+import com.leostormer.strife.cache.StampedLruCache;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Getter;
+
+/**
+ * Keeps the users behind recently authenticated principals in memory, keyed
+ * by the principal's name, so resolving the current user at the start of
+ * every request does not need a database round trip.
+ * <p>
+ * At most <code>app.users.cache.max-entries</code> users are kept, evicted
+ * least recently used first. Saves and deletes of users are picked up from
+ * the mapping events of the users collection; updates made with queries
+ * (details, friends, blocks) must evict the user explicitly.
+ */
+@Component
+public class UserCache implements ApplicationListener<MongoMappingEvent<?>>, MeterBinder {
+    private static final String COLLECTION = "users";
+
+    @Getter
+    private final boolean enabled;
+
+    /**
+     * Cached users by email.
+     */
+    private final StampedLruCache<String, User> users;
+
+    private final Map<ObjectId, String> emailsById = new ConcurrentHashMap<>();
+
+    public UserCache(@Value("${app.users.cache.enabled:true}") boolean enabled,
+            @Value("${app.users.cache.max-entries:10000}") int maxEntries) {
+        this.enabled = enabled && maxEntries > 0;
+        this.users = StampedLruCache.ofMaxEntries(maxEntries, new StampedLruCache.Listener<>() {
+            @Override
+            public void onAdded(String email, User user) {
+                emailsById.put(user.getId(), email);
+            }
+
+            @Override
+            public void onRemoved(String email, User user) {
+                emailsById.remove(user.getId());
+            }
+        });
+    }
+
+    /**
+     * Returns the user with an email, loading it on a miss. Unknown emails are
+     * not cached.
+     *
+     * @param email  the user's email, as used for the principal's name
+     * @param loader loads the user from the database
+     * @return a copy of the user that may be modified freely
+     */
+    public Optional<User> get(String email, Supplier<Optional<User>> loader) {
+        if (!enabled)
+            return loader.get();
+
+        User cached = users.get(email);
+        if (cached != null)
+            return Optional.of(copy(cached));
+
+        long stamp = users.stamp(email);
+        Optional<User> loaded = loader.get();
+        loaded.filter(user -> email.equals(user.getEmail()))
+                .ifPresent(user -> users.putIfUnchanged(email, copy(user), stamp));
+        return loaded;
+    }
+
+    /**
+     * Forgets a user after it was written. Within a transaction the user is
+     * forgotten again once the transaction completes.
+     *
+     * @param userId the user's id
+     */
+    public void evict(ObjectId userId) {
+        StampedLruCache.evictAndRepeatAfterCompletion(() -> {
+            String email = emailsById.get(userId);
+
+            // An uncached user may still be being loaded, so every load in flight is discarded
+            if (email != null) {
+                users.invalidate(email);
+            } else {
+                users.discardLoads();
+            }
+        });
+    }
+
+    /**
+     * Forgets every user.
+     */
+    public void clear() {
+        users.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return users.getHitCount();
+    }
+
+    public long getMissCount() {
+        return users.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return users.getEvictionCount();
+    }
+
+    public int getSize() {
+        return users.size();
+    }
+
+    /**
+     * Translates saves and deletes of users into evictions. Deletes by id are
+     * applied precisely, anything else drops the whole cache.
+     */
+    @Override
+    public void onApplicationEvent(@NonNull MongoMappingEvent<?> event) {
+        if (!COLLECTION.equals(event.getCollectionName()))
+            return;
+
+        if (event instanceof AfterSaveEvent<?> saveEvent) {
+            Document document = saveEvent.getDocument();
+            if (document != null && document.get("_id") instanceof ObjectId userId) {
+                evict(userId);
+            } else {
+                clear();
+            }
+        } else if (event instanceof AfterDeleteEvent<?> deleteEvent) {
+            Document query = deleteEvent.getSource();
+            if (query.size() == 1 && query.get("_id") instanceof ObjectId userId) {
+                evict(userId);
+            } else if (query.size() == 1 && query.get("_id") instanceof Document in
+                    && in.get("$in") instanceof List<?> userIds) {
+                userIds.stream().filter(ObjectId.class::isInstance).map(ObjectId.class::cast).forEach(this::evict);
+            } else {
+                clear();
+            }
+        }
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        FunctionCounter.builder("strife.users.cache.requests", this, UserCache::getHitCount)
+                .tag("result", "hit").description("Principal lookups served from memory").register(registry);
+        FunctionCounter.builder("strife.users.cache.requests", this, UserCache::getMissCount)
+                .tag("result", "miss").description("Principal lookups that had to query the database")
+                .register(registry);
+        FunctionCounter.builder("strife.users.cache.evictions", this, UserCache::getEvictionCount)
+                .description("Users evicted to stay within the entry limit").register(registry);
+        Gauge.builder("strife.users.cache.size", this, UserCache::getSize)
+                .description("Number of cached users").register(registry);
+    }
+
+    private static User copy(User user) {
+        return new User(user.getId(), user.getUsername(), user.getPassword(), user.getEmail(), user.getProfilePic(),
+                user.getCreatedDate(), new HashSet<>(user.getBlockedUsers()), new HashSet<>(user.getFriends()));
+    }
+}
@@ -48,6 +48,8 @@ public class UserService implements UserDetailsService {
     private SecurityContextRepository securityContextRepository;
     @Autowired
     private final MemberService memberService;
+    @Autowired
+    private final UserCache userCache;
 
     public List<Server> getJoinedServers(User user) {
         return memberService.getServersByUserId(user.getId());
@@ -56,7 +58,8 @@ public class UserService implements UserDetailsService {
     public User getUser(Principal principal) {
         // currently authenticated principal should always correspond to an
         // active user in database
-        return userRepository.findOneByEmail(principal.getName()).get();
+        String email = principal.getName();
+        return userCache.get(email, () -> userRepository.findOneByEmail(email)).get();
     }
 
     @SuppressWarnings("null")
@@ -0,0 +1,293 @@
+package com.leostormer.strife.websocket;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.lang.NonNull;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Writes the outbound frames of every WebSocket session from a small pool of
+ * threads, so the broker's threads only queue frames and are never held up by
+ * slow clients.
+ * <p>
+ * Frames sent to a session within <code>app.websocket.outbound.coalesce-window</code>
+ * of each other are written as one WebSocket message of at most
+ * <code>app.websocket.outbound.max-write-size</code>. Each session queues at
+ * most <code>app.websocket.outbound.queue-capacity</code> frames, beyond which
+ * its {@link SlowConsumerPolicy} applies.
+ */
+@Component
+public class OutboundScheduler implements WebSocketHandlerDecoratorFactory, DisposableBean, MeterBinder {
+    private final long windowNanos;
+
+    private final int queueCapacity;
+
+    private final int maxWriteSize;
+
+    private final SlowConsumerPolicy policy;
+
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, OutboundSession> sessions = new ConcurrentHashMap<>();
+
+    private final Map<String, Gauge> sessionGauges = new ConcurrentHashMap<>();
+
+    private final AtomicLong frames = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong disconnects = new AtomicLong();
+
+    private final AtomicLong resyncs = new AtomicLong();
+
+    private volatile MeterRegistry meterRegistry;
+
+    public OutboundScheduler(@Value("${app.websocket.outbound.coalesce-window:5ms}") Duration window,
+            @Value("${app.websocket.outbound.queue-capacity:1000}") int queueCapacity,
+            @Value("${app.websocket.outbound.max-write-size:64KB}") DataSize maxWriteSize,
+            @Value("${app.websocket.outbound.slow-consumer-policy:disconnect}") String policy,
+            @Value("${app.websocket.outbound.threads:4}") int threads) {
+        this.windowNanos = window.toNanos();
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.maxWriteSize = (int) Math.min(Integer.MAX_VALUE, maxWriteSize.toBytes());
+        this.policy = SlowConsumerPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "websocket-outbound-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    @NonNull
+    public WebSocketHandler decorate(@NonNull WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+            @Override
+            public void afterConnectionEstablished(@NonNull WebSocketSession session) throws Exception {
+                super.afterConnectionEstablished(open(session));
+            }
+
+            @Override
+            public void handleMessage(@NonNull WebSocketSession session, @NonNull WebSocketMessage<?> message)
+                    throws Exception {
+                super.handleMessage(find(session), message);
+            }
+
+            @Override
+            public void handleTransportError(@NonNull WebSocketSession session, @NonNull Throwable exception)
+                    throws Exception {
+                super.handleTransportError(find(session), exception);
+            }
+
+            @Override
+            public void afterConnectionClosed(@NonNull WebSocketSession session, @NonNull CloseStatus closeStatus)
+                    throws Exception {
+                super.afterConnectionClosed(close(session), closeStatus);
+            }
+        };
+    }
+
+    /**
+     * Wraps a newly connected session so its outbound frames are queued.
+     *
+     * @param session the session
+     * @return the wrapped session, to be used in place of the original
+     */
+    WebSocketSession open(WebSocketSession session) {
+        OutboundSession outbound = new OutboundSession(session, this);
+        sessions.put(session.getId(), outbound);
+        MeterRegistry registry = meterRegistry;
+        if (registry != null)
+            sessionGauges.put(session.getId(), sessionGauge(registry, outbound));
+
+        return outbound;
+    }
+
+    /**
+     * Forgets a session once it is closed, dropping the frames it still had
+     * queued.
+     *
+     * @param session the session
+     * @return the wrapped session, or the original if it was not wrapped
+     */
+    WebSocketSession close(WebSocketSession session) {
+        OutboundSession outbound = sessions.remove(session.getId());
+        Gauge gauge = sessionGauges.remove(session.getId());
+        MeterRegistry registry = meterRegistry;
+        if (gauge != null && registry != null)
+            registry.remove(gauge);
+        if (outbound == null)
+            return session;
+
+        outbound.closed();
+        return outbound;
+    }
+
+    private WebSocketSession find(WebSocketSession session) {
+        OutboundSession outbound = sessions.get(session.getId());
+        return outbound == null ? session : outbound;
+    }
+
+    /**
+     * Makes a session write binary WebSocket messages. SockJS sessions can only
+     * carry text, so they are left as they are.
+     *
+     * @param sessionId the session's id
+     * @return whether the session now writes binary messages
+     */
+    boolean useBinaryMessages(String sessionId) {
+        OutboundSession outbound = sessions.get(sessionId);
+        if (outbound == null || WebSocketSessionDecorator.unwrap(outbound) instanceof SockJsSession)
+            return false;
+
+        outbound.useBinaryMessages();
+        return true;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    int getMaxWriteSize() {
+        return maxWriteSize;
+    }
+
+    SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    void scheduleDrain(OutboundSession session) {
+        try {
+            executor.schedule(session::drain, windowNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the session is about to be closed
+        }
+    }
+
+    void drainNow(OutboundSession session) {
+        try {
+            executor.execute(session::drain);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the session is about to be closed
+        }
+    }
+
+    void recordWrite(int writtenFrames) {
+        frames.addAndGet(writtenFrames);
+        writes.incrementAndGet();
+    }
+
+    void recordDropped(int droppedFrames) {
+        dropped.addAndGet(droppedFrames);
+    }
+
+    void recordDisconnect() {
+        disconnects.incrementAndGet();
+    }
+
+    void recordResync() {
+        resyncs.incrementAndGet();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getQueuedFrameCount() {
+        long queued = 0;
+        for (OutboundSession session : sessions.values())
+            queued += session.getQueueSize();
+
+        return queued;
+    }
+
+    public int getLargestQueueSize() {
+        int largest = 0;
+        for (OutboundSession session : sessions.values())
+            largest = Math.max(largest, session.getQueueSize());
+
+        return largest;
+    }
+
+    public long getFrameCount() {
+        return frames.get();
+    }
+
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    public long getDroppedFrameCount() {
+        return dropped.get();
+    }
+
+    public long getDisconnectCount() {
+        return disconnects.get();
+    }
+
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        meterRegistry = registry;
+        sessions.values().forEach(session -> sessionGauges.put(session.getId(), sessionGauge(registry, session)));
+
+        Gauge.builder("strife.websocket.outbound.sessions", this, OutboundScheduler::getSessionCount)
+                .description("WebSocket sessions with an outbound queue").register(registry);
+        Gauge.builder("strife.websocket.outbound.queued", this, OutboundScheduler::getQueuedFrameCount)
+                .description("Frames queued for all WebSocket sessions").register(registry);
+        Gauge.builder("strife.websocket.outbound.queued.max", this, OutboundScheduler::getLargestQueueSize)
+                .description("Frames queued for the WebSocket session furthest behind").register(registry);
+        FunctionCounter.builder("strife.websocket.outbound.frames", this, OutboundScheduler::getFrameCount)
+                .description("Frames written to WebSocket sessions").register(registry);
+        FunctionCounter.builder("strife.websocket.outbound.writes", this, OutboundScheduler::getWriteCount)
+                .description("WebSocket messages written, each holding one or more frames").register(registry);
+        FunctionCounter.builder("strife.websocket.outbound.dropped", this, OutboundScheduler::getDroppedFrameCount)
+                .description("Frames dropped because their session was too slow or closed").register(registry);
+        FunctionCounter.builder("strife.websocket.outbound.disconnects", this, OutboundScheduler::getDisconnectCount)
+                .description("Sessions closed for reading too slowly").register(registry);
+        FunctionCounter.builder("strife.websocket.outbound.resyncs", this, OutboundScheduler::getResyncCount)
+                .description("Times a slow session was told to reload its subscriptions").register(registry);
+    }
+
+    private static Gauge sessionGauge(MeterRegistry registry, OutboundSession session) {
+        return Gauge.builder("strife.websocket.outbound.session.queued", session, OutboundSession::getQueueSize)
+                .tag("session", session.getId()).description("Frames queued for one WebSocket session")
+                .register(registry);
+    }
+}
@@ -0,0 +1,308 @@
+package com.leostormer.strife.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompConversionException;
+import org.springframework.messaging.simp.stomp.StompDecoder;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+
+/**
+ * A session whose outbound frames are queued instead of written by the
+ * sending thread. The {@link OutboundScheduler} drains the queue shortly after
+ * the first frame arrives, writing every text frame queued by then as one
+ * WebSocket message. STOMP clients split such a message back into its frames.
+ * <p>
+ * Frames are combined into text messages unless the client negotiated a
+ * binary encoding, in which case they are combined into binary messages.
+ * <p>
+ * At most one drain of a session is scheduled or running at a time, so frames
+ * keep their order and the underlying session is only written by one thread.
+ */
+final class OutboundSession extends WebSocketSessionDecorator {
+    static final byte[] RESYNC_REQUIRED = "{\"type\":\"RESYNC_REQUIRED\"}".getBytes(StandardCharsets.UTF_8);
+
+    private static final StompDecoder DECODER = new StompDecoder();
+
+    private static final StompEncoder ENCODER = new StompEncoder();
+
+    private final OutboundScheduler scheduler;
+
+    private final Queue<WebSocketMessage<?>> queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger queueSize = new AtomicInteger();
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile boolean closed;
+
+    private volatile boolean binary;
+
+    private int resyncs;
+
+    OutboundSession(WebSocketSession session, OutboundScheduler scheduler) {
+        super(session);
+        this.scheduler = scheduler;
+    }
+
+    int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Makes the session write binary WebSocket messages, so frames may carry
+     * payloads that are not UTF-8 text. Text frames are unaffected, since STOMP
+     * clients read frames from either kind of message.
+     */
+    void useBinaryMessages() {
+        binary = true;
+    }
+
+    @Override
+    public void sendMessage(@NonNull WebSocketMessage<?> message) throws IOException {
+        if (closed)
+            return;
+
+        if (queueSize.incrementAndGet() > scheduler.getQueueCapacity()) {
+            queueSize.decrementAndGet();
+            overflow(message);
+            return;
+        }
+
+        queue.add(message);
+        if (drainScheduled.compareAndSet(false, true))
+            scheduler.scheduleDrain(this);
+    }
+
+    /**
+     * Writes what is queued, then schedules the next drain right away if more
+     * frames arrived in the meantime.
+     */
+    void drain() {
+        writeLock.lock();
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            abort();
+        } finally {
+            writeLock.unlock();
+        }
+
+        drainScheduled.set(false);
+        if (!closed && !queue.isEmpty() && drainScheduled.compareAndSet(false, true))
+            scheduler.drainNow(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        close(CloseStatus.NORMAL);
+    }
+
+    /**
+     * Writes the frames still queued, such as an ERROR frame, before closing.
+     */
+    @Override
+    public void close(@NonNull CloseStatus status) throws IOException {
+        if (closed)
+            return;
+
+        writeLock.lock();
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            // Closing anyway
+        } finally {
+            closed = true;
+            writeLock.unlock();
+        }
+
+        discardQueue();
+        super.close(status);
+    }
+
+    /**
+     * Stops sending once the session is gone.
+     */
+    void closed() {
+        closed = true;
+        discardQueue();
+    }
+
+    private void write() throws IOException {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        int batchFrames = 0;
+        for (WebSocketMessage<?> message; !closed && (message = poll()) != null;) {
+            byte[] bytes = coalescable(message);
+            if (bytes == null) {
+                writeBatch(batch, batchFrames);
+                batchFrames = 0;
+                send(message, 1);
+                continue;
+            }
+
+            if (batchFrames > 0 && batch.size() + bytes.length > scheduler.getMaxWriteSize()) {
+                writeBatch(batch, batchFrames);
+                batchFrames = 0;
+            }
+
+            batch.write(bytes);
+            batchFrames++;
+        }
+
+        writeBatch(batch, batchFrames);
+    }
+
+    /**
+     * Returns the bytes of a frame that can be combined with others, or
+     * <code>null</code> if it must be written on its own. Binary frames are only
+     * combined once the session writes binary messages.
+     */
+    private byte[] coalescable(WebSocketMessage<?> message) {
+        if (message instanceof TextMessage text)
+            return text.asBytes();
+        if (binary && message instanceof BinaryMessage binaryMessage) {
+            ByteBuffer payload = binaryMessage.getPayload().duplicate();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            return bytes;
+        }
+
+        return null;
+    }
+
+    private void writeBatch(ByteArrayOutputStream batch, int frames) throws IOException {
+        if (frames == 0)
+            return;
+
+        byte[] bytes = batch.toByteArray();
+        send(binary ? new BinaryMessage(bytes) : new TextMessage(bytes), frames);
+        batch.reset();
+    }
+
+    private void send(WebSocketMessage<?> message, int frames) throws IOException {
+        getDelegate().sendMessage(message);
+        scheduler.recordWrite(frames);
+    }
+
+    private WebSocketMessage<?> poll() {
+        WebSocketMessage<?> message = queue.poll();
+        if (message != null)
+            queueSize.decrementAndGet();
+
+        return message;
+    }
+
+    private synchronized void overflow(WebSocketMessage<?> message) {
+        switch (scheduler.getPolicy()) {
+            case DROP -> scheduler.recordDropped(1);
+            case DISCONNECT -> {
+                scheduler.recordDisconnect();
+                abort();
+            }
+            case RESYNC -> resync(message);
+        }
+    }
+
+    /**
+     * Replaces the queued messages with one resync message per subscription
+     * they were for. Other queued frames, such as heart-beats, are dropped
+     * along with them.
+     */
+    private void resync(WebSocketMessage<?> overflowing) {
+        List<WebSocketMessage<?>> dropped = new ArrayList<>();
+        for (WebSocketMessage<?> message; (message = poll()) != null;)
+            dropped.add(message);
+        dropped.add(overflowing);
+
+        Map<String, String> destinationsBySubscription = new LinkedHashMap<>();
+        for (WebSocketMessage<?> message : dropped) {
+            for (Message<byte[]> frame : decode(message)) {
+                StompHeaderAccessor headers = StompHeaderAccessor.wrap(frame);
+                if (headers.getCommand() == StompCommand.MESSAGE && headers.getSubscriptionId() != null)
+                    destinationsBySubscription.putIfAbsent(headers.getSubscriptionId(), headers.getDestination());
+            }
+        }
+
+        scheduler.recordDropped(dropped.size());
+        scheduler.recordResync();
+        destinationsBySubscription.forEach((subscriptionId, destination) -> {
+            queue.add(new TextMessage(resyncFrame(subscriptionId, destination)));
+            queueSize.incrementAndGet();
+        });
+        if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true))
+            scheduler.scheduleDrain(this);
+    }
+
+    private byte[] resyncFrame(String subscriptionId, String destination) {
+        StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        headers.setSubscriptionId(subscriptionId);
+        headers.setDestination(destination);
+        headers.setMessageId(getId() + "-resync-" + ++resyncs);
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        return ENCODER.encode(headers.getMessageHeaders(), RESYNC_REQUIRED);
+    }
+
+    private static List<Message<byte[]>> decode(WebSocketMessage<?> message) {
+        ByteBuffer bytes;
+        if (message instanceof TextMessage text)
+            bytes = ByteBuffer.wrap(text.asBytes());
+        else if (message instanceof BinaryMessage binary)
+            bytes = binary.getPayload().duplicate();
+        else
+            return List.of();
+
+        try {
+            return DECODER.decode(bytes);
+        } catch (StompConversionException e) {
+            return List.of();
+        }
+    }
+
+    /**
+     * Closes the session without writing what is queued, even while a write to
+     * it is blocked.
+     */
+    private void abort() {
+        if (closed)
+            return;
+
+        closed();
+        try {
+            getDelegate().close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException | RuntimeException e) {
+            // Already closed
+        }
+    }
+
+    private void discardQueue() {
+        int discarded = 0;
+        while (poll() != null)
+            discarded++;
+
+        scheduler.recordDropped(discarded);
+    }
+}
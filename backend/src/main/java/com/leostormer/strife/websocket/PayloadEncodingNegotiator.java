@@ -0,0 +1,204 @@
+package com.leostormer.strife.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Lets each STOMP connection choose how the payloads sent to it are encoded.
+ * JSON is the default. A client that sends <code>content-type:application/cbor</code>
+ * on its CONNECT frame receives CBOR instead, as binary WebSocket messages.
+ * Connections through SockJS can only carry text, so they stay on JSON.
+ * <p>
+ * Events are still converted to JSON once for all subscribers. Messages to a
+ * CBOR session are transcoded on their way out, and since the broker shares
+ * one payload between all subscribers, each payload is transcoded once
+ * however many CBOR sessions receive it. Every message states its encoding in
+ * its <code>content-type</code> header.
+ */
+@Component
+public class PayloadEncodingNegotiator implements MeterBinder {
+    public static final MimeType APPLICATION_CBOR = MimeType.valueOf("application/cbor");
+
+    private static final int TRANSCODED_CACHE_SIZE = 64;
+
+    private final OutboundScheduler outboundScheduler;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final CBORFactory cborFactory = new CBORFactory();
+
+    private final Map<String, MimeType> encodingsBySession = new ConcurrentHashMap<>();
+
+    /**
+     * The CBOR encoding of recently sent JSON payloads. Arrays compare by
+     * identity, so a payload shared between subscribers is looked up without
+     * reading its bytes.
+     */
+    private final Map<byte[], byte[]> transcoded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<byte[], byte[]> eldest) {
+            return size() > TRANSCODED_CACHE_SIZE;
+        }
+    };
+
+    private volatile long transcodes;
+
+    private volatile long transcodeCacheHits;
+
+    public PayloadEncodingNegotiator(OutboundScheduler outboundScheduler) {
+        this.outboundScheduler = outboundScheduler;
+    }
+
+    /**
+     * Records the encoding each session asks for when it connects, and forgets
+     * it once the session disconnects.
+     */
+    public ChannelInterceptor getInboundInterceptor() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(@NonNull Message<?> message, @NonNull MessageChannel channel) {
+                StompHeaderAccessor headers = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+                if (headers == null || headers.getSessionId() == null)
+                    return message;
+
+                if (headers.getCommand() == StompCommand.CONNECT)
+                    negotiate(headers.getSessionId(), headers.getContentType());
+                else if (headers.getCommand() == StompCommand.DISCONNECT)
+                    encodingsBySession.remove(headers.getSessionId());
+
+                return message;
+            }
+        };
+    }
+
+    /**
+     * Transcodes the messages for sessions that chose CBOR.
+     */
+    public ChannelInterceptor getOutboundInterceptor() {
+        return new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(@NonNull Message<?> message, @NonNull MessageChannel channel) {
+                return encodeForSession(message);
+            }
+        };
+    }
+
+    /**
+     * Returns the encoding negotiated by a session.
+     *
+     * @param sessionId the session's id
+     * @return the encoding, JSON unless the session chose otherwise
+     */
+    public MimeType getEncoding(String sessionId) {
+        return encodingsBySession.getOrDefault(sessionId, MimeTypeUtils.APPLICATION_JSON);
+    }
+
+    void negotiate(String sessionId, MimeType requested) {
+        if (requested != null && APPLICATION_CBOR.equalsTypeAndSubtype(requested)
+                && outboundScheduler.useBinaryMessages(sessionId))
+            encodingsBySession.put(sessionId, APPLICATION_CBOR);
+    }
+
+    Message<?> encodeForSession(Message<?> message) {
+        SimpMessageHeaderAccessor headers = MessageHeaderAccessor.getAccessor(message, SimpMessageHeaderAccessor.class);
+        if (headers == null || headers.getMessageType() != SimpMessageType.MESSAGE || headers.getSessionId() == null
+                || !encodingsBySession.containsKey(headers.getSessionId()))
+            return message;
+
+        MimeType contentType = headers.getContentType();
+        if (contentType == null || !MimeTypeUtils.APPLICATION_JSON.equalsTypeAndSubtype(contentType)
+                || !(message.getPayload() instanceof byte[] json))
+            return message;
+
+        MessageHeaderAccessor encodedHeaders = MessageHeaderAccessor.getMutableAccessor(message);
+        encodedHeaders.setContentType(APPLICATION_CBOR);
+        return MessageBuilder.createMessage(toCbor(json), encodedHeaders.getMessageHeaders());
+    }
+
+    private byte[] toCbor(byte[] json) {
+        synchronized (transcoded) {
+            byte[] cbor = transcoded.get(json);
+            if (cbor != null) {
+                transcodeCacheHits++;
+                return cbor;
+            }
+        }
+
+        byte[] cbor = transcode(json);
+        synchronized (transcoded) {
+            transcoded.put(json, cbor);
+            transcodes++;
+        }
+
+        return cbor;
+    }
+
+    /**
+     * Rewrites a JSON document as CBOR token by token, without binding it to
+     * any class.
+     */
+    byte[] transcode(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+        try (JsonParser parser = jsonFactory.createParser(json);
+                JsonGenerator generator = cborFactory.createGenerator(out)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        } catch (IOException e) {
+            throw new MessageConversionException("Cannot transcode JSON payload to CBOR", e);
+        }
+
+        return out.toByteArray();
+    }
+
+    public int getCborSessionCount() {
+        return encodingsBySession.size();
+    }
+
+    public long getTranscodeCount() {
+        return transcodes;
+    }
+
+    public long getTranscodeCacheHitCount() {
+        return transcodeCacheHits;
+    }
+
+    @Override
+    public void bindTo(@NonNull MeterRegistry registry) {
+        Gauge.builder("strife.websocket.encoding.cbor_sessions", this, PayloadEncodingNegotiator::getCborSessionCount)
+                .description("WebSocket sessions that negotiated CBOR payloads").register(registry);
+        FunctionCounter.builder("strife.websocket.encoding.transcodes", this,
+                PayloadEncodingNegotiator::getTranscodeCount)
+                .description("JSON payloads transcoded to CBOR").register(registry);
+        FunctionCounter.builder("strife.websocket.encoding.transcode_cache_hits", this,
+                PayloadEncodingNegotiator::getTranscodeCacheHitCount)
+                .description("CBOR payloads reused for another subscriber").register(registry);
+    }
+}
@@ -0,0 +1,24 @@
+package com.leostormer.strife.websocket;
+
+/**
+ * What happens to a session whose outbound queue is full, because its client
+ * reads frames slower than they are sent. Selected with
+ * <code>app.websocket.outbound.slow-consumer-policy</code>.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Frames that do not fit are dropped. The client silently misses them.
+     */
+    DROP,
+    /**
+     * The session is closed. The client reconnects and loads the current state
+     * again.
+     */
+    DISCONNECT,
+    /**
+     * Every queued message is dropped and each subscription that lost messages
+     * is sent a single <code>{"type":"RESYNC_REQUIRED"}</code> message instead,
+     * telling the client to reload what it shows for that subscription.
+     */
+    RESYNC
+}
@@ -5,7 +5,7 @@ import org.springframework.test.context.DynamicPropertySource;
 import org.testcontainers.containers.MongoDBContainer;
 
 public class BaseMongoTest {
-    static MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:8.0");
+    protected static MongoDBContainer mongoDBContainer = new MongoDBContainer("mongo:8.0");
 
     @DynamicPropertySource
     static void configureProperties(DynamicPropertyRegistry registry) {
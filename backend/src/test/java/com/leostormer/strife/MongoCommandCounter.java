@@ -0,0 +1,64 @@
+package com.leostormer.strife;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonValue;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.lang.NonNull;
+
+import com.mongodb.MongoClientSettings.Builder;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+
+/**
+ * Counts the commands sent to MongoDB. Import it into a test context to
+ * assert how many round trips an operation costs.
+ */
+public class MongoCommandCounter implements CommandListener, MongoClientSettingsBuilderCustomizer {
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final Map<String, AtomicInteger> countsByName = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicInteger> countsByCollection = new ConcurrentHashMap<>();
+
+    @Override
+    public void customize(@NonNull Builder clientSettingsBuilder) {
+        clientSettingsBuilder.addCommandListener(this);
+    }
+
+    @Override
+    public void commandStarted(@NonNull CommandStartedEvent event) {
+        count.incrementAndGet();
+        countsByName.computeIfAbsent(event.getCommandName(), name -> new AtomicInteger()).incrementAndGet();
+        BsonValue collection = event.getCommand().get(event.getCommandName());
+        if (collection != null && collection.isString())
+            countsByCollection.computeIfAbsent(collection.asString().getValue(), name -> new AtomicInteger())
+                    .incrementAndGet();
+    }
+
+    public void reset() {
+        count.set(0);
+        countsByName.clear();
+        countsByCollection.clear();
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    public int getCount(String commandName) {
+        AtomicInteger commandCount = countsByName.get(commandName);
+        return commandCount == null ? 0 : commandCount.get();
+    }
+
+    /**
+     * Returns the number of commands that targeted a collection, such as
+     * finds, aggregations and writes.
+     */
+    public int getCollectionCount(String collection) {
+        AtomicInteger collectionCount = countsByCollection.get(collection);
+        return collectionCount == null ? 0 : collectionCount.get();
+    }
+}
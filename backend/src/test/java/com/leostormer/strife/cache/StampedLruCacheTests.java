@@ -0,0 +1,104 @@
+package com.leostormer.strife.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class StampedLruCacheTests {
+    @Test
+    void shouldEvictLeastRecentlyUsedEntries() {
+        StampedLruCache<String, String> cache = StampedLruCache.ofMaxEntries(2);
+        cache.putIfUnchanged("a", "A", cache.stamp("a"));
+        cache.putIfUnchanged("b", "B", cache.stamp("b"));
+        cache.get("a");
+        cache.putIfUnchanged("c", "C", cache.stamp("c"));
+
+        assertEquals("A", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("C", cache.get("c"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void shouldNotCacheLoadsRacingWrites() {
+        StampedLruCache<String, String> cache = StampedLruCache.ofMaxEntries(10);
+        long stamp = cache.stamp("a");
+        cache.invalidate("a");
+        cache.putIfUnchanged("a", "stale", stamp);
+        assertNull(cache.getIfPresent("a"));
+
+        stamp = cache.stamp("b");
+        cache.invalidateIf((key, value) -> false);
+        cache.putIfUnchanged("b", "stale", stamp);
+        assertNull(cache.getIfPresent("b"));
+
+        stamp = cache.stamp("c");
+        cache.update("c", value -> "changed");
+        cache.putIfUnchanged("c", "stale", stamp);
+        assertNull(cache.getIfPresent("c"));
+    }
+
+    @Test
+    void shouldReweighUpdatedEntries() {
+        StampedLruCache<String, List<Integer>> cache = StampedLruCache.ofMaxWeight(5, List::size,
+                new StampedLruCache.Listener<>() {
+                });
+        cache.putIfUnchanged("a", new ArrayList<>(List.of(1, 2)), cache.stamp("a"));
+        cache.putIfUnchanged("b", new ArrayList<>(List.of(1, 2)), cache.stamp("b"));
+        assertEquals(4, cache.getWeight());
+
+        cache.update("b", values -> {
+            values.add(3);
+            return values;
+        });
+        assertEquals(5, cache.getWeight());
+
+        cache.update("b", values -> {
+            values.add(4);
+            return values;
+        });
+        assertNull(cache.getIfPresent("a"));
+        assertEquals(4, cache.getWeight());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void shouldTellListenerOfEveryAddedAndRemovedEntry() {
+        Map<String, String> index = new HashMap<>();
+        StampedLruCache<String, String> cache = StampedLruCache.ofMaxEntries(2, new StampedLruCache.Listener<>() {
+            @Override
+            public void onAdded(String key, String value) {
+                index.put(value, key);
+            }
+
+            @Override
+            public void onRemoved(String key, String value) {
+                index.remove(value);
+            }
+        });
+
+        cache.putIfUnchanged("a", "A", cache.stamp("a"));
+        cache.putIfUnchanged("b", "B", cache.stamp("b"));
+        cache.putIfUnchanged("b", "B2", cache.stamp("b"));
+        assertEquals(Map.of("A", "a", "B2", "b"), index);
+
+        cache.update("a", value -> "A2");
+        cache.putIfUnchanged("c", "C", cache.stamp("c"));
+        assertEquals(Map.of("A2", "a", "C", "c"), index);
+
+        cache.invalidateIf((key, value) -> key.equals("c"));
+        assertEquals(Map.of("A2", "a"), index);
+
+        cache.invalidateAll();
+        assertEquals(Map.of(), index);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,123 @@
+package com.leostormer.strife.cluster;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import com.leostormer.strife.config.WebSocketConfig;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.server.Server;
+import com.leostormer.strife.server.ServerUpdateMessage;
+import com.leostormer.strife.server.ServerView;
+import com.leostormer.strife.server.role.Role;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserView;
+
+/**
+ * Compares the allocations and CPU time of sending one event to 10k users
+ * with <code>convertAndSendToUser</code>, which converts it for every user,
+ * and with an {@link EncodedPayload} converted once. The broker channel
+ * discards the messages, so only the cost of the sends is measured. Run with
+ * <code>mvn test -Dtest=BroadcastEncodingBenchmark -Dbenchmark=true</code>.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class BroadcastEncodingBenchmark {
+    static final int NUM_SUBSCRIBERS = 10_000;
+
+    static final int WARMUP_ROUNDS = 10;
+
+    static final int ROUNDS = 30;
+
+    static final String DESTINATION = "/queue/server-updates";
+
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+
+    SimpMessagingTemplate messagingTemplate;
+
+    List<String> users;
+
+    @BeforeEach
+    void setup() {
+        List<MessageConverter> converters = new ArrayList<>();
+        new WebSocketConfig(new String[0], null, null).configureMessageConverters(converters);
+        messagingTemplate = new SimpMessagingTemplate((message, timeout) -> true);
+        messagingTemplate.setMessageConverter(new CompositeMessageConverter(converters));
+
+        users = new ArrayList<>();
+        for (int i = 0; i < NUM_SUBSCRIBERS; i++)
+            users.add("user" + i + "@example.com");
+    }
+
+    @Test
+    void serverUpdateMessage() {
+        User owner = new User();
+        owner.setId(new ObjectId());
+        owner.setUsername("Benchmark");
+        owner.setCreatedDate(new Date());
+        Server server = new Server();
+        server.setId(new ObjectId());
+        server.setName("Benchmark server");
+        server.setDescription("A server with a few roles");
+        server.setOwner(owner);
+        for (int i = 0; i < 5; i++) {
+            Role role = new Role(new ObjectId(), "Role " + i, i, 1L << i);
+            server.getRoles().put(role.getId(), role);
+        }
+
+        run("ServerUpdateMessage", ServerUpdateMessage.serverAdded(new ServerView(server)));
+    }
+
+    @Test
+    void messageView() {
+        UserView sender = new UserView(new ObjectId().toHexString(), "Benchmark", null, new Date());
+        run("MessageView", new MessageView(new ObjectId().toHexString(), "Benchmark message ".repeat(12), new Date(),
+                sender, new ObjectId().toHexString(), Map.of("thumbsup", 3L, "party", 1L)));
+    }
+
+    @SuppressWarnings("null")
+    private void run(String name, Object payload) {
+        long[] perUser = measure(event -> {
+            for (String user : users)
+                messagingTemplate.convertAndSendToUser(user, DESTINATION, event);
+        }, payload);
+        long[] once = measure(event -> {
+            EncodedPayload encoded = EncodedPayload.encode(messagingTemplate.getMessageConverter(), event);
+            for (String user : users)
+                messagingTemplate.send(TopicBroadcaster.userDestination(user, DESTINATION), encoded.toMessage());
+        }, payload);
+
+        System.out.printf("%s to %d users: converted per user %.1f MB, %.1f ms CPU; converted once %.1f MB, "
+                + "%.1f ms CPU; %.0f%% less allocation, %.0f%% less CPU%n", name, NUM_SUBSCRIBERS,
+                perUser[0] / 1e6, perUser[1] / 1e6, once[0] / 1e6, once[1] / 1e6,
+                100.0 * (perUser[0] - once[0]) / perUser[0], 100.0 * (perUser[1] - once[1]) / perUser[1]);
+    }
+
+    /**
+     * Returns the bytes allocated and CPU nanoseconds spent by one round,
+     * averaged over the measured rounds.
+     */
+    private long[] measure(Consumer<Object> fanOut, Object payload) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            fanOut.accept(payload);
+
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < ROUNDS; i++)
+            fanOut.accept(payload);
+
+        return new long[] { (threads.getCurrentThreadAllocatedBytes() - allocatedBefore) / ROUNDS,
+                (threads.getCurrentThreadCpuTime() - cpuBefore) / ROUNDS };
+    }
+}
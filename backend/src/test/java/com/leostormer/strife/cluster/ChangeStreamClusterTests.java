@@ -0,0 +1,166 @@
+package com.leostormer.strife.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.lang.NonNull;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.AbstractSubscribableChannel;
+import org.springframework.messaging.support.ChannelInterceptor;
+
+import com.leostormer.strife.BaseMongoTest;
+import com.leostormer.strife.StrifeApplication;
+import com.leostormer.strife.TestUtils;
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.member.MemberService;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.server.Server;
+import com.leostormer.strife.server.ServerService;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserRepository;
+
+/**
+ * Runs two nodes as separate applications, each with its own web server,
+ * caches, fan-out and broker, sharing the test replica set. What node B's
+ * broker is asked to deliver is recorded.
+ */
+public class ChangeStreamClusterTests extends BaseMongoTest {
+    static ConfigurableApplicationContext nodeA;
+
+    static ConfigurableApplicationContext nodeB;
+
+    static final List<Message<?>> nodeBDeliveries = new CopyOnWriteArrayList<>();
+
+    User owner;
+
+    User joiner;
+
+    Server server;
+
+    ObjectId channelId;
+
+    @BeforeAll
+    static void startNodes() {
+        nodeA = startNode("node-a");
+        nodeB = startNode("node-b");
+        nodeB.getBean("brokerChannel", AbstractSubscribableChannel.class).addInterceptor(new ChannelInterceptor() {
+            @Override
+            public Message<?> preSend(@NonNull Message<?> message, @NonNull MessageChannel channel) {
+                nodeBDeliveries.add(message);
+                return message;
+            }
+        });
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        nodeB.close();
+        nodeA.close();
+    }
+
+    private static ConfigurableApplicationContext startNode(String nodeId) {
+        mongoDBContainer.start();
+        return new SpringApplicationBuilder(StrifeApplication.class).run("--server.port=0",
+                "--spring.devtools.restart.enabled=false",
+                "--spring.data.mongodb.uri=" + mongoDBContainer.getReplicaSetUrl(),
+                "--spring.data.mongodb.database=test", "--app.cluster.fan-out.mode=change-stream",
+                "--app.cluster.node-id=" + nodeId);
+    }
+
+    @BeforeEach
+    void setup() throws InterruptedException {
+        UserRepository userRepository = nodeA.getBean(UserRepository.class);
+        owner = TestUtils.createUser("clusterOwner", "", userRepository);
+        joiner = TestUtils.createUser("clusterJoiner", "", userRepository);
+        ServerService serverService = nodeA.getBean(ServerService.class);
+        server = serverService.createServer(owner, "Cluster", "Served by two nodes");
+        channelId = serverService.getChannels(owner, server.getId()).get(0).getId();
+
+        await(() -> nodeA.getBean(ChangeStreamFanOut.class).isConnected()
+                && nodeB.getBean(ChangeStreamFanOut.class).isConnected());
+    }
+
+    @AfterEach
+    void cleanup() {
+        nodeBDeliveries.clear();
+        MongoTemplate mongoTemplate = nodeA.getBean(MongoTemplate.class);
+        nodeA.getBean(MessageRepository.class).deleteAll();
+        mongoTemplate.remove(new Query(Criteria.where("server").is(server.getId())), Member.class);
+        mongoTemplate.remove(new Query(Criteria.where("server").is(server.getId())), ServerChannel.class);
+        mongoTemplate.remove(new Query(Criteria.where("_id").is(server.getId())), Server.class);
+        mongoTemplate.remove(new Query(Criteria.where("_id").in(owner.getId(), joiner.getId())), User.class);
+        mongoTemplate.remove(new Query(), ClusterBroadcast.class);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            if (condition.getAsBoolean())
+                return;
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Node B did not catch up in time");
+    }
+
+    private static List<Message<?>> deliveriesTo(String destination) {
+        return nodeBDeliveries.stream()
+                .filter(message -> destination.equals(SimpMessageHeaderAccessor.getDestination(message.getHeaders())))
+                .toList();
+    }
+
+    @Test
+    void shouldDeliverMessagesSentOnOneNodeToSubscribersOfTheOther() throws InterruptedException {
+        String topic = TopicBroadcaster.channelTopic(server.getId(), channelId);
+        com.leostormer.strife.message.Message sent = nodeA.getBean(ServerService.class).sendMessage(owner,
+                server.getId(), channelId, "Hello from node A");
+
+        await(() -> deliveriesTo(topic).stream().anyMatch(message -> message.getPayload() instanceof MessageView));
+        MessageView delivered = (MessageView) deliveriesTo(topic).stream()
+                .filter(message -> message.getPayload() instanceof MessageView).findFirst().get().getPayload();
+        assertEquals(sent.getId().toHexString(), delivered.getId());
+        assertEquals("Hello from node A", delivered.getContent());
+    }
+
+    @Test
+    void shouldForgetMembershipsChangedOnTheOtherNode() throws InterruptedException {
+        MemberService nodeBMembers = nodeB.getBean(MemberService.class);
+        assertTrue(nodeBMembers.getMember(joiner.getId(), server.getId()).isEmpty());
+
+        nodeA.getBean(ServerService.class).joinServer(joiner, server.getId());
+
+        await(() -> nodeBMembers.getMember(joiner.getId(), server.getId()).isPresent());
+    }
+
+    @Test
+    void shouldForgetChannelsChangedOnTheOtherNode() throws InterruptedException {
+        ServerService nodeBServers = nodeB.getBean(ServerService.class);
+        assertEquals(1, nodeBServers.getChannels(owner, server.getId()).size());
+
+        nodeA.getBean(ServerService.class).addChannel(owner, server.getId(), "second", "General",
+                "Added on node A", true);
+
+        await(() -> nodeBServers.getChannels(owner, server.getId()).size() == 2);
+    }
+}
@@ -0,0 +1,198 @@
+package com.leostormer.strife.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.util.unit.DataSize;
+
+import com.leostormer.strife.member.MemberCache;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.message.MessageTailCache;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.reaction.ReactionsUpdatedEvent;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.server.ServerUpdateMessage;
+import com.leostormer.strife.server.server_channel.ChannelPermissionCache;
+import com.leostormer.strife.user.UserCache;
+
+/**
+ * The application context is node A. Node B is a second fan-out with its own
+ * caches and broker, reading the same database. User events are only routed
+ * when flushed by the tests. {@link ChangeStreamClusterTests} runs both nodes
+ * as full applications.
+ */
+@TestPropertySource(properties = { "app.cluster.fan-out.mode=change-stream", "app.cluster.node-id=node-a",
+        "app.cluster.user-routing.flush-interval=1h" })
+public class ChangeStreamFanOutTests extends ServerServiceTestSetup {
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    ChangeStreamTopicBroadcaster topicBroadcaster;
+
+    final List<Message<?>> nodeBDeliveries = new CopyOnWriteArrayList<>();
+
+    MemberCache nodeBMemberCache;
+
+    ChangeStreamFanOut nodeB;
+
+    @BeforeEach
+    void startNodeB() throws InterruptedException {
+        nodeBMemberCache = new MemberCache(true, 100);
+        nodeB = startNode("node-b");
+    }
+
+    @AfterEach
+    void stopNodeB() throws InterruptedException {
+        nodeB.destroy();
+        messageRepository.deleteAll();
+        mongoTemplate.remove(new Query(), ChangeStreamPosition.class);
+        mongoTemplate.remove(new Query(), ClusterBroadcast.class);
+        mongoTemplate.remove(new Query(), UserSession.class);
+        mongoTemplate.remove(new Query(), UserDeliveryBatch.class);
+    }
+
+    private ChangeStreamFanOut startNode(String nodeId) throws InterruptedException {
+        SimpMessagingTemplate broker = new SimpMessagingTemplate((message, timeout) -> nodeBDeliveries.add(message));
+        ChangeStreamFanOut fanOut = new ChangeStreamFanOut(mongoTemplate, broker, nodeBMemberCache,
+                new ChannelPermissionCache(true, 100), new UserCache(true, 100),
+                new MessageTailCache(true, 100, DataSize.ofMegabytes(1)), nodeId, Duration.ofMillis(50),
+                Duration.ofSeconds(10));
+        fanOut.start();
+        await(fanOut::isConnected);
+        return fanOut;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            if (condition.getAsBoolean())
+                return;
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Node B did not catch up in time");
+    }
+
+    private List<Message<?>> deliveriesTo(String destination) {
+        return nodeBDeliveries.stream()
+                .filter(message -> destination.equals(SimpMessageHeaderAccessor.getDestination(message.getHeaders())))
+                .toList();
+    }
+
+    @Test
+    void shouldDeliverMessagesSentOnAnotherNode() throws InterruptedException {
+        String topic = TopicBroadcaster.channelTopic(existingServerId, channel1Id);
+        com.leostormer.strife.message.Message sent = serverService.sendMessage(basicMemberUser, existingServerId,
+                channel1Id, "Hello from node A");
+
+        await(() -> !deliveriesTo(topic).isEmpty());
+        MessageView delivered = (MessageView) deliveriesTo(topic).get(0).getPayload();
+        assertEquals(sent.getId().toHexString(), delivered.getId());
+        assertEquals("Hello from node A", delivered.getContent());
+        assertEquals(basicMemberUser.getUsername(), delivered.getSender().getUsername());
+    }
+
+    @Test
+    void shouldRelayBroadcastsToOtherNodes() throws InterruptedException {
+        String topic = TopicBroadcaster.channelTopic(existingServerId, channel2Id);
+        topicBroadcaster.broadcast(topic,
+                new ReactionsUpdatedEvent(channel2Id.toHexString(), Map.of("message", Map.of("party", 1L))));
+
+        await(() -> !deliveriesTo(topic).isEmpty());
+        String payload = new String((byte[]) deliveriesTo(topic).get(0).getPayload(), StandardCharsets.UTF_8);
+        assertTrue(payload.contains(ReactionsUpdatedEvent.TYPE));
+        assertTrue(payload.contains("party"));
+    }
+
+    @Test
+    void shouldEvictMembershipsChangedOnAnotherNode() throws InterruptedException {
+        nodeBMemberCache.get(nonMemberUser.getId(), existingServerId, Optional::empty);
+        assertEquals(1, nodeBMemberCache.getSize());
+
+        serverService.joinServer(nonMemberUser, existingServerId);
+
+        await(() -> nodeBMemberCache.getSize() == 0);
+    }
+
+    @Test
+    void shouldResumeFromSavedPositionAfterRestart() throws InterruptedException {
+        nodeB.destroy();
+        String topic = TopicBroadcaster.channelTopic(existingServerId, channel1Id);
+        serverService.sendMessage(basicMemberUser, existingServerId, channel1Id, "Sent while node B was down");
+        assertTrue(deliveriesTo(topic).isEmpty());
+
+        nodeB = startNode("node-b");
+
+        await(() -> !deliveriesTo(topic).isEmpty());
+        assertEquals("Sent while node B was down", ((MessageView) deliveriesTo(topic).get(0).getPayload()).getContent());
+    }
+
+    @Test
+    void shouldRouteUserEventsOnlyToNodesHoldingTheirSessions() throws InterruptedException {
+        mongoTemplate.save(new UserSession("node-b:1", "nodeBUser", "node-b", new Date()));
+        mongoTemplate.save(new UserSession("node-c:1", "nodeCUser", "node-c", new Date()));
+
+        topicBroadcaster.sendToUser("nodeBUser", "/queue/server-updates", ServerUpdateMessage.serverRemoved("b"));
+        topicBroadcaster.sendToUser("nodeCUser", "/queue/server-updates", ServerUpdateMessage.serverRemoved("c"));
+        topicBroadcaster.sendToUser("offlineUser", "/queue/server-updates", ServerUpdateMessage.serverRemoved("o"));
+        topicBroadcaster.flush();
+        assertEquals(2, mongoTemplate.count(new Query(), UserDeliveryBatch.class));
+
+        // Events are applied in order, so once a later broadcast arrives the batches were read
+        topicBroadcaster.broadcast("/topic/sentinel", Map.of());
+        await(() -> !deliveriesTo("/topic/sentinel").isEmpty());
+
+        List<Message<?>> delivered = deliveriesTo("/user/nodeBUser/queue/server-updates");
+        assertEquals(1, delivered.size());
+        assertTrue(new String((byte[]) delivered.get(0).getPayload(), StandardCharsets.UTF_8).contains("\"b\""));
+        assertTrue(deliveriesTo("/user/nodeCUser/queue/server-updates").isEmpty());
+        assertTrue(deliveriesTo("/user/offlineUser/queue/server-updates").isEmpty());
+    }
+
+    @Test
+    void shouldEncodeEventsForManyUsersOnce() throws InterruptedException {
+        mongoTemplate.save(new UserSession("node-b:1", "firstUser", "node-b", new Date()));
+        mongoTemplate.save(new UserSession("node-b:2", "secondUser", "node-b", new Date()));
+
+        topicBroadcaster.sendToUsers(List.of("firstUser", "secondUser", "offlineUser"), "/queue/server-updates",
+                ServerUpdateMessage.serverRemoved("s"));
+        topicBroadcaster.flush();
+        UserDeliveryBatch batch = mongoTemplate.findOne(new Query(), UserDeliveryBatch.class);
+        assertEquals(1, batch.getDeliveries().size());
+        assertEquals(List.of("firstUser", "secondUser"), batch.getDeliveries().get(0).users());
+
+        topicBroadcaster.broadcast("/topic/sentinel", Map.of());
+        await(() -> !deliveriesTo("/topic/sentinel").isEmpty());
+
+        List<Message<?>> first = deliveriesTo("/user/firstUser/queue/server-updates");
+        List<Message<?>> second = deliveriesTo("/user/secondUser/queue/server-updates");
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertSame(first.get(0).getPayload(), second.get(0).getPayload());
+    }
+}
@@ -0,0 +1,133 @@
+package com.leostormer.strife.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.security.Principal;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import com.leostormer.strife.AbstractIntegrationTest;
+
+@TestPropertySource(properties = { "app.cluster.fan-out.mode=change-stream", "app.cluster.node-id=node-a",
+        "app.cluster.user-routing.flush-interval=1h" })
+public class ClusterUserRegistryTests extends AbstractIntegrationTest {
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    ClusterUserRegistry clusterUserRegistry;
+
+    @AfterEach
+    void clearSessions() {
+        clusterUserRegistry.onSessionDisconnect(disconnected("session"));
+        mongoTemplate.remove(new Query(), UserSession.class);
+    }
+
+    private static Message<byte[]> stompMessage(String sessionId, Principal user) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create();
+        headers.setSessionId(sessionId);
+        headers.setUser(user);
+        return MessageBuilder.createMessage(new byte[0], headers.getMessageHeaders());
+    }
+
+    private static SessionConnectedEvent connected(String sessionId, String user) {
+        Principal principal = () -> user;
+        return new SessionConnectedEvent(ClusterUserRegistryTests.class, stompMessage(sessionId, principal),
+                principal);
+    }
+
+    private static SessionDisconnectEvent disconnected(String sessionId) {
+        return new SessionDisconnectEvent(ClusterUserRegistryTests.class, stompMessage(sessionId, null), sessionId,
+                CloseStatus.NORMAL);
+    }
+
+    @Test
+    void shouldRecordSessionsUntilTheyDisconnect() {
+        clusterUserRegistry.onSessionConnected(connected("session", "alice"));
+        UserSession session = mongoTemplate.findById("node-a:session", UserSession.class);
+        assertNotNull(session);
+        assertEquals("alice", session.getUser());
+        assertEquals("node-a", session.getNodeId());
+
+        clusterUserRegistry.onSessionDisconnect(disconnected("session"));
+        assertNull(mongoTemplate.findById("node-a:session", UserSession.class));
+    }
+
+    @Test
+    void shouldRestoreExpiredSessionsOnHeartbeat() {
+        clusterUserRegistry.onSessionConnected(connected("session", "alice"));
+        mongoTemplate.remove(new Query(), UserSession.class);
+
+        clusterUserRegistry.refresh();
+
+        assertNotNull(mongoTemplate.findById("node-a:session", UserSession.class));
+    }
+
+    @Test
+    void shouldFindOtherNodesHoldingSessionsOfUsers() {
+        clusterUserRegistry.onSessionConnected(connected("session", "alice"));
+        mongoTemplate.save(new UserSession("node-b:1", "alice", "node-b", new Date()));
+        mongoTemplate.save(new UserSession("node-b:2", "bob", "node-b", new Date()));
+        mongoTemplate.save(new UserSession("node-c:1", "carol", "node-c", new Date()));
+
+        Map<String, Set<String>> usersByNode = clusterUserRegistry.findRemoteNodes(List.of("alice", "bob"));
+
+        assertEquals(Map.of("node-b", Set.of("alice", "bob")), usersByNode);
+    }
+
+    @Test
+    void shouldExpireSessionsAfterFourMissedHeartbeats() {
+        IndexInfo expiry = mongoTemplate.indexOps(UserSession.class).getIndexInfo().stream()
+                .filter(index -> index.getName().equals("heartbeatAt")).findFirst().get();
+
+        assertEquals(Optional.of(Duration.ofMinutes(2)), expiry.getExpireAfter());
+    }
+
+    @Test
+    void shouldOnlyRefreshSessionsHeldByThisNode() {
+        Date stale = new Date(System.currentTimeMillis() - 60_000);
+        mongoTemplate.save(new UserSession("node-a:gone", "bob", "node-a", stale));
+        clusterUserRegistry.onSessionConnected(connected("session", "alice"));
+        mongoTemplate.remove(new Query(Criteria.where("_id").is("node-a:session")), UserSession.class);
+
+        clusterUserRegistry.refresh();
+
+        assertNotNull(mongoTemplate.findById("node-a:session", UserSession.class));
+        assertEquals(stale, mongoTemplate.findById("node-a:gone", UserSession.class).getHeartbeatAt());
+    }
+
+    @Test
+    void shouldRemoveSessionsOfEarlierRunOnStart() {
+        mongoTemplate.save(new UserSession("node-z:old", "bob", "node-z", new Date()));
+        mongoTemplate.save(new UserSession("node-b:1", "alice", "node-b", new Date()));
+
+        ClusterUserRegistry restarted = new ClusterUserRegistry(mongoTemplate, "node-z", Duration.ofSeconds(30));
+        try {
+            assertNull(mongoTemplate.findById("node-z:old", UserSession.class));
+            assertNotNull(mongoTemplate.findById("node-b:1", UserSession.class));
+        } finally {
+            restarted.destroy();
+        }
+    }
+}
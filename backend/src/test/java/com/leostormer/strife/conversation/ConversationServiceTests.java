@@ -1,5 +1,6 @@
 package com.leostormer.strife.conversation;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -7,14 +8,17 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
 
 import com.leostormer.strife.AbstractIntegrationTest;
+import com.leostormer.strife.MongoCommandCounter;
 import com.leostormer.strife.TestUtils;
 import com.leostormer.strife.channel.ChannelRepository;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
@@ -27,6 +31,7 @@ import com.leostormer.strife.user.UserRepository;
 import com.leostormer.strife.user.UserService;
 import com.leostormer.strife.user.friends.FriendRequestRepository;
 
+@Import(MongoCommandCounter.class)
 public class ConversationServiceTests extends AbstractIntegrationTest {
     public static final int NUM_MESSAGES = 20;
 
@@ -48,6 +53,9 @@ public class ConversationServiceTests extends AbstractIntegrationTest {
     @Autowired
     UserService userService;
 
+    @Autowired
+    MongoCommandCounter commandCounter;
+
     User user1;
 
     User user2;
@@ -185,7 +193,8 @@ public class ConversationServiceTests extends AbstractIntegrationTest {
         Date timestamp = conversationMessages[conversationIndex][messageIndex].getTimestamp();
         MessageSearchOptions searchOptions = MessageSearchOptions.builder().timestamp(timestamp)
                 .searchDirection(MessageSearchDirection.ASCENDING).build();
-        List<Message> messages = conversationService.getMessages(user1, conversation1.getId(), searchOptions);
+        List<Message> messages = conversationService.getMessages(user1, conversation1.getId(), searchOptions)
+                .getMessages();
 
         assertTrue(messages.size() <= searchOptions.getLimit());
         assertTrue(messages.get(0).getTimestamp().compareTo(timestamp) >= 0);
@@ -199,12 +208,25 @@ public class ConversationServiceTests extends AbstractIntegrationTest {
         Date timestamp = conversationMessages[conversationIndex][messageIndex].getTimestamp();
         MessageSearchOptions searchOptions = MessageSearchOptions.builder().timestamp(timestamp)
                 .searchDirection(MessageSearchDirection.DESCENDING).build();
-        List<Message> messages = conversationService.getMessages(user1, conversation1.getId(), searchOptions);
+        List<Message> messages = conversationService.getMessages(user1, conversation1.getId(), searchOptions)
+                .getMessages();
 
         assertTrue(messages.size() <= searchOptions.getLimit());
         assertTrue(messages.get(messages.size() - 1).getTimestamp().compareTo(timestamp) <= 0);
     }
 
+    @Test
+    void shouldStreamMessages() {
+        initializeMessages();
+        try (Stream<List<Message>> batches = conversationService.streamMessages(user2, conversation1.getId())) {
+            assertTrue(batches.mapToInt(List::size).sum() == NUM_MESSAGES);
+        }
+
+        assertThrows(UnauthorizedActionException.class, () -> {
+            conversationService.streamMessages(user3, conversation1.getId());
+        });
+    }
+
     @Test
     void shouldNotGetMessagesFromConversationUserNotPartOf() {
         initializeMessages();
@@ -296,7 +318,8 @@ public class ConversationServiceTests extends AbstractIntegrationTest {
     void shouldDeleteMessageIfUserIsSender() {
         initializeMessages();
         ObjectId messageId = conversationService
-                .getMessages(user1, conversation1.getId(), MessageSearchOptions.earliest()).get(0).getId();
+                .getMessages(user1, conversation1.getId(), MessageSearchOptions.earliest()).getMessages().get(0)
+                .getId();
         conversationService.deleteMessage(user1, conversation1.getId(), messageId);
         assertFalse(messageRepository.existsById(messageId));
     }
@@ -305,9 +328,23 @@ public class ConversationServiceTests extends AbstractIntegrationTest {
     void shouldNotDeleteMessageIfUserIsNotSender() {
         initializeMessages();
         ObjectId messageId = conversationService
-                .getMessages(user1, conversation1.getId(), MessageSearchOptions.earliest()).get(1).getId();
+                .getMessages(user1, conversation1.getId(), MessageSearchOptions.earliest()).getMessages().get(1)
+                .getId();
         assertThrows(UnauthorizedActionException.class, () -> {
             conversationService.deleteMessage(user1, conversation1.getId(), messageId);
         });
     }
+
+    @Test
+    void shouldPinMessageWithOneConversationRead() {
+        Message message = conversationService.sendMessage(user1, conversation1.getId(), "Pin me");
+        commandCounter.reset();
+
+        assertTrue(conversationService.pinMessage(user2, conversation1.getId(), message.getId()));
+
+        assertEquals(2, commandCounter.getCollectionCount("channels"));
+        assertFalse(conversationService.pinMessage(user2, conversation1.getId(), message.getId()));
+        assertEquals(List.of(message.getId()), conversationService.getPinnedMessages(user1, conversation1.getId())
+                .stream().map(Message::getId).toList());
+    }
 }
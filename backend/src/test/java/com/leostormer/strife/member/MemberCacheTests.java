@@ -0,0 +1,152 @@
+package com.leostormer.strife.member;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.server.PermissionType;
+import com.leostormer.strife.server.Permissions;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.user.User;
+
+/**
+ * Checks that no write to a membership leaves a stale copy in the cache.
+ */
+public class MemberCacheTests extends ServerServiceTestSetup {
+    @Autowired
+    MemberCache memberCache;
+
+    @Autowired
+    PlatformTransactionManager transactionManager;
+
+    private Member getCachedMember(User user) {
+        memberService.getMember(user.getId(), existingServerId);
+        return memberService.getMember(user.getId(), existingServerId).get();
+    }
+
+    @Test
+    public void shouldServeRepeatedLookupsFromMemory() {
+        memberService.getMember(moderator.getId(), existingServerId);
+        long hits = memberCache.getHitCount();
+        long misses = memberCache.getMissCount();
+
+        memberService.getMember(moderator.getId(), existingServerId);
+        assertEquals(hits + 1, memberCache.getHitCount());
+        assertEquals(misses, memberCache.getMissCount());
+    }
+
+    @Test
+    public void shouldReturnCopiesOfCachedMembers() {
+        getCachedMember(basicMemberUser).setPermissions(Permissions.ALL);
+        assertFalse(Permissions.hasPermission(getCachedMember(basicMemberUser).getPermissions(),
+                PermissionType.MANAGE_MESSAGES));
+    }
+
+    @Test
+    public void shouldSeeBanOfCachedMember() {
+        assertFalse(getCachedMember(basicMemberUser).isBanned());
+        serverService.banMember(owner, basicMemberUser.getId(), existingServerId, "Spam");
+
+        assertTrue(memberService.getMember(basicMemberUser.getId(), existingServerId).get().isBanned());
+        assertFalse(memberService.isMember(basicMemberUser.getId(), existingServerId));
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.sendMessage(basicMemberUser, existingServerId, channel1Id, "Still here"));
+    }
+
+    @Test
+    public void shouldSeeRolesRemovedFromCachedMember() {
+        assertTrue(Permissions.hasPermission(getCachedMember(moderator).getPermissions(),
+                PermissionType.SEND_MESSAGES));
+
+        serverService.updateMemberRoles(owner, moderator.getId(), existingServerId,
+                new MemberRoleUpdateOperation(List.of(), List.of(moderatorRoleId)));
+
+        assertFalse(getCachedMember(moderator).getRoleIds().contains(moderatorRoleId));
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.sendMessage(moderator, existingServerId, channel1Id, "After"));
+    }
+
+    @Test
+    public void shouldSeeKickOfCachedMember() {
+        getCachedMember(noPermissionsUser);
+        serverService.kickMember(owner, noPermissionsUser.getId(), existingServerId);
+        assertTrue(memberService.getMember(noPermissionsUser.getId(), existingServerId).isEmpty());
+    }
+
+    @Test
+    public void shouldSeeLeaveOfCachedMember() {
+        getCachedMember(basicMemberUser);
+        serverService.leaveServer(basicMemberUser, existingServerId);
+        assertTrue(memberService.getMember(basicMemberUser.getId(), existingServerId).isEmpty());
+    }
+
+    @Test
+    public void shouldSeeJoinAfterCachedAbsence() {
+        assertTrue(memberService.getMember(nonMemberUser.getId(), existingServerId).isEmpty());
+        assertTrue(memberService.getMember(nonMemberUser.getId(), existingServerId).isEmpty());
+
+        serverService.joinServer(nonMemberUser, existingServerId);
+        assertTrue(memberService.isMember(nonMemberUser.getId(), existingServerId));
+    }
+
+    @Test
+    public void shouldSeeUnbanOfCachedMember() {
+        assertTrue(getCachedMember(bannedUser).isBanned());
+        serverService.unbanMember(owner, bannedUser.getId(), existingServerId);
+        assertTrue(memberService.getMember(bannedUser.getId(), existingServerId).isEmpty());
+    }
+
+    @Test
+    public void shouldSeeNicknameChangeOfCachedMember() {
+        getCachedMember(basicMemberUser);
+        serverService.changeNickname(basicMemberUser, basicMemberUser.getId(), existingServerId, "New name");
+        assertEquals("New name", memberService.getMember(basicMemberUser.getId(), existingServerId).get()
+                .getNickname());
+    }
+
+    @Test
+    public void shouldSeeOwnershipTransfer() {
+        assertTrue(getCachedMember(owner).isOwner());
+        assertFalse(getCachedMember(moderator).isOwner());
+
+        serverService.transferServerOwnership(owner, moderator, existingServerId);
+
+        assertFalse(memberService.getMember(owner.getId(), existingServerId).get().isOwner());
+        assertTrue(memberService.getMember(moderator.getId(), existingServerId).get().isOwner());
+    }
+
+    @Test
+    public void shouldForgetMembershipsLoadedBeforeTransactionCommits() {
+        Member staleModerator = getCachedMember(moderator);
+        Member staleOwner = getCachedMember(owner);
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+            memberCache.evict(moderator.getId(), existingServerId);
+            memberCache.evictServer(existingServerId);
+            // Loads on other threads that read the memberships before the writes commit
+            memberCache.get(moderator.getId(), existingServerId, () -> Optional.of(staleModerator));
+            memberCache.get(owner.getId(), existingServerId, () -> Optional.of(staleOwner));
+        });
+
+        long misses = memberCache.getMissCount();
+        memberService.getMember(moderator.getId(), existingServerId);
+        memberService.getMember(owner.getId(), existingServerId);
+        assertEquals(misses + 2, memberCache.getMissCount());
+    }
+
+    @Test
+    public void shouldForgetEverythingWhenMembersAreDeletedInBulk() {
+        getCachedMember(moderator);
+        memberRepository.deleteAll();
+        assertTrue(memberService.getMember(moderator.getId(), existingServerId).isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+package com.leostormer.strife.mention;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageMentions;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.user.User;
+
+// A small batch size so expanding @everyone takes several batches
+@TestPropertySource(properties = "app.mentions.batch-size=2")
+public class MentionServiceTests extends ServerServiceTestSetup {
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    MentionRepository mentionRepository;
+
+    @Autowired
+    MentionService mentionService;
+
+    @AfterEach
+    void clearMentions() {
+        mentionService.awaitDelivery();
+        messageRepository.deleteAll();
+        mentionRepository.deleteAll();
+    }
+
+    private Message send(User sender, ObjectId channelId, String content) {
+        Message message = serverService.sendMessage(sender, existingServerId, channelId, content);
+        mentionService.awaitDelivery();
+        return message;
+    }
+
+    private Set<ObjectId> mentionedUsers(Message message) {
+        return mentionRepository.findAll().stream().filter(mention -> mention.getMessage().equals(message.getId()))
+                .map(Mention::getUser).collect(Collectors.toSet());
+    }
+
+    @Test
+    void shouldDeliverDirectMentionsToMembersOnly() {
+        Message message = send(basicMemberUser, channel1Id, MessageMentions.of(moderator.getId()) + " "
+                + MessageMentions.of(basicMemberUser.getId()) + " " + MessageMentions.of(nonMemberUser.getId()));
+
+        assertEquals(Set.of(moderator.getId()), mentionedUsers(message));
+        Mention mention = mentionService.getRecentMentions(moderator.getId(), null, 10).get(0);
+        assertEquals(channel1Id, mention.getChannel());
+        assertEquals(existingServerId, mention.getServer());
+        assertEquals(basicMemberUser.getId(), mention.getSender());
+    }
+
+    @Test
+    void shouldExpandEveryoneToMembersWhoCanViewTheChannel() {
+        Message message = send(owner, channel1Id, "Hello " + MessageMentions.EVERYONE);
+        assertEquals(Set.of(moderator.getId(), basicMemberUser.getId()), mentionedUsers(message));
+
+        Message privateMessage = send(owner, adminOnlyPrivateChannelId, MessageMentions.EVERYONE);
+        assertEquals(Set.of(moderator.getId()), mentionedUsers(privateMessage));
+    }
+
+    @Test
+    void shouldExpandRoleMentions() {
+        Message message = send(moderator, channel1Id,
+                MessageMentions.ofRole(defaultRoleId) + " " + MessageMentions.of(basicMemberUser.getId()));
+        assertEquals(Set.of(basicMemberUser.getId()), mentionedUsers(message));
+        assertEquals(1, mentionRepository.count());
+    }
+
+    @Test
+    void shouldIgnoreRoleMentionsWithoutPermission() {
+        Message message = send(basicMemberUser, channel1Id,
+                MessageMentions.EVERYONE + " " + MessageMentions.ofRole(moderatorRoleId));
+        assertTrue(mentionedUsers(message).isEmpty());
+    }
+
+    @Test
+    void shouldPageMentionsFromNewest() {
+        for (int i = 0; i < 5; i++)
+            send(owner, channel1Id, MessageMentions.of(moderator.getId()) + " number " + i);
+
+        List<Mention> firstPage = mentionService.getRecentMentions(moderator.getId(), null, 3);
+        List<Mention> secondPage = mentionService.getRecentMentions(moderator.getId(),
+                firstPage.get(2).getMessage(), 3);
+        assertEquals(3, firstPage.size());
+        assertEquals(2, secondPage.size());
+        assertTrue(firstPage.get(0).getMessage().compareTo(firstPage.get(1).getMessage()) > 0);
+        assertTrue(firstPage.get(2).getMessage().compareTo(secondPage.get(0).getMessage()) > 0);
+    }
+
+    @Test
+    void shouldRemoveMentionsOfDeletedMessages() {
+        Message message = send(owner, channel1Id, MessageMentions.of(moderator.getId()));
+        serverService.deleteMessage(owner, existingServerId, channel1Id, message.getId());
+        assertEquals(0, mentionRepository.count());
+    }
+}
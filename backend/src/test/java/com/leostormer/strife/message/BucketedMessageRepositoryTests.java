@@ -0,0 +1,195 @@
+package com.leostormer.strife.message;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.lang.NonNull;
+import org.springframework.test.context.TestPropertySource;
+
+import com.leostormer.strife.AbstractRepositoryTest;
+import com.leostormer.strife.channel.ChannelRepository;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserRepository;
+
+@Import({ BucketedMessageRepository.class, MessageSequencer.class, MessageWindow.class })
+@TestPropertySource(properties = "app.messages.storage=bucketed")
+public class BucketedMessageRepositoryTests extends AbstractRepositoryTest {
+    static final int NUM_MESSAGES = MessageBucket.CAPACITY * 2 + 50;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    ChannelRepository channelRepository;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @NonNull
+    @SuppressWarnings("null")
+    static ObjectId channelId;
+
+    List<Message> insertedMessages;
+
+    @BeforeAll
+    static void setupChannel(@Autowired UserRepository userRepository,
+            @Autowired ChannelRepository channelRepository) {
+        for (int i = 0; i < 2; i++) {
+            User user = new User();
+            user.setUsername("User" + (i + 1));
+            user.setPassword("password" + (i + 1));
+            userRepository.save(user);
+        }
+
+        ServerChannel channel = new ServerChannel();
+        channel.setName("Bucketed");
+        channelId = channelRepository.save(channel).getId();
+    }
+
+    @AfterAll
+    static void clearChannel(@Autowired UserRepository userRepository,
+            @Autowired ChannelRepository channelRepository) {
+        userRepository.deleteAll();
+        channelRepository.deleteAll();
+    }
+
+    @BeforeEach
+    void setup() {
+        User[] users = { userRepository.findOneByUsername("User1").get(),
+                userRepository.findOneByUsername("User2").get() };
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        insertedMessages = new ArrayList<>();
+        for (int i = 0; i < NUM_MESSAGES; i++)
+            insertedMessages.add(messageRepository.insertMessage(users[i % 2], channel, "Bucketed message " + i));
+    }
+
+    @AfterEach
+    void cleanup() {
+        mongoTemplate.remove(new Query(), MessageBucket.class);
+    }
+
+    @Test
+    void shouldStoreMessagesInBuckets() {
+        assertEquals(3, mongoTemplate.count(new Query(), MessageBucket.class));
+        assertEquals(0, mongoTemplate.count(new Query(), Message.class));
+        assertTrue(messageRepository.existsByChannel(channelId));
+    }
+
+    @Test
+    void shouldPageBackwardsAcrossBuckets() {
+        Set<ObjectId> seen = new HashSet<>();
+        MessageSearchOptions searchOptions = MessageSearchOptions.latest();
+        searchOptions.setLimit(70);
+        List<Message> page = messageRepository.getMessages(channelId, searchOptions);
+        assertEquals(insertedMessages.get(NUM_MESSAGES - 1).getId(), page.get(0).getId());
+        while (!page.isEmpty()) {
+            page.forEach(m -> assertTrue(seen.add(m.getId())));
+            searchOptions.setCursor(MessagePage.of(page).getPrevCursor());
+            page = messageRepository.getMessages(channelId, searchOptions);
+        }
+
+        assertEquals(NUM_MESSAGES, seen.size());
+    }
+
+    @Test
+    void shouldPageForwardsAcrossBuckets() {
+        List<ObjectId> seen = new ArrayList<>();
+        MessageSearchOptions searchOptions = MessageSearchOptions.earliest();
+        searchOptions.setLimit(130);
+        List<Message> page = messageRepository.getMessages(channelId, searchOptions);
+        while (!page.isEmpty()) {
+            page.forEach(m -> seen.add(m.getId()));
+            searchOptions.setCursor(MessagePage.of(page).getNextCursor());
+            page = messageRepository.getMessages(channelId, searchOptions);
+        }
+
+        assertEquals(insertedMessages.stream().map(Message::getId).toList(), seen);
+    }
+
+    @Test
+    void shouldLoadMessagesAroundAnchorAcrossBuckets() {
+        int anchorIndex = MessageBucket.CAPACITY;
+        List<Message> window = messageRepository.getMessages(channelId,
+                MessageSearchOptions.around(insertedMessages.get(anchorIndex).getId(), 25));
+
+        assertEquals(insertedMessages.subList(anchorIndex - 25, anchorIndex + 26).stream().map(Message::getId).toList(),
+                window.stream().map(Message::getId).toList());
+    }
+
+    @Test
+    void shouldLoadSendersAndChannel() {
+        Message message = messageRepository.getMessages(channelId, MessageSearchOptions.earliest()).get(1);
+        assertEquals("User2", message.getSender().getUsername());
+        assertEquals(channelId, message.getChannel().getId());
+    }
+
+    @Test
+    void shouldFindEditAndDeleteMessage() {
+        ObjectId messageId = insertedMessages.get(MessageBucket.CAPACITY + 3).getId();
+        assertEquals("Bucketed message " + (MessageBucket.CAPACITY + 3),
+                messageRepository.findMessageById(messageId).get().getContent());
+
+        Message updated = messageRepository.updateMessage(messageId, "Edited");
+        assertEquals("Edited", updated.getContent());
+        assertEquals(messageId, updated.getId());
+        assertEquals("Edited", messageRepository.findMessageById(messageId).get().getContent());
+
+        messageRepository.deleteMessage(messageId);
+        assertFalse(messageRepository.findMessageById(messageId).isPresent());
+        assertEquals(NUM_MESSAGES - 1, countAllMessages());
+    }
+
+    @Test
+    void shouldDropClosedBucketOnceEmpty() {
+        for (int i = 0; i < MessageBucket.CAPACITY; i++)
+            messageRepository.deleteMessage(insertedMessages.get(i).getId());
+
+        assertEquals(2, mongoTemplate.count(new Query(), MessageBucket.class));
+        assertEquals(NUM_MESSAGES - MessageBucket.CAPACITY, countAllMessages());
+    }
+
+    @Test
+    void shouldDeleteAllByChannel() {
+        messageRepository.deleteAllByChannel(channelId);
+        assertFalse(messageRepository.existsByChannel(channelId));
+        assertEquals(0, mongoTemplate.count(new Query(), MessageBucket.class));
+    }
+
+    @Test
+    void shouldSearchMessages() {
+        ObjectId messageId = insertedMessages.get(42).getId();
+        messageRepository.updateMessage(messageId, "Something about penguins");
+
+        List<Message> results = messageRepository.searchMessages(List.of(channelId),
+                MessageQuery.builder().text("penguin").build());
+        assertEquals(1, results.size());
+        assertEquals(messageId, results.get(0).getId());
+    }
+
+    private int countAllMessages() {
+        try (Stream<List<Message>> batches = messageRepository.streamMessages(channelId)) {
+            return batches.mapToInt(List::size).sum();
+        }
+    }
+}
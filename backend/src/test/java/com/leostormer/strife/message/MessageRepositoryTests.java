@@ -3,11 +3,21 @@ package com.leostormer.strife.message;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
+import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.AfterEach;
@@ -15,19 +25,43 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.lang.NonNull;
 
 import com.leostormer.strife.AbstractRepositoryTest;
+import com.leostormer.strife.MongoCommandCounter;
 import com.leostormer.strife.channel.ChannelRepository;
+import com.leostormer.strife.config.MongoConfig;
 import com.leostormer.strife.conversation.Conversation;
+import com.leostormer.strife.readstate.ChannelCounter;
+import com.leostormer.strife.readstate.ChannelCounter.SkippedRange;
 import com.leostormer.strife.server.server_channel.ServerChannel;
 import com.leostormer.strife.user.User;
 import com.leostormer.strife.user.UserRepository;
+import com.leostormer.strife.user.UserUpdate;
 
+@Import({ MessageTailCache.class, MessageBatchInserter.class, MessageSequencer.class, MessageWindow.class,
+        MessageContentCodec.class, MongoConfig.class, MongoCommandCounter.class })
+@TestPropertySource(properties = { "app.messages.ingestion.max-delay=50ms", "app.messages.export.batch-size=3",
+        "app.messages.compression.enabled=true" })
 public class MessageRepositoryTests extends AbstractRepositoryTest {
     @Autowired
     MessageRepository messageRepository;
 
+    @Autowired
+    MessageTailCache tailCache;
+
+    @Autowired
+    MongoCommandCounter commandCounter;
+
+    @Autowired
+    MessageSequencer sequencer;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
     @Autowired
     ChannelRepository conversationRepository;
 
@@ -233,4 +267,305 @@ public class MessageRepositoryTests extends AbstractRepositoryTest {
 
         assertFalse(messageRepository.existsByChannel(channelId));
     }
+
+    private List<ObjectId> saveMessagesWithSharedTimestamp(int count) {
+        User user1 = userRepository.findOneByUsername("User1").get();
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        Date sharedTimestamp = new Date();
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Message message = new Message(new ObjectId(), "Same millisecond " + i, sharedTimestamp, user1, channel);
+            ids.add(messageRepository.save(message).getId());
+        }
+
+        return ids;
+    }
+
+    @Test
+    void shouldPageBackwardsWithCursorWithoutSkippingSharedTimestamps() {
+        List<ObjectId> sharedIds = saveMessagesWithSharedTimestamp(7);
+        Set<ObjectId> seen = new HashSet<>();
+        MessageSearchOptions searchOptions = MessageSearchOptions.latest();
+        searchOptions.setLimit(3);
+        List<Message> page = messageRepository.getMessages(channelId, searchOptions);
+        while (!page.isEmpty()) {
+            page.forEach(m -> assertTrue(seen.add(m.getId())));
+            searchOptions.setCursor(MessagePage.of(page).getPrevCursor());
+            page = messageRepository.getMessages(channelId, searchOptions);
+        }
+
+        assertEquals(17, seen.size());
+        assertTrue(seen.containsAll(sharedIds));
+    }
+
+    @Test
+    void shouldPageForwardsWithCursorWithoutSkippingSharedTimestamps() {
+        List<ObjectId> sharedIds = saveMessagesWithSharedTimestamp(7);
+        Set<ObjectId> seen = new HashSet<>();
+        MessageSearchOptions searchOptions = MessageSearchOptions.earliest();
+        searchOptions.setLimit(4);
+        List<Message> page = messageRepository.getMessages(channelId, searchOptions);
+        while (!page.isEmpty()) {
+            page.forEach(m -> assertTrue(seen.add(m.getId())));
+            searchOptions.setCursor(MessagePage.of(page).getNextCursor());
+            page = messageRepository.getMessages(channelId, searchOptions);
+        }
+
+        assertEquals(17, seen.size());
+        assertTrue(seen.containsAll(sharedIds));
+    }
+
+    @Test
+    void shouldRoundTripCursor() {
+        Message message = messageRepository.findById(existingChannelMessageId).get();
+        MessageCursor cursor = MessageCursor.decode(MessageCursor.from(message).encode());
+        assertEquals(message.getTimestamp(), cursor.getTimestamp());
+        assertEquals(message.getId(), cursor.getId());
+        assertThrows(IllegalArgumentException.class, () -> MessageCursor.decode("not-a-cursor"));
+    }
+
+    @Test
+    void shouldLoadMessagesAroundAnchor() {
+        saveMessagesWithSharedTimestamp(7);
+        List<ObjectId> history = messageRepository.getMessages(channelId, MessageSearchOptions.earliest()).stream()
+                .map(Message::getId).toList();
+
+        List<Message> window = messageRepository.getMessages(channelId,
+                MessageSearchOptions.around(history.get(8), 3));
+        assertEquals(history.subList(5, 12), window.stream().map(Message::getId).toList());
+        window.forEach(message -> assertTrue(message.getSender().getUsername().startsWith("User")));
+
+        List<Message> start = messageRepository.getMessages(channelId, MessageSearchOptions.around(history.get(1), 3));
+        assertEquals(history.subList(0, 5), start.stream().map(Message::getId).toList());
+
+        MessagePage page = MessagePage.of(window);
+        assertEquals(MessageCursor.from(window.get(0)).encode(), page.getPrevCursor());
+        assertEquals(MessageCursor.from(window.get(6)).encode(), page.getNextCursor());
+    }
+
+    @Test
+    void shouldLoadSameWindowWithoutWindowThreads() {
+        saveMessagesWithSharedTimestamp(7);
+        MessageSearchOptions around = MessageSearchOptions.around(existingChannelMessageId, 3);
+        List<ObjectId> parallel = messageRepository.getMessages(channelId, around).stream().map(Message::getId)
+                .toList();
+
+        MessageWindow sequential = new MessageWindow(0);
+        assertEquals(parallel, sequential.around(messageRepository, channelId, around).stream().map(Message::getId)
+                .toList());
+    }
+
+    @Test
+    void shouldNotLoadMessagesAroundAnchorInOtherChannel() {
+        assertTrue(messageRepository.getMessages(channelId, MessageSearchOptions.around(existingDirectMessageId, 3))
+                .isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> messageRepository.getMessages(channelId,
+                MessageSearchOptions.builder().searchDirection(MessageSearchDirection.AROUND).build()));
+    }
+
+    @Test
+    void shouldServeLatestMessagesFromTailCache() {
+        List<Message> fromDatabase = messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+        long hits = tailCache.getHitCount();
+        commandCounter.reset();
+        List<Message> fromCache = messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+
+        assertEquals(hits + 1, tailCache.getHitCount());
+        assertEquals(0, commandCounter.getCount());
+        assertEquals(fromDatabase.stream().map(Message::getId).toList(), fromCache.stream().map(Message::getId).toList());
+        for (int i = 0; i < fromCache.size(); i++) {
+            assertEquals(fromDatabase.get(i).getContent(), fromCache.get(i).getContent());
+            assertEquals(fromDatabase.get(i).getSender().getUsername(), fromCache.get(i).getSender().getUsername());
+            assertEquals(channelId, fromCache.get(i).getChannel().getId());
+        }
+    }
+
+    @Test
+    void shouldDropTailCacheWhenSenderDetailsChange() {
+        messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+        User user1 = userRepository.findOneByUsername("User1").get();
+
+        userRepository.updateUserDetails(user1.getId(), new UserUpdate(null, null, null, "new-picture.png"));
+        long misses = tailCache.getMissCount();
+        List<Message> messages = messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+
+        assertEquals(misses + 1, tailCache.getMissCount());
+        assertTrue(messages.stream().filter(message -> message.getSenderId().equals(user1.getId()))
+                .allMatch(message -> "new-picture.png".equals(message.getSender().getProfilePic())));
+    }
+
+    @Test
+    void shouldKeepTailCacheCoherentWithWrites() {
+        messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+        User user1 = userRepository.findOneByUsername("User1").get();
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        Message inserted = messageRepository.insertMessage(user1, channel, "Newest");
+        messageRepository.updateMessage(existingChannelMessageId, "Edited");
+        Message deleted = messageRepository.getMessages(channelId, MessageSearchOptions.latest()).get(1);
+        messageRepository.deleteById(deleted.getId());
+
+        long hits = tailCache.getHitCount();
+        List<Message> messages = messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+        assertEquals(hits + 1, tailCache.getHitCount());
+        assertEquals(10, messages.size());
+        assertEquals(inserted.getId(), messages.get(0).getId());
+        assertFalse(messages.stream().anyMatch(m -> m.getId().equals(deleted.getId())));
+        assertEquals("Edited", messages.stream().filter(m -> m.getId().equals(existingChannelMessageId)).findFirst()
+                .get().getContent());
+    }
+
+    @Test
+    void shouldDropTailCacheWhenChannelMessagesAreDeleted() {
+        messageRepository.getMessages(channelId, MessageSearchOptions.latest());
+        messageRepository.deleteAllByChannel(channelId);
+
+        assertTrue(messageRepository.getMessages(channelId, MessageSearchOptions.latest()).isEmpty());
+    }
+
+    private int countCommandsToViewEarliestPage() {
+        commandCounter.reset();
+        MessagePageView page = new MessagePageView(
+                MessagePage.of(messageRepository.getMessages(channelId, MessageSearchOptions.earliest())));
+        page.getMessages().forEach(message -> assertTrue(message.getSender().getUsername() != null));
+        return commandCounter.getCount();
+    }
+
+    @Test
+    void shouldViewPageWithConstantNumberOfCommands() {
+        int commandsForSmallPage = countCommandsToViewEarliestPage();
+
+        User[] users = { userRepository.findOneByUsername("User1").get(),
+                userRepository.findOneByUsername("User2").get(),
+                userRepository.findOneByUsername("User3").get() };
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        for (int i = 0; i < 50; i++)
+            messageRepository.insertMessage(users[i % users.length], channel, "More content " + i);
+
+        assertEquals(2, commandsForSmallPage);
+        assertEquals(commandsForSmallPage, countCommandsToViewEarliestPage());
+    }
+
+    @Test
+    void shouldInsertConcurrentMessagesInOneBatch() {
+        User user1 = userRepository.findOneByUsername("User1").get();
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        commandCounter.reset();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            futures.add(messageRepository.insertMessageAsync(user1, channel, "Burst " + i));
+
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        assertEquals(1, commandCounter.getCount("insert"));
+        assertEquals(1, commandCounter.getCount("findAndModify"));
+        Set<ObjectId> ids = new HashSet<>();
+        Set<Long> sequences = new HashSet<>();
+        for (CompletableFuture<Message> future : futures) {
+            Message message = future.join();
+            assertTrue(ids.add(message.getId()));
+            assertTrue(sequences.add(message.getSequence()));
+            assertTrue(messageRepository.existsById(message.getId()));
+        }
+        assertEquals(19, Collections.max(sequences) - Collections.min(sequences));
+    }
+
+    @Test
+    void shouldNumberSeveralChannelsOfOneBatchWithOneBulkWrite() {
+        User user1 = userRepository.findOneByUsername("User1").get();
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        Conversation conversation = conversationRepository.findConversationById(conversationId).get();
+        commandCounter.reset();
+        List<CompletableFuture<Message>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(messageRepository.insertMessageAsync(user1, channel, "Burst " + i));
+            futures.add(messageRepository.insertMessageAsync(user1, conversation, "Burst " + i));
+        }
+
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        assertEquals(1, commandCounter.getCount("insert"));
+        assertEquals(1, commandCounter.getCount("update"));
+        assertEquals(0, commandCounter.getCount("findAndModify"));
+        Set<Long> channelSequences = new HashSet<>();
+        Set<Long> conversationSequences = new HashSet<>();
+        for (CompletableFuture<Message> future : futures) {
+            Message message = future.join();
+            Set<Long> sequences = message.getChannelId().equals(channelId) ? channelSequences : conversationSequences;
+            assertTrue(sequences.add(message.getSequence()));
+        }
+        assertEquals(9, Collections.max(channelSequences) - Collections.min(channelSequences));
+        assertEquals(9, Collections.max(conversationSequences) - Collections.min(conversationSequences));
+        assertEquals((long) Collections.max(channelSequences),
+                mongoTemplate.findById(channelId, ChannelCounter.class).getMessages());
+    }
+
+    @Test
+    void shouldLeaveSkippedNumbersOutOfCount() {
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = new Message();
+            message.setId(new ObjectId());
+            message.setChannel(channel);
+            message.setTimestamp(new Date());
+            messages.add(message);
+        }
+        sequencer.assign(messages);
+        long first = messages.get(0).getSequence();
+
+        sequencer.skip(List.of(messages.get(2), messages.get(3)));
+
+        ChannelCounter counter = mongoTemplate.findById(channelId, ChannelCounter.class);
+        assertEquals(List.of(new SkippedRange(first + 2, first + 3)), counter.getSkipped());
+        assertEquals(3, counter.countAfter(first - 1));
+        assertEquals(2, counter.countAfter(first));
+        assertEquals(1, counter.countAfter(first + 2));
+        assertEquals(0, counter.countAfter(first + 4));
+    }
+
+    @Test
+    void shouldStreamChannelHistoryInBatches() {
+        List<Message> expected = messageRepository.getMessages(channelId, MessageSearchOptions.earliest());
+        List<Integer> batchSizes = new ArrayList<>();
+        List<Message> streamed = new ArrayList<>();
+        try (Stream<List<Message>> batches = messageRepository.streamMessages(channelId)) {
+            batches.forEach(batch -> {
+                batchSizes.add(batch.size());
+                streamed.addAll(batch);
+            });
+        }
+
+        assertEquals(List.of(3, 3, 3, 1), batchSizes);
+        assertEquals(expected.stream().map(Message::getId).toList(), streamed.stream().map(Message::getId).toList());
+        streamed.forEach(message -> assertTrue(message.getSender().getUsername() != null));
+    }
+
+    @Test
+    void shouldStoreLargeContentCompressed() {
+        User user1 = userRepository.findOneByUsername("User1").get();
+        ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+        String longContent = "A rather long message that repeats itself. ".repeat(100);
+        Message message = messageRepository.insertMessage(user1, channel, longContent);
+
+        assertTrue(storedContent(message.getId()) instanceof Binary);
+        assertEquals("This is a message! 0", storedContent(existingChannelMessageId));
+        assertEquals(longContent, messageRepository.findById(message.getId()).get().getContent());
+        List<Message> messages = messageRepository.getMessages(channelId, MessageSearchOptions.earliest());
+        assertEquals(longContent, messages.get(messages.size() - 1).getContent());
+    }
+
+    @Test
+    void shouldCompressContentOnUpdate() {
+        String longContent = "Edited into something much longer. ".repeat(100);
+        Message updated = messageRepository.updateMessage(existingChannelMessageId, longContent);
+
+        assertEquals(longContent, updated.getContent());
+        assertTrue(storedContent(existingChannelMessageId) instanceof Binary);
+        assertEquals(longContent, messageRepository.findById(existingChannelMessageId).get().getContent());
+    }
+
+    private Object storedContent(ObjectId messageId) {
+        return mongoTemplate.getCollection("messages").find(new Document("_id", messageId)).first()
+                .get("content");
+    }
 }
@@ -0,0 +1,105 @@
+package com.leostormer.strife.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.leostormer.strife.AbstractRepositoryTest;
+import com.leostormer.strife.channel.Channel;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+import com.leostormer.strife.user.User;
+
+/**
+ * Compares the write and read throughput of the document and bucketed message
+ * storage. Run with <code>mvn test -Dtest=MessageStorageBenchmark -Dbenchmark=true</code>.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class MessageStorageBenchmark extends AbstractRepositoryTest {
+    static final int NUM_MESSAGES = 20_000;
+
+    static final int NUM_PAGES = 2_000;
+
+    static final int PAGE_SIZE = 50;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    User[] users;
+
+    Channel channel;
+
+    @BeforeEach
+    void setup() {
+        users = new User[4];
+        for (int i = 0; i < users.length; i++) {
+            User user = new User();
+            user.setUsername("Benchmark" + i);
+            user.setPassword("password" + i);
+            users[i] = mongoTemplate.insert(user);
+        }
+
+        ServerChannel serverChannel = new ServerChannel();
+        serverChannel.setName("Benchmark");
+        channel = mongoTemplate.insert(serverChannel);
+    }
+
+    @AfterEach
+    void cleanup() {
+        mongoTemplate.remove(new Query(), Message.class);
+        mongoTemplate.remove(new Query(), MessageBucket.class);
+        mongoTemplate.remove(new Query(), User.class);
+        mongoTemplate.remove(new Query(), Channel.class);
+    }
+
+    @Test
+    void documentStorage() {
+        CustomMessageRepositoryImpl repository = new CustomMessageRepositoryImpl();
+        repository.mongoTemplate = mongoTemplate;
+        run("document", repository);
+    }
+
+    @Test
+    void bucketedStorage() {
+        run("bucketed", new BucketedMessageRepository(mongoTemplate, new MessageSequencer(mongoTemplate),
+                new MessageWindow(1), 500, 1000));
+    }
+
+    private void run(String name, CustomMessageRepository repository) {
+        double writes = throughput(NUM_MESSAGES, () -> {
+            for (int i = 0; i < NUM_MESSAGES; i++)
+                repository.insertMessage(users[i % users.length], channel, "Benchmark message " + i);
+            return null;
+        });
+
+        ObjectId channelId = channel.getId();
+        double reads = throughput(NUM_PAGES * PAGE_SIZE, () -> {
+            List<Message> page = new ArrayList<>();
+            MessageSearchOptions searchOptions = MessageSearchOptions.latest();
+            searchOptions.setLimit(PAGE_SIZE);
+            for (int i = 0; i < NUM_PAGES; i++) {
+                // Scroll back through the history, starting over at the newest
+                // page whenever the oldest one is reached
+                page = repository.getMessages(channelId, searchOptions);
+                searchOptions.setCursor(page.size() < PAGE_SIZE ? null : MessagePage.of(page).getPrevCursor());
+            }
+            return page;
+        });
+
+        System.out.printf("%s storage: %.0f inserts/s, %.0f messages read/s%n", name, writes, reads);
+    }
+
+    private static double throughput(int operations, Supplier<?> work) {
+        long start = System.nanoTime();
+        work.get();
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+}
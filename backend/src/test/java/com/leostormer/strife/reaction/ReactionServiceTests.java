@@ -0,0 +1,122 @@
+package com.leostormer.strife.reaction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.lang.NonNull;
+import org.springframework.test.context.TestPropertySource;
+
+import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.message.MessageSearchOptions;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+
+// Counts are only applied when flushed by the tests
+@TestPropertySource(properties = "app.messages.reactions.flush-interval=1h")
+public class ReactionServiceTests extends ServerServiceTestSetup {
+    static final String THUMBS_UP = "👍";
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    ReactionRepository reactionRepository;
+
+    @Autowired
+    ReactionService reactionService;
+
+    @NonNull
+    @SuppressWarnings("null")
+    ObjectId messageId;
+
+    @BeforeEach
+    void sendMessage() {
+        messageId = serverService.sendMessage(owner, existingServerId, channel1Id, "React to this").getId();
+    }
+
+    @AfterEach
+    void clearReactions() {
+        reactionService.flush();
+        messageRepository.deleteAll();
+        reactionRepository.deleteAll();
+    }
+
+    private Map<String, Long> getReactionCounts() {
+        Message message = serverService.getMessages(owner, existingServerId, channel1Id,
+                MessageSearchOptions.latest()).getMessages().get(0);
+        assertEquals(messageId, message.getId());
+        return new MessageView(message).getReactions();
+    }
+
+    @Test
+    void shouldCountEachUserReactionOnce() {
+        assertTrue(serverService.addReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertFalse(serverService.addReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertTrue(serverService.addReaction(owner, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertTrue(serverService.addReaction(owner, existingServerId, channel1Id, messageId, "party"));
+        reactionService.flush();
+
+        assertEquals(Map.of(THUMBS_UP, 2L, "party", 1L), getReactionCounts());
+    }
+
+    @Test
+    void shouldCoalesceReactionsUntilFlushed() {
+        Message message = messageRepository.findMessageById(messageId).get();
+        for (int i = 0; i < 100; i++)
+            reactionService.addReaction(new ObjectId(), message, THUMBS_UP, null);
+
+        assertTrue(getReactionCounts().isEmpty());
+        reactionService.flush();
+        assertEquals(Map.of(THUMBS_UP, 100L), getReactionCounts());
+    }
+
+    @Test
+    void shouldRemoveReaction() {
+        serverService.addReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP);
+        reactionService.flush();
+        assertEquals(Map.of(THUMBS_UP, 1L), getReactionCounts());
+
+        assertTrue(serverService.removeReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertFalse(serverService.removeReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP));
+        reactionService.flush();
+        assertTrue(getReactionCounts().isEmpty());
+    }
+
+    @Test
+    void shouldNotReactWithoutPermission() {
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.addReaction(basicMemberUser, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.addReaction(bannedUser, existingServerId, channel1Id, messageId, THUMBS_UP));
+        assertEquals(0, reactionRepository.count());
+    }
+
+    @Test
+    void shouldRejectInvalidEmoji() {
+        assertThrows(IllegalArgumentException.class,
+                () -> serverService.addReaction(moderator, existingServerId, channel1Id, messageId, "a.b"));
+        assertThrows(IllegalArgumentException.class,
+                () -> serverService.addReaction(moderator, existingServerId, channel1Id, messageId, "$set"));
+        assertThrows(IllegalArgumentException.class,
+                () -> serverService.addReaction(moderator, existingServerId, channel1Id, messageId, " "));
+    }
+
+    @Test
+    void shouldForgetReactionsOfDeletedMessage() {
+        serverService.addReaction(moderator, existingServerId, channel1Id, messageId, THUMBS_UP);
+        serverService.deleteMessage(owner, existingServerId, channel1Id, messageId);
+
+        assertEquals(0, reactionRepository.count());
+    }
+}
@@ -0,0 +1,174 @@
+package com.leostormer.strife.readstate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.TestPropertySource;
+
+import com.leostormer.strife.exceptions.ResourceNotFoundException;
+import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageMentions;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+
+// Mentions and acknowledgements are only flushed when a test asks for it
+@TestPropertySource(properties = "app.read-state.flush-interval=1h")
+public class ReadStateServiceTests extends ServerServiceTestSetup {
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    ReadStateRepository readStateRepository;
+
+    @Autowired
+    ReadStateService readStateService;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @AfterEach
+    void clearReadStates() {
+        readStateService.flush();
+        messageRepository.deleteAll();
+        readStateRepository.deleteAll();
+        mongoTemplate.dropCollection(ChannelCounter.class);
+    }
+
+    private UnreadCount getUnreadCount(ObjectId userId, ObjectId channelId) {
+        return readStateService.getUnreadCounts(userId, List.of(channelId)).get(0);
+    }
+
+    @Test
+    void shouldCountUnreadMessagesAndMentions() {
+        for (int i = 0; i < 5; i++)
+            serverService.sendMessage(owner, existingServerId, channel1Id, "Message number " + i);
+        serverService.sendMessage(owner, existingServerId, channel1Id,
+                "Hello " + MessageMentions.of(basicMemberUser.getId()));
+
+        UnreadCount unreadCount = getUnreadCount(basicMemberUser.getId(), channel1Id);
+        assertEquals(6, unreadCount.getUnreadMessages());
+        assertEquals(1, unreadCount.getUnreadMentions());
+        assertNull(unreadCount.getLastReadMessageId());
+
+        UnreadCount otherChannel = getUnreadCount(basicMemberUser.getId(), channel2Id);
+        assertEquals(0, otherChannel.getUnreadMessages());
+    }
+
+    @Test
+    void shouldNotCountSelfMentions() {
+        serverService.sendMessage(owner, existingServerId, channel1Id, "Me " + MessageMentions.of(owner.getId()));
+
+        assertEquals(0, getUnreadCount(owner.getId(), channel1Id).getUnreadMentions());
+    }
+
+    @Test
+    void shouldClearUnreadCountsOnAcknowledgement() {
+        Message last = null;
+        for (int i = 0; i < 4; i++)
+            last = serverService.sendMessage(owner, existingServerId, channel1Id,
+                    "Message number " + i + " " + MessageMentions.of(basicMemberUser.getId()));
+
+        serverService.acknowledgeMessage(basicMemberUser, existingServerId, channel1Id, last.getId());
+
+        UnreadCount unreadCount = getUnreadCount(basicMemberUser.getId(), channel1Id);
+        assertEquals(0, unreadCount.getUnreadMessages());
+        assertEquals(0, unreadCount.getUnreadMentions());
+        assertEquals(last.getId(), unreadCount.getLastReadMessageId());
+
+        serverService.sendMessage(owner, existingServerId, channel1Id, "One more");
+        assertEquals(1, getUnreadCount(basicMemberUser.getId(), channel1Id).getUnreadMessages());
+    }
+
+    @Test
+    void shouldCountMessagesAfterAcknowledgedMessage() {
+        Message acknowledged = null;
+        for (int i = 0; i < 6; i++) {
+            Message message = serverService.sendMessage(owner, existingServerId, channel1Id, "Message number " + i);
+            if (i == 2)
+                acknowledged = message;
+        }
+
+        serverService.acknowledgeMessage(basicMemberUser, existingServerId, channel1Id, acknowledged.getId());
+
+        assertEquals(3, getUnreadCount(basicMemberUser.getId(), channel1Id).getUnreadMessages());
+    }
+
+    @Test
+    void shouldKeepNewestAcknowledgementWithinFlush() {
+        Message first = serverService.sendMessage(owner, existingServerId, channel1Id, "First");
+        Message second = serverService.sendMessage(owner, existingServerId, channel1Id, "Second");
+
+        readStateService.acknowledge(basicMemberUser.getId(), second);
+        readStateService.acknowledge(basicMemberUser.getId(), first);
+
+        UnreadCount unreadCount = getUnreadCount(basicMemberUser.getId(), channel1Id);
+        assertEquals(second.getId(), unreadCount.getLastReadMessageId());
+        assertEquals(0, unreadCount.getUnreadMessages());
+    }
+
+    @Test
+    void shouldApplyPendingAcknowledgementWithoutFlushing() {
+        Message acknowledged = null;
+        for (int i = 0; i < 5; i++) {
+            Message message = serverService.sendMessage(owner, existingServerId, channel1Id,
+                    "Message number " + i + " " + MessageMentions.of(basicMemberUser.getId()));
+            if (i == 1)
+                acknowledged = message;
+        }
+
+        serverService.acknowledgeMessage(basicMemberUser, existingServerId, channel1Id, acknowledged.getId());
+
+        UnreadCount pending = getUnreadCount(basicMemberUser.getId(), channel1Id);
+        assertEquals(0, readStateRepository.count());
+        assertEquals(acknowledged.getId(), pending.getLastReadMessageId());
+        assertEquals(3, pending.getUnreadMessages());
+        assertEquals(0, pending.getUnreadMentions());
+
+        readStateService.flush();
+        UnreadCount flushed = getUnreadCount(basicMemberUser.getId(), channel1Id);
+        assertEquals(acknowledged.getId(), flushed.getLastReadMessageId());
+        assertEquals(3, flushed.getUnreadMessages());
+        assertEquals(0, flushed.getUnreadMentions());
+    }
+
+    @Test
+    void shouldNotAcknowledgeMessageFromOtherChannel() {
+        Message message = serverService.sendMessage(owner, existingServerId, channel2Id, "Elsewhere");
+
+        assertThrows(ResourceNotFoundException.class,
+                () -> serverService.acknowledgeMessage(basicMemberUser, existingServerId, channel1Id, message.getId()));
+    }
+
+    @Test
+    void shouldNotAcknowledgeInChannelWithoutAccess() {
+        ServerChannel channel = channelRepository.findServerChannelById(adminOnlyPrivateChannelId).get();
+        Message message = messageRepository.insertMessage(owner, channel, "Secret");
+
+        assertThrows(UnauthorizedActionException.class, () -> serverService.acknowledgeMessage(basicMemberUser,
+                existingServerId, adminOnlyPrivateChannelId, message.getId()));
+    }
+
+    @Test
+    void shouldOnlyListVisibleChannels() {
+        List<ObjectId> channelIds = serverService.getVisibleChannels(basicMemberUser).stream()
+                .map(ServerChannel::getId).toList();
+
+        assertTrue(channelIds.contains(channel1Id));
+        assertTrue(channelIds.contains(channel2Id));
+        assertFalse(channelIds.contains(adminOnlyPrivateChannelId));
+        assertTrue(serverService.getVisibleChannels(bannedUser).isEmpty());
+        assertTrue(serverService.getVisibleChannels(nonMemberUser).isEmpty());
+    }
+}
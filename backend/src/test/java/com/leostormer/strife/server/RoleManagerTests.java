@@ -1,21 +1,39 @@
 package com.leostormer.strife.server;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
 
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.member.Member;
+import com.leostormer.strife.server.recompute.RoleRecomputeJob;
+import com.leostormer.strife.server.recompute.RoleRecomputeJobRepository;
+import com.leostormer.strife.server.recompute.RoleRecomputeJobService;
 import com.leostormer.strife.server.role.Role;
 import com.leostormer.strife.server.role.RoleUpdateOperation;
 
+@TestPropertySource(properties = "app.roles.recompute.retry-delay=100ms")
 public class RoleManagerTests extends ServerServiceTestSetup {
+    @Autowired
+    private RoleRecomputeJobService roleRecomputeJobService;
+
+    @Autowired
+    private RoleRecomputeJobRepository roleRecomputeJobRepository;
+
     @Test
     public void blankUpdateOperationShouldDoNothing() {
         RoleUpdateOperation doNothing = new RoleUpdateOperation(null, null, null);
@@ -137,4 +155,68 @@ public class RoleManagerTests extends ServerServiceTestSetup {
         Server updatedServer = serverRepository.findById(existingServerId).get();
         assertEquals(server.getRoles(), updatedServer.getRoles());
     }
+
+    @Test
+    public void shouldRecomputeMemberPermissionsAfterEditingRole() throws InterruptedException {
+        Role defaultRole = serverRepository.findById(existingServerId).get().getRoles().get(defaultRoleId);
+        long permissions = Permissions.grantPermission(defaultRole.getPermissions(), PermissionType.MANAGE_MESSAGES);
+        Role updatedDefaultRole = new Role(defaultRoleId, defaultRole.getName(), defaultRole.getPriority(),
+                permissions);
+        serverService.updateRoles(owner, existingServerId,
+                new RoleUpdateOperation(null, null, List.of(updatedDefaultRole)));
+        awaitJobCompletion();
+
+        assertEquals(permissions, memberService.getMember(basicMemberUser.getId(), existingServerId).get()
+                .getPermissions());
+        RoleRecomputeJob job = serverService.getRoleRecomputeJob(owner, existingServerId).get();
+        assertTrue(job.isCompleted());
+        assertEquals(List.of(defaultRoleId), job.getRoleIds());
+        assertEquals(1, job.getMembersUpdated());
+    }
+
+    @Test
+    public void shouldRemoveDeletedRolesFromMembers() throws InterruptedException {
+        serverService.updateRoles(owner, existingServerId,
+                new RoleUpdateOperation(null, List.of(moderatorRoleId), null));
+        awaitJobCompletion();
+
+        Member member = memberService.getMember(moderator.getId(), existingServerId).get();
+        assertFalse(member.getRoleIds().contains(moderatorRoleId));
+        assertEquals(Permissions.NONE, member.getPermissions());
+        assertEquals(0, member.getRolePriority());
+        assertThrows(UnauthorizedActionException.class, () -> {
+            serverService.getRoleRecomputeJob(moderator, existingServerId);
+        });
+    }
+
+    @Test
+    public void shouldTakeOverRecomputeJobOnceLeaseOfAnotherNodeExpires() throws InterruptedException {
+        // A job claimed by a node that stopped before visiting any member
+        RoleRecomputeJob claimed = new RoleRecomputeJob(existingServerId, List.of(moderatorRoleId));
+        claimed.setOwner("stopped-node");
+        claimed.setLeaseExpiresAt(Instant.now().plusSeconds(1));
+        roleRecomputeJobRepository.save(claimed);
+
+        roleRecomputeJobService.resumePendingJobs();
+        Thread.sleep(300);
+        assertEquals(0, roleRecomputeJobRepository.findById(claimed.getId()).get().getMembersVisited());
+
+        RoleRecomputeJob job = awaitJobCompletion();
+        assertNotEquals("stopped-node", job.getOwner());
+        assertEquals(1, job.getMembersVisited());
+    }
+
+    private RoleRecomputeJob awaitJobCompletion() throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            Optional<RoleRecomputeJob> job = roleRecomputeJobRepository
+                    .findFirstByServerIdOrderByCreatedAtDesc(existingServerId);
+            if (job.isPresent() && job.get().isCompleted())
+                return job.get();
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Role recompute job did not complete in time");
+    }
 }
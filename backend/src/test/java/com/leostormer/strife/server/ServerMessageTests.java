@@ -5,8 +5,11 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 import org.bson.types.ObjectId;
 import org.junit.jupiter.api.AfterEach;
@@ -18,6 +21,8 @@ import org.springframework.lang.NonNull;
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
 import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessagePurge;
+import com.leostormer.strife.message.MessageQuery;
 import com.leostormer.strife.message.MessageRepository;
 import com.leostormer.strife.message.MessageSearchOptions;
 import com.leostormer.strife.server.server_channel.ServerChannel;
@@ -70,17 +75,17 @@ public class ServerMessageTests extends ServerServiceTestSetup {
         MessageSearchOptions searchOptions = MessageSearchOptions.earliest();
 
         List<Message> adminOnlyMessages = serverService.getMessages(owner, existingServerId,
-                adminOnlyPrivateChannelId, searchOptions);
+                adminOnlyPrivateChannelId, searchOptions).getMessages();
         assertEquals(1, adminOnlyMessages.size());
         assertEquals(moderator.getId(), adminOnlyMessages.get(0).getSender().getId());
 
         List<Message> channel1Messages = serverService.getMessages(moderator, existingServerId, channel1Id,
-                searchOptions);
+                searchOptions).getMessages();
         assertEquals(1, channel1Messages.size());
         assertEquals(basicMemberUser.getId(), channel1Messages.get(0).getSender().getId());
 
         List<Message> channel2Messages = serverService.getMessages(basicMemberUser, existingServerId, channel2Id,
-                searchOptions);
+                searchOptions).getMessages();
         assertEquals(NUM_MESSAGES_CHANNEL_2, channel2Messages.size());
         assertEquals(owner.getId(), channel2Messages.get(0).getSender().getId());
     }
@@ -102,6 +107,67 @@ public class ServerMessageTests extends ServerServiceTestSetup {
         });
     }
 
+    @Test
+    public void shouldStreamMessages() {
+        try (Stream<List<Message>> batches = serverService.streamMessages(moderator, existingServerId, channel2Id)) {
+            List<Message> messages = batches.flatMap(List::stream).toList();
+            assertEquals(NUM_MESSAGES_CHANNEL_2, messages.size());
+            assertEquals(owner.getId(), messages.get(0).getSender().getId());
+            for (int i = 1; i < messages.size(); i++)
+                assertTrue(Message.sortByTimestampAscending.compare(messages.get(i - 1), messages.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void shouldNotStreamMessagesWithoutReadMessageHistory() {
+        assertThrows(UnauthorizedActionException.class, () -> {
+            serverService.streamMessages(basicMemberUser, existingServerId, channel2Id);
+        });
+        assertThrows(ResourceNotFoundException.class, () -> {
+            serverService.streamMessages(nonMemberUser, existingServerId, channel2Id);
+        });
+        assertThrows(UnauthorizedActionException.class, () -> {
+            serverService.streamMessages(bannedUser, existingServerId, channel2Id);
+        });
+    }
+
+    @Test
+    public void shouldSearchMessages() {
+        List<Message> everywhere = serverService.searchMessages(owner, existingServerId,
+                MessageQuery.builder().text("content").build());
+        assertEquals(2, everywhere.size());
+
+        List<Message> inChannel = serverService.searchMessages(owner, existingServerId,
+                MessageQuery.builder().text("content").channelId(channel1Id).build());
+        assertEquals(1, inChannel.size());
+        assertEquals(basicMemberMessageId, inChannel.get(0).getId());
+
+        List<Message> bySender = serverService.searchMessages(owner, existingServerId,
+                MessageQuery.builder().text("number").senderId(owner.getId()).build());
+        assertEquals(4, bySender.size());
+        bySender.forEach(message -> assertEquals(owner.getId(), message.getSender().getId()));
+
+        List<Message> inFuture = serverService.searchMessages(owner, existingServerId,
+                MessageQuery.builder().text("number").after(new Date(System.currentTimeMillis() + 60_000)).build());
+        assertTrue(inFuture.isEmpty());
+    }
+
+    @Test
+    public void shouldOnlySearchChannelsWithReadMessageHistory() {
+        assertTrue(serverService.searchMessages(basicMemberUser, existingServerId,
+                MessageQuery.builder().text("content").build()).isEmpty());
+        assertThrows(UnauthorizedActionException.class, () -> {
+            serverService.searchMessages(basicMemberUser, existingServerId,
+                    MessageQuery.builder().text("content").channelId(channel1Id).build());
+        });
+        assertThrows(ResourceNotFoundException.class, () -> {
+            serverService.searchMessages(nonMemberUser, existingServerId, MessageQuery.builder().text("content").build());
+        });
+        assertThrows(IllegalArgumentException.class, () -> {
+            serverService.searchMessages(owner, existingServerId, MessageQuery.builder().text(" ").build());
+        });
+    }
+
     @Test
     public void shouldSendMessage() {
         String messageContent = "A new message";
@@ -190,4 +256,107 @@ public class ServerMessageTests extends ServerServiceTestSetup {
         });
         assertTrue(messageRepository.existsById(basicMemberMessageId));
     }
+
+    @Test
+    public void shouldPurgeMessagesBySender() {
+        List<List<ObjectId>> batches = new ArrayList<>();
+        MessagePurge purge = MessagePurge.builder().senderId(basicMemberUser.getId()).build();
+        long deleted = serverService.purgeMessages(moderator, existingServerId, channel2Id, purge, batches::add);
+
+        assertEquals(NUM_MESSAGES_CHANNEL_2 / 3, deleted);
+        assertEquals(deleted, batches.stream().mapToLong(List::size).sum());
+        List<Message> remaining = serverService.getMessages(owner, existingServerId, channel2Id,
+                MessageSearchOptions.earliest()).getMessages();
+        assertEquals(NUM_MESSAGES_CHANNEL_2 - deleted, remaining.size());
+        assertTrue(remaining.stream().noneMatch(m -> m.getSender().getId().equals(basicMemberUser.getId())));
+        assertTrue(messageRepository.existsById(basicMemberMessageId));
+    }
+
+    @Test
+    public void shouldPurgeMessagesByIdWithinChannelOnly() {
+        List<ObjectId> channel2Ids = serverService.getMessages(owner, existingServerId, channel2Id,
+                MessageSearchOptions.earliest()).getMessages().stream().map(Message::getId).toList();
+        List<ObjectId> ids = new ArrayList<>(channel2Ids.subList(0, 4));
+        ids.add(basicMemberMessageId);
+
+        long deleted = serverService.purgeMessages(moderator, existingServerId, channel2Id,
+                MessagePurge.builder().messageIds(ids).build(), batch -> assertFalse(batch.contains(basicMemberMessageId)));
+
+        assertEquals(4, deleted);
+        assertTrue(channel2Ids.subList(0, 4).stream().noneMatch(messageRepository::existsById));
+        assertTrue(messageRepository.existsById(basicMemberMessageId));
+    }
+
+    @Test
+    public void shouldPurgeMessagesInTimeWindow() {
+        Date now = new Date();
+        long deleted = serverService.purgeMessages(owner, existingServerId, channel2Id,
+                MessagePurge.builder().after(new Date(0)).before(now).build(), batch -> {
+                });
+
+        assertEquals(NUM_MESSAGES_CHANNEL_2, deleted);
+        assertFalse(messageRepository.existsByChannel(channel2Id));
+        assertTrue(messageRepository.existsById(basicMemberMessageId));
+    }
+
+    @Test
+    public void shouldNotPurgeMessagesWithoutPermission() {
+        MessagePurge purge = MessagePurge.builder().senderId(owner.getId()).build();
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.purgeMessages(basicMemberUser, existingServerId, channel2Id, purge, batch -> {
+                }));
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.purgeMessages(bannedUser, existingServerId, channel2Id, purge, batch -> {
+                }));
+        assertThrows(ResourceNotFoundException.class,
+                () -> serverService.purgeMessages(nonMemberUser, existingServerId, channel2Id, purge, batch -> {
+                }));
+        assertThrows(IllegalArgumentException.class, () -> serverService.purgeMessages(moderator, existingServerId,
+                channel2Id, new MessagePurge(), batch -> {
+                }));
+        assertTrue(messageRepository.existsByChannel(channel2Id));
+    }
+
+    @Test
+    public void shouldPinMessagesNewestFirst() {
+        List<ObjectId> channel2Ids = serverService.getMessages(owner, existingServerId, channel2Id,
+                MessageSearchOptions.earliest()).getMessages().stream().map(Message::getId).toList();
+        assertTrue(serverService.pinMessage(moderator, existingServerId, channel2Id, channel2Ids.get(0)));
+        assertTrue(serverService.pinMessage(moderator, existingServerId, channel2Id, channel2Ids.get(3)));
+        assertFalse(serverService.pinMessage(owner, existingServerId, channel2Id, channel2Ids.get(0)));
+
+        List<Message> pins = serverService.getPinnedMessages(basicMemberUser, existingServerId, channel2Id);
+        assertEquals(List.of(channel2Ids.get(3), channel2Ids.get(0)), pins.stream().map(Message::getId).toList());
+        assertTrue(pins.stream().allMatch(m -> m.getSender().getUsername() != null));
+
+        assertTrue(serverService.unpinMessage(moderator, existingServerId, channel2Id, channel2Ids.get(3)));
+        assertFalse(serverService.unpinMessage(moderator, existingServerId, channel2Id, channel2Ids.get(3)));
+        assertEquals(List.of(channel2Ids.get(0)), serverService
+                .getPinnedMessages(owner, existingServerId, channel2Id).stream().map(Message::getId).toList());
+    }
+
+    @Test
+    public void shouldNotPinMessageWithoutPermissionOrFromAnotherChannel() {
+        assertThrows(UnauthorizedActionException.class,
+                () -> serverService.pinMessage(basicMemberUser, existingServerId, channel1Id, basicMemberMessageId));
+        assertThrows(ResourceNotFoundException.class,
+                () -> serverService.pinMessage(moderator, existingServerId, channel2Id, basicMemberMessageId));
+        assertTrue(serverService.getPinnedMessages(owner, existingServerId, channel1Id).isEmpty());
+    }
+
+    @Test
+    public void shouldUnpinDeletedMessages() {
+        serverService.pinMessage(moderator, existingServerId, channel1Id, basicMemberMessageId);
+        serverService.deleteMessage(basicMemberUser, existingServerId, channel1Id, basicMemberMessageId);
+        assertTrue(channelRepository.findServerChannelById(channel1Id).get().getPinnedMessageIds().isEmpty());
+        assertTrue(serverService.getPinnedMessages(owner, existingServerId, channel1Id).isEmpty());
+
+        ObjectId pinnedId = serverService.getMessages(owner, existingServerId, channel2Id,
+                MessageSearchOptions.earliest()).getMessages().get(0).getId();
+        serverService.pinMessage(moderator, existingServerId, channel2Id, pinnedId);
+        serverService.purgeMessages(moderator, existingServerId, channel2Id,
+                MessagePurge.builder().messageIds(List.of(pinnedId)).build(), batch -> {
+                });
+        assertTrue(serverService.getPinnedMessages(owner, existingServerId, channel2Id).isEmpty());
+    }
 }
@@ -0,0 +1,149 @@
+package com.leostormer.strife.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Import;
+
+import com.leostormer.strife.MongoCommandCounter;
+import com.leostormer.strife.member.MemberCache;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.message.MessageSearchOptions;
+import com.leostormer.strife.server.server_channel.ChannelPermissionCache;
+import com.leostormer.strife.server.server_channel.ChannelUpdateOperation;
+
+/**
+ * Locks in how many reads of servers, members and channels each server
+ * operation costs before it gets to its own work.
+ */
+@Import(MongoCommandCounter.class)
+public class ServerRoundTripTests extends ServerServiceTestSetup {
+    @Autowired
+    MongoCommandCounter commandCounter;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    MemberCache memberCache;
+
+    @Autowired
+    ChannelPermissionCache channelPermissionCache;
+
+    @AfterEach
+    public void clearMessages() {
+        messageRepository.deleteAll();
+    }
+
+    private int contextRoundTrips(Runnable operation) {
+        commandCounter.reset();
+        operation.run();
+        return commandCounter.getCollectionCount("servers") + commandCounter.getCollectionCount("members")
+                + commandCounter.getCollectionCount("channels");
+    }
+
+    /**
+     * Runs an operation that writes to the servers, members or channels
+     * collections and counts only its reads of servers and members.
+     */
+    private int serverAndMemberRoundTrips(Runnable operation) {
+        commandCounter.reset();
+        operation.run();
+        return commandCounter.getCollectionCount("servers") + commandCounter.getCollectionCount("members");
+    }
+
+    private Message warmUp() {
+        return serverService.sendMessage(basicMemberUser, existingServerId, channel1Id, "warm up");
+    }
+
+    @Test
+    public void shouldSendMessageWithoutContextRoundTripsWhenWarm() {
+        warmUp();
+        assertEquals(0, contextRoundTrips(
+                () -> serverService.sendMessage(basicMemberUser, existingServerId, channel1Id, "Hello")));
+    }
+
+    @Test
+    public void shouldGetMessagesWithoutContextRoundTripsWhenWarm() {
+        warmUp();
+        assertEquals(0, contextRoundTrips(() -> serverService.getMessages(basicMemberUser, existingServerId,
+                channel1Id, MessageSearchOptions.earliest())));
+    }
+
+    @Test
+    public void shouldGetChannelsWithoutContextRoundTripsWhenWarm() {
+        warmUp();
+        assertEquals(0, contextRoundTrips(() -> serverService.getChannels(basicMemberUser, existingServerId)));
+        assertEquals(0, contextRoundTrips(() -> serverService.getDefaultChannel(basicMemberUser, existingServerId)));
+    }
+
+    @Test
+    public void shouldGetPinnedMessagesWithoutContextRoundTripsWhenWarm() {
+        Message message = warmUp();
+        serverService.pinMessage(owner, existingServerId, channel1Id, message.getId());
+        assertEquals(0, contextRoundTrips(
+                () -> serverService.getPinnedMessages(basicMemberUser, existingServerId, channel1Id)));
+    }
+
+    @Test
+    public void shouldEditMessageWithoutContextRoundTripsWhenWarm() {
+        Message message = warmUp();
+        assertEquals(0, contextRoundTrips(
+                () -> serverService.editMessage(basicMemberUser, existingServerId, message.getId(), "Edited")));
+    }
+
+    @Test
+    public void shouldDeleteMessageWithoutServerOrMemberRoundTripsWhenWarm() {
+        Message message = warmUp();
+        assertEquals(0, serverAndMemberRoundTrips(
+                () -> serverService.deleteMessage(basicMemberUser, existingServerId, channel1Id, message.getId())));
+    }
+
+    @Test
+    public void shouldAddChannelWithoutServerOrMemberRoundTripsWhenWarm() {
+        serverService.getChannels(owner, existingServerId);
+        assertEquals(0, serverAndMemberRoundTrips(() -> serverService.addChannel(owner, existingServerId,
+                "Round trips", "Test", "Counting reads", false)));
+    }
+
+    @Test
+    public void shouldUpdateChannelRolesWithoutServerOrMemberRoundTripsWhenWarm() {
+        serverService.getChannels(moderator, existingServerId);
+        ChannelUpdateOperation operation = new ChannelUpdateOperation();
+        operation.setRolePermissions(Map.of(defaultRoleId, Permissions.NONE));
+        assertEquals(0, serverAndMemberRoundTrips(
+                () -> serverService.updateChannelSettings(moderator, existingServerId, channel1Id, operation)));
+    }
+
+    @Test
+    public void shouldGetVisibleChannelsWithOnlyMembershipReadWhenWarm() {
+        warmUp();
+        assertEquals(1, contextRoundTrips(() -> serverService.getVisibleChannels(basicMemberUser)));
+        assertEquals(1, commandCounter.getCollectionCount("members"));
+    }
+
+    @Test
+    public void shouldReadServerIdsOfVisibleChannelsWithoutLoadingServers() {
+        warmUp();
+        assertEquals(1, contextRoundTrips(() -> serverService.getVisibleChannels(basicMemberUser)
+                .forEach(channel -> assertEquals(existingServerId, channel.getServerId()))));
+        assertEquals(0, commandCounter.getCollectionCount("servers"));
+    }
+
+    @Test
+    public void shouldLoadColdContextInTwoRoundTrips() {
+        memberCache.clear();
+        channelPermissionCache.clear();
+
+        assertEquals(2, contextRoundTrips(
+                () -> serverService.sendMessage(basicMemberUser, existingServerId, channel1Id, "Hello")));
+        assertEquals(1, commandCounter.getCollectionCount("servers"));
+        assertEquals(1, commandCounter.getCollectionCount("members"));
+        assertEquals(0, commandCounter.getCollectionCount("channels"));
+    }
+}
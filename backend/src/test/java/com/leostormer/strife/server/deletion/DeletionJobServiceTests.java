@@ -0,0 +1,198 @@
+package com.leostormer.strife.server.deletion;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+
+import com.leostormer.strife.exceptions.ResourceNotFoundException;
+import com.leostormer.strife.mention.Mention;
+import com.leostormer.strife.mention.MentionRepository;
+import com.leostormer.strife.message.Message;
+import com.leostormer.strife.message.MessageRepository;
+import com.leostormer.strife.reaction.Reaction;
+import com.leostormer.strife.reaction.ReactionRepository;
+import com.leostormer.strife.readstate.ReadState;
+import com.leostormer.strife.readstate.ReadStateRepository;
+import com.leostormer.strife.server.Server;
+import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.server.invite.Invite;
+import com.leostormer.strife.server.invite.InviteRepository;
+import com.leostormer.strife.server.server_channel.ServerChannel;
+
+@TestPropertySource(properties = { "app.deletion.batch-size=3", "app.deletion.batch-delay=0ms",
+        "app.deletion.retry-delay=100ms" })
+public class DeletionJobServiceTests extends ServerServiceTestSetup {
+    static final int NUM_MESSAGES_PER_CHANNEL = 10;
+
+    @Autowired
+    MessageRepository messageRepository;
+
+    @Autowired
+    InviteRepository inviteRepository;
+
+    @Autowired
+    ReactionRepository reactionRepository;
+
+    @Autowired
+    MentionRepository mentionRepository;
+
+    @Autowired
+    ReadStateRepository readStateRepository;
+
+    @Autowired
+    DeletionJobRepository deletionJobRepository;
+
+    @Autowired
+    DeletionJobService deletionJobService;
+
+    String inviteId;
+
+    @BeforeEach
+    void createMessagesAndInvites() {
+        for (ObjectId channelId : List.of(channel1Id, channel2Id)) {
+            ServerChannel channel = channelRepository.findServerChannelById(channelId).get();
+            for (int i = 0; i < NUM_MESSAGES_PER_CHANNEL; i++) {
+                Message message = messageRepository.insertMessage(owner, channel, "Message number " + i);
+                reactionRepository.save(new Reaction(message.getId(), owner.getId(), "thumbsup"));
+                mentionRepository.save(new Mention(moderator.getId(), message.getId(), channelId, existingServerId,
+                        owner.getId()));
+            }
+
+            ReadState readState = new ReadState();
+            readState.setUser(moderator.getId());
+            readState.setChannel(channelId);
+            readStateRepository.save(readState);
+        }
+
+        Server server = serverRepository.findById(existingServerId).get();
+        for (int i = 0; i < 4; i++)
+            inviteId = inviteRepository.save(new Invite(owner, server, 3600, Invite.UNLIMITED_USES)).getId();
+    }
+
+    @AfterEach
+    void clearMessagesAndJobs() {
+        messageRepository.deleteAll();
+        reactionRepository.deleteAll();
+        mentionRepository.deleteAll();
+        readStateRepository.deleteAll();
+        inviteRepository.deleteAll();
+        deletionJobRepository.deleteAll();
+    }
+
+    @Test
+    void shouldPurgeDeletedServerInBatches() throws InterruptedException {
+        long memberCount = memberRepository.count();
+        serverService.deleteServer(owner, existingServerId);
+
+        assertFalse(serverRepository.existsById(existingServerId));
+        assertTrue(channelRepository.findAllByServerId(existingServerId).isEmpty());
+        assertThrows(ResourceNotFoundException.class, () -> serverService.joinByInvite(nonMemberUser, inviteId));
+
+        DeletionJob job = awaitCompletion();
+        assertEquals(DeletionJob.Target.SERVER, job.getTarget());
+        assertEquals(2 * NUM_MESSAGES_PER_CHANNEL, job.getMessagesDeleted());
+        assertEquals(2 * NUM_MESSAGES_PER_CHANNEL, job.getReactionsDeleted());
+        assertEquals(2 * NUM_MESSAGES_PER_CHANNEL, job.getMentionsDeleted());
+        assertEquals(2, job.getReadStatesDeleted());
+        assertEquals(memberCount, job.getMembersDeleted());
+        assertEquals(4, job.getInvitesDeleted());
+        assertEquals(3, job.getChannelsDeleted());
+        assertTrue(job.getChannelIds().isEmpty());
+
+        assertFalse(messageRepository.existsByChannel(channel1Id));
+        assertFalse(messageRepository.existsByChannel(channel2Id));
+        assertEquals(0, memberRepository.count());
+        assertEquals(0, inviteRepository.count());
+        assertEquals(0, reactionRepository.count());
+        assertEquals(0, mentionRepository.count());
+        assertEquals(0, readStateRepository.count());
+        assertTrue(readStateRepository.getMessageCounters(List.of(channel1Id, channel2Id)).isEmpty());
+    }
+
+    @Test
+    void shouldPurgeRemovedChannelOnly() throws InterruptedException {
+        serverService.removeChannel(owner, existingServerId, channel1Id);
+        assertFalse(channelRepository.existsById(channel1Id));
+
+        DeletionJob job = awaitCompletion();
+        assertEquals(DeletionJob.Target.CHANNELS, job.getTarget());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, job.getMessagesDeleted());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, job.getReactionsDeleted());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, reactionRepository.count());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, job.getMentionsDeleted());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, mentionRepository.count());
+        assertEquals(1, job.getReadStatesDeleted());
+        assertEquals(1, readStateRepository.count());
+        assertEquals(Set.of(channel2Id),
+                readStateRepository.getMessageCounters(List.of(channel1Id, channel2Id)).keySet());
+        assertEquals(0, job.getMembersDeleted());
+        assertFalse(messageRepository.existsByChannel(channel1Id));
+        assertTrue(messageRepository.existsByChannel(channel2Id));
+        assertEquals(4, inviteRepository.count());
+    }
+
+    @Test
+    void shouldResumeUnfinishedJob() throws InterruptedException {
+        // A job left behind halfway, as if the application stopped mid purge
+        DeletionJob unfinished = new DeletionJob(DeletionJob.Target.CHANNELS, existingServerId,
+                List.of(channel1Id, channel2Id));
+        unfinished.setMessagesDeleted(4);
+        deletionJobRepository.save(unfinished);
+        channelRepository.deleteAllById(List.of(channel1Id, channel2Id));
+
+        deletionJobService.resumePendingJobs();
+
+        DeletionJob job = awaitCompletion();
+        assertEquals(4 + 2 * NUM_MESSAGES_PER_CHANNEL, job.getMessagesDeleted());
+        assertFalse(messageRepository.existsByChannel(channel1Id));
+        assertFalse(messageRepository.existsByChannel(channel2Id));
+    }
+
+    @Test
+    void shouldTakeOverJobOnceLeaseOfAnotherNodeExpires() throws InterruptedException {
+        // A job claimed by a node that stopped halfway through it
+        DeletionJob claimed = new DeletionJob(DeletionJob.Target.CHANNELS, existingServerId, List.of(channel1Id));
+        claimed.setOwner("stopped-node");
+        claimed.setLeaseExpiresAt(Instant.now().plusSeconds(1));
+        deletionJobRepository.save(claimed);
+        channelRepository.deleteById(channel1Id);
+
+        deletionJobService.resumePendingJobs();
+        Thread.sleep(300);
+        assertFalse(deletionJobRepository.findById(claimed.getId()).get().isCompleted());
+        assertTrue(messageRepository.existsByChannel(channel1Id));
+
+        DeletionJob job = awaitCompletion();
+        assertNotEquals("stopped-node", job.getOwner());
+        assertEquals(NUM_MESSAGES_PER_CHANNEL, job.getMessagesDeleted());
+        assertFalse(messageRepository.existsByChannel(channel1Id));
+    }
+
+    private DeletionJob awaitCompletion() throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            List<DeletionJob> jobs = deletionJobRepository.findAll().stream()
+                    .filter(job -> job.getServerId().equals(existingServerId)).toList();
+            if (jobs.size() == 1 && jobs.get(0).isCompleted())
+                return jobs.get(0);
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Deletion job did not complete in time");
+    }
+}
@@ -6,12 +6,16 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.List;
+import java.util.Map;
 
 import org.junit.jupiter.api.Test;
 
 import com.leostormer.strife.exceptions.ResourceNotFoundException;
 import com.leostormer.strife.exceptions.UnauthorizedActionException;
+import com.leostormer.strife.server.PermissionType;
+import com.leostormer.strife.server.Permissions;
 import com.leostormer.strife.server.ServerServiceTestSetup;
+import com.leostormer.strife.server.role.RoleUpdateOperation;
 
 public class ChannelManagerTests extends ServerServiceTestSetup {
     @Test
@@ -157,4 +161,51 @@ public class ChannelManagerTests extends ServerServiceTestSetup {
         assertEquals(channel.getRolePermissions(), updatedChannel.getRolePermissions());
         assertEquals(channel.getUserPermissions(), updatedChannel.getUserPermissions());
     }
+
+    @Test
+    public void shouldApplyChannelSettingsToCachedPermissions() {
+        assertEquals(2, serverService.getChannels(basicMemberUser, existingServerId).size());
+        assertThrows(UnauthorizedActionException.class, () -> {
+            serverService.sendMessage(basicMemberUser, existingServerId, adminOnlyPrivateChannelId, "Hello");
+        });
+
+        ChannelUpdateOperation operation = new ChannelUpdateOperation();
+        operation.setRolePermissions(Map.of(defaultRoleId,
+                Permissions.getPermissions(PermissionType.VIEW_CHANNELS, PermissionType.SEND_MESSAGES)));
+        serverService.updateChannelSettings(owner, existingServerId, adminOnlyPrivateChannelId, operation);
+
+        assertEquals(3, serverService.getChannels(basicMemberUser, existingServerId).size());
+        serverService.sendMessage(basicMemberUser, existingServerId, adminOnlyPrivateChannelId, "Hello");
+    }
+
+    @Test
+    public void shouldNotGrantPermissionsOfRemovedRoles() {
+        assertEquals(3, serverService.getChannels(moderator, existingServerId).size());
+
+        serverService.updateRoles(owner, existingServerId,
+                new RoleUpdateOperation(null, List.of(moderatorRoleId), null));
+
+        List<ServerChannel> channels = serverService.getChannels(moderator, existingServerId);
+        assertEquals(2, channels.size());
+        assertTrue(channels.stream().noneMatch(c -> c.getId().equals(adminOnlyPrivateChannelId)));
+        assertFalse(channelRepository.findServerChannelById(adminOnlyPrivateChannelId).get().getRolePermissions()
+                .containsKey(moderatorRoleId));
+    }
+
+    @Test
+    public void shouldNotFindRemovedOrAddedChannelsInCachedPermissions() {
+        assertEquals(3, serverService.getChannels(owner, existingServerId).size());
+
+        serverService.removeChannel(owner, existingServerId, channel1Id);
+        ServerChannel added = serverService.addChannel(owner, existingServerId, "new", "General", "A new channel",
+                true);
+
+        List<ServerChannel> channels = serverService.getChannels(basicMemberUser, existingServerId);
+        assertTrue(channels.stream().noneMatch(c -> c.getId().equals(channel1Id)));
+        assertTrue(channels.stream().anyMatch(c -> c.getId().equals(added.getId())));
+        assertEquals(channel2Id, serverService.getDefaultChannel(basicMemberUser, existingServerId).getId());
+        assertThrows(ResourceNotFoundException.class, () -> {
+            serverService.sendMessage(owner, existingServerId, channel1Id, "Hello");
+        });
+    }
 }
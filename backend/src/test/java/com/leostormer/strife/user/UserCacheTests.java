@@ -0,0 +1,113 @@
+package com.leostormer.strife.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.security.Principal;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.leostormer.strife.AbstractIntegrationTest;
+import com.leostormer.strife.TestUtils;
+import com.leostormer.strife.channel.ChannelRepository;
+import com.leostormer.strife.user.friends.FriendRequestRepository;
+
+/**
+ * Checks that no write to a user leaves a stale copy behind its principal.
+ */
+public class UserCacheTests extends AbstractIntegrationTest {
+    @Autowired
+    UserRepository userRepository;
+
+    @Autowired
+    FriendRequestRepository friendRequestRepository;
+
+    @Autowired
+    ChannelRepository channelRepository;
+
+    @Autowired
+    UserService userService;
+
+    @Autowired
+    UserCache userCache;
+
+    private User alice;
+
+    private User bob;
+
+    private Principal alicePrincipal;
+
+    private Principal bobPrincipal;
+
+    @BeforeEach
+    void setUp() {
+        alice = TestUtils.createUser("alice", "password123", userRepository);
+        bob = TestUtils.createUser("bob", "password456", userRepository);
+        TestUtils.createAcceptedFriendship(alice, bob, userRepository, friendRequestRepository);
+        alicePrincipal = alice::getEmail;
+        bobPrincipal = bob::getEmail;
+    }
+
+    @AfterEach
+    void cleanUp() {
+        userRepository.deleteAll();
+        friendRequestRepository.deleteAll();
+        channelRepository.deleteAll();
+    }
+
+    @Test
+    void shouldServeRepeatedLookupsFromMemory() {
+        userService.getUser(alicePrincipal);
+        long hits = userCache.getHitCount();
+        long misses = userCache.getMissCount();
+
+        assertEquals(alice.getId(), userService.getUser(alicePrincipal).getId());
+        assertEquals(hits + 1, userCache.getHitCount());
+        assertEquals(misses, userCache.getMissCount());
+    }
+
+    @Test
+    void shouldReturnCopiesOfCachedUsers() {
+        userService.getUser(alicePrincipal).getFriends().clear();
+        assertTrue(userService.getUser(alicePrincipal).isFriend(bob.getId()));
+    }
+
+    @Test
+    void shouldSeeUpdatedDetails() {
+        User cached = userService.getUser(alicePrincipal);
+        UserUpdate userUpdate = new UserUpdate();
+        userUpdate.setPassword("SecurePassword!@#ASD");
+        userUpdate.setProfilePic("alice.png");
+        userService.updateUserDetails(cached, userUpdate);
+
+        assertEquals("alice.png", userService.getUser(alicePrincipal).getProfilePic());
+    }
+
+    @Test
+    void shouldSeeBlocksOnBothUsers() {
+        userService.getUser(alicePrincipal);
+        userService.getUser(bobPrincipal);
+
+        userService.blockUser(userService.getUser(alicePrincipal), bob.getId());
+        assertTrue(userService.getUser(alicePrincipal).hasBlocked(bob.getId()));
+        assertFalse(userService.getUser(alicePrincipal).isFriend(bob.getId()));
+        assertFalse(userService.getUser(bobPrincipal).isFriend(alice.getId()));
+
+        userService.unblockUser(userService.getUser(alicePrincipal), bob.getId());
+        assertFalse(userService.getUser(alicePrincipal).hasBlocked(bob.getId()));
+    }
+
+    @Test
+    void shouldNotResolveDeletedUsers() {
+        userService.getUser(bobPrincipal);
+        userRepository.deleteById(bob.getId());
+
+        assertThrows(NoSuchElementException.class, () -> userService.getUser(bobPrincipal));
+    }
+}
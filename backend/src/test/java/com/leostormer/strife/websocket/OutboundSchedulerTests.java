@@ -0,0 +1,276 @@
+package com.leostormer.strife.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompDecoder;
+import org.springframework.messaging.simp.stomp.StompEncoder;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+public class OutboundSchedulerTests {
+    OutboundScheduler scheduler;
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.destroy();
+    }
+
+    private OutboundSession open(RecordingSession session, Duration window, int capacity, String policy) {
+        scheduler = new OutboundScheduler(window, capacity, DataSize.ofKilobytes(64), policy, 1);
+        return (OutboundSession) scheduler.open(session);
+    }
+
+    private static TextMessage messageFrame(String subscriptionId, String destination, String body) {
+        StompHeaderAccessor headers = StompHeaderAccessor.create(StompCommand.MESSAGE);
+        headers.setSubscriptionId(subscriptionId);
+        headers.setDestination(destination);
+        headers.setMessageId(body);
+        return new TextMessage(new StompEncoder().encode(headers.getMessageHeaders(),
+                body.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<Message<byte[]>> frames(WebSocketMessage<?> written) {
+        return new StompDecoder().decode(ByteBuffer.wrap(((TextMessage) written).asBytes()));
+    }
+
+    private static void await(RecordingSession session, int writes) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (System.nanoTime() < deadline) {
+            if (session.written.size() >= writes)
+                return;
+
+            Thread.sleep(20);
+        }
+
+        throw new AssertionError("Frames were not written in time");
+    }
+
+    @Test
+    void shouldCoalesceFramesSentWithinTheWindow() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofMillis(50), 100, "disconnect");
+
+        for (int i = 0; i < 3; i++)
+            outbound.sendMessage(messageFrame("sub-1", "/topic/channel", "message " + i));
+
+        await(session, 1);
+        Thread.sleep(100);
+        assertEquals(1, session.written.size());
+        List<Message<byte[]>> frames = frames(session.written.get(0));
+        assertEquals(3, frames.size());
+        assertEquals("message 2", new String(frames.get(2).getPayload(), StandardCharsets.UTF_8));
+        assertEquals(3, scheduler.getFrameCount());
+        assertEquals(1, scheduler.getWriteCount());
+    }
+
+    @Test
+    void shouldDropFramesBeyondCapacity() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofHours(1), 2, "drop");
+
+        for (int i = 0; i < 3; i++)
+            outbound.sendMessage(messageFrame("sub-1", "/topic/channel", "message " + i));
+
+        assertEquals(2, outbound.getQueueSize());
+        assertEquals(2, scheduler.getQueuedFrameCount());
+        assertEquals(1, scheduler.getDroppedFrameCount());
+
+        outbound.drain();
+        assertEquals(2, frames(session.written.get(0)).size());
+        assertEquals(0, scheduler.getQueuedFrameCount());
+    }
+
+    @Test
+    void shouldDisconnectSlowConsumers() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofHours(1), 2, "disconnect");
+
+        for (int i = 0; i < 3; i++)
+            outbound.sendMessage(messageFrame("sub-1", "/topic/channel", "message " + i));
+
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, session.closeStatus);
+        assertEquals(1, scheduler.getDisconnectCount());
+        assertEquals(0, outbound.getQueueSize());
+        assertTrue(session.written.isEmpty());
+    }
+
+    @Test
+    void shouldReplaceQueuedMessagesWithResyncSignals() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofHours(1), 2, "resync");
+
+        outbound.sendMessage(messageFrame("sub-1", "/topic/first", "message 0"));
+        outbound.sendMessage(messageFrame("sub-2", "/topic/second", "message 1"));
+        outbound.sendMessage(messageFrame("sub-1", "/topic/first", "message 2"));
+        assertEquals(1, scheduler.getResyncCount());
+        assertEquals(3, scheduler.getDroppedFrameCount());
+
+        outbound.drain();
+        List<Message<byte[]>> frames = frames(session.written.get(0));
+        assertEquals(2, frames.size());
+        Map<String, String> destinations = new HashMap<>();
+        for (Message<byte[]> frame : frames) {
+            StompHeaderAccessor headers = StompHeaderAccessor.wrap(frame);
+            destinations.put(headers.getSubscriptionId(), headers.getDestination());
+            assertEquals(new String(OutboundSession.RESYNC_REQUIRED, StandardCharsets.UTF_8),
+                    new String(frame.getPayload(), StandardCharsets.UTF_8));
+        }
+        assertEquals(Map.of("sub-1", "/topic/first", "sub-2", "/topic/second"), destinations);
+    }
+
+    @Test
+    void shouldWriteQueuedFramesBeforeClosing() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofHours(1), 100, "disconnect");
+
+        outbound.sendMessage(messageFrame("sub-1", "/topic/channel", "last words"));
+        outbound.close(CloseStatus.PROTOCOL_ERROR);
+
+        assertEquals(1, session.written.size());
+        assertEquals(CloseStatus.PROTOCOL_ERROR, session.closeStatus);
+    }
+
+    @Test
+    void shouldWriteBinaryMessagesOnceNegotiated() throws Exception {
+        RecordingSession session = new RecordingSession();
+        OutboundSession outbound = open(session, Duration.ofHours(1), 100, "disconnect");
+        assertTrue(scheduler.useBinaryMessages(session.getId()));
+
+        outbound.sendMessage(messageFrame("sub-1", "/topic/channel", "text frame"));
+        outbound.sendMessage(new BinaryMessage(new StompEncoder().encode(
+                StompHeaderAccessor.create(StompCommand.MESSAGE).getMessageHeaders(), new byte[] { 0, 1, 2 })));
+        outbound.drain();
+
+        assertEquals(1, session.written.size());
+        ByteBuffer written = ((BinaryMessage) session.written.get(0)).getPayload();
+        assertEquals(2, new StompDecoder().decode(written).size());
+    }
+
+    /**
+     * Records what is written to it instead of sending it.
+     */
+    static class RecordingSession implements WebSocketSession {
+        final List<WebSocketMessage<?>> written = new CopyOnWriteArrayList<>();
+
+        final Map<String, Object> attributes = new HashMap<>();
+
+        final String id;
+
+        volatile CloseStatus closeStatus;
+
+        RecordingSession() {
+            this("session");
+        }
+
+        RecordingSession(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return "v12.stomp";
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            written.add(message);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return closeStatus == null;
+        }
+
+        @Override
+        public void close() {
+            close(CloseStatus.NORMAL);
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            closeStatus = status;
+        }
+    }
+}
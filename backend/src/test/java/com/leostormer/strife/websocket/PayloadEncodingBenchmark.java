@@ -0,0 +1,121 @@
+package com.leostormer.strife.websocket;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.util.unit.DataSize;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.leostormer.strife.message.MessageView;
+import com.leostormer.strife.server.Server;
+import com.leostormer.strife.server.ServerUpdateMessage;
+import com.leostormer.strife.server.ServerView;
+import com.leostormer.strife.server.role.Role;
+import com.leostormer.strife.user.User;
+import com.leostormer.strife.user.UserView;
+
+/**
+ * Compares the size and encode time of JSON and CBOR payloads, both encoded
+ * directly and transcoded from JSON as done for CBOR sessions. Run with
+ * <code>mvn test -Dtest=PayloadEncodingBenchmark -Dbenchmark=true</code>.
+ * <p>
+ * With jackson-dataformat-cbor 2.19.4 on JDK 17 and a single core, a
+ * <code>MessageView</code> is 476 bytes of JSON in 1100-1250 ns and 431 bytes
+ * of CBOR (9% smaller) in 900-1050 ns, and a <code>ServerUpdateMessage</code>
+ * 931 bytes in 1150-1300 ns and 742 bytes (20% smaller) in 900-1000 ns.
+ * Transcoding takes 1500-1700 ns and 2350-2500 ns respectively, about one more
+ * encode per distinct payload, paid only for CBOR sessions.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class PayloadEncodingBenchmark {
+    static final int WARMUP_ITERATIONS = 50_000;
+
+    static final int ITERATIONS = 200_000;
+
+    final ObjectMapper jsonMapper = new ObjectMapper();
+
+    final CBORMapper cborMapper = new CBORMapper();
+
+    OutboundScheduler scheduler;
+
+    PayloadEncodingNegotiator negotiator;
+
+    @BeforeEach
+    void setup() {
+        scheduler = new OutboundScheduler(Duration.ofMillis(5), 100, DataSize.ofKilobytes(64), "disconnect", 1);
+        negotiator = new PayloadEncodingNegotiator(scheduler);
+    }
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.destroy();
+    }
+
+    @Test
+    void messageView() throws JsonProcessingException {
+        UserView sender = new UserView(new ObjectId().toHexString(), "Benchmark", null, new Date());
+        run("MessageView", new MessageView(new ObjectId().toHexString(), "Benchmark message ".repeat(12), new Date(),
+                sender, new ObjectId().toHexString(), Map.of("thumbsup", 3L, "party", 1L)));
+    }
+
+    @Test
+    void serverUpdateMessage() throws JsonProcessingException {
+        User owner = new User();
+        owner.setId(new ObjectId());
+        owner.setUsername("Benchmark");
+        owner.setCreatedDate(new Date());
+        Server server = new Server();
+        server.setId(new ObjectId());
+        server.setName("Benchmark server");
+        server.setDescription("A server with a few roles");
+        server.setOwner(owner);
+        for (int i = 0; i < 5; i++) {
+            Role role = new Role(new ObjectId(), "Role " + i, i, 1L << i);
+            server.getRoles().put(role.getId(), role);
+        }
+
+        run("ServerUpdateMessage", ServerUpdateMessage.serverAdded(new ServerView(server)));
+    }
+
+    private void run(String name, Object payload) throws JsonProcessingException {
+        byte[] json = jsonMapper.writeValueAsBytes(payload);
+        byte[] cbor = cborMapper.writeValueAsBytes(payload);
+
+        double jsonNanos = nanosPerEncode(() -> jsonMapper.writeValueAsBytes(payload));
+        double cborNanos = nanosPerEncode(() -> cborMapper.writeValueAsBytes(payload));
+        double transcodeNanos = nanosPerEncode(() -> negotiator.transcode(json));
+
+        System.out.printf("%s: JSON %d bytes, %.0f ns; CBOR %d bytes (%.0f%% smaller), %.0f ns; "
+                + "JSON to CBOR transcode %.0f ns%n", name, json.length, jsonNanos, cbor.length,
+                100.0 * (json.length - cbor.length) / json.length, cborNanos, transcodeNanos);
+    }
+
+    private static double nanosPerEncode(Encoder encoder) throws JsonProcessingException {
+        long blackhole = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            blackhole += encoder.encode().length;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            blackhole += encoder.encode().length;
+        long elapsed = System.nanoTime() - start;
+
+        if (blackhole == 0)
+            throw new AssertionError("Nothing was encoded");
+
+        return (double) elapsed / ITERATIONS;
+    }
+
+    @FunctionalInterface
+    interface Encoder {
+        byte[] encode() throws JsonProcessingException;
+    }
+}
@@ -0,0 +1,107 @@
+package com.leostormer.strife.websocket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.sockjs.transport.SockJsSession;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.leostormer.strife.websocket.OutboundSchedulerTests.RecordingSession;
+
+public class PayloadEncodingNegotiatorTests {
+    static final byte[] JSON = "{\"type\":\"SERVER_REMOVED\",\"server\":null,\"serverId\":\"abc\",\"ids\":[1,2.5,true]}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    OutboundScheduler scheduler;
+
+    PayloadEncodingNegotiator negotiator;
+
+    @BeforeEach
+    void setup() {
+        scheduler = new OutboundScheduler(Duration.ofMillis(5), 100, DataSize.ofKilobytes(64), "disconnect", 1);
+        negotiator = new PayloadEncodingNegotiator(scheduler);
+    }
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.destroy();
+    }
+
+    private static Message<byte[]> messageTo(String sessionId, byte[] payload) {
+        SimpMessageHeaderAccessor headers = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        headers.setSessionId(sessionId);
+        headers.setSubscriptionId("sub-1");
+        headers.setDestination("/user/queue/server-updates");
+        headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+        headers.setLeaveMutable(true);
+        return MessageBuilder.createMessage(payload, headers.getMessageHeaders());
+    }
+
+    @Test
+    void shouldTranscodeMessagesForSessionsThatChoseCbor() throws Exception {
+        scheduler.open(new RecordingSession("cbor"));
+        negotiator.negotiate("cbor", PayloadEncodingNegotiator.APPLICATION_CBOR);
+        assertEquals(PayloadEncodingNegotiator.APPLICATION_CBOR, negotiator.getEncoding("cbor"));
+
+        Message<?> encoded = negotiator.encodeForSession(messageTo("cbor", JSON));
+
+        assertEquals(PayloadEncodingNegotiator.APPLICATION_CBOR,
+                SimpMessageHeaderAccessor.getAccessor(encoded, SimpMessageHeaderAccessor.class).getContentType());
+        assertEquals(new ObjectMapper().readTree(JSON), new CBORMapper().readTree((byte[]) encoded.getPayload()));
+    }
+
+    @Test
+    void shouldTranscodeSharedPayloadsOnce() {
+        for (String sessionId : new String[] { "first", "second" }) {
+            scheduler.open(new RecordingSession(sessionId));
+            negotiator.negotiate(sessionId, PayloadEncodingNegotiator.APPLICATION_CBOR);
+        }
+
+        Object first = negotiator.encodeForSession(messageTo("first", JSON)).getPayload();
+        Object second = negotiator.encodeForSession(messageTo("second", JSON)).getPayload();
+
+        assertSame(first, second);
+        assertEquals(1, negotiator.getTranscodeCount());
+        assertEquals(1, negotiator.getTranscodeCacheHitCount());
+    }
+
+    @Test
+    void shouldKeepJsonForOtherSessions() {
+        scheduler.open(new RecordingSession("json"));
+        scheduler.open(new SockJsRecordingSession("sockjs"));
+        negotiator.negotiate("sockjs", PayloadEncodingNegotiator.APPLICATION_CBOR);
+
+        assertEquals(MimeTypeUtils.APPLICATION_JSON, negotiator.getEncoding("sockjs"));
+        assertSame(JSON, negotiator.encodeForSession(messageTo("json", JSON)).getPayload());
+        assertSame(JSON, negotiator.encodeForSession(messageTo("sockjs", JSON)).getPayload());
+        assertEquals(0, negotiator.getCborSessionCount());
+    }
+
+    static class SockJsRecordingSession extends RecordingSession implements SockJsSession {
+        SockJsRecordingSession(String id) {
+            super(id);
+        }
+
+        @Override
+        public long getTimeSinceLastActive() {
+            return 0;
+        }
+
+        @Override
+        public void disableHeartbeat() {
+        }
+    }
+}